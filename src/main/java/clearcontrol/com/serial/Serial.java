@@ -3,6 +3,8 @@ package clearcontrol.com.serial;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import java.util.regex.Pattern;
 
 import jssc.SerialPort;
@@ -40,6 +42,7 @@ public class Serial implements SerialInterface, LoggingFeature
   private SerialPort mSerialPort;
 
   private volatile boolean mIsMessageReceived;
+  private volatile Thread mWaitingThread;
   private final TByteArrayList mBuffer = new TByteArrayList(1024);
   private volatile String mTextMessageReceived;
 
@@ -210,7 +213,7 @@ public class Serial implements SerialInterface, LoggingFeature
   private final void textMessageReceived(final String pMessage)
   {
     mTextMessageReceived = pMessage;
-    mIsMessageReceived = true;
+    messageReceived();
 
     for (final SerialListener lSerialListener : mListenerList)
     {
@@ -218,9 +221,17 @@ public class Serial implements SerialInterface, LoggingFeature
     }
   }
 
-  private final void binaryMessageReceived(final byte[] pMessage)
+  private final void messageReceived()
   {
     mIsMessageReceived = true;
+    final Thread lWaitingThread = mWaitingThread;
+    if (lWaitingThread != null)
+      LockSupport.unpark(lWaitingThread);
+  }
+
+  private final void binaryMessageReceived(final byte[] pMessage)
+  {
+    messageReceived();
 
     for (final SerialListener lSerialListener : mListenerList)
     {
@@ -306,6 +317,16 @@ public class Serial implements SerialInterface, LoggingFeature
     mNotifyEvents = notifyEvents;
   }
 
+  /**
+   * Returns the underlying serial port, null if not connected
+   * 
+   * @return serial port
+   */
+  public SerialPort getSerialPort()
+  {
+    return mSerialPort;
+  }
+
   public boolean isConnected()
   {
     if (mSerialPort == null)
@@ -372,18 +393,32 @@ public class Serial implements SerialInterface, LoggingFeature
     }
   }
 
+  /**
+   * Waits for a message to be received, the calling thread is parked until
+   * woken up by the reception of a message.
+   * 
+   * @param pWaitTime
+   *          maximal time in milliseconds between checks for a received
+   *          message
+   * @return last text message received
+   */
   public String waitForAnswer(final int pWaitTime)
   {
-    while (!mIsMessageReceived)
+    mWaitingThread = Thread.currentThread();
+    try
     {
-      try
-      {
-        Thread.sleep(pWaitTime);
-      }
-      catch (final InterruptedException e)
+      while (!mIsMessageReceived)
       {
+        LockSupport.parkNanos(this,
+                              TimeUnit.MILLISECONDS.toNanos(Math.max(1,
+                                                                     pWaitTime)));
+        Thread.interrupted();
       }
     }
+    finally
+    {
+      mWaitingThread = null;
+    }
     mIsMessageReceived = false;
     return mTextMessageReceived;
   }
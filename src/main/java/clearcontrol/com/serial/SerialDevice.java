@@ -1,21 +1,117 @@
 package clearcontrol.com.serial;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 import jssc.SerialPortException;
 import clearcontrol.com.serial.adapters.SerialBinaryDeviceAdapter;
+import clearcontrol.com.serial.adapters.SerialDeviceAdapter;
 import clearcontrol.com.serial.adapters.SerialTextDeviceAdapter;
+import clearcontrol.com.serial.transport.JSSCSerialChannel;
+import clearcontrol.com.serial.transport.SerialChannelInterface;
+import clearcontrol.com.serial.transport.SerialCommand;
+import clearcontrol.com.serial.transport.SerialTransport;
+import clearcontrol.core.concurrent.executors.ClearControlExecutionService;
+import clearcontrol.core.concurrent.executors.WaitingScheduledFuture;
 import clearcontrol.core.device.VirtualDevice;
 import clearcontrol.core.device.openclose.OpenCloseDeviceInterface;
+import clearcontrol.core.log.LoggingFeature;
 import clearcontrol.core.variable.Variable;
 import clearcontrol.core.variable.bundle.VariableBundle;
 
 /**
  * Serial communication device
  *
+ * By default, each get or set writes a command and then waits a fixed time
+ * before reading the answer. In response-driven mode, commands go through a
+ * {@link SerialTransport} instead: answers are read as soon as they arrive,
+ * commands from different threads can be outstanding at the same time, and
+ * several variables can be polled with a single write (see
+ * {@link #pollVariables(Variable...)}). Purging after gets and sets is not
+ * needed in that mode, answers being framed exactly.
+ *
+ * Variables can be given a max staleness (see
+ * {@link #setMaxStaleness(Variable, long, TimeUnit)}): gets within that time
+ * from the last read or write return the cached value without talking to the
+ * device, sets write through. Read values are only cached if no set of the
+ * variable began after the read was sent, so that a poll in flight never
+ * overwrites the value of a set. Cached values can be refreshed in the
+ * background, in batches (see {@link #startCacheRefresh(long, TimeUnit)}), on
+ * the shared scheduler of the {@link ClearControlExecutionService}.
+ *
  * @author royer
  */
 public class SerialDevice extends VirtualDevice
-                          implements OpenCloseDeviceInterface
+                          implements OpenCloseDeviceInterface,
+                          LoggingFeature
 {
+  /**
+   * Cached value of a variable. The version changes each time a set begins or
+   * ends, or the value is invalidated.
+   */
+  private static class CachedValue
+  {
+    final long mMaxStalenessInNanoseconds;
+    volatile Object mValue;
+    volatile long mTimeStampInNanoseconds;
+    private long mVersion;
+    private int mNumberOfSetsInProgress;
+
+    CachedValue(long pMaxStalenessInNanoseconds)
+    {
+      mMaxStalenessInNanoseconds = pMaxStalenessInNanoseconds;
+    }
+
+    long getAgeInNanoseconds()
+    {
+      return System.nanoTime() - mTimeStampInNanoseconds;
+    }
+
+    synchronized long getVersion()
+    {
+      return mVersion;
+    }
+
+    synchronized void putReadValue(Object pValue, long pVersion)
+    {
+      // a set began after the read was sent, the read value might be older:
+      if (pVersion != mVersion || mNumberOfSetsInProgress > 0)
+        return;
+      put(pValue);
+    }
+
+    synchronized void beginSet()
+    {
+      mVersion++;
+      mNumberOfSetsInProgress++;
+    }
+
+    synchronized void endSet(Object pValue)
+    {
+      if (mNumberOfSetsInProgress > 0)
+        mNumberOfSetsInProgress--;
+      mVersion++;
+      put(pValue);
+    }
+
+    synchronized void invalidate()
+    {
+      mVersion++;
+      mValue = null;
+    }
+
+    private void put(Object pValue)
+    {
+      mTimeStampInNanoseconds = System.nanoTime();
+      mValue = pValue;
+    }
+  }
+
+
 
   private final Serial mSerial;
   private final String mPortName;
@@ -23,6 +119,19 @@ public class SerialDevice extends VirtualDevice
 
   private final Object mDeviceLock = new Object();
 
+  private final SerialChannelInterface mSerialChannel;
+  private volatile boolean mResponseDriven;
+  private volatile SerialTransport mSerialTransport;
+  private volatile int mMaxNumberOfOutstandingCommands = 16;
+  private volatile long mResponseTimeOutInMilliseconds = 1000;
+  private final ConcurrentHashMap<Variable<?>, SerialDeviceAdapter<?>> mAdapterMap =
+                                                                                 new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<Variable<?>, CachedValue> mCachedValueMap =
+                                                                           new ConcurrentHashMap<>();
+  private ScheduledThreadPoolExecutor mCacheRefreshExecutor;
+  private volatile WaitingScheduledFuture<?> mCacheRefreshFuture;
+  private volatile long mCacheRefreshPeriodInNanoseconds;
+
   /**
    * Instanciates a serila communication device
    * 
@@ -40,6 +149,7 @@ public class SerialDevice extends VirtualDevice
     super(pDeviceName);
     mPortName = pPortName;
     mSerial = new Serial(pBaudRate);
+    mSerialChannel = null;
     getSerial().setNotifyEvents(false);
 
     mVariableBundle = new VariableBundle(String.format("$s($s)",
@@ -48,6 +158,28 @@ public class SerialDevice extends VirtualDevice
 
   }
 
+  /**
+   * Instanciates a response-driven serial communication device over a given
+   * serial channel, for example a loopback channel for testing.
+   * 
+   * @param pDeviceName
+   *          device name
+   * @param pSerialChannel
+   *          serial channel
+   */
+  public SerialDevice(final String pDeviceName,
+                      final SerialChannelInterface pSerialChannel)
+  {
+    super(pDeviceName);
+    mPortName = null;
+    mSerial = new Serial(0);
+    mSerialChannel = pSerialChannel;
+    mResponseDriven = true;
+    getSerial().setNotifyEvents(false);
+
+    mVariableBundle = new VariableBundle(pDeviceName);
+  }
+
   public Serial getSerial()
   {
     return mSerial;
@@ -70,9 +202,22 @@ public class SerialDevice extends VirtualDevice
       {
         try
         {
+          final long lCacheVersion = getCacheVersion(this);
+          final O lCachedValue = getFreshCachedValue(this);
+          if (lCachedValue != null)
+            return super.getEventHook(lCachedValue);
+
           final byte[] cGetValueCommand =
                                         pSerialBinaryDevice.getGetValueCommandMessage();
 
+          if (cGetValueCommand != null && mSerialTransport != null)
+            return super.getEventHook(requestValue(this,
+                                                   pSerialBinaryDevice,
+                                                   newGetCommand(getName(),
+                                                                 pSerialBinaryDevice,
+                                                                 cGetValueCommand),
+                                                   pCurrentValue));
+
           if (cGetValueCommand != null)
           {
             synchronized (mDeviceLock)
@@ -95,7 +240,10 @@ public class SerialDevice extends VirtualDevice
                 final O lParsedValue =
                                      pSerialBinaryDevice.parseValue(lAnswerMessage);
                 if (lParsedValue != null)
+                {
+                  cacheValue(this, lParsedValue, lCacheVersion);
                   return super.getEventHook(lParsedValue);
+                }
                 else
                   return super.getEventHook(pCurrentValue);
               }
@@ -114,6 +262,9 @@ public class SerialDevice extends VirtualDevice
       @Override
       public O setEventHook(final O pOldValue, O pNewValue)
       {
+        // null if nothing was written, the next get then reads the device:
+        O lWrittenValue = null;
+        beginCachedSet(this);
         try
         {
           pNewValue = pSerialBinaryDevice.clampSetValue(pNewValue);
@@ -121,7 +272,16 @@ public class SerialDevice extends VirtualDevice
           final byte[] lSetValueCommandMessage =
                                                pSerialBinaryDevice.getSetValueCommandMessage(pOldValue,
                                                                                              pNewValue);
-          if (lSetValueCommandMessage != null)
+          if (lSetValueCommandMessage != null
+              && mSerialTransport != null)
+          {
+            if (requestSet(pSerialBinaryDevice,
+                           newSetCommand(getName(),
+                                         pSerialBinaryDevice,
+                                         lSetValueCommandMessage)))
+              lWrittenValue = pNewValue;
+          }
+          else if (lSetValueCommandMessage != null)
           {
             synchronized (mDeviceLock)
             {
@@ -145,6 +305,7 @@ public class SerialDevice extends VirtualDevice
                 mSerial.purge();
               }
             }
+            lWrittenValue = pNewValue;
           }
         }
         catch (final SerialPortException e)
@@ -152,11 +313,16 @@ public class SerialDevice extends VirtualDevice
           // TODO handle error
           return super.setEventHook(pOldValue, pNewValue);
         }
+        finally
+        {
+          endCachedSet(this, lWrittenValue);
+        }
         return super.setEventHook(pOldValue, pNewValue);
       }
 
     };
 
+    mAdapterMap.put(lObjectVariable, pSerialBinaryDevice);
     mVariableBundle.addVariable(lObjectVariable);
     return lObjectVariable;
   }
@@ -172,9 +338,22 @@ public class SerialDevice extends VirtualDevice
       {
         try
         {
+          final long lCacheVersion = getCacheVersion(this);
+          final O lCachedValue = getFreshCachedValue(this);
+          if (lCachedValue != null)
+            return super.getEventHook(lCachedValue);
+
           final byte[] cGetValueCommand =
                                         pSerialTextDeviceAdapter.getGetValueCommandMessage();
 
+          if (cGetValueCommand != null && mSerialTransport != null)
+            return super.getEventHook(requestValue(this,
+                                                   pSerialTextDeviceAdapter,
+                                                   newGetCommand(getName(),
+                                                                 pSerialTextDeviceAdapter,
+                                                                 cGetValueCommand),
+                                                   pCurrentValue));
+
           if (cGetValueCommand != null && getSerial().isConnected())
           {
             synchronized (mDeviceLock)
@@ -196,7 +375,10 @@ public class SerialDevice extends VirtualDevice
                 final O lParsedValue =
                                      pSerialTextDeviceAdapter.parseValue(lAnswerMessage);
                 if (lParsedValue != null)
+                {
+                  cacheValue(this, lParsedValue, lCacheVersion);
                   return super.getEventHook(lParsedValue);
+                }
                 else
                   return super.getEventHook(pCurrentValue);
               }
@@ -215,6 +397,9 @@ public class SerialDevice extends VirtualDevice
       @Override
       public O setEventHook(final O pOldValue, O pNewValue)
       {
+        // null if nothing was written, the next get then reads the device:
+        O lWrittenValue = null;
+        beginCachedSet(this);
         try
         {
           pNewValue =
@@ -224,7 +409,16 @@ public class SerialDevice extends VirtualDevice
                                                pSerialTextDeviceAdapter.getSetValueCommandMessage(pOldValue,
                                                                                                   pNewValue);
           if (lSetValueCommandMessage != null
-              && getSerial().isConnected())
+              && mSerialTransport != null)
+          {
+            if (requestSet(pSerialTextDeviceAdapter,
+                           newSetCommand(getName(),
+                                         pSerialTextDeviceAdapter,
+                                         lSetValueCommandMessage)))
+              lWrittenValue = pNewValue;
+          }
+          else if (lSetValueCommandMessage != null
+                   && getSerial().isConnected())
           {
             synchronized (mDeviceLock)
             {
@@ -247,21 +441,412 @@ public class SerialDevice extends VirtualDevice
                 mSerial.purge();
               }
             }
+            lWrittenValue = pNewValue;
           }
         }
         catch (final SerialPortException e)
         {
           // TODO handle error
         }
+        finally
+        {
+          endCachedSet(this, lWrittenValue);
+        }
         return super.setEventHook(pOldValue, pNewValue);
       }
 
     };
 
+    mAdapterMap.put(lObjectVariable, pSerialTextDeviceAdapter);
     mVariableBundle.addVariable(lObjectVariable);
     return lObjectVariable;
   }
 
+  /**
+   * Polls the values of several serial variables of this device. In
+   * response-driven mode, all get commands are sent in a single write and the
+   * answers are collected as they arrive, otherwise variables are polled one
+   * after the other.
+   * 
+   * @param pVariables
+   *          variables created by this device
+   * @return polled values, in the same order, null for values that could not
+   *         be polled
+   */
+  public List<Object> pollVariables(final Variable<?>... pVariables)
+  {
+    final ArrayList<Object> lValueList = new ArrayList<>();
+    final SerialTransport lSerialTransport = mSerialTransport;
+    if (lSerialTransport == null)
+    {
+      for (Variable<?> lVariable : pVariables)
+        lValueList.add(lVariable.get());
+      return lValueList;
+    }
+
+    final ArrayList<SerialCommand> lCommandList = new ArrayList<>();
+    for (Variable<?> lVariable : pVariables)
+    {
+      final SerialDeviceAdapter<?> lAdapter = mAdapterMap.get(lVariable);
+      final byte[] lGetValueCommand =
+                                    lAdapter == null ? null
+                                                     : lAdapter.getGetValueCommandMessage();
+      lCommandList.add(lGetValueCommand == null ? null
+                                                : newGetCommand(lVariable.getName(),
+                                                                lAdapter,
+                                                                lGetValueCommand));
+    }
+
+    // cache versions before sending, answers of reads sent before a set are
+    // not cached:
+    final long[] lCacheVersions = new long[pVariables.length];
+    for (int i = 0; i < pVariables.length; i++)
+      lCacheVersions[i] = getCacheVersion(pVariables[i]);
+
+    try
+    {
+      final ArrayList<SerialCommand> lCommandsToSend = new ArrayList<>();
+      for (SerialCommand lSerialCommand : lCommandList)
+        if (lSerialCommand != null)
+          lCommandsToSend.add(lSerialCommand);
+      lSerialTransport.sendBatch(lCommandsToSend);
+    }
+    catch (SerialException e)
+    {
+      warning("Could not poll variables of %s: %s",
+              getName(),
+              e.getMessage());
+    }
+
+    for (int i = 0; i < pVariables.length; i++)
+    {
+      final SerialCommand lSerialCommand = lCommandList.get(i);
+      Object lValue = null;
+      if (lSerialCommand != null && lSerialCommand.hasAnswer())
+      {
+        try
+        {
+          final byte[] lAnswer =
+                               lSerialTransport.waitForAnswer(lSerialCommand,
+                                                              mResponseTimeOutInMilliseconds,
+                                                              TimeUnit.MILLISECONDS);
+          lValue = mAdapterMap.get(pVariables[i]).parseValue(lAnswer);
+          cacheValue(pVariables[i], lValue, lCacheVersions[i]);
+        }
+        catch (SerialException e)
+        {
+          warning("Could not poll variable %s: %s",
+                  pVariables[i].getName(),
+                  e.getMessage());
+        }
+      }
+      lValueList.add(lValue);
+    }
+    return lValueList;
+  }
+
+  private SerialCommand newGetCommand(final String pName,
+                                      final SerialDeviceAdapter<?> pAdapter,
+                                      final byte[] pCommand)
+  {
+    final String lName = pName + ".get";
+    if (!pAdapter.hasResponseForGet())
+      return SerialCommand.noAnswer(lName, pCommand);
+    if (pAdapter instanceof SerialTextDeviceAdapter)
+      return SerialCommand.text(lName,
+                                pCommand,
+                                ((SerialTextDeviceAdapter<?>) pAdapter).getGetValueReturnMessageTerminationCharacter());
+    final int lLength =
+                      ((SerialBinaryDeviceAdapter<?>) pAdapter).getGetValueReturnMessageLength();
+    return lLength > 0 ? SerialCommand.binary(lName, pCommand, lLength)
+                       : SerialCommand.noAnswer(lName, pCommand);
+  }
+
+  private SerialCommand newSetCommand(final String pName,
+                                      final SerialDeviceAdapter<?> pAdapter,
+                                      final byte[] pCommand)
+  {
+    final String lName = pName + ".set";
+    if (!pAdapter.hasResponseForSet())
+      return SerialCommand.noAnswer(lName, pCommand);
+    if (pAdapter instanceof SerialTextDeviceAdapter)
+      return SerialCommand.text(lName,
+                                pCommand,
+                                ((SerialTextDeviceAdapter<?>) pAdapter).getSetValueReturnMessageTerminationCharacter());
+    final int lLength =
+                      ((SerialBinaryDeviceAdapter<?>) pAdapter).getSetValueReturnMessageLength();
+    return lLength > 0 ? SerialCommand.binary(lName, pCommand, lLength)
+                       : SerialCommand.noAnswer(lName, pCommand);
+  }
+
+  private <O> O requestValue(final Variable<O> pVariable,
+                             final SerialDeviceAdapter<O> pAdapter,
+                             final SerialCommand pSerialCommand,
+                             final O pCurrentValue)
+  {
+    final long lCacheVersion = getCacheVersion(pVariable);
+    try
+    {
+      final byte[] lAnswer =
+                           mSerialTransport.request(pSerialCommand,
+                                                    mResponseTimeOutInMilliseconds,
+                                                    TimeUnit.MILLISECONDS);
+      if (!pSerialCommand.hasAnswer())
+        return pCurrentValue;
+      final O lParsedValue = pAdapter.parseValue(lAnswer);
+      if (lParsedValue == null)
+        return pCurrentValue;
+      cacheValue(pVariable, lParsedValue, lCacheVersion);
+      return lParsedValue;
+    }
+    catch (final SerialException e)
+    {
+      warning("Could not get value from %s: %s",
+              getName(),
+              e.getMessage());
+      return pCurrentValue;
+    }
+  }
+
+  private boolean requestSet(final SerialDeviceAdapter<?> pAdapter,
+                             final SerialCommand pSerialCommand)
+  {
+    try
+    {
+      final byte[] lAnswer =
+                           mSerialTransport.request(pSerialCommand,
+                                                    mResponseTimeOutInMilliseconds,
+                                                    TimeUnit.MILLISECONDS);
+      if (pSerialCommand.hasAnswer())
+        pAdapter.checkAcknowledgementSetValueReturnMessage(lAnswer);
+      return true;
+    }
+    catch (final SerialException e)
+    {
+      warning("Could not set value of %s: %s",
+              getName(),
+              e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * Sets the max staleness of a variable created by this device: gets within
+   * that time from the last read or write of the value return the cached
+   * value. A max staleness of zero disables caching.
+   * 
+   * @param pVariable
+   *          variable
+   * @param pMaxStaleness
+   *          max staleness
+   * @param pTimeUnit
+   *          max staleness unit
+   */
+  public void setMaxStaleness(final Variable<?> pVariable,
+                              final long pMaxStaleness,
+                              final TimeUnit pTimeUnit)
+  {
+    if (pMaxStaleness <= 0)
+      mCachedValueMap.remove(pVariable);
+    else
+      mCachedValueMap.put(pVariable,
+                          new CachedValue(pTimeUnit.toNanos(pMaxStaleness)));
+  }
+
+  /**
+   * Invalidates all cached values, the next gets talk to the device.
+   */
+  public void invalidateCache()
+  {
+    for (CachedValue lCachedValue : mCachedValueMap.values())
+      lCachedValue.invalidate();
+  }
+
+  @SuppressWarnings("unchecked")
+  private <O> O getFreshCachedValue(final Variable<O> pVariable)
+  {
+    final CachedValue lCachedValue = mCachedValueMap.get(pVariable);
+    if (lCachedValue == null)
+      return null;
+    final Object lValue = lCachedValue.mValue;
+    if (lValue == null
+        || lCachedValue.getAgeInNanoseconds() > lCachedValue.mMaxStalenessInNanoseconds)
+      return null;
+    return (O) lValue;
+  }
+
+  private long getCacheVersion(final Variable<?> pVariable)
+  {
+    final CachedValue lCachedValue = mCachedValueMap.get(pVariable);
+    return lCachedValue == null ? -1 : lCachedValue.getVersion();
+  }
+
+  private void cacheValue(final Variable<?> pVariable,
+                          final Object pValue,
+                          final long pCacheVersion)
+  {
+    final CachedValue lCachedValue = mCachedValueMap.get(pVariable);
+    if (lCachedValue != null)
+      lCachedValue.putReadValue(pValue, pCacheVersion);
+  }
+
+  private void beginCachedSet(final Variable<?> pVariable)
+  {
+    final CachedValue lCachedValue = mCachedValueMap.get(pVariable);
+    if (lCachedValue != null)
+      lCachedValue.beginSet();
+  }
+
+  private void endCachedSet(final Variable<?> pVariable,
+                            final Object pWrittenValue)
+  {
+    final CachedValue lCachedValue = mCachedValueMap.get(pVariable);
+    if (lCachedValue != null)
+      lCachedValue.endSet(pWrittenValue);
+  }
+
+  /**
+   * Starts refreshing cached values in the background (see
+   * {@link #refreshCache()}), first after one period, and then at each period.
+   * 
+   * @param pPeriod
+   *          refresh period
+   * @param pTimeUnit
+   *          period unit
+   */
+  @SuppressWarnings(
+  { "unchecked", "rawtypes" })
+  public synchronized void startCacheRefresh(final long pPeriod,
+                                             final TimeUnit pTimeUnit)
+  {
+    stopCacheRefresh();
+    mCacheRefreshPeriodInNanoseconds = pTimeUnit.toNanos(pPeriod);
+    if (mCacheRefreshExecutor == null)
+      mCacheRefreshExecutor =
+                            ClearControlExecutionService.get()
+                                                        .createScheduledThreadPoolExecutor(this,
+                                                                                           1);
+    mCacheRefreshFuture =
+                        new WaitingScheduledFuture(mCacheRefreshExecutor.scheduleAtFixedRate(this::refreshCache,
+                                                                                             pPeriod,
+                                                                                             pPeriod,
+                                                                                             pTimeUnit));
+  }
+
+  /**
+   * Stops refreshing cached values in the background
+   */
+  public synchronized void stopCacheRefresh()
+  {
+    final WaitingScheduledFuture<?> lCacheRefreshFuture =
+                                                        mCacheRefreshFuture;
+    mCacheRefreshFuture = null;
+    if (lCacheRefreshFuture != null)
+      lCacheRefreshFuture.cancel(false);
+  }
+
+  private synchronized void releaseCacheRefreshExecutor()
+  {
+    stopCacheRefresh();
+    if (mCacheRefreshExecutor != null)
+    {
+      mCacheRefreshExecutor.shutdown();
+      mCacheRefreshExecutor = null;
+      ClearControlExecutionService.get().release(this);
+    }
+  }
+
+  /**
+   * Refreshes cached values: values that are stale, or would become stale
+   * before the next refresh period, are polled together (see
+   * {@link #pollVariables(Variable...)}).
+   */
+  public void refreshCache()
+  {
+    try
+    {
+      final ArrayList<Variable<?>> lVariableList = new ArrayList<>();
+      for (Map.Entry<Variable<?>, CachedValue> lEntry : mCachedValueMap.entrySet())
+      {
+        final CachedValue lCachedValue = lEntry.getValue();
+        if (lCachedValue.mValue == null
+            || lCachedValue.getAgeInNanoseconds()
+               + mCacheRefreshPeriodInNanoseconds > lCachedValue.mMaxStalenessInNanoseconds)
+        {
+          // marked stale so that gets without transport do reach the device:
+          lCachedValue.mTimeStampInNanoseconds =
+                                               System.nanoTime()
+                                                 - lCachedValue.mMaxStalenessInNanoseconds
+                                                 - 1;
+          lVariableList.add(lEntry.getKey());
+        }
+      }
+
+      if (!lVariableList.isEmpty())
+        pollVariables(lVariableList.toArray(new Variable<?>[lVariableList.size()]));
+    }
+    catch (Throwable e)
+    {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Sets whether this device is response-driven, takes effect at the next
+   * opening.
+   * 
+   * @param pResponseDriven
+   *          true for response-driven
+   */
+  public void setResponseDriven(final boolean pResponseDriven)
+  {
+    mResponseDriven = pResponseDriven;
+  }
+
+  /**
+   * Returns true if this device is response-driven
+   * 
+   * @return true if response-driven
+   */
+  public boolean isResponseDriven()
+  {
+    return mResponseDriven;
+  }
+
+  /**
+   * Sets the max number of commands waiting for answers at any time, in
+   * response-driven mode. Takes effect at the next opening.
+   * 
+   * @param pMaxNumberOfOutstandingCommands
+   *          max number of outstanding commands
+   */
+  public void setMaxNumberOfOutstandingCommands(final int pMaxNumberOfOutstandingCommands)
+  {
+    mMaxNumberOfOutstandingCommands = pMaxNumberOfOutstandingCommands;
+  }
+
+  /**
+   * Sets how long to wait for an answer in response-driven mode
+   * 
+   * @param pResponseTimeOutInMilliseconds
+   *          time out in milliseconds
+   */
+  public void setResponseTimeOutInMilliseconds(final long pResponseTimeOutInMilliseconds)
+  {
+    mResponseTimeOutInMilliseconds = pResponseTimeOutInMilliseconds;
+  }
+
+  /**
+   * Returns the serial transport used in response-driven mode, null if not
+   * open or not response-driven. Its statistics give per-command latencies.
+   * 
+   * @return serial transport
+   */
+  public SerialTransport getSerialTransport()
+  {
+    return mSerialTransport;
+  }
+
   protected void sleep(final long pSleepTimeInMilliseconds)
   {
     if (pSleepTimeInMilliseconds > 0)
@@ -291,11 +876,24 @@ public class SerialDevice extends VirtualDevice
   {
     try
     {
+      if (mSerialChannel != null)
+      {
+        mSerialTransport = new SerialTransport(getName(),
+                                               mSerialChannel,
+                                               mMaxNumberOfOutstandingCommands);
+        return true;
+      }
+
       final boolean lConnected = getSerial().connect(mPortName);
       getSerial().purge();
+      if (lConnected && mResponseDriven)
+        mSerialTransport =
+                         new SerialTransport(getName(),
+                                             new JSSCSerialChannel(getSerial().getSerialPort()),
+                                             mMaxNumberOfOutstandingCommands);
       return lConnected;
     }
-    catch (final SerialPortException e)
+    catch (final SerialPortException | SerialException e)
     {
       e.printStackTrace();
       return false;
@@ -307,10 +905,15 @@ public class SerialDevice extends VirtualDevice
   {
     try
     {
+      releaseCacheRefreshExecutor();
+      final SerialTransport lSerialTransport = mSerialTransport;
+      mSerialTransport = null;
+      if (lSerialTransport != null)
+        lSerialTransport.close();
       getSerial().close();
       return true;
     }
-    catch (final SerialPortException e)
+    catch (final SerialPortException | SerialException e)
     {
       e.printStackTrace();
       return false;
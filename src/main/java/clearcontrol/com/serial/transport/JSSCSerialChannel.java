@@ -0,0 +1,89 @@
+package clearcontrol.com.serial.transport;
+
+import java.util.function.Consumer;
+
+import jssc.SerialPort;
+import jssc.SerialPortEvent;
+import jssc.SerialPortException;
+import clearcontrol.com.serial.SerialException;
+
+/**
+ * Serial channel over an open JSSC serial port. Received bytes are read as
+ * soon as the port signals them.
+ *
+ * @author royer
+ */
+public class JSSCSerialChannel implements SerialChannelInterface
+{
+  private final SerialPort mSerialPort;
+
+  /**
+   * Instantiates a serial channel over a given open serial port. The port
+   * should not have any other event listener.
+   * 
+   * @param pSerialPort
+   *          open serial port
+   */
+  public JSSCSerialChannel(SerialPort pSerialPort)
+  {
+    super();
+    mSerialPort = pSerialPort;
+  }
+
+  @Override
+  public void write(byte[] pBytes) throws SerialException
+  {
+    try
+    {
+      mSerialPort.writeBytes(pBytes);
+    }
+    catch (SerialPortException e)
+    {
+      throw new SerialException("Could not write to serial port "
+                                + mSerialPort.getPortName(), e);
+    }
+  }
+
+  @Override
+  public void setReceiver(Consumer<byte[]> pReceiver) throws SerialException
+  {
+    try
+    {
+      mSerialPort.setEventsMask(SerialPort.MASK_RXCHAR);
+      mSerialPort.addEventListener((SerialPortEvent pEvent) -> {
+        if (pEvent.getEventType() != SerialPortEvent.RXCHAR)
+          return;
+        try
+        {
+          final byte[] lBytes = mSerialPort.readBytes();
+          if (lBytes != null && lBytes.length > 0)
+            pReceiver.accept(lBytes);
+        }
+        catch (SerialPortException e)
+        {
+          e.printStackTrace();
+        }
+      });
+    }
+    catch (SerialPortException e)
+    {
+      throw new SerialException("Could not listen to serial port "
+                                + mSerialPort.getPortName(), e);
+    }
+  }
+
+  @Override
+  public void close() throws SerialException
+  {
+    try
+    {
+      mSerialPort.removeEventListener();
+    }
+    catch (SerialPortException e)
+    {
+      throw new SerialException("Could not stop listening to serial port "
+                                + mSerialPort.getPortName(), e);
+    }
+  }
+
+}
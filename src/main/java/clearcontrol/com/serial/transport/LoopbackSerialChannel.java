@@ -0,0 +1,145 @@
+package clearcontrol.com.serial.transport;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import clearcontrol.com.serial.SerialException;
+import clearcontrol.core.concurrent.executors.ClearControlExecutors;
+import gnu.trove.list.array.TByteArrayList;
+
+/**
+ * Fake serial device for testing without hardware. Written bytes are split in
+ * commands at a delimiter byte, and each command is answered by a responder
+ * function after a given latency, in order, from a separate thread.
+ *
+ * @author royer
+ */
+public class LoopbackSerialChannel implements SerialChannelInterface
+{
+  private final byte mCommandDelimiter;
+  private final Function<byte[], byte[]> mResponder;
+  private volatile long mLatencyInMicroseconds;
+
+  private final TByteArrayList mCommandBuffer = new TByteArrayList();
+  private final LinkedBlockingQueue<byte[]> mCommandQueue =
+                                                          new LinkedBlockingQueue<>();
+  private volatile Consumer<byte[]> mReceiver;
+  private volatile boolean mIsOpen = true;
+  private volatile long mNumberOfWrites;
+
+  /**
+   * Instantiates a loopback serial channel
+   * 
+   * @param pCommandDelimiter
+   *          byte ending each command, included in the command passed to the
+   *          responder
+   * @param pResponder
+   *          responder, returns the bytes to send back for a command, or null
+   *          for no answer
+   * @param pLatencyInMicroseconds
+   *          time taken to answer each command
+   */
+  public LoopbackSerialChannel(byte pCommandDelimiter,
+                               Function<byte[], byte[]> pResponder,
+                               long pLatencyInMicroseconds)
+  {
+    super();
+    mCommandDelimiter = pCommandDelimiter;
+    mResponder = pResponder;
+    mLatencyInMicroseconds = pLatencyInMicroseconds;
+
+    final Thread lThread =
+                         ClearControlExecutors.getThreadFactory("LoopbackSerialChannel",
+                                                                Thread.NORM_PRIORITY)
+                                              .newThread(this::respond);
+    lThread.setDaemon(true);
+    lThread.start();
+  }
+
+  @Override
+  public void write(byte[] pBytes) throws SerialException
+  {
+    if (!mIsOpen)
+      throw new SerialException("Loopback channel is closed");
+    synchronized (mCommandBuffer)
+    {
+      mNumberOfWrites++;
+      for (byte lByte : pBytes)
+      {
+        mCommandBuffer.add(lByte);
+        if (lByte == mCommandDelimiter)
+        {
+          mCommandQueue.add(mCommandBuffer.toArray());
+          mCommandBuffer.resetQuick();
+        }
+      }
+    }
+  }
+
+  @Override
+  public void setReceiver(Consumer<byte[]> pReceiver)
+  {
+    mReceiver = pReceiver;
+  }
+
+  @Override
+  public void close()
+  {
+    mIsOpen = false;
+  }
+
+  private void respond()
+  {
+    while (mIsOpen)
+    {
+      try
+      {
+        final byte[] lCommand =
+                              mCommandQueue.poll(100,
+                                                 TimeUnit.MILLISECONDS);
+        if (lCommand == null)
+          continue;
+
+        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(mLatencyInMicroseconds));
+
+        final byte[] lAnswer = mResponder.apply(lCommand);
+        final Consumer<byte[]> lReceiver = mReceiver;
+        if (lAnswer != null && lReceiver != null)
+          lReceiver.accept(lAnswer);
+      }
+      catch (InterruptedException e)
+      {
+        return;
+      }
+      catch (Throwable e)
+      {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Sets the time taken to answer each command
+   * 
+   * @param pLatencyInMicroseconds
+   *          latency in microseconds
+   */
+  public void setLatencyInMicroseconds(long pLatencyInMicroseconds)
+  {
+    mLatencyInMicroseconds = pLatencyInMicroseconds;
+  }
+
+  /**
+   * Returns the number of writes received so far
+   * 
+   * @return number of writes
+   */
+  public long getNumberOfWrites()
+  {
+    return mNumberOfWrites;
+  }
+
+}
@@ -0,0 +1,42 @@
+package clearcontrol.com.serial.transport;
+
+import java.util.function.Consumer;
+
+import clearcontrol.com.serial.SerialException;
+
+/**
+ * Byte channel to a serial device. Received bytes are pushed to a receiver as
+ * they arrive.
+ *
+ * @author royer
+ */
+public interface SerialChannelInterface
+{
+  /**
+   * Writes bytes to the device
+   * 
+   * @param pBytes
+   *          bytes
+   * @throws SerialException
+   *           thrown if the bytes could not be written
+   */
+  void write(byte[] pBytes) throws SerialException;
+
+  /**
+   * Sets the receiver of the bytes sent by the device
+   * 
+   * @param pReceiver
+   *          receiver
+   * @throws SerialException
+   *           thrown if the receiver could not be set
+   */
+  void setReceiver(Consumer<byte[]> pReceiver) throws SerialException;
+
+  /**
+   * Closes this channel
+   * 
+   * @throws SerialException
+   *           thrown if the channel could not be closed
+   */
+  void close() throws SerialException;
+}
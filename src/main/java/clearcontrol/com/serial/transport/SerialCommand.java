@@ -0,0 +1,151 @@
+package clearcontrol.com.serial.transport;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Command sent to a serial device, with the framing of its answer: text
+ * answers end with a termination character, binary answers have a fixed
+ * length, and some commands have no answer at all.
+ *
+ * @author royer
+ */
+public class SerialCommand
+{
+  private final String mName;
+  private final byte[] mBytes;
+  private final Character mTerminationCharacter;
+  private final int mAnswerLength;
+
+  final CompletableFuture<byte[]> mAnswerFuture =
+                                                new CompletableFuture<>();
+  volatile long mSendTimeInNanoseconds;
+
+  private SerialCommand(String pName,
+                        byte[] pBytes,
+                        Character pTerminationCharacter,
+                        int pAnswerLength)
+  {
+    mName = pName;
+    mBytes = pBytes;
+    mTerminationCharacter = pTerminationCharacter;
+    mAnswerLength = pAnswerLength;
+  }
+
+  /**
+   * Returns a command with a text answer
+   * 
+   * @param pName
+   *          command name, used for statistics
+   * @param pBytes
+   *          command bytes
+   * @param pTerminationCharacter
+   *          answer termination character, not included in the answer
+   * @return command
+   */
+  public static SerialCommand text(String pName,
+                                   byte[] pBytes,
+                                   char pTerminationCharacter)
+  {
+    return new SerialCommand(pName, pBytes, pTerminationCharacter, 0);
+  }
+
+  /**
+   * Returns a command with a fixed length binary answer
+   * 
+   * @param pName
+   *          command name, used for statistics
+   * @param pBytes
+   *          command bytes
+   * @param pAnswerLength
+   *          answer length in bytes
+   * @return command
+   */
+  public static SerialCommand binary(String pName,
+                                     byte[] pBytes,
+                                     int pAnswerLength)
+  {
+    return new SerialCommand(pName, pBytes, null, pAnswerLength);
+  }
+
+  /**
+   * Returns a command without answer
+   * 
+   * @param pName
+   *          command name, used for statistics
+   * @param pBytes
+   *          command bytes
+   * @return command
+   */
+  public static SerialCommand noAnswer(String pName, byte[] pBytes)
+  {
+    return new SerialCommand(pName, pBytes, null, 0);
+  }
+
+  /**
+   * Returns this command's name
+   * 
+   * @return name
+   */
+  public String getName()
+  {
+    return mName;
+  }
+
+  /**
+   * Returns this command's bytes
+   * 
+   * @return bytes
+   */
+  public byte[] getBytes()
+  {
+    return mBytes;
+  }
+
+  /**
+   * Returns true if this command expects an answer
+   * 
+   * @return true if an answer is expected
+   */
+  public boolean hasAnswer()
+  {
+    return mTerminationCharacter != null || mAnswerLength > 0;
+  }
+
+  /**
+   * Returns the answer termination character, null for binary answers
+   * 
+   * @return termination character
+   */
+  public Character getTerminationCharacter()
+  {
+    return mTerminationCharacter;
+  }
+
+  /**
+   * Returns the binary answer length
+   * 
+   * @return answer length in bytes
+   */
+  public int getAnswerLength()
+  {
+    return mAnswerLength;
+  }
+
+  /**
+   * Returns the future answer to this command, it completes once the command
+   * has been sent and answered.
+   * 
+   * @return future answer
+   */
+  public CompletableFuture<byte[]> getAnswerFuture()
+  {
+    return mAnswerFuture;
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("SerialCommand [mName=%s]", mName);
+  }
+
+}
@@ -0,0 +1,81 @@
+package clearcontrol.com.serial.transport;
+
+/**
+ * Latency statistics of a kind of serial command: time between writing the
+ * command and receiving its complete answer.
+ *
+ * @author royer
+ */
+public class SerialCommandStatistics
+{
+  private long mNumberOfCommands;
+  private long mNumberOfFailures;
+  private long mTotalLatencyInNanoseconds;
+  private long mMaxLatencyInNanoseconds;
+
+  synchronized void addLatency(long pLatencyInNanoseconds)
+  {
+    mNumberOfCommands++;
+    mTotalLatencyInNanoseconds += pLatencyInNanoseconds;
+    mMaxLatencyInNanoseconds = Math.max(mMaxLatencyInNanoseconds,
+                                        pLatencyInNanoseconds);
+  }
+
+  synchronized void addFailure()
+  {
+    mNumberOfFailures++;
+  }
+
+  /**
+   * Returns the number of answered commands
+   * 
+   * @return number of commands
+   */
+  public synchronized long getNumberOfCommands()
+  {
+    return mNumberOfCommands;
+  }
+
+  /**
+   * Returns the number of commands that failed or timed out
+   * 
+   * @return number of failures
+   */
+  public synchronized long getNumberOfFailures()
+  {
+    return mNumberOfFailures;
+  }
+
+  /**
+   * Returns the average latency of answered commands
+   * 
+   * @return average latency in microseconds
+   */
+  public synchronized double getAverageLatencyInMicroseconds()
+  {
+    if (mNumberOfCommands == 0)
+      return 0;
+    return 1e-3 * mTotalLatencyInNanoseconds / mNumberOfCommands;
+  }
+
+  /**
+   * Returns the maximal latency of answered commands
+   * 
+   * @return max latency in microseconds
+   */
+  public synchronized double getMaxLatencyInMicroseconds()
+  {
+    return 1e-3 * mMaxLatencyInNanoseconds;
+  }
+
+  @Override
+  public synchronized String toString()
+  {
+    return String.format("SerialCommandStatistics [commands=%d, failures=%d, average=%.1fus, max=%.1fus]",
+                         mNumberOfCommands,
+                         mNumberOfFailures,
+                         getAverageLatencyInMicroseconds(),
+                         getMaxLatencyInMicroseconds());
+  }
+
+}
@@ -0,0 +1,404 @@
+package clearcontrol.com.serial.transport;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import clearcontrol.com.serial.SerialException;
+import clearcontrol.core.log.LoggingFeature;
+import gnu.trove.list.array.TByteArrayList;
+
+/**
+ * Serial transport driven by answers: commands are written right away, and
+ * answers are matched to outstanding commands as they arrive, in order,
+ * instead of waiting a fixed time after each command. Several commands can be
+ * outstanding at once (pipelining), and several commands can be sent in a
+ * single write (batching). Latency statistics are kept per command name.
+ *
+ * Serial devices answer commands in order, if an answer does not arrive in
+ * time the transport resynchronizes: all outstanding commands fail and
+ * pending received bytes are dropped.
+ *
+ * @author royer
+ */
+public class SerialTransport implements LoggingFeature
+{
+  private final String mName;
+  private final SerialChannelInterface mSerialChannel;
+  private final int mMaxNumberOfOutstandingCommands;
+  private final Semaphore mOutstandingCommandPermits;
+
+  private final Object mWriteLock = new Object();
+  private final Object mReceiveLock = new Object();
+  private final ArrayDeque<SerialCommand> mOutstandingCommands =
+                                                               new ArrayDeque<>();
+  private final TByteArrayList mReceiveBuffer = new TByteArrayList();
+
+  private final ConcurrentHashMap<String, SerialCommandStatistics> mStatisticsMap =
+                                                                                 new ConcurrentHashMap<>();
+
+  /**
+   * Instantiates a serial transport over a given channel
+   * 
+   * @param pName
+   *          transport name
+   * @param pSerialChannel
+   *          serial channel
+   * @param pMaxNumberOfOutstandingCommands
+   *          max number of commands waiting for an answer at any time
+   * @throws SerialException
+   *           thrown if the channel cannot be listened to
+   */
+  public SerialTransport(String pName,
+                         SerialChannelInterface pSerialChannel,
+                         int pMaxNumberOfOutstandingCommands) throws SerialException
+  {
+    super();
+    mName = pName;
+    mSerialChannel = pSerialChannel;
+    mMaxNumberOfOutstandingCommands =
+                                    Math.max(1,
+                                             pMaxNumberOfOutstandingCommands);
+    mOutstandingCommandPermits =
+                               new Semaphore(mMaxNumberOfOutstandingCommands);
+    mSerialChannel.setReceiver(this::receive);
+  }
+
+  /**
+   * Sends a command and waits for its answer
+   * 
+   * @param pSerialCommand
+   *          command
+   * @param pTimeOut
+   *          time out
+   * @param pTimeUnit
+   *          time out unit
+   * @return answer, empty for commands without answer
+   * @throws SerialException
+   *           thrown if the command could not be sent or was not answered in
+   *           time
+   */
+  public byte[] request(SerialCommand pSerialCommand,
+                        long pTimeOut,
+                        TimeUnit pTimeUnit) throws SerialException
+  {
+    send(pSerialCommand);
+    return waitForAnswer(pSerialCommand, pTimeOut, pTimeUnit);
+  }
+
+  /**
+   * Sends a command without waiting for its answer, waits only if too many
+   * commands are outstanding. The answer can be obtained from the command's
+   * future answer or with
+   * {@link #waitForAnswer(SerialCommand, long, TimeUnit)}.
+   * 
+   * @param pSerialCommand
+   *          command
+   * @throws SerialException
+   *           thrown if the command could not be sent
+   */
+  public void send(SerialCommand pSerialCommand) throws SerialException
+  {
+    final ArrayList<SerialCommand> lCommandList = new ArrayList<>(1);
+    lCommandList.add(pSerialCommand);
+    sendBatch(lCommandList);
+  }
+
+  /**
+   * Sends several commands, in as few writes as possible: commands are written
+   * together as long as the number of outstanding commands allows it.
+   * 
+   * @param pSerialCommandList
+   *          commands
+   * @throws SerialException
+   *           thrown if the commands could not be sent
+   */
+  public void sendBatch(List<SerialCommand> pSerialCommandList) throws SerialException
+  {
+    int lIndex = 0;
+    while (lIndex < pSerialCommandList.size())
+    {
+      // commands up to the max number of outstanding commands:
+      int lNumberOfPermits = 0;
+      int lEndIndex = lIndex;
+      while (lEndIndex < pSerialCommandList.size())
+      {
+        final boolean lHasAnswer = pSerialCommandList.get(lEndIndex)
+                                                     .hasAnswer();
+        if (lHasAnswer
+            && lNumberOfPermits == mMaxNumberOfOutstandingCommands)
+          break;
+        if (lHasAnswer)
+          lNumberOfPermits++;
+        lEndIndex++;
+      }
+
+      try
+      {
+        mOutstandingCommandPermits.acquire(lNumberOfPermits);
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        throw new SerialException("Interrupted while sending commands",
+                                  e);
+      }
+
+      write(pSerialCommandList.subList(lIndex, lEndIndex));
+      lIndex = lEndIndex;
+    }
+  }
+
+  private void write(List<SerialCommand> pSerialCommandList) throws SerialException
+  {
+    int lLength = 0;
+    for (SerialCommand lSerialCommand : pSerialCommandList)
+      lLength += lSerialCommand.getBytes().length;
+    final byte[] lBytes = new byte[lLength];
+    int lOffset = 0;
+    for (SerialCommand lSerialCommand : pSerialCommandList)
+    {
+      final byte[] lCommandBytes = lSerialCommand.getBytes();
+      System.arraycopy(lCommandBytes,
+                       0,
+                       lBytes,
+                       lOffset,
+                       lCommandBytes.length);
+      lOffset += lCommandBytes.length;
+    }
+
+    // commands are queued before being written, so that answers always find
+    // their command, and in the same order as written:
+    synchronized (mWriteLock)
+    {
+      final long lSendTime = System.nanoTime();
+      synchronized (mReceiveLock)
+      {
+        for (SerialCommand lSerialCommand : pSerialCommandList)
+        {
+          lSerialCommand.mSendTimeInNanoseconds = lSendTime;
+          if (lSerialCommand.hasAnswer())
+            mOutstandingCommands.add(lSerialCommand);
+        }
+      }
+
+      try
+      {
+        mSerialChannel.write(lBytes);
+      }
+      catch (SerialException e)
+      {
+        resynchronize(e);
+        throw e;
+      }
+    }
+
+    for (SerialCommand lSerialCommand : pSerialCommandList)
+      if (!lSerialCommand.hasAnswer())
+        lSerialCommand.mAnswerFuture.complete(new byte[0]);
+  }
+
+  /**
+   * Waits for the answer to a sent command
+   * 
+   * @param pSerialCommand
+   *          sent command
+   * @param pTimeOut
+   *          time out
+   * @param pTimeUnit
+   *          time out unit
+   * @return answer
+   * @throws SerialException
+   *           thrown if the command failed or was not answered in time, in
+   *           which case the transport resynchronizes
+   */
+  public byte[] waitForAnswer(SerialCommand pSerialCommand,
+                              long pTimeOut,
+                              TimeUnit pTimeUnit) throws SerialException
+  {
+    try
+    {
+      return pSerialCommand.mAnswerFuture.get(pTimeOut, pTimeUnit);
+    }
+    catch (TimeoutException e)
+    {
+      final SerialException lSerialException =
+                                             new SerialException("No answer to "
+                                                                 + pSerialCommand
+                                                                 + " on "
+                                                                 + mName
+                                                                 + " after "
+                                                                 + pTimeUnit.toMillis(pTimeOut)
+                                                                 + " ms");
+      resynchronize(lSerialException);
+      throw lSerialException;
+    }
+    catch (ExecutionException e)
+    {
+      throw new SerialException("Command " + pSerialCommand
+                                + " failed on "
+                                + mName, e.getCause());
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new SerialException("Interrupted while waiting for "
+                                + pSerialCommand, e);
+    }
+  }
+
+  private void receive(byte[] pBytes)
+  {
+    final ArrayList<SerialCommand> lAnsweredCommands = new ArrayList<>();
+    final ArrayList<byte[]> lAnswers = new ArrayList<>();
+    final long lReceiveTime = System.nanoTime();
+
+    synchronized (mReceiveLock)
+    {
+      if (mOutstandingCommands.isEmpty())
+      {
+        // unsolicited bytes:
+        mReceiveBuffer.resetQuick();
+        return;
+      }
+      mReceiveBuffer.add(pBytes);
+
+      SerialCommand lSerialCommand;
+      while ((lSerialCommand = mOutstandingCommands.peek()) != null)
+      {
+        final byte[] lAnswer = extractAnswer(lSerialCommand);
+        if (lAnswer == null)
+          break;
+        mOutstandingCommands.poll();
+        lAnsweredCommands.add(lSerialCommand);
+        lAnswers.add(lAnswer);
+      }
+    }
+
+    mOutstandingCommandPermits.release(lAnsweredCommands.size());
+    for (int i = 0; i < lAnsweredCommands.size(); i++)
+    {
+      final SerialCommand lSerialCommand = lAnsweredCommands.get(i);
+      getStatistics(lSerialCommand.getName()).addLatency(lReceiveTime
+                                                         - lSerialCommand.mSendTimeInNanoseconds);
+      lSerialCommand.mAnswerFuture.complete(lAnswers.get(i));
+    }
+  }
+
+  private byte[] extractAnswer(SerialCommand pSerialCommand)
+  {
+    final Character lTerminationCharacter =
+                                          pSerialCommand.getTerminationCharacter();
+    if (lTerminationCharacter != null)
+    {
+      final int lIndex =
+                       mReceiveBuffer.indexOf((byte) lTerminationCharacter.charValue());
+      if (lIndex < 0)
+        return null;
+      final byte[] lAnswer = mReceiveBuffer.toArray(0, lIndex);
+      mReceiveBuffer.remove(0, lIndex + 1);
+      return lAnswer;
+    }
+
+    final int lAnswerLength = pSerialCommand.getAnswerLength();
+    if (mReceiveBuffer.size() < lAnswerLength)
+      return null;
+    final byte[] lAnswer = mReceiveBuffer.toArray(0, lAnswerLength);
+    mReceiveBuffer.remove(0, lAnswerLength);
+    return lAnswer;
+  }
+
+  /**
+   * Fails all outstanding commands and drops received bytes, so that the next
+   * commands are matched with their own answers.
+   * 
+   * @param pCause
+   *          cause of the resynchronization
+   */
+  public void resynchronize(Throwable pCause)
+  {
+    final ArrayList<SerialCommand> lFailedCommands;
+    synchronized (mReceiveLock)
+    {
+      lFailedCommands = new ArrayList<>(mOutstandingCommands);
+      mOutstandingCommands.clear();
+      mReceiveBuffer.resetQuick();
+    }
+
+    if (!lFailedCommands.isEmpty())
+      warning("Resynchronizing %s, %d outstanding commands dropped: %s",
+              mName,
+              lFailedCommands.size(),
+              pCause.getMessage());
+
+    mOutstandingCommandPermits.release(lFailedCommands.size());
+    for (SerialCommand lSerialCommand : lFailedCommands)
+    {
+      getStatistics(lSerialCommand.getName()).addFailure();
+      lSerialCommand.mAnswerFuture.completeExceptionally(pCause);
+    }
+  }
+
+  /**
+   * Closes this transport and its channel, outstanding commands fail.
+   * 
+   * @throws SerialException
+   *           thrown if the channel could not be closed
+   */
+  public void close() throws SerialException
+  {
+    resynchronize(new SerialException("Transport " + mName
+                                      + " closed"));
+    mSerialChannel.close();
+  }
+
+  /**
+   * Returns the number of commands waiting for an answer
+   * 
+   * @return number of outstanding commands
+   */
+  public int getNumberOfOutstandingCommands()
+  {
+    synchronized (mReceiveLock)
+    {
+      return mOutstandingCommands.size();
+    }
+  }
+
+  /**
+   * Returns the latency statistics for commands of a given name
+   * 
+   * @param pCommandName
+   *          command name
+   * @return statistics
+   */
+  public SerialCommandStatistics getStatistics(String pCommandName)
+  {
+    return mStatisticsMap.computeIfAbsent(pCommandName,
+                                          (n) -> new SerialCommandStatistics());
+  }
+
+  /**
+   * Returns the latency statistics for all command names
+   * 
+   * @return map from command names to statistics
+   */
+  public ConcurrentHashMap<String, SerialCommandStatistics> getStatisticsMap()
+  {
+    return mStatisticsMap;
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("SerialTransport [mName=%s, outstanding=%d]",
+                         mName,
+                         getNumberOfOutstandingCommands());
+  }
+
+}
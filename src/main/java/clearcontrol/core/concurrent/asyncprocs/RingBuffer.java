@@ -0,0 +1,161 @@
+package clearcontrol.core.concurrent.asyncprocs;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Pre-sized lock-free bounded queue for any number of producers and a single
+ * consumer. Slots are claimed with a compare-and-set on the tail, and published
+ * through a per-slot sequence number, no allocation happens on offer or poll.
+ * The capacity is rounded up to the next power of two.
+ *
+ * The time at which each item was offered is recorded, and is available to the
+ * consumer after each poll to measure queueing latency.
+ *
+ * @param <T>
+ *          item type
+ * @author royer
+ */
+public class RingBuffer<T>
+{
+  private final int mCapacity;
+  private final int mMask;
+  private final AtomicReferenceArray<T> mItems;
+  private final AtomicLongArray mSequences;
+  private final long[] mOfferTimes;
+
+  private final AtomicLong mHead = new AtomicLong();
+  private final AtomicLong mTail = new AtomicLong();
+
+  private long mLastOfferTimeInNanoseconds;
+
+  /**
+   * Instantiates a ring buffer of given minimal capacity.
+   *
+   * @param pMinimalCapacity
+   *          minimal capacity
+   */
+  public RingBuffer(int pMinimalCapacity)
+  {
+    super();
+    int lCapacity = 1;
+    while (lCapacity < pMinimalCapacity)
+      lCapacity <<= 1;
+
+    mCapacity = lCapacity;
+    mMask = lCapacity - 1;
+    mItems = new AtomicReferenceArray<>(lCapacity);
+    mSequences = new AtomicLongArray(lCapacity);
+    mOfferTimes = new long[lCapacity];
+    for (int i = 0; i < lCapacity; i++)
+      mSequences.set(i, i);
+  }
+
+  /**
+   * Offers an item to this ring buffer, fails if the buffer is full.
+   *
+   * @param pItem
+   *          non null item
+   * @return true if the item was enqueued, false if the buffer is full
+   */
+  public boolean offer(T pItem)
+  {
+    while (true)
+    {
+      final long lTail = mTail.get();
+      final int lSlot = (int) (lTail & mMask);
+      final long lDifference = mSequences.get(lSlot) - lTail;
+
+      if (lDifference == 0)
+      {
+        if (mTail.compareAndSet(lTail, lTail + 1))
+        {
+          mItems.lazySet(lSlot, pItem);
+          mOfferTimes[lSlot] = System.nanoTime();
+          // publishes the item and its offer time:
+          mSequences.set(lSlot, lTail + 1);
+          return true;
+        }
+      }
+      else if (lDifference < 0)
+        return false;
+    }
+  }
+
+  /**
+   * Polls the next item. Must only be called from the consumer thread.
+   *
+   * @return next item, or null if the buffer is empty
+   */
+  public T poll()
+  {
+    final long lHead = mHead.get();
+    final int lSlot = (int) (lHead & mMask);
+
+    if (mSequences.get(lSlot) != lHead + 1)
+      return null;
+
+    final T lItem = mItems.get(lSlot);
+    mLastOfferTimeInNanoseconds = mOfferTimes[lSlot];
+    mItems.lazySet(lSlot, null);
+    mHead.lazySet(lHead + 1);
+    // releases the slot to producers:
+    mSequences.set(lSlot, lHead + mCapacity);
+    return lItem;
+  }
+
+  /**
+   * Returns the time (System.nanoTime()) at which the last polled item was
+   * offered. Must only be called from the consumer thread.
+   *
+   * @return offer time in nanoseconds
+   */
+  public long getLastOfferTimeInNanoseconds()
+  {
+    return mLastOfferTimeInNanoseconds;
+  }
+
+  /**
+   * Returns the number of items in this buffer. This is only an estimate while
+   * items are being offered or polled.
+   *
+   * @return number of items
+   */
+  public int size()
+  {
+    final long lSize = mTail.get() - mHead.get();
+    return (int) Math.max(0, Math.min(mCapacity, lSize));
+  }
+
+  /**
+   * Returns true if this buffer is empty
+   *
+   * @return true if empty
+   */
+  public boolean isEmpty()
+  {
+    return size() == 0;
+  }
+
+  /**
+   * Returns the capacity of this buffer
+   *
+   * @return capacity
+   */
+  public int getCapacity()
+  {
+    return mCapacity;
+  }
+
+  /**
+   * Returns the remaining capacity of this buffer
+   *
+   * @return remaining capacity
+   */
+  public int getRemainingCapacity()
+  {
+    return mCapacity - size();
+  }
+
+}
@@ -0,0 +1,397 @@
+package clearcontrol.core.concurrent.asyncprocs;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import clearcontrol.core.log.LoggingFeature;
+
+/**
+ * Asynchronous processor that hands items over through a pre-sized lock-free
+ * ring buffer to a dedicated worker thread, instead of polling a blocking queue
+ * from a scheduled task. Waiting, both by the worker for items and by producers
+ * for room in the queue, follows a configurable wait strategy.
+ *
+ * Queue depth, queueing latency and processing time counters are maintained.
+ *
+ * @param <I>
+ *          input type
+ * @param <O>
+ *          output type
+ * @author royer
+ */
+public abstract class RingBufferAsynchronousProcessor<I, O> implements
+                                                     AsynchronousProcessorInterface<I, O>,
+                                                     LoggingFeature
+{
+  private final String mName;
+  private final RingBuffer<I> mRingBuffer;
+  private final WaitStrategy mWaitStrategy;
+  private volatile AsynchronousProcessorInterface<O, ?> mReceiver;
+
+  private volatile Thread mWorkerThread;
+  private volatile boolean mIsRunning;
+  private volatile boolean mIsWorkerWaiting;
+  private volatile boolean mIsProcessing;
+
+  // never reset, used to wait for all offered items to be processed:
+  private final AtomicLong mNumberOfOfferedItems = new AtomicLong();
+  private final AtomicLong mNumberOfFinishedItems = new AtomicLong();
+
+  private final AtomicLong mMaxInputQueueLength = new AtomicLong();
+  private final AtomicLong mNumberOfProcessedItems = new AtomicLong();
+  private final AtomicLong mTotalQueueLatencyInNanoseconds =
+                                                          new AtomicLong();
+  private final AtomicLong mMaxQueueLatencyInNanoseconds =
+                                                         new AtomicLong();
+  private final AtomicLong mTotalProcessingTimeInNanoseconds =
+                                                             new AtomicLong();
+
+  /**
+   * Instantiates a ring buffer processor given a name, a max input queue size,
+   * and a wait strategy.
+   *
+   * @param pName
+   *          name
+   * @param pMaxQueueSize
+   *          max input queue size (rounded up to the next power of two)
+   * @param pWaitStrategy
+   *          wait strategy
+   */
+  public RingBufferAsynchronousProcessor(final String pName,
+                                         final int pMaxQueueSize,
+                                         final WaitStrategy pWaitStrategy)
+  {
+    super();
+    mName = pName;
+    mRingBuffer = new RingBuffer<>(pMaxQueueSize <= 0 ? 1
+                                                      : pMaxQueueSize);
+    mWaitStrategy = pWaitStrategy;
+  }
+
+  @Override
+  public void connectToReceiver(final AsynchronousProcessorInterface<O, ?> pAsynchronousProcessor)
+  {
+    mReceiver = pAsynchronousProcessor;
+  }
+
+  @Override
+  public synchronized boolean start()
+  {
+    if (mWorkerThread != null)
+      return true;
+
+    try
+    {
+      mIsRunning = true;
+      final Thread lWorkerThread = new Thread(this::work,
+                                              "RingBufferProcessor-"
+                                                          + mName);
+      lWorkerThread.setDaemon(true);
+      mWorkerThread = lWorkerThread;
+      lWorkerThread.start();
+      return true;
+    }
+    catch (final Throwable e)
+    {
+      e.printStackTrace();
+      mIsRunning = false;
+      mWorkerThread = null;
+      return false;
+    }
+  }
+
+  private void work()
+  {
+    long lNumberOfWaits = 0;
+    while (mIsRunning)
+    {
+      final I lInput = mRingBuffer.poll();
+      if (lInput == null)
+      {
+        mIsWorkerWaiting = true;
+        // re-checks after signaling, so that no wake-up is lost:
+        if (mRingBuffer.isEmpty() && mIsRunning)
+          mWaitStrategy.idle(lNumberOfWaits++);
+        mIsWorkerWaiting = false;
+        continue;
+      }
+      lNumberOfWaits = 0;
+
+      try
+      {
+        mIsProcessing = true;
+        final long lStartTime = System.nanoTime();
+        updateQueueLatency(lStartTime
+                           - mRingBuffer.getLastOfferTimeInNanoseconds());
+
+        final O lOutput = process(lInput);
+
+        mTotalProcessingTimeInNanoseconds.addAndGet(System.nanoTime()
+                                                    - lStartTime);
+        mNumberOfProcessedItems.incrementAndGet();
+        if (lOutput != null)
+          send(lOutput);
+      }
+      catch (final Throwable e)
+      {
+        e.printStackTrace();
+      }
+      finally
+      {
+        mIsProcessing = false;
+        mNumberOfFinishedItems.incrementAndGet();
+      }
+    }
+  }
+
+  private void updateQueueLatency(long pQueueLatency)
+  {
+    mTotalQueueLatencyInNanoseconds.addAndGet(pQueueLatency);
+    long lMax;
+    while ((lMax = mMaxQueueLatencyInNanoseconds.get()) < pQueueLatency
+           && !mMaxQueueLatencyInNanoseconds.compareAndSet(lMax,
+                                                           pQueueLatency))
+      ;
+  }
+
+  @Override
+  public boolean stop()
+  {
+    return stop(Long.MAX_VALUE, TimeUnit.DAYS);
+  }
+
+  @Override
+  public synchronized boolean stop(final long pTimeOut,
+                                   TimeUnit pTimeUnit)
+  {
+    final Thread lWorkerThread = mWorkerThread;
+    if (lWorkerThread == null)
+      return true;
+
+    mIsRunning = false;
+    LockSupport.unpark(lWorkerThread);
+    try
+    {
+      lWorkerThread.join(Math.max(1,
+                                  TimeUnit.MILLISECONDS.convert(pTimeOut,
+                                                                pTimeUnit)));
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    mWorkerThread = null;
+    return !lWorkerThread.isAlive();
+  }
+
+  /**
+   * Returns true if this processor has been started and not stopped
+   *
+   * @return true if running
+   */
+  public boolean isRunning()
+  {
+    return mIsRunning;
+  }
+
+  @Override
+  public boolean waitToFinish(final long pTimeOut, TimeUnit pTimeUnit)
+  {
+    final long lDeadline = System.nanoTime()
+                           + Math.min(pTimeUnit.toNanos(pTimeOut),
+                                      Long.MAX_VALUE / 2);
+    long lNumberOfWaits = 0;
+    while (mNumberOfFinishedItems.get() < mNumberOfOfferedItems.get()
+           && System.nanoTime() - lDeadline < 0)
+      idleProducer(lNumberOfWaits++);
+    return mRingBuffer.isEmpty();
+  }
+
+  @Override
+  public boolean passOrWait(final I pObject)
+  {
+    return passOrWait(pObject, Long.MAX_VALUE, TimeUnit.DAYS);
+  }
+
+  @Override
+  public boolean passOrWait(final I pObject,
+                            final long pTimeOut,
+                            TimeUnit pTimeUnit)
+  {
+    if (pObject == null)
+      return false;
+
+    final long lTimeOutInNanoseconds =
+                                     Math.min(pTimeUnit.toNanos(pTimeOut),
+                                              Long.MAX_VALUE / 2);
+    final long lDeadline = System.nanoTime() + lTimeOutInNanoseconds;
+    long lNumberOfWaits = 0;
+    while (System.nanoTime() - lDeadline < 0)
+    {
+      if (mIsRunning && offer(pObject))
+        return true;
+      idleProducer(lNumberOfWaits++);
+    }
+    return false;
+  }
+
+  @Override
+  public boolean passOrFail(final I pObject)
+  {
+    if (!mIsRunning || pObject == null)
+      return false;
+    return offer(pObject);
+  }
+
+  private boolean offer(final I pObject)
+  {
+    // counted before the item becomes visible to the worker:
+    mNumberOfOfferedItems.incrementAndGet();
+    if (!mRingBuffer.offer(pObject))
+    {
+      mNumberOfOfferedItems.decrementAndGet();
+      return false;
+    }
+
+    final int lInputQueueLength = mRingBuffer.size();
+    long lMax;
+    while ((lMax = mMaxInputQueueLength.get()) < lInputQueueLength
+           && !mMaxInputQueueLength.compareAndSet(lMax,
+                                                  lInputQueueLength))
+      ;
+
+    if (mIsWorkerWaiting && mWaitStrategy == WaitStrategy.Park)
+    {
+      final Thread lWorkerThread = mWorkerThread;
+      if (lWorkerThread != null)
+        LockSupport.unpark(lWorkerThread);
+    }
+    return true;
+  }
+
+  private void idleProducer(long pNumberOfWaits)
+  {
+    // producers are never woken up explicitly, they must not park too long:
+    if (mWaitStrategy == WaitStrategy.Park)
+      LockSupport.parkNanos(Math.min(100_000, 1000 * pNumberOfWaits + 1));
+    else
+      mWaitStrategy.idle(pNumberOfWaits);
+  }
+
+  @Override
+  public abstract O process(I pInput);
+
+  protected void send(final O pOutput)
+  {
+    final AsynchronousProcessorInterface<O, ?> lReceiver = mReceiver;
+    if (lReceiver != null)
+      lReceiver.passOrWait(pOutput);
+  }
+
+  @Override
+  public int getInputQueueLength()
+  {
+    return mRingBuffer.size();
+  }
+
+  @Override
+  public int getRemainingCapacity()
+  {
+    return mRingBuffer.getRemainingCapacity();
+  }
+
+  /**
+   * Returns the wait strategy
+   *
+   * @return wait strategy
+   */
+  public WaitStrategy getWaitStrategy()
+  {
+    return mWaitStrategy;
+  }
+
+  /**
+   * Returns the max input queue length observed since the last counter reset
+   *
+   * @return max input queue length
+   */
+  public long getMaxInputQueueLength()
+  {
+    return mMaxInputQueueLength.get();
+  }
+
+  /**
+   * Returns the number of items processed since the last counter reset
+   *
+   * @return number of processed items
+   */
+  public long getNumberOfProcessedItems()
+  {
+    return mNumberOfProcessedItems.get();
+  }
+
+  /**
+   * Returns the average time that processed items spent in the queue since the
+   * last counter reset
+   *
+   * @return average queue latency in nanoseconds
+   */
+  public double getAverageQueueLatencyInNanoseconds()
+  {
+    final long lNumberOfProcessedItems = mNumberOfProcessedItems.get();
+    if (lNumberOfProcessedItems == 0)
+      return 0;
+    return ((double) mTotalQueueLatencyInNanoseconds.get())
+           / lNumberOfProcessedItems;
+  }
+
+  /**
+   * Returns the max time that a processed item spent in the queue since the
+   * last counter reset
+   *
+   * @return max queue latency in nanoseconds
+   */
+  public long getMaxQueueLatencyInNanoseconds()
+  {
+    return mMaxQueueLatencyInNanoseconds.get();
+  }
+
+  /**
+   * Returns the average processing time per item since the last counter reset
+   *
+   * @return average processing time in nanoseconds
+   */
+  public double getAverageProcessingTimeInNanoseconds()
+  {
+    final long lNumberOfProcessedItems = mNumberOfProcessedItems.get();
+    if (lNumberOfProcessedItems == 0)
+      return 0;
+    return ((double) mTotalProcessingTimeInNanoseconds.get())
+           / lNumberOfProcessedItems;
+  }
+
+  /**
+   * Resets all counters
+   */
+  public void resetCounters()
+  {
+    mMaxInputQueueLength.set(0);
+    mNumberOfProcessedItems.set(0);
+    mTotalQueueLatencyInNanoseconds.set(0);
+    mMaxQueueLatencyInNanoseconds.set(0);
+    mTotalProcessingTimeInNanoseconds.set(0);
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("RingBufferAsynchronousProcessor [mName=%s, mWaitStrategy=%s, mReceiver=%s, mIsProcessing=%s, getInputQueueLength()=%s]",
+                         mName,
+                         mWaitStrategy,
+                         mReceiver,
+                         mIsProcessing,
+                         getInputQueueLength());
+  }
+
+}
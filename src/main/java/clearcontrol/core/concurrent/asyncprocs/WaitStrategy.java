@@ -0,0 +1,84 @@
+package clearcontrol.core.concurrent.asyncprocs;
+
+import java.util.concurrent.locks.LockSupport;
+
+import clearcontrol.core.concurrent.timing.WaitingInterface;
+
+/**
+ * Strategy used by ring buffer processors to wait for items to process, or for
+ * room in a full queue.
+ *
+ * @author royer
+ */
+public enum WaitStrategy
+{
+ /**
+  * Spins without yielding: lowest latency, but burns a core per waiting thread
+  */
+ BusySpin,
+
+ /**
+  * Yields the processor between checks: low latency, lower CPU usage when
+  * other threads are runnable
+  */
+ Yield,
+
+ /**
+  * Parks the thread between checks, waiting threads are woken up by producers.
+  * The parking time doubles from 10 microseconds to 1 millisecond as waits go
+  * on: lowest CPU usage, highest latency
+  */
+ Park;
+
+  private static final int cNumberOfSpinWaits = 64;
+  private static final int cNumberOfYieldWaits = 64;
+
+  /**
+   * Waits once, before the waiting condition is checked again.
+   *
+   * @param pNumberOfWaits
+   *          number of consecutive waits so far
+   */
+  public void idle(long pNumberOfWaits)
+  {
+    switch (this)
+    {
+    case BusySpin:
+      break;
+    case Yield:
+      Thread.yield();
+      break;
+    case Park:
+      // spins and yields shortly before parking with doubling durations:
+      final long lNumberOfParks = pNumberOfWaits - cNumberOfSpinWaits
+                                  - cNumberOfYieldWaits;
+      if (pNumberOfWaits < cNumberOfSpinWaits)
+        break;
+      else if (lNumberOfParks < 0)
+        Thread.yield();
+      else
+        LockSupport.parkNanos(getParkTimeInNanoseconds(lNumberOfParks));
+      break;
+    }
+  }
+
+  /**
+   * Returns the park time of the Park strategy after a given number of parks:
+   * the shortest park time of {@link WaitingInterface}, doubled for each park,
+   * up to its longest park time.
+   *
+   * @param pNumberOfParks
+   *          number of consecutive parks so far
+   * @return park time in nanoseconds
+   */
+  private static long getParkTimeInNanoseconds(long pNumberOfParks)
+  {
+    long lParkTimeInNanoseconds =
+                                WaitingInterface.cMinimalParkTimeInNanos;
+    for (long i = 0; i < pNumberOfParks
+                     && lParkTimeInNanoseconds < WaitingInterface.cMaximalParkTimeInNanos; i++)
+      lParkTimeInNanoseconds *= 2;
+    return Math.min(lParkTimeInNanoseconds,
+                    WaitingInterface.cMaximalParkTimeInNanos);
+  }
+}
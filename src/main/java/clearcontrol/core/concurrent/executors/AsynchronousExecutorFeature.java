@@ -20,6 +20,10 @@ import java.util.concurrent.TimeoutException;
  * executAsynchronously(0 method returns a Future that can be used to determine
  * when is the task finished.
  * 
+ * When the execution service is enabled (see
+ * {@link ClearControlExecutionService}), the executor owns no thread and tasks
+ * run on a shared pool.
+ * 
  * @author royer
  */
 public interface AsynchronousExecutorFeature
@@ -6,6 +6,9 @@ import java.util.concurrent.TimeUnit;
 /**
  * Asynchronous scheduler feature. Provides methods for starting scheduled tasks
  * 
+ * When the execution service is enabled (see
+ * {@link ClearControlExecutionService}), tasks are timed by a shared timer and
+ * run on a shared pool.
  *
  * @author royer
  */
@@ -0,0 +1,301 @@
+package clearcontrol.core.concurrent.executors;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executor that runs tasks on a shared executor while limiting the number of
+ * tasks that execute concurrently. It behaves like a thread pool executor with
+ * a given core and maximum pool size, and a given task queue, but does not own
+ * any thread: up to 'core' tasks are handed to the shared executor, further
+ * tasks are queued, and once the queue is full up to 'maximum' tasks are handed
+ * to the shared executor. With a concurrency of one, tasks execute serially in
+ * submission order. Each task is handed separately to the shared executor, so
+ * that owners sharing an executor take turns.
+ *
+ * @author royer
+ */
+class BoundedConcurrencyExecutor implements Executor
+{
+  private final Executor mSharedExecutor;
+  private final BlockingQueue<Runnable> mQueue;
+  private final OwnerTaskStatistics mOwnerTaskStatistics;
+
+  private volatile int mCoreConcurrency;
+  private volatile int mMaximumConcurrency;
+  private int mNumberOfDispatchedTasks;
+  private boolean mIsShutdown;
+
+  /**
+   * Instantiates a bounded concurrency executor
+   *
+   * @param pSharedExecutor
+   *          shared executor on which tasks execute
+   * @param pCoreConcurrency
+   *          number of tasks that execute concurrently before tasks are queued
+   * @param pMaximumConcurrency
+   *          number of tasks that execute concurrently once the queue is full
+   * @param pQueue
+   *          task queue
+   * @param pOwnerTaskStatistics
+   *          owner task statistics to update
+   */
+  BoundedConcurrencyExecutor(Executor pSharedExecutor,
+                             int pCoreConcurrency,
+                             int pMaximumConcurrency,
+                             BlockingQueue<Runnable> pQueue,
+                             OwnerTaskStatistics pOwnerTaskStatistics)
+  {
+    mSharedExecutor = pSharedExecutor;
+    mQueue = pQueue;
+    mOwnerTaskStatistics = pOwnerTaskStatistics;
+    setConcurrency(pCoreConcurrency, pMaximumConcurrency);
+  }
+
+  /**
+   * Sets the core and maximum concurrency
+   *
+   * @param pCoreConcurrency
+   *          core concurrency
+   * @param pMaximumConcurrency
+   *          maximum concurrency
+   */
+  void setConcurrency(int pCoreConcurrency, int pMaximumConcurrency)
+  {
+    mCoreConcurrency = Math.max(1, pCoreConcurrency);
+    mMaximumConcurrency = Math.max(mCoreConcurrency,
+                                   pMaximumConcurrency);
+  }
+
+  /**
+   * Returns the core concurrency
+   *
+   * @return core concurrency
+   */
+  int getCoreConcurrency()
+  {
+    return mCoreConcurrency;
+  }
+
+  /**
+   * Returns the maximum concurrency
+   *
+   * @return maximum concurrency
+   */
+  int getMaximumConcurrency()
+  {
+    return mMaximumConcurrency;
+  }
+
+  @Override
+  public void execute(Runnable pRunnable)
+  {
+    mOwnerTaskStatistics.taskSubmitted();
+    synchronized (this)
+    {
+      if (!mIsShutdown)
+      {
+        if (mNumberOfDispatchedTasks < mCoreConcurrency)
+        {
+          mNumberOfDispatchedTasks++;
+        }
+        else if (mQueue.offer(pRunnable))
+        {
+          return;
+        }
+        else if (mNumberOfDispatchedTasks < mMaximumConcurrency)
+        {
+          mNumberOfDispatchedTasks++;
+        }
+        else
+        {
+          mOwnerTaskStatistics.taskRejected();
+          throw new RejectedExecutionException("Task queue full");
+        }
+      }
+      else
+      {
+        mOwnerTaskStatistics.taskRejected();
+        throw new RejectedExecutionException("Executor has been shutdown");
+      }
+    }
+    dispatch(pRunnable);
+  }
+
+  private void dispatch(Runnable pRunnable)
+  {
+    try
+    {
+      mSharedExecutor.execute(() -> runAndContinue(pRunnable));
+    }
+    catch (RejectedExecutionException e)
+    {
+      mOwnerTaskStatistics.taskRejected();
+      taskDone();
+      throw e;
+    }
+  }
+
+  private void runAndContinue(Runnable pRunnable)
+  {
+    run(pRunnable);
+
+    final Runnable lNextRunnable;
+    synchronized (this)
+    {
+      lNextRunnable = mQueue.poll();
+      if (lNextRunnable == null)
+      {
+        taskDone();
+        return;
+      }
+    }
+
+    try
+    {
+      dispatch(lNextRunnable);
+    }
+    catch (RejectedExecutionException e)
+    {
+      e.printStackTrace();
+    }
+  }
+
+  private synchronized void taskDone()
+  {
+    mNumberOfDispatchedTasks--;
+    if (mNumberOfDispatchedTasks == 0)
+      notifyAll();
+  }
+
+  private void run(Runnable pRunnable)
+  {
+    mOwnerTaskStatistics.taskStarted();
+    final long lStartTimeInNanoseconds = System.nanoTime();
+    try
+    {
+      pRunnable.run();
+    }
+    catch (Throwable e)
+    {
+      mOwnerTaskStatistics.taskFailed();
+      e.printStackTrace();
+    }
+    finally
+    {
+      mOwnerTaskStatistics.taskEnded(System.nanoTime()
+                                     - lStartTimeInNanoseconds);
+    }
+
+    // futures do not propagate exceptions, we have to ask them:
+    if (pRunnable instanceof Future<?>)
+    {
+      final Future<?> lFuture = (Future<?>) pRunnable;
+      if (lFuture.isCancelled())
+        mOwnerTaskStatistics.taskCancelled();
+      else if (lFuture.isDone())
+        try
+        {
+          lFuture.get();
+        }
+        catch (ExecutionException e)
+        {
+          mOwnerTaskStatistics.taskFailed();
+        }
+        catch (CancellationException | InterruptedException e)
+        {
+          mOwnerTaskStatistics.taskCancelled();
+        }
+    }
+  }
+
+  /**
+   * Returns the number of tasks currently handed to the shared executor
+   *
+   * @return number of dispatched tasks
+   */
+  synchronized int getNumberOfDispatchedTasks()
+  {
+    return mNumberOfDispatchedTasks;
+  }
+
+  /**
+   * Shuts down this executor: no new task is accepted, but queued tasks are
+   * still executed.
+   */
+  synchronized void shutdown()
+  {
+    mIsShutdown = true;
+  }
+
+  /**
+   * Shuts down this executor and removes all queued tasks. Tasks that are
+   * already executing are not interrupted since they run on threads owned by
+   * the shared executor.
+   *
+   * @return list of tasks that never executed
+   */
+  synchronized List<Runnable> shutdownNow()
+  {
+    mIsShutdown = true;
+    final ArrayList<Runnable> lList = new ArrayList<>();
+    mQueue.drainTo(lList);
+    return lList;
+  }
+
+  /**
+   * Returns true if this executor has been shutdown
+   *
+   * @return true if shutdown
+   */
+  synchronized boolean isShutdown()
+  {
+    return mIsShutdown;
+  }
+
+  /**
+   * Returns true if this executor has been shutdown and all its tasks have
+   * executed
+   *
+   * @return true if terminated
+   */
+  synchronized boolean isTerminated()
+  {
+    return mIsShutdown && mNumberOfDispatchedTasks == 0;
+  }
+
+  /**
+   * Waits for termination of this executor
+   *
+   * @param pTimeOut
+   *          timeout
+   * @param pTimeUnit
+   *          timeout unit
+   * @return true if terminated before timeout
+   * @throws InterruptedException
+   *           if interrupted
+   */
+  synchronized boolean awaitTermination(long pTimeOut,
+                                        TimeUnit pTimeUnit) throws InterruptedException
+  {
+    long lRemainingTimeInNanoseconds = pTimeUnit.toNanos(pTimeOut);
+    while (!isTerminated())
+    {
+      if (lRemainingTimeInNanoseconds <= 0)
+        return false;
+      final long lStartTimeInNanoseconds = System.nanoTime();
+      TimeUnit.NANOSECONDS.timedWait(this, lRemainingTimeInNanoseconds);
+      lRemainingTimeInNanoseconds -= System.nanoTime()
+                                     - lStartTimeInNanoseconds;
+    }
+    return true;
+  }
+
+}
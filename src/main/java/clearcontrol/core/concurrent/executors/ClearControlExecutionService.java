@@ -0,0 +1,355 @@
+package clearcontrol.core.concurrent.executors;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import clearcontrol.core.concurrent.thread.VirtualThreads;
+import clearcontrol.core.configuration.MachineConfiguration;
+
+/**
+ * Central execution service. Instead of one thread pool per object, owners
+ * (devices, processors, displays...) share a small set of named and bounded
+ * thread pools (see {@link SharedPool}), and a single hashed wheel timer for
+ * delayed and periodic tasks. Each owner gets executors that behave like
+ * dedicated ones (same concurrency, queue length and ordering) but own no
+ * thread, and task statistics are kept per owner. Releasing an owner (see
+ * {@link ClearControlExecutors#release(Object)}), typically when a device
+ * closes, shuts down its executors and forgets its statistics.
+ *
+ * When enabled (machine configuration property 'executors.shared'), the
+ * executors returned by {@link ClearControlExecutors}, and thus by the
+ * asynchronous executor and scheduler features, are routed to this service.
+ *
+ * The pool of an owner is determined by the longest matching package prefix of
+ * its class (or of itself if the owner is a class), and defaults to
+ * {@link SharedPool#IO} since most tasks may block. The threads of shared pools
+ * are started on demand and stop after being idle for a minute. Pool queues are
+ * not bounded, since each owner executor hands at most its maximal concurrency
+ * of tasks to the pool at any time, the owner queues are the bounded ones.
+ *
+ * Optionally (machine configuration property 'executors.virtualthreads', which
+ * implies 'executors.shared'), tasks of all pools but {@link SharedPool#Compute}
+ * run each on their own virtual thread, so that blocking device tasks and
+ * pollers do not hold on to platform threads. Owner executors still bound the
+ * concurrency and keep the ordering of tasks. Virtual threads require Java 21,
+ * on older JVMs the shared platform thread pools are used instead. Long running
+ * tasks, such as task device bodies, never run on bounded pools: each gets its
+ * own virtual thread, or platform thread that ends with the task.
+ *
+ * @author royer
+ */
+public class ClearControlExecutionService
+{
+  private static final long cTickDurationInMicroseconds = 1000;
+  private static final int cNumberOfBuckets = 512;
+
+  private static final ClearControlExecutionService sExecutionService =
+                                                                      new ClearControlExecutionService();
+
+  /**
+   * Returns the singleton instance of the execution service
+   *
+   * @return execution service
+   */
+  public static ClearControlExecutionService get()
+  {
+    return sExecutionService;
+  }
+
+  private volatile boolean mEnabled;
+  private volatile boolean mVirtualThreadsEnabled;
+  private final EnumMap<SharedPool, ThreadPoolExecutor> mPoolMap =
+                                                                 new EnumMap<>(SharedPool.class);
+  private final EnumMap<SharedPool, Executor> mVirtualThreadExecutorMap =
+                                                                       new EnumMap<>(SharedPool.class);
+  private final HashedWheelTimer mHashedWheelTimer;
+  private final ConcurrentHashMap<String, SharedPool> mPackagePoolMap =
+                                                                      new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<Object, OwnerTaskStatistics> mOwnerTaskStatisticsMap =
+                                                                                       new ConcurrentHashMap<>();
+
+  private ClearControlExecutionService()
+  {
+    super();
+    mVirtualThreadsEnabled =
+                           MachineConfiguration.get()
+                                               .getBooleanProperty("executors.virtualthreads",
+                                                                   false);
+    mEnabled = mVirtualThreadsEnabled
+               || MachineConfiguration.get()
+                                      .getBooleanProperty("executors.shared",
+                                                          false);
+
+    for (SharedPool lSharedPool : SharedPool.values())
+    {
+      final int lNumberOfThreads = lSharedPool.getNumberOfThreads();
+      final ThreadPoolExecutor lThreadPoolExecutor =
+                                                   new ThreadPoolExecutor(lNumberOfThreads,
+                                                                          lNumberOfThreads,
+                                                                          1,
+                                                                          TimeUnit.MINUTES,
+                                                                          new LinkedBlockingQueue<>(),
+                                                                          ClearControlExecutors.getThreadFactory(lSharedPool.name(),
+                                                                                                                 lSharedPool.getPriority()));
+      lThreadPoolExecutor.allowCoreThreadTimeOut(true);
+      mPoolMap.put(lSharedPool, lThreadPoolExecutor);
+
+      if (lSharedPool != SharedPool.Compute)
+        mVirtualThreadExecutorMap.put(lSharedPool,
+                                      VirtualThreads.getThreadPerTaskExecutor(lSharedPool.name(),
+                                                                              lSharedPool.getPriority()));
+    }
+
+    mHashedWheelTimer = new HashedWheelTimer(cTickDurationInMicroseconds,
+                                             TimeUnit.MICROSECONDS,
+                                             cNumberOfBuckets);
+
+    setPool("clearcontrol.gui", SharedPool.UIFeed);
+    setPool("clearcontrol.microscope.gui", SharedPool.UIFeed);
+    setPool("clearcontrol.core.math", SharedPool.Compute);
+    setPool("clearcontrol.ip", SharedPool.Compute);
+    setPool("clearcontrol.stack.processor", SharedPool.Compute);
+    setPool("clearcontrol.stack.sourcesink.sink.SqeazyFileStackSink",
+            SharedPool.Compute);
+    setPool("clearcontrol.stack.sourcesink.source.SqeazyFileStackSource",
+            SharedPool.Compute);
+    setPool("clearcontrol.com", SharedPool.DevicePolling);
+    setPool("clearcontrol.devices", SharedPool.DevicePolling);
+  }
+
+  /**
+   * Returns true if executors are routed to this service
+   *
+   * @return true if enabled
+   */
+  public boolean isEnabled()
+  {
+    return mEnabled;
+  }
+
+  /**
+   * Sets whether executors created from now on are routed to this service.
+   *
+   * @param pEnabled
+   *          true to enable
+   */
+  public void setEnabled(boolean pEnabled)
+  {
+    mEnabled = pEnabled;
+  }
+
+  /**
+   * Returns true if tasks of blocking pools run on virtual threads. This
+   * requires virtual threads to be enabled and supported by the JVM.
+   *
+   * @return true if virtual threads are used
+   */
+  public boolean isVirtualThreadsEnabled()
+  {
+    return mVirtualThreadsEnabled && VirtualThreads.isSupported();
+  }
+
+  /**
+   * Sets whether tasks of executors created from now on run on virtual
+   * threads, enabling virtual threads also enables this service. This has no
+   * effect on the threads used if the JVM does not support virtual threads.
+   *
+   * @param pVirtualThreadsEnabled
+   *          true to enable
+   */
+  public void setVirtualThreadsEnabled(boolean pVirtualThreadsEnabled)
+  {
+    mVirtualThreadsEnabled = pVirtualThreadsEnabled;
+    if (pVirtualThreadsEnabled)
+      mEnabled = true;
+  }
+
+  /**
+   * Returns the executor on which tasks of a given shared pool run: either the
+   * pool itself, or a virtual thread per task executor.
+   *
+   * @param pSharedPool
+   *          shared pool
+   * @return executor
+   */
+  public Executor getExecutor(SharedPool pSharedPool)
+  {
+    if (isVirtualThreadsEnabled()
+        && mVirtualThreadExecutorMap.containsKey(pSharedPool))
+      return mVirtualThreadExecutorMap.get(pSharedPool);
+    return getPool(pSharedPool);
+  }
+
+  /**
+   * Returns the thread pool for a given shared pool
+   *
+   * @param pSharedPool
+   *          shared pool
+   * @return thread pool
+   */
+  public ThreadPoolExecutor getPool(SharedPool pSharedPool)
+  {
+    return mPoolMap.get(pSharedPool);
+  }
+
+  /**
+   * Returns the shared timer
+   *
+   * @return hashed wheel timer
+   */
+  public HashedWheelTimer getTimer()
+  {
+    return mHashedWheelTimer;
+  }
+
+  /**
+   * Sets the shared pool used by owners whose class belongs to a given package
+   * (or any of its sub-packages), or is the given class.
+   *
+   * @param pPackagePrefix
+   *          package or class name
+   * @param pSharedPool
+   *          shared pool
+   */
+  public void setPool(String pPackagePrefix, SharedPool pSharedPool)
+  {
+    mPackagePoolMap.put(pPackagePrefix, pSharedPool);
+  }
+
+  /**
+   * Returns the shared pool used by a given owner
+   *
+   * @param pOwner
+   *          owner (or owner class)
+   * @return shared pool
+   */
+  public SharedPool getPoolFor(Object pOwner)
+  {
+    final Class<?> lClass = (pOwner instanceof Class<?>) ? (Class<?>) pOwner
+                                                         : pOwner.getClass();
+    String lName = lClass.getName();
+    while (!lName.isEmpty())
+    {
+      final SharedPool lSharedPool = mPackagePoolMap.get(lName);
+      if (lSharedPool != null)
+        return lSharedPool;
+      lName = lName.substring(0, Math.max(0, lName.lastIndexOf('.')));
+    }
+    return SharedPool.IO;
+  }
+
+  /**
+   * Returns the task statistics of a given owner
+   *
+   * @param pOwner
+   *          owner
+   * @return task statistics
+   */
+  public OwnerTaskStatistics getOwnerTaskStatistics(Object pOwner)
+  {
+    return mOwnerTaskStatisticsMap.computeIfAbsent(pOwner,
+                                                   (o) -> new OwnerTaskStatistics());
+  }
+
+  /**
+   * Returns the task statistics of all owners
+   *
+   * @return map from owner to task statistics
+   */
+  public Map<Object, OwnerTaskStatistics> getOwnerTaskStatisticsMap()
+  {
+    return mOwnerTaskStatisticsMap;
+  }
+
+  /**
+   * Creates a completing thread pool executor for a given owner that executes
+   * its tasks on the owner's shared pool.
+   *
+   * @param pOwner
+   *          owner
+   * @param pCorePoolSize
+   *          core pool size
+   * @param pMaxPoolSize
+   *          max pool size
+   * @param pMaxQueueLength
+   *          max queue length
+   * @return completing thread pool executor
+   */
+  public CompletingThreadPoolExecutor createThreadPoolExecutor(Object pOwner,
+                                                               int pCorePoolSize,
+                                                               int pMaxPoolSize,
+                                                               int pMaxQueueLength)
+  {
+    return new SharedThreadPoolExecutor(getExecutor(getPoolFor(pOwner)),
+                                        pCorePoolSize,
+                                        pMaxPoolSize,
+                                        pMaxQueueLength,
+                                        getOwnerTaskStatistics(pOwner));
+  }
+
+  /**
+   * Creates a serial executor for long running tasks of a given owner (such as
+   * the body of a task device): each task runs on its own thread, virtual if
+   * enabled, and never waits for a thread of a bounded shared pool.
+   *
+   * @param pOwner
+   *          owner
+   * @param pName
+   *          thread name
+   * @param pPriority
+   *          platform thread priority
+   * @return completing thread pool executor
+   */
+  public CompletingThreadPoolExecutor createLongRunningTaskExecutor(Object pOwner,
+                                                                    String pName,
+                                                                    int pPriority)
+  {
+    final Executor lExecutor =
+                             isVirtualThreadsEnabled() ? VirtualThreads.getThreadPerTaskExecutor(pName,
+                                                                                                  pPriority)
+                                                       : ClearControlExecutors.getThreadPerTaskExecutor(pName,
+                                                                                                        pPriority);
+    return new SharedThreadPoolExecutor(lExecutor,
+                                        1,
+                                        1,
+                                        Integer.MAX_VALUE,
+                                        getOwnerTaskStatistics(pOwner));
+  }
+
+  /**
+   * Creates a scheduled thread pool executor for a given owner that times its
+   * tasks with the shared timer and executes them on the owner's shared pool.
+   *
+   * @param pOwner
+   *          owner
+   * @param pCorePoolSize
+   *          core pool size
+   * @return scheduled thread pool executor
+   */
+  public ScheduledThreadPoolExecutor createScheduledThreadPoolExecutor(Object pOwner,
+                                                                       int pCorePoolSize)
+  {
+    return new SharedScheduledThreadPoolExecutor(mHashedWheelTimer,
+                                                 getExecutor(getPoolFor(pOwner)),
+                                                 pCorePoolSize,
+                                                 getOwnerTaskStatistics(pOwner));
+  }
+
+  /**
+   * Forgets the task statistics of a given owner.
+   *
+   * @param pOwner
+   *          owner
+   */
+  public void release(Object pOwner)
+  {
+    mOwnerTaskStatisticsMap.remove(pOwner);
+  }
+
+}
@@ -2,13 +2,17 @@ package clearcontrol.core.concurrent.executors;
 
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Class managing executors via static methods
+ * Class managing executors via static methods. Executors are keyed by owner,
+ * when the execution service is enabled (see
+ * {@link ClearControlExecutionService}) they share its pools and timer instead
+ * of owning threads.
  *
  * @author royer
  */
@@ -88,6 +92,30 @@ public class ClearControlExecutors
     cScheduledThreadPoolExecutorMap.remove(pObject);
   }
 
+  /**
+   * Releases the executors of a given key: they are shut down (queued tasks
+   * still execute, but delayed and periodic tasks are cancelled) and forgotten.
+   * Executors are created anew if requested again for the same key. This is
+   * typically called when a device closes.
+   * 
+   * @param pObject
+   *          key
+   */
+  public static void release(final Object pObject)
+  {
+    final CompletingThreadPoolExecutor lThreadPoolExecutor =
+                                                           cThreadPoolExecutorMap.remove(pObject);
+    if (lThreadPoolExecutor != null)
+      lThreadPoolExecutor.shutdown();
+
+    final ScheduledThreadPoolExecutor lScheduledThreadPoolExecutor =
+                                                                   cScheduledThreadPoolExecutorMap.remove(pObject);
+    if (lScheduledThreadPoolExecutor != null)
+      lScheduledThreadPoolExecutor.shutdown();
+
+    ClearControlExecutionService.get().release(pObject);
+  }
+
   /**
    * Returns (or creates) a completing thread pool executor for a given key.
    * 
@@ -112,7 +140,18 @@ public class ClearControlExecutors
     CompletingThreadPoolExecutor lThreadPoolExecutor =
                                                      cThreadPoolExecutorMap.get(pObject);
 
-    if (lThreadPoolExecutor == null)
+    if (lThreadPoolExecutor == null
+        && ClearControlExecutionService.get().isEnabled())
+    {
+      lThreadPoolExecutor =
+                          ClearControlExecutionService.get()
+                                                      .createThreadPoolExecutor(pObject,
+                                                                                pCorePoolSize,
+                                                                                pMaxPoolSize,
+                                                                                pMaxQueueLength);
+      cThreadPoolExecutorMap.put(pObject, lThreadPoolExecutor);
+    }
+    else if (lThreadPoolExecutor == null)
     {
       final BlockingQueue<Runnable> lNewQueue =
                                               new LinkedBlockingQueue<>(pMaxQueueLength);
@@ -137,6 +176,44 @@ public class ClearControlExecutors
     return lThreadPoolExecutor;
   }
 
+  /**
+   * Returns (or creates) a serial executor for long running tasks (such as the
+   * body of a task device) for a given key. When the execution service is
+   * enabled, each task runs on its own thread (virtual if enabled and
+   * supported), instead of waiting for a thread of a bounded shared pool.
+   * 
+   * @param pObject
+   *          key
+   * @param pPriority
+   *          priority
+   * @return completing thread pool executor
+   */
+  public static final CompletingThreadPoolExecutor getOrCreateLongRunningTaskExecutor(final Object pObject,
+                                                                                      final int pPriority)
+  {
+    CompletingThreadPoolExecutor lThreadPoolExecutor =
+                                                     cThreadPoolExecutorMap.get(pObject);
+
+    if (lThreadPoolExecutor == null
+        && ClearControlExecutionService.get().isEnabled())
+    {
+      lThreadPoolExecutor =
+                          ClearControlExecutionService.get()
+                                                      .createLongRunningTaskExecutor(pObject,
+                                                                                     getThreadName(pObject),
+                                                                                     pPriority);
+      cThreadPoolExecutorMap.put(pObject, lThreadPoolExecutor);
+    }
+    else if (lThreadPoolExecutor == null)
+      lThreadPoolExecutor = getOrCreateThreadPoolExecutor(pObject,
+                                                          pPriority,
+                                                          1,
+                                                          1,
+                                                          Integer.MAX_VALUE);
+
+    return lThreadPoolExecutor;
+  }
+
   /**
    * Returns (or creates) a scheduled thread pool executor for a given key.
    * 
@@ -159,7 +236,17 @@ public class ClearControlExecutors
     ScheduledThreadPoolExecutor lScheduledThreadPoolExecutor =
                                                              cScheduledThreadPoolExecutorMap.get(pObject);
 
-    if (lScheduledThreadPoolExecutor == null)
+    if (lScheduledThreadPoolExecutor == null
+        && ClearControlExecutionService.get().isEnabled())
+    {
+      lScheduledThreadPoolExecutor =
+                                   ClearControlExecutionService.get()
+                                                               .createScheduledThreadPoolExecutor(pObject,
+                                                                                                  pCorePoolSize);
+      cScheduledThreadPoolExecutorMap.put(pObject,
+                                          lScheduledThreadPoolExecutor);
+    }
+    else if (lScheduledThreadPoolExecutor == null)
     {
       String lThreadName = getThreadName(pObject);
 
@@ -189,6 +276,24 @@ public class ClearControlExecutors
     return lName;
   }
 
+  /**
+   * Returns an executor that starts a new platform (daemon) thread with given
+   * name and priority per task.
+   * 
+   * @param pName
+   *          name
+   * @param pPriority
+   *          thread priority
+   * @return thread-per-task executor
+   */
+  public static final Executor getThreadPerTaskExecutor(final String pName,
+                                                        final int pPriority)
+  {
+    final ThreadFactory lThreadFactory = getThreadFactory(pName,
+                                                          pPriority);
+    return (r) -> lThreadFactory.newThread(r).start();
+  }
+
   /**
    * Returns a thread factory with given thread name and priority
    * 
@@ -0,0 +1,492 @@
+package clearcontrol.core.concurrent.executors;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed wheel timer. A single thread advances a wheel of buckets at a fixed
+ * tick rate, tasks are placed in the bucket of the tick at which they are due.
+ * Scheduling and cancelling are constant time, and a single thread can serve
+ * any number of periodic tasks. The timer thread never executes tasks itself,
+ * due tasks are handed to the executor given when scheduling. Periodic tasks
+ * are rescheduled once their execution has finished, so that executions of the
+ * same task never overlap, as for a scheduled thread pool executor. The timer
+ * thread is started when the first task is scheduled and sleeps while no task
+ * is scheduled.
+ *
+ * @author royer
+ */
+public class HashedWheelTimer implements AutoCloseable
+{
+  private static final long cMaximalIdleSleepInNanoseconds =
+                                                           TimeUnit.SECONDS.toNanos(1);
+
+  private final long mTickDurationInNanoseconds;
+  private final ArrayList<ArrayList<ScheduledTask<?>>> mWheel;
+  private final int mMask;
+  private final ConcurrentLinkedQueue<ScheduledTask<?>> mNewTaskQueue =
+                                                                    new ConcurrentLinkedQueue<>();
+  private final AtomicInteger mNumberOfScheduledTasks =
+                                                      new AtomicInteger();
+
+  private final long mStartTimeInNanoseconds = System.nanoTime();
+  private volatile Thread mTimerThread;
+  private volatile boolean mIsIdle;
+  private volatile boolean mIsClosed;
+  private long mLastTick = -1;
+
+  /**
+   * Scheduled task of a hashed wheel timer
+   *
+   * @param <V>
+   *          result type
+   */
+  public static class ScheduledTask<V> extends FutureTask<V>
+                                   implements RunnableScheduledFuture<V>
+  {
+    private final HashedWheelTimer mTimer;
+    private final Executor mExecutor;
+    private final long mPeriodInNanoseconds;
+    private volatile long mDeadlineInNanoseconds;
+    private volatile Runnable mCompletionListener;
+    private long mDeadlineTick;
+
+    private ScheduledTask(HashedWheelTimer pTimer,
+                          Callable<V> pCallable,
+                          long pDeadlineInNanoseconds,
+                          long pPeriodInNanoseconds,
+                          Executor pExecutor)
+    {
+      super(pCallable);
+      mTimer = pTimer;
+      mExecutor = pExecutor;
+      mDeadlineInNanoseconds = pDeadlineInNanoseconds;
+      mPeriodInNanoseconds = pPeriodInNanoseconds;
+    }
+
+    @Override
+    public boolean isPeriodic()
+    {
+      return mPeriodInNanoseconds != 0;
+    }
+
+    @Override
+    public long getDelay(TimeUnit pUnit)
+    {
+      return pUnit.convert(mDeadlineInNanoseconds - System.nanoTime(),
+                           TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed pOther)
+    {
+      if (pOther == this)
+        return 0;
+      return Long.compare(getDelay(TimeUnit.NANOSECONDS),
+                          pOther.getDelay(TimeUnit.NANOSECONDS));
+    }
+
+    @Override
+    public void run()
+    {
+      if (!isPeriodic())
+        super.run();
+      else if (runAndReset())
+      {
+        if (mPeriodInNanoseconds > 0)
+          mDeadlineInNanoseconds += mPeriodInNanoseconds;
+        else
+          mDeadlineInNanoseconds = System.nanoTime()
+                                   - mPeriodInNanoseconds;
+        try
+        {
+          mTimer.add(this);
+        }
+        catch (RejectedExecutionException e)
+        {
+          cancel(false);
+        }
+      }
+    }
+
+    /**
+     * Sets a listener that is called once this task is done (executed,
+     * failed, or cancelled). The listener is called immediately if this task
+     * is already done.
+     *
+     * @param pCompletionListener
+     *          completion listener
+     */
+    public void setCompletionListener(Runnable pCompletionListener)
+    {
+      mCompletionListener = pCompletionListener;
+      if (isDone())
+        pCompletionListener.run();
+    }
+
+    @Override
+    protected void done()
+    {
+      final Runnable lCompletionListener = mCompletionListener;
+      if (lCompletionListener != null)
+        lCompletionListener.run();
+    }
+
+    private void expire()
+    {
+      try
+      {
+        mExecutor.execute(this);
+      }
+      catch (RejectedExecutionException e)
+      {
+        if (isPeriodic())
+        {
+          // this period is skipped:
+          mDeadlineInNanoseconds += Math.abs(mPeriodInNanoseconds);
+          mTimer.add(this);
+        }
+        else
+          setException(e);
+      }
+    }
+  }
+
+  /**
+   * Instantiates a hashed wheel timer with a given tick duration and number of
+   * buckets.
+   *
+   * @param pTickDuration
+   *          tick duration
+   * @param pTimeUnit
+   *          tick duration unit
+   * @param pNumberOfBuckets
+   *          number of buckets, rounded up to the next power of two
+   */
+  public HashedWheelTimer(long pTickDuration,
+                          TimeUnit pTimeUnit,
+                          int pNumberOfBuckets)
+  {
+    mTickDurationInNanoseconds = Math.max(1,
+                                          pTimeUnit.toNanos(pTickDuration));
+
+    final int lNumberOfBuckets =
+                               Integer.highestOneBit(Math.max(1,
+                                                              pNumberOfBuckets
+                                                                 - 1))
+                                 << 1;
+    mWheel = new ArrayList<>(lNumberOfBuckets);
+    for (int i = 0; i < lNumberOfBuckets; i++)
+      mWheel.add(new ArrayList<>());
+    mMask = lNumberOfBuckets - 1;
+  }
+
+  /**
+   * Returns the tick duration of this timer
+   *
+   * @param pTimeUnit
+   *          time unit
+   * @return tick duration
+   */
+  public long getTickDuration(TimeUnit pTimeUnit)
+  {
+    return pTimeUnit.convert(mTickDurationInNanoseconds,
+                             TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Returns the number of tasks currently scheduled, cancelled tasks are
+   * removed lazily.
+   *
+   * @return number of scheduled tasks
+   */
+  public int getNumberOfScheduledTasks()
+  {
+    return mNumberOfScheduledTasks.get();
+  }
+
+  /**
+   * Schedules a runnable to execute on a given executor after a given delay.
+   *
+   * @param pRunnable
+   *          runnable
+   * @param pDelay
+   *          delay
+   * @param pTimeUnit
+   *          delay unit
+   * @param pExecutor
+   *          executor on which the runnable executes
+   * @return scheduled task
+   */
+  public ScheduledTask<?> schedule(Runnable pRunnable,
+                                   long pDelay,
+                                   TimeUnit pTimeUnit,
+                                   Executor pExecutor)
+  {
+    return schedule(Executors.callable(pRunnable),
+                    pDelay,
+                    pTimeUnit,
+                    pExecutor);
+  }
+
+  /**
+   * Schedules a callable to execute on a given executor after a given delay.
+   *
+   * @param pCallable
+   *          callable
+   * @param pDelay
+   *          delay
+   * @param pTimeUnit
+   *          delay unit
+   * @param pExecutor
+   *          executor on which the callable executes
+   * @return scheduled task
+   */
+  public <V> ScheduledTask<V> schedule(Callable<V> pCallable,
+                                       long pDelay,
+                                       TimeUnit pTimeUnit,
+                                       Executor pExecutor)
+  {
+    return add(new ScheduledTask<V>(this,
+                                    pCallable,
+                                    getDeadline(pDelay, pTimeUnit),
+                                    0,
+                                    pExecutor));
+  }
+
+  /**
+   * Schedules a runnable to execute on a given executor at a fixed rate, after
+   * a given initial delay.
+   *
+   * @param pRunnable
+   *          runnable
+   * @param pInitialDelay
+   *          initial delay
+   * @param pPeriod
+   *          period
+   * @param pTimeUnit
+   *          delay and period unit
+   * @param pExecutor
+   *          executor on which the runnable executes
+   * @return scheduled task
+   */
+  public ScheduledTask<?> scheduleAtFixedRate(Runnable pRunnable,
+                                              long pInitialDelay,
+                                              long pPeriod,
+                                              TimeUnit pTimeUnit,
+                                              Executor pExecutor)
+  {
+    if (pPeriod <= 0)
+      throw new IllegalArgumentException("Period must be strictly positive");
+    return add(new ScheduledTask<Object>(this,
+                                         Executors.callable(pRunnable),
+                                         getDeadline(pInitialDelay,
+                                                     pTimeUnit),
+                                         pTimeUnit.toNanos(pPeriod),
+                                         pExecutor));
+  }
+
+  /**
+   * Schedules a runnable to execute on a given executor with a fixed delay
+   * between the end of an execution and the start of the next, after a given
+   * initial delay.
+   *
+   * @param pRunnable
+   *          runnable
+   * @param pInitialDelay
+   *          initial delay
+   * @param pDelay
+   *          delay between executions
+   * @param pTimeUnit
+   *          delays unit
+   * @param pExecutor
+   *          executor on which the runnable executes
+   * @return scheduled task
+   */
+  public ScheduledTask<?> scheduleWithFixedDelay(Runnable pRunnable,
+                                                 long pInitialDelay,
+                                                 long pDelay,
+                                                 TimeUnit pTimeUnit,
+                                                 Executor pExecutor)
+  {
+    if (pDelay <= 0)
+      throw new IllegalArgumentException("Delay must be strictly positive");
+    return add(new ScheduledTask<Object>(this,
+                                         Executors.callable(pRunnable),
+                                         getDeadline(pInitialDelay,
+                                                     pTimeUnit),
+                                         -pTimeUnit.toNanos(pDelay),
+                                         pExecutor));
+  }
+
+  private long getDeadline(long pDelay, TimeUnit pTimeUnit)
+  {
+    return System.nanoTime() + pTimeUnit.toNanos(Math.max(0, pDelay));
+  }
+
+  private <V> ScheduledTask<V> add(ScheduledTask<V> pScheduledTask)
+  {
+    if (mIsClosed)
+      throw new RejectedExecutionException("Timer has been closed");
+
+    mNumberOfScheduledTasks.incrementAndGet();
+    mNewTaskQueue.add(pScheduledTask);
+
+    final Thread lTimerThread = ensureStarted();
+    if (mIsIdle)
+      LockSupport.unpark(lTimerThread);
+    return pScheduledTask;
+  }
+
+  private Thread ensureStarted()
+  {
+    Thread lTimerThread = mTimerThread;
+    if (lTimerThread == null)
+      synchronized (this)
+      {
+        lTimerThread = mTimerThread;
+        if (lTimerThread == null)
+        {
+          lTimerThread =
+                       ClearControlExecutors.getThreadFactory(HashedWheelTimer.class.getSimpleName(),
+                                                              Thread.MAX_PRIORITY)
+                                            .newThread(this::tickLoop);
+          mTimerThread = lTimerThread;
+          lTimerThread.start();
+        }
+      }
+    return lTimerThread;
+  }
+
+  private void tickLoop()
+  {
+    while (!mIsClosed)
+    {
+      final long lCurrentTick = (System.nanoTime()
+                                 - mStartTimeInNanoseconds)
+                                / mTickDurationInNanoseconds;
+
+      // after a long sleep one turn of the wheel visits all buckets:
+      final long lFirstTick = Math.max(mLastTick + 1,
+                                       lCurrentTick - mMask);
+
+      transferNewTasks(lFirstTick);
+      for (long lTick = lFirstTick; lTick <= lCurrentTick; lTick++)
+        expireBucket(lTick);
+      mLastTick = lCurrentTick;
+
+      waitForNextTick();
+    }
+
+    // remaining tasks are cancelled:
+    transferNewTasks(mLastTick + 1);
+    for (ArrayList<ScheduledTask<?>> lBucket : mWheel)
+    {
+      for (ScheduledTask<?> lScheduledTask : lBucket)
+        lScheduledTask.cancel(false);
+      lBucket.clear();
+    }
+  }
+
+  private void transferNewTasks(long pFirstTick)
+  {
+    ScheduledTask<?> lScheduledTask;
+    while ((lScheduledTask = mNewTaskQueue.poll()) != null)
+    {
+      if (lScheduledTask.isCancelled())
+      {
+        mNumberOfScheduledTasks.decrementAndGet();
+        continue;
+      }
+
+      final long lDeadlineTick = (lScheduledTask.mDeadlineInNanoseconds
+                                  - mStartTimeInNanoseconds
+                                  + mTickDurationInNanoseconds
+                                  - 1)
+                                 / mTickDurationInNanoseconds;
+
+      // tasks due in the past expire at the first tick to be visited:
+      lScheduledTask.mDeadlineTick = Math.max(lDeadlineTick, pFirstTick);
+      mWheel.get((int) (lScheduledTask.mDeadlineTick & mMask))
+            .add(lScheduledTask);
+    }
+  }
+
+  private void expireBucket(long pTick)
+  {
+    final ArrayList<ScheduledTask<?>> lBucket =
+                                              mWheel.get((int) (pTick & mMask));
+    int lNumberOfKeptTasks = 0;
+    for (int i = 0; i < lBucket.size(); i++)
+    {
+      final ScheduledTask<?> lScheduledTask = lBucket.get(i);
+      if (lScheduledTask.isCancelled())
+      {
+        mNumberOfScheduledTasks.decrementAndGet();
+      }
+      else if (lScheduledTask.mDeadlineTick <= pTick)
+      {
+        mNumberOfScheduledTasks.decrementAndGet();
+        lScheduledTask.expire();
+      }
+      else
+        lBucket.set(lNumberOfKeptTasks++, lScheduledTask);
+    }
+    for (int i = lBucket.size() - 1; i >= lNumberOfKeptTasks; i--)
+      lBucket.remove(i);
+  }
+
+  private void waitForNextTick()
+  {
+    if (mNumberOfScheduledTasks.get() == 0)
+    {
+      mIsIdle = true;
+      if (mNewTaskQueue.isEmpty() && !mIsClosed)
+        LockSupport.parkNanos(this, cMaximalIdleSleepInNanoseconds);
+      mIsIdle = false;
+      return;
+    }
+
+    final long lNextTickTimeInNanoseconds = mStartTimeInNanoseconds
+                                            + (mLastTick + 1)
+                                              * mTickDurationInNanoseconds;
+    long lSleepTimeInNanoseconds;
+    while ((lSleepTimeInNanoseconds = lNextTickTimeInNanoseconds
+                                      - System.nanoTime()) > 0
+           && !mIsClosed)
+      LockSupport.parkNanos(this, lSleepTimeInNanoseconds);
+  }
+
+  /**
+   * Closes this timer, all scheduled tasks are cancelled.
+   */
+  @Override
+  public void close()
+  {
+    mIsClosed = true;
+    final Thread lTimerThread = mTimerThread;
+    if (lTimerThread != null)
+    {
+      LockSupport.unpark(lTimerThread);
+      try
+      {
+        lTimerThread.join(TimeUnit.SECONDS.toMillis(1));
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+}
@@ -15,6 +15,7 @@ public class LimitedExecutionsRunnable implements Runnable
   private final AtomicLong mExecutionCounter = new AtomicLong();
   private final Runnable mDelegatedRunnable;
   private volatile ScheduledFuture<?> mScheduledFuture;
+  private volatile boolean mIsScheduled;
   private final long mMaximumNumberOfExecutions;
 
   /**
@@ -36,18 +37,40 @@ public class LimitedExecutionsRunnable implements Runnable
   @Override
   public void run()
   {
-    if (mScheduledFuture == null)
+    if (!mIsScheduled)
       throw new UnsupportedOperationException("Scheduling and execution of "
                                               + LimitedExecutionsRunnable.class.getSimpleName()
                                               + " instances should be done using this class methods only. ");
 
+    // the first executions may happen before the scheduled future is known:
+    if (mExecutionCounter.get() >= mMaximumNumberOfExecutions)
+    {
+      cancel();
+      return;
+    }
+
     mDelegatedRunnable.run();
-    if (mExecutionCounter.incrementAndGet() == mMaximumNumberOfExecutions)
+    if (mExecutionCounter.incrementAndGet() >= mMaximumNumberOfExecutions)
     {
-      mScheduledFuture.cancel(false);
+      cancel();
     }
   }
 
+  private void cancel()
+  {
+    final ScheduledFuture<?> lScheduledFuture = mScheduledFuture;
+    if (lScheduledFuture != null)
+      lScheduledFuture.cancel(false);
+  }
+
+  private ScheduledFuture<?> setScheduledFuture(ScheduledFuture<?> pScheduledFuture)
+  {
+    mScheduledFuture = pScheduledFuture;
+    if (mExecutionCounter.get() >= mMaximumNumberOfExecutions)
+      cancel();
+    return pScheduledFuture;
+  }
+
   /**
    * Executes the delegated runnable a given maximal number of times on a given
    * scheduled executor service with a given execution period.
@@ -64,7 +87,7 @@ public class LimitedExecutionsRunnable implements Runnable
                                       long pPeriod,
                                       TimeUnit pTimeUnit)
   {
-    return runNTimes(pScheduledExecutorService, pPeriod, pTimeUnit);
+    return runNTimes(pScheduledExecutorService, 0, pPeriod, pTimeUnit);
   }
 
   /**
@@ -87,12 +110,11 @@ public class LimitedExecutionsRunnable implements Runnable
                                       long pPeriod,
                                       TimeUnit pTimeUnit)
   {
-    mScheduledFuture =
-                     pScheduledExecutorService.scheduleAtFixedRate(this,
-                                                                   pInitialDelay,
-                                                                   pPeriod,
-                                                                   pTimeUnit);
-    return mScheduledFuture;
+    mIsScheduled = true;
+    return setScheduledFuture(pScheduledExecutorService.scheduleAtFixedRate(this,
+                                                                            pInitialDelay,
+                                                                            pPeriod,
+                                                                            pTimeUnit));
   }
 
   /**
@@ -111,11 +133,10 @@ public class LimitedExecutionsRunnable implements Runnable
                                       long pPeriod,
                                       TimeUnit pUnit)
   {
-    mScheduledFuture =
-                     pAsynchronousSchedulerService.scheduleAtFixedRate(this,
-                                                                       pPeriod,
-                                                                       pUnit);
-    return mScheduledFuture;
+    mIsScheduled = true;
+    return setScheduledFuture(pAsynchronousSchedulerService.scheduleAtFixedRate(this,
+                                                                                pPeriod,
+                                                                                pUnit));
   }
 
   /**
@@ -0,0 +1,141 @@
+package clearcontrol.core.concurrent.executors;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Task statistics of an owner of shared executors (typically a device or a
+ * processor).
+ *
+ * @author royer
+ */
+public class OwnerTaskStatistics
+{
+  private final AtomicLong mNumberOfSubmittedTasks = new AtomicLong();
+  private final AtomicLong mNumberOfRejectedTasks = new AtomicLong();
+  private final AtomicLong mNumberOfActiveTasks = new AtomicLong();
+  private final AtomicLong mNumberOfCompletedTasks = new AtomicLong();
+  private final AtomicLong mNumberOfFailedTasks = new AtomicLong();
+  private final AtomicLong mNumberOfCancelledTasks = new AtomicLong();
+  private final AtomicLong mTotalExecutionTimeInNanoseconds =
+                                                            new AtomicLong();
+
+  void taskSubmitted()
+  {
+    mNumberOfSubmittedTasks.incrementAndGet();
+  }
+
+  void taskRejected()
+  {
+    mNumberOfRejectedTasks.incrementAndGet();
+  }
+
+  void taskStarted()
+  {
+    mNumberOfActiveTasks.incrementAndGet();
+  }
+
+  void taskEnded(long pExecutionTimeInNanoseconds)
+  {
+    mNumberOfActiveTasks.decrementAndGet();
+    mNumberOfCompletedTasks.incrementAndGet();
+    mTotalExecutionTimeInNanoseconds.addAndGet(pExecutionTimeInNanoseconds);
+  }
+
+  void taskFailed()
+  {
+    mNumberOfFailedTasks.incrementAndGet();
+  }
+
+  void taskCancelled()
+  {
+    mNumberOfCancelledTasks.incrementAndGet();
+  }
+
+  /**
+   * Returns the number of submitted tasks (including rejected tasks)
+   *
+   * @return number of submitted tasks
+   */
+  public long getNumberOfSubmittedTasks()
+  {
+    return mNumberOfSubmittedTasks.get();
+  }
+
+  /**
+   * Returns the number of rejected tasks
+   *
+   * @return number of rejected tasks
+   */
+  public long getNumberOfRejectedTasks()
+  {
+    return mNumberOfRejectedTasks.get();
+  }
+
+  /**
+   * Returns the number of tasks currently executing
+   *
+   * @return number of active tasks
+   */
+  public long getNumberOfActiveTasks()
+  {
+    return mNumberOfActiveTasks.get();
+  }
+
+  /**
+   * Returns the number of tasks that have been executed (including failed and
+   * cancelled tasks)
+   *
+   * @return number of completed tasks
+   */
+  public long getNumberOfCompletedTasks()
+  {
+    return mNumberOfCompletedTasks.get();
+  }
+
+  /**
+   * Returns the number of tasks that failed with an exception
+   *
+   * @return number of failed tasks
+   */
+  public long getNumberOfFailedTasks()
+  {
+    return mNumberOfFailedTasks.get();
+  }
+
+  /**
+   * Returns the number of tasks that were cancelled before or while executing
+   *
+   * @return number of cancelled tasks
+   */
+  public long getNumberOfCancelledTasks()
+  {
+    return mNumberOfCancelledTasks.get();
+  }
+
+  /**
+   * Returns the average execution time of completed tasks in nanoseconds
+   *
+   * @return average execution time in nanoseconds
+   */
+  public double getAverageExecutionTimeInNanoseconds()
+  {
+    final long lNumberOfCompletedTasks = mNumberOfCompletedTasks.get();
+    if (lNumberOfCompletedTasks == 0)
+      return 0;
+    return ((double) mTotalExecutionTimeInNanoseconds.get())
+           / lNumberOfCompletedTasks;
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("OwnerTaskStatistics [submitted=%d, rejected=%d, active=%d, completed=%d, failed=%d, cancelled=%d, average=%g ms]",
+                         getNumberOfSubmittedTasks(),
+                         getNumberOfRejectedTasks(),
+                         getNumberOfActiveTasks(),
+                         getNumberOfCompletedTasks(),
+                         getNumberOfFailedTasks(),
+                         getNumberOfCancelledTasks(),
+                         getAverageExecutionTimeInNanoseconds() * 1e-6);
+  }
+}
@@ -0,0 +1,74 @@
+package clearcontrol.core.concurrent.executors;
+
+import clearcontrol.core.configuration.MachineConfiguration;
+
+/**
+ * Named shared thread pools of the execution service. The number of threads of
+ * each pool is bounded, it is by default a multiple of the number of available
+ * processors and can be overridden with the machine configuration property
+ * 'executors.pool.[name].threads'.
+ *
+ * @author royer
+ */
+public enum SharedPool
+{
+ /**
+  * Blocking input and output: file and network access, stack sources and
+  * sinks, and anything that is not classified otherwise
+  */
+ IO(4, Thread.NORM_PRIORITY),
+
+ /**
+  * Computations: image processing, fitting and optimization
+  */
+ Compute(1, Thread.NORM_PRIORITY),
+
+ /**
+  * Device communication and polling
+  */
+ DevicePolling(2, Thread.MAX_PRIORITY),
+
+ /**
+  * Feeding data to the user interface
+  */
+ UIFeed(0.5, Thread.NORM_PRIORITY);
+
+  private final double mThreadsPerProcessor;
+  private final int mPriority;
+
+  private SharedPool(double pThreadsPerProcessor, int pPriority)
+  {
+    mThreadsPerProcessor = pThreadsPerProcessor;
+    mPriority = pPriority;
+  }
+
+  /**
+   * Returns the maximal number of threads of this pool
+   *
+   * @return number of threads
+   */
+  public int getNumberOfThreads()
+  {
+    final int lDefaultNumberOfThreads =
+                                      (int) Math.max(2,
+                                                     Math.round(mThreadsPerProcessor
+                                                                * Runtime.getRuntime()
+                                                                         .availableProcessors()));
+    return Math.max(1,
+                    MachineConfiguration.get()
+                                        .getIntegerProperty("executors.pool."
+                                                            + name().toLowerCase()
+                                                            + ".threads",
+                                                            lDefaultNumberOfThreads));
+  }
+
+  /**
+   * Returns the priority of the threads of this pool
+   *
+   * @return thread priority
+   */
+  public int getPriority()
+  {
+    return mPriority;
+  }
+}
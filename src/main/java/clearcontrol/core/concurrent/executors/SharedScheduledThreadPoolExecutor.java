@@ -0,0 +1,184 @@
+package clearcontrol.core.concurrent.executors;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import clearcontrol.core.concurrent.executors.HashedWheelTimer.ScheduledTask;
+
+/**
+ * Scheduled thread pool executor that owns no thread: tasks are timed by a
+ * shared hashed wheel timer and executed on a shared executor, with the
+ * concurrency of the scheduled thread pool executor it replaces. Delayed and
+ * periodic tasks are cancelled on shutdown.
+ *
+ * @author royer
+ */
+class SharedScheduledThreadPoolExecutor extends
+                                        ScheduledThreadPoolExecutor
+{
+  private final HashedWheelTimer mHashedWheelTimer;
+  private final BoundedConcurrencyExecutor mBoundedConcurrencyExecutor;
+  private final Set<ScheduledTask<?>> mScheduledTaskSet =
+                                                        ConcurrentHashMap.newKeySet();
+
+  /**
+   * Instantiates a shared scheduled thread pool executor
+   *
+   * @param pHashedWheelTimer
+   *          shared timer
+   * @param pSharedExecutor
+   *          shared executor on which tasks execute
+   * @param pCorePoolSize
+   *          core pool size
+   * @param pOwnerTaskStatistics
+   *          owner task statistics to update
+   */
+  SharedScheduledThreadPoolExecutor(HashedWheelTimer pHashedWheelTimer,
+                                    Executor pSharedExecutor,
+                                    int pCorePoolSize,
+                                    OwnerTaskStatistics pOwnerTaskStatistics)
+  {
+    super(0);
+    mHashedWheelTimer = pHashedWheelTimer;
+    mBoundedConcurrencyExecutor =
+                                new BoundedConcurrencyExecutor(pSharedExecutor,
+                                                               pCorePoolSize,
+                                                               pCorePoolSize,
+                                                               new LinkedBlockingQueue<Runnable>(),
+                                                               pOwnerTaskStatistics);
+  }
+
+  private <V> ScheduledTask<V> register(ScheduledTask<V> pScheduledTask)
+  {
+    mScheduledTaskSet.add(pScheduledTask);
+    pScheduledTask.setCompletionListener(() -> mScheduledTaskSet.remove(pScheduledTask));
+    return pScheduledTask;
+  }
+
+  private void checkNotShutdown()
+  {
+    if (isShutdown())
+      throw new RejectedExecutionException("Executor has been shutdown");
+  }
+
+  @Override
+  public ScheduledFuture<?> schedule(Runnable pCommand,
+                                     long pDelay,
+                                     TimeUnit pUnit)
+  {
+    checkNotShutdown();
+    return register(mHashedWheelTimer.schedule(pCommand,
+                                               pDelay,
+                                               pUnit,
+                                               mBoundedConcurrencyExecutor));
+  }
+
+  @Override
+  public <V> ScheduledFuture<V> schedule(Callable<V> pCallable,
+                                         long pDelay,
+                                         TimeUnit pUnit)
+  {
+    checkNotShutdown();
+    return register(mHashedWheelTimer.schedule(pCallable,
+                                               pDelay,
+                                               pUnit,
+                                               mBoundedConcurrencyExecutor));
+  }
+
+  @Override
+  public ScheduledFuture<?> scheduleAtFixedRate(Runnable pCommand,
+                                                long pInitialDelay,
+                                                long pPeriod,
+                                                TimeUnit pUnit)
+  {
+    checkNotShutdown();
+    return register(mHashedWheelTimer.scheduleAtFixedRate(pCommand,
+                                                          pInitialDelay,
+                                                          pPeriod,
+                                                          pUnit,
+                                                          mBoundedConcurrencyExecutor));
+  }
+
+  @Override
+  public ScheduledFuture<?> scheduleWithFixedDelay(Runnable pCommand,
+                                                   long pInitialDelay,
+                                                   long pDelay,
+                                                   TimeUnit pUnit)
+  {
+    checkNotShutdown();
+    return register(mHashedWheelTimer.scheduleWithFixedDelay(pCommand,
+                                                             pInitialDelay,
+                                                             pDelay,
+                                                             pUnit,
+                                                             mBoundedConcurrencyExecutor));
+  }
+
+  @Override
+  public int getActiveCount()
+  {
+    return mBoundedConcurrencyExecutor.getNumberOfDispatchedTasks();
+  }
+
+  /**
+   * Returns the number of delayed and periodic tasks that are scheduled
+   *
+   * @return number of scheduled tasks
+   */
+  int getNumberOfScheduledTasks()
+  {
+    return mScheduledTaskSet.size();
+  }
+
+  @Override
+  public void shutdown()
+  {
+    mBoundedConcurrencyExecutor.shutdown();
+    for (ScheduledTask<?> lScheduledTask : mScheduledTaskSet)
+      lScheduledTask.cancel(false);
+  }
+
+  @Override
+  public List<Runnable> shutdownNow()
+  {
+    final List<Runnable> lList =
+                               mBoundedConcurrencyExecutor.shutdownNow();
+    for (ScheduledTask<?> lScheduledTask : mScheduledTaskSet)
+      lScheduledTask.cancel(false);
+    return lList;
+  }
+
+  @Override
+  public boolean isShutdown()
+  {
+    return mBoundedConcurrencyExecutor.isShutdown();
+  }
+
+  @Override
+  public boolean isTerminating()
+  {
+    return isShutdown() && !isTerminated();
+  }
+
+  @Override
+  public boolean isTerminated()
+  {
+    return mBoundedConcurrencyExecutor.isTerminated();
+  }
+
+  @Override
+  public boolean awaitTermination(long pTimeOut,
+                                  TimeUnit pTimeUnit) throws InterruptedException
+  {
+    return mBoundedConcurrencyExecutor.awaitTermination(pTimeOut,
+                                                        pTimeUnit);
+  }
+
+}
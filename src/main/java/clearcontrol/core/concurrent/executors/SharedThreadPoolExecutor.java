@@ -0,0 +1,140 @@
+package clearcontrol.core.concurrent.executors;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Completing thread pool executor that owns no thread: tasks are executed on a
+ * shared executor, with the concurrency and queue length of the thread pool
+ * executor it replaces. Tasks that are already executing when this executor is
+ * shut down cannot be interrupted.
+ *
+ * @author royer
+ */
+class SharedThreadPoolExecutor extends CompletingThreadPoolExecutor
+{
+  private final BoundedConcurrencyExecutor mBoundedConcurrencyExecutor;
+
+  /**
+   * Instantiates a shared thread pool executor
+   *
+   * @param pSharedExecutor
+   *          shared executor on which tasks execute
+   * @param pCorePoolSize
+   *          core pool size
+   * @param pMaxPoolSize
+   *          max pool size
+   * @param pMaxQueueLength
+   *          max queue length
+   * @param pOwnerTaskStatistics
+   *          owner task statistics to update
+   */
+  SharedThreadPoolExecutor(Executor pSharedExecutor,
+                           int pCorePoolSize,
+                           int pMaxPoolSize,
+                           int pMaxQueueLength,
+                           OwnerTaskStatistics pOwnerTaskStatistics)
+  {
+    this(pSharedExecutor,
+         pCorePoolSize,
+         pMaxPoolSize,
+         new LinkedBlockingQueue<Runnable>(pMaxQueueLength),
+         pOwnerTaskStatistics);
+  }
+
+  private SharedThreadPoolExecutor(Executor pSharedExecutor,
+                                   int pCorePoolSize,
+                                   int pMaxPoolSize,
+                                   BlockingQueue<Runnable> pQueue,
+                                   OwnerTaskStatistics pOwnerTaskStatistics)
+  {
+    // the queue is shared with the super class so that getQueue() works:
+    super(0, 1, 1, TimeUnit.MINUTES, pQueue);
+    mBoundedConcurrencyExecutor =
+                                new BoundedConcurrencyExecutor(pSharedExecutor,
+                                                               pCorePoolSize,
+                                                               pMaxPoolSize,
+                                                               pQueue,
+                                                               pOwnerTaskStatistics);
+  }
+
+  @Override
+  public void execute(Runnable pCommand)
+  {
+    mBoundedConcurrencyExecutor.execute(pCommand);
+  }
+
+  @Override
+  public void setCorePoolSize(int pCorePoolSize)
+  {
+    mBoundedConcurrencyExecutor.setConcurrency(pCorePoolSize,
+                                               mBoundedConcurrencyExecutor.getMaximumConcurrency());
+  }
+
+  @Override
+  public int getCorePoolSize()
+  {
+    return mBoundedConcurrencyExecutor.getCoreConcurrency();
+  }
+
+  @Override
+  public void setMaximumPoolSize(int pMaximumPoolSize)
+  {
+    mBoundedConcurrencyExecutor.setConcurrency(mBoundedConcurrencyExecutor.getCoreConcurrency(),
+                                               pMaximumPoolSize);
+  }
+
+  @Override
+  public int getMaximumPoolSize()
+  {
+    return mBoundedConcurrencyExecutor.getMaximumConcurrency();
+  }
+
+  @Override
+  public int getActiveCount()
+  {
+    return mBoundedConcurrencyExecutor.getNumberOfDispatchedTasks();
+  }
+
+  @Override
+  public void shutdown()
+  {
+    mBoundedConcurrencyExecutor.shutdown();
+  }
+
+  @Override
+  public List<Runnable> shutdownNow()
+  {
+    return mBoundedConcurrencyExecutor.shutdownNow();
+  }
+
+  @Override
+  public boolean isShutdown()
+  {
+    return mBoundedConcurrencyExecutor.isShutdown();
+  }
+
+  @Override
+  public boolean isTerminating()
+  {
+    return isShutdown() && !isTerminated();
+  }
+
+  @Override
+  public boolean isTerminated()
+  {
+    return mBoundedConcurrencyExecutor.isTerminated();
+  }
+
+  @Override
+  public boolean awaitTermination(long pTimeOut,
+                                  TimeUnit pTimeUnit) throws InterruptedException
+  {
+    return mBoundedConcurrencyExecutor.awaitTermination(pTimeOut,
+                                                        pTimeUnit);
+  }
+
+}
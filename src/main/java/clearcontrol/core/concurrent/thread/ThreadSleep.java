@@ -2,6 +2,7 @@ package clearcontrol.core.concurrent.thread;
 
 import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Utility methods for putting threads to sleep
@@ -10,8 +11,13 @@ import java.util.concurrent.TimeUnit;
  */
 public class ThreadSleep
 {
+  private static final long cConditionCheckPeriodInNanos =
+                                                         TimeUnit.MILLISECONDS.toNanos(1);
+
   /**
-   * Puts current thread to sleep for a given duration.
+   * Puts current thread to sleep for a given duration. The thread is parked
+   * (which on a virtual thread releases its carrier thread) until the deadline,
+   * interruptions are ignored.
    * 
    * @param pSleepDuration
    *          duration
@@ -21,43 +27,16 @@ public class ThreadSleep
   public static final void sleep(long pSleepDuration,
                                  TimeUnit pSleepDurationTimeUnit)
   {
-    final long lStart = System.nanoTime();
-    long lDeadlineInNanos = lStart
-                            + pSleepDurationTimeUnit.toNanos(pSleepDuration);
-
-    boolean lSleepTimeBelowMillisecond =
-                                       pSleepDurationTimeUnit.toMillis(pSleepDuration) == 0;
+    final long lDeadlineInNanos = System.nanoTime()
+                                  + pSleepDurationTimeUnit.toNanos(pSleepDuration);
 
-    long lNanoTime;
-    while ((lNanoTime = System.nanoTime()) < lDeadlineInNanos)
+    long lTimeToWaitInNanos;
+    while ((lTimeToWaitInNanos = lDeadlineInNanos
+                                 - System.nanoTime()) > 0)
     {
-
-      try
-      {
-        if (lSleepTimeBelowMillisecond)
-        {
-          long lTimeToWaitInNanos = 3 * (lDeadlineInNanos - lNanoTime)
-                                    / 4;
-          if (lTimeToWaitInNanos > 0)
-            Thread.sleep(0, (int) lTimeToWaitInNanos);
-        }
-        else
-        {
-          long lTimeToWaitInNanos = 3 * (lDeadlineInNanos - lNanoTime)
-                                    / 4;
-          if (lTimeToWaitInNanos > 0)
-          {
-            long lTimeToWaitInMillis =
-                                     TimeUnit.NANOSECONDS.toMillis(lTimeToWaitInNanos);
-
-            Thread.sleep(lTimeToWaitInMillis,
-                         (int) (lTimeToWaitInNanos % 1000000L));
-          }
-        }
-      }
-      catch (InterruptedException e)
-      {
-      }
+      LockSupport.parkNanos(lTimeToWaitInNanos);
+      // a pending interrupt would prevent parking:
+      Thread.interrupted();
     }
   }
 
@@ -78,50 +57,29 @@ public class ThreadSleep
                                       TimeUnit pSleepDurationTimeUnit,
                                       Callable<Boolean> pCondition)
   {
-    final long lStart = System.nanoTime();
-    long lDeadlineInNanos = lStart
-                            + pSleepDurationTimeUnit.toNanos(pSleepDuration);
-
-    boolean lSleepTimeBelowMillisecond =
-                                       pSleepDurationTimeUnit.toMillis(pSleepDuration) == 0;
+    final long lDeadlineInNanos = System.nanoTime()
+                                  + pSleepDurationTimeUnit.toNanos(pSleepDuration);
 
-    long lNanoTime;
-    while ((lNanoTime = System.nanoTime()) < lDeadlineInNanos)
+    long lTimeToWaitInNanos;
+    while ((lTimeToWaitInNanos = lDeadlineInNanos
+                                 - System.nanoTime()) > 0)
     {
-
       try
       {
         if (!pCondition.call())
           break;
-
-        if (lSleepTimeBelowMillisecond)
-        {
-          long lTimeToWaitInNanos =
-                                  (lDeadlineInNanos - lNanoTime) / 4;
-          if (lTimeToWaitInNanos > 0)
-            Thread.sleep(0, (int) lTimeToWaitInNanos);
-        }
-        else
-        {
-          long lTimeToWaitInNanos = (lDeadlineInNanos - lNanoTime)
-                                    % 1000000;
-          if (lTimeToWaitInNanos > 0)
-          {
-            long lTimeToWaitInMillis =
-                                     TimeUnit.NANOSECONDS.toMillis(lTimeToWaitInNanos);
-
-            Thread.sleep(lTimeToWaitInMillis,
-                         (int) (lTimeToWaitInNanos % 1000000L));
-          }
-        }
-      }
-      catch (InterruptedException e)
-      {
       }
       catch (Exception e)
       {
         e.printStackTrace();
       }
+
+      // the condition is checked at least every millisecond, and four times
+      // for shorter sleeps:
+      LockSupport.parkNanos(Math.min(cConditionCheckPeriodInNanos,
+                                     Math.max(1,
+                                              lTimeToWaitInNanos / 4)));
+      Thread.interrupted();
     }
   }
 }
@@ -0,0 +1,135 @@
+package clearcontrol.core.concurrent.thread;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+import clearcontrol.core.concurrent.executors.ClearControlExecutors;
+
+/**
+ * Access to virtual threads. Virtual threads are only available on recent JVMs
+ * (Java 21 and above) and are thus accessed through reflection. On JVMs that do
+ * not support them, platform (daemon) threads are used instead.
+ *
+ * @author royer
+ */
+public class VirtualThreads
+{
+  private static final Object cVirtualThreadBuilder;
+  private static final Method cNameMethod;
+  private static final Method cFactoryMethod;
+  private static final Method cIsVirtualMethod;
+
+  static
+  {
+    Object lVirtualThreadBuilder = null;
+    Method lNameMethod = null;
+    Method lFactoryMethod = null;
+    Method lIsVirtualMethod = null;
+    try
+    {
+      final Class<?> lBuilderClass =
+                                   Class.forName("java.lang.Thread$Builder");
+      lVirtualThreadBuilder = Thread.class.getMethod("ofVirtual")
+                                          .invoke(null);
+      lNameMethod = lBuilderClass.getMethod("name",
+                                            String.class,
+                                            long.class);
+      lFactoryMethod = lBuilderClass.getMethod("factory");
+      lIsVirtualMethod = Thread.class.getMethod("isVirtual");
+    }
+    catch (ReflectiveOperationException | RuntimeException e)
+    {
+      // virtual threads not supported:
+      lVirtualThreadBuilder = null;
+    }
+    cVirtualThreadBuilder = lVirtualThreadBuilder;
+    cNameMethod = lNameMethod;
+    cFactoryMethod = lFactoryMethod;
+    cIsVirtualMethod = lIsVirtualMethod;
+  }
+
+  /**
+   * Returns true if this JVM supports virtual threads
+   *
+   * @return true if supported
+   */
+  public static boolean isSupported()
+  {
+    return cVirtualThreadBuilder != null;
+  }
+
+  /**
+   * Returns true if the given thread is a virtual thread
+   *
+   * @param pThread
+   *          thread
+   * @return true if virtual
+   */
+  public static boolean isVirtual(Thread pThread)
+  {
+    if (!isSupported())
+      return false;
+    try
+    {
+      return (Boolean) cIsVirtualMethod.invoke(pThread);
+    }
+    catch (ReflectiveOperationException e)
+    {
+      return false;
+    }
+  }
+
+  /**
+   * Returns a thread factory creating virtual threads with a given name, or
+   * platform daemon threads with given name and priority if virtual threads
+   * are not supported. Virtual threads ignore the priority.
+   *
+   * @param pName
+   *          thread name
+   * @param pPriority
+   *          platform thread priority
+   * @return thread factory
+   */
+  public static ThreadFactory getThreadFactory(String pName,
+                                               int pPriority)
+  {
+    if (isSupported())
+      try
+      {
+        // builders are not thread-safe, and name() mutates the builder:
+        synchronized (cVirtualThreadBuilder)
+        {
+          cNameMethod.invoke(cVirtualThreadBuilder, pName + "-", 0L);
+          return (ThreadFactory) cFactoryMethod.invoke(cVirtualThreadBuilder);
+        }
+      }
+      catch (ReflectiveOperationException e)
+      {
+        e.printStackTrace();
+      }
+    return ClearControlExecutors.getThreadFactory(pName, pPriority);
+  }
+
+  /**
+   * Returns an executor that starts a new virtual thread per task, or a new
+   * platform daemon thread if virtual threads are not supported.
+   *
+   * @param pName
+   *          thread name
+   * @param pPriority
+   *          platform thread priority
+   * @return thread-per-task executor
+   */
+  public static Executor getThreadPerTaskExecutor(String pName,
+                                                  int pPriority)
+  {
+    if (!isSupported())
+      return ClearControlExecutors.getThreadPerTaskExecutor(pName,
+                                                            pPriority);
+    final ThreadFactory lThreadFactory = getThreadFactory(pName,
+                                                          pPriority);
+    return (r) -> lThreadFactory.newThread(r).start();
+  }
+
+}
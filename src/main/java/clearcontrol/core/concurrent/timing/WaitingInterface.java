@@ -2,17 +2,33 @@ package clearcontrol.core.concurrent.timing;
 
 import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
-
-import clearcontrol.core.concurrent.thread.ThreadSleep;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- *
+ * Waiting interface. Provides methods to wait for a condition to become true.
+ * Waiting threads are parked between checks of the condition, the parking time
+ * grows from a few microseconds to a millisecond so that conditions that
+ * become true quickly are noticed quickly, without polling long waits at a high
+ * rate.
  *
  * @author royer
  */
 public interface WaitingInterface
 {
+  /**
+   * Shortest time waiting threads are parked between two checks of the
+   * condition
+   */
+  static final long cMinimalParkTimeInNanos =
+                                            TimeUnit.MICROSECONDS.toNanos(10);
+
+  /**
+   * Longest time waiting threads are parked between two checks of the
+   * condition
+   */
+  static final long cMaximalParkTimeInNanos =
+                                            TimeUnit.MILLISECONDS.toNanos(1);
+
 
   /**
    * Waits until call to Callable returns true.
@@ -76,15 +92,25 @@ public interface WaitingInterface
   {
     try
     {
-      AtomicLong lCounter = new AtomicLong();
-      long lTimeOutInMillis =
-                            pTimeUnit == null ? 0
-                                              : pTimeUnit.toMillis(pTimeOut);
+      long lTimeOutInNanos = Long.MAX_VALUE;
+      if (pTimeOut != null)
+        lTimeOutInNanos = pTimeUnit == null ? 0
+                                            : pTimeUnit.toNanos(pTimeOut);
+      final long lStartTimeInNanos = System.nanoTime();
+
+      // the condition is checked often at first, then less and less often:
+      long lParkTimeInNanos = cMinimalParkTimeInNanos;
+      long lTimeToWaitInNanos;
       while (!pCallable.call()
-             && (pTimeOut == null
-                 || lCounter.incrementAndGet() < lTimeOutInMillis))
+             && (lTimeToWaitInNanos = lTimeOutInNanos
+                                      - (System.nanoTime()
+                                         - lStartTimeInNanos)) > 0)
       {
-        ThreadSleep.sleep(1, TimeUnit.MILLISECONDS);
+        LockSupport.parkNanos(Math.min(lParkTimeInNanos,
+                                       lTimeToWaitInNanos));
+        Thread.interrupted();
+        lParkTimeInNanos = Math.min(2 * lParkTimeInNanos,
+                                    cMaximalParkTimeInNanos);
       }
       return pCallable.call();
     }
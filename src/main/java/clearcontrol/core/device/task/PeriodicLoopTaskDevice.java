@@ -2,7 +2,6 @@ package clearcontrol.core.device.task;
 
 import java.util.concurrent.TimeUnit;
 
-import clearcontrol.core.concurrent.thread.ThreadSleep;
 import clearcontrol.core.concurrent.timing.WaitingInterface;
 import clearcontrol.core.log.LoggingFeature;
 import clearcontrol.core.variable.bounded.BoundedVariable;
@@ -87,12 +86,7 @@ public abstract class PeriodicLoopTaskDevice extends TaskDevice
       final long lStopTime = System.nanoTime();
 
       if (lStopTime < mDeadline)
-        while (System.nanoTime() < mDeadline
-               && getStopSignalVariable().get() == false)
-        {
-          ThreadSleep.sleep((mDeadline - System.nanoTime()) / 4,
-                            TimeUnit.NANOSECONDS);
-        }
+        parkUntil(mDeadline);
 
       if (!lResult)
         stopTask();
@@ -3,6 +3,7 @@ package clearcontrol.core.device.task;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 import clearcontrol.core.concurrent.executors.AsynchronousExecutorFeature;
 import clearcontrol.core.concurrent.executors.ClearControlExecutors;
@@ -33,6 +34,7 @@ public abstract class TaskDevice extends SignalStartStopDevice
   private volatile CountDownLatch mStartedLatch, mStoppedLatch;
   private volatile Runnable mRunnableWrapper;
   private volatile Future<?> mTaskFuture;
+  private volatile Thread mTaskThread;
 
   /**
    * Instanciates a task device given a device name
@@ -66,11 +68,8 @@ public abstract class TaskDevice extends SignalStartStopDevice
                                                      + "LastException",
                                                      null);
 
-    ClearControlExecutors.getOrCreateThreadPoolExecutor(this,
-                                                        pThreadPriority,
-                                                        1,
-                                                        1,
-                                                        Integer.MAX_VALUE);
+    ClearControlExecutors.getOrCreateLongRunningTaskExecutor(this,
+                                                             pThreadPriority);
   }
 
   /**
@@ -99,6 +98,7 @@ public abstract class TaskDevice extends SignalStartStopDevice
     mStoppedLatch = new CountDownLatch(1);
 
     mRunnableWrapper = () -> {
+      mTaskThread = Thread.currentThread();
       mStopSignal.set(false);
       mIsRunningVariable.setEdge(false, true);
       mStartedLatch.countDown();
@@ -113,6 +113,7 @@ public abstract class TaskDevice extends SignalStartStopDevice
       }
       finally
       {
+        mTaskThread = null;
         mIsRunningVariable.setEdge(true, false);
         mStoppedLatch.countDown();
       }
@@ -123,11 +124,38 @@ public abstract class TaskDevice extends SignalStartStopDevice
   }
 
   /**
-   * Stops this task
+   * Stops this task, the task thread is woken up if parked (see
+   * {@link #parkUntil(long)}).
    */
   public void stopTask()
   {
     mStopSignal.setEdge(false, true);
+    final Thread lTaskThread = mTaskThread;
+    if (lTaskThread != null)
+      LockSupport.unpark(lTaskThread);
+  }
+
+  /**
+   * Parks the task thread until a given deadline (as given by
+   * System.nanoTime()) or until the task is stopped. Parking a virtual thread
+   * releases its carrier thread.
+   * 
+   * @param pDeadlineInNanoseconds
+   *          deadline in nanoseconds
+   * @return true if the deadline was reached, false if the task was stopped
+   */
+  protected boolean parkUntil(long pDeadlineInNanoseconds)
+  {
+    long lTimeToWaitInNanoseconds;
+    while ((lTimeToWaitInNanoseconds = pDeadlineInNanoseconds
+                                       - System.nanoTime()) > 0)
+    {
+      if (getStopSignalVariable().get())
+        return false;
+      LockSupport.parkNanos(this, lTimeToWaitInNanoseconds);
+      Thread.interrupted();
+    }
+    return true;
   }
 
   /**
@@ -14,7 +14,12 @@ import org.apache.commons.io.monitor.FileAlterationObserver;
 /**
  * File event notifier.
  * 
- * 
+ * Notifies listeners of the creation, modification and deletion of a file.
+ * Events are delivered by the shared file watch service, which watches each
+ * folder once and merges bursts of events. If the file's folder cannot be
+ * watched, or if it is configured to be polled (see the machine configuration
+ * properties 'file.watch.polling', 'file.watch.polling.filesystems' and
+ * 'file.watch.polling.folders'), the folder is polled instead.
  *
  * @author royer
  */
@@ -27,12 +32,14 @@ public class FileEventNotifier implements
                                                                    300;
   private final File mFileToMonitor;
   private final File mParentFolder;
-  private final FileAlterationObserver mFileAlterationObserver;
+  private final long mMonitoringPeriodInMilliseconds;
+  private FileAlterationObserver mFileAlterationObserver;
 
   private final CopyOnWriteArrayList<FileEventNotifierListener> mListenerList =
                                                                               new CopyOnWriteArrayList<FileEventNotifierListener>();
-  private final FileAlterationMonitor mFileAlterationMonitor;
+  private FileAlterationMonitor mFileAlterationMonitor;
   private volatile boolean mIgnore = false;
+  private volatile boolean mWatching = false;
 
   /**
    * File event kind.
@@ -74,7 +81,7 @@ public class FileEventNotifier implements
    * @param pFileToMonitor
    *          file to monitor
    * @param pMonitoringPeriod
-   *          monitoring period
+   *          monitoring period, used only when polling
    * @param pTimeUnit
    *          monitoring period time unit
    */
@@ -85,6 +92,25 @@ public class FileEventNotifier implements
     super();
     mFileToMonitor = pFileToMonitor;
     mParentFolder = mFileToMonitor.getParentFile();
+    mMonitoringPeriodInMilliseconds =
+                                    TimeUnit.MILLISECONDS.convert(pMonitoringPeriod,
+                                                                  pTimeUnit);
+  }
+
+  /**
+   * Returns the monitored file
+   * 
+   * @return monitored file
+   */
+  File getMonitoredFile()
+  {
+    return mFileToMonitor;
+  }
+
+  private void ensurePollingMonitorAllocated()
+  {
+    if (mFileAlterationMonitor != null)
+      return;
 
     final FileEventNotifier lThis = this;
 
@@ -139,8 +165,7 @@ public class FileEventNotifier implements
     });
 
     mFileAlterationMonitor =
-                           new FileAlterationMonitor(TimeUnit.MILLISECONDS.convert(pMonitoringPeriod,
-                                                                                   pTimeUnit));
+                           new FileAlterationMonitor(mMonitoringPeriodInMilliseconds);
     mFileAlterationMonitor.addObserver(mFileAlterationObserver);
   }
 
@@ -201,10 +226,17 @@ public class FileEventNotifier implements
    * @return true if started successfully.
    * 
    */
-  public boolean startMonitoring()
+  public synchronized boolean startMonitoring()
   {
+    if (FileWatchService.get().register(this, mParentFolder))
+    {
+      mWatching = true;
+      return true;
+    }
+
     try
     {
+      ensurePollingMonitorAllocated();
       mFileAlterationMonitor.start();
       return true;
     }
@@ -221,11 +253,19 @@ public class FileEventNotifier implements
    * @return true if stopped successfully.
    * 
    */
-  public boolean stopMonitoring()
+  public synchronized boolean stopMonitoring()
   {
+    if (mWatching)
+    {
+      FileWatchService.get().unregister(this, mParentFolder);
+      mWatching = false;
+      return true;
+    }
+
     try
     {
-      mFileAlterationMonitor.stop();
+      if (mFileAlterationMonitor != null)
+        mFileAlterationMonitor.stop();
       return true;
     }
     catch (Throwable e)
@@ -235,13 +275,48 @@ public class FileEventNotifier implements
     }
   }
 
+  /**
+   * Returns true if events are delivered by the file watch service, false if
+   * the folder is polled or not monitored.
+   * 
+   * @return true if watched
+   */
+  public boolean isWatched()
+  {
+    return mWatching;
+  }
+
+  /**
+   * Called by the file watch service when the watched folder is deleted: the
+   * monitored file is gone with it, and monitoring starts again, which polls
+   * the folder if it cannot be watched anymore.
+   */
+  synchronized void watchedFolderLost()
+  {
+    if (!mWatching)
+      return;
+    mWatching = false;
+
+    notifyFileEvent(this, mFileToMonitor, FileEventKind.Deleted);
+    startMonitoring();
+  }
+
   @Override
-  public void close() throws IOException
+  public synchronized void close() throws IOException
   {
+    if (mWatching)
+    {
+      FileWatchService.get().unregister(this, mParentFolder);
+      mWatching = false;
+    }
+
     try
     {
-      mFileAlterationObserver.destroy();
-      mFileAlterationMonitor.stop();
+      if (mFileAlterationMonitor != null)
+      {
+        mFileAlterationObserver.destroy();
+        mFileAlterationMonitor.stop();
+      }
     }
     catch (final Throwable e)
     {
@@ -0,0 +1,439 @@
+package clearcontrol.core.file;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import clearcontrol.core.configuration.MachineConfiguration;
+import clearcontrol.core.file.FileEventNotifier.FileEventKind;
+import clearcontrol.core.log.LoggingFeature;
+
+/**
+ * File watch service
+ *
+ * Multiplexes all file event notifiers on a single thread and a single
+ * {@link WatchService}. Directories are registered once, however many
+ * notifiers watch files in them. Events of a given file that occur within a
+ * short period are merged into a single event: for example, creating a file and
+ * writing to it gives a single 'created' event, and a burst of writes gives a
+ * single 'modified' event.
+ *
+ * If the file system does not support watching, or if the JVM only provides a
+ * polling watch service, registration fails and notifiers fall back to polling.
+ * Network file systems such as NFS or SMB accept watches on Linux but never
+ * report writes made by other machines, folders on such file systems are
+ * therefore polled too. The following machine configuration properties decide
+ * which folders are polled:
+ *
+ * 'file.watch.polling': true to poll all folders,
+ *
+ * 'file.watch.polling.filesystems': comma separated file system types that are
+ * polled (default: {@value #cDefaultPolledFileSystemTypes}),
+ *
+ * 'file.watch.polling.folders': comma separated folders, folders within them
+ * are polled.
+ *
+ * If a watched folder is deleted, its notifiers are told that their file is
+ * deleted and start monitoring again: they watch the folder if it was already
+ * created again, and poll otherwise, polling notices the folder once it is
+ * created again.
+ *
+ * @author royer
+ */
+class FileWatchService implements LoggingFeature
+{
+  private static final long cDebouncePeriodInNanoseconds =
+                                                         TimeUnit.MILLISECONDS.toNanos(100);
+
+  static final String cDefaultPolledFileSystemTypes =
+                                                   "nfs,nfs4,cifs,smb,smb2,smb3,smbfs,fuse.sshfs,9p,afpfs";
+
+  private static FileWatchService sFileWatchService;
+
+  /**
+   * Returns the singleton file watch service
+   *
+   * @return file watch service
+   */
+  static synchronized FileWatchService get()
+  {
+    if (sFileWatchService == null)
+      sFileWatchService = new FileWatchService();
+    return sFileWatchService;
+  }
+
+  private static class Registration
+  {
+    private final WatchKey mWatchKey;
+    private final CopyOnWriteArrayList<FileEventNotifier> mNotifierList =
+                                                                        new CopyOnWriteArrayList<>();
+
+    private Registration(WatchKey pWatchKey)
+    {
+      mWatchKey = pWatchKey;
+    }
+  }
+
+  private static class PendingEvent
+  {
+    private FileEventKind mEventKind;
+    private final long mDeadline;
+
+    private PendingEvent(FileEventKind pEventKind, long pDeadline)
+    {
+      mEventKind = pEventKind;
+      mDeadline = pDeadline;
+    }
+  }
+
+  private final WatchService mWatchService;
+  private final ConcurrentHashMap<Path, Registration> mRegistrationMap =
+                                                                      new ConcurrentHashMap<>();
+
+  // only accessed by the watch thread, in order of deadline:
+  private final LinkedHashMap<Path, PendingEvent> mPendingEventMap =
+                                                                  new LinkedHashMap<>();
+  private Thread mWatchThread;
+
+  private FileWatchService()
+  {
+    WatchService lWatchService = null;
+    try
+    {
+      lWatchService = FileSystems.getDefault().newWatchService();
+
+      // polling watch services poll every few seconds, we poll faster:
+      if (lWatchService.getClass()
+                       .getSimpleName()
+                       .startsWith("Polling"))
+      {
+        info("No native file watch service, file event notifiers will poll.");
+        lWatchService.close();
+        lWatchService = null;
+      }
+    }
+    catch (IOException | UnsupportedOperationException e)
+    {
+      warning("Could not create file watch service: %s", e);
+      lWatchService = null;
+    }
+    mWatchService = lWatchService;
+  }
+
+  /**
+   * Registers a file event notifier for events of the files in a given folder
+   *
+   * @param pFileEventNotifier
+   *          file event notifier
+   * @param pFolder
+   *          folder to watch
+   * @return true if registered, false if the folder cannot be watched
+   */
+  synchronized boolean register(FileEventNotifier pFileEventNotifier,
+                                File pFolder)
+  {
+    if (mWatchService == null)
+      return false;
+
+    final Path lPath = pFolder.toPath().toAbsolutePath().normalize();
+    Registration lRegistration = mRegistrationMap.get(lPath);
+    if (lRegistration == null)
+    {
+      try
+      {
+        if (isPolled(lPath))
+          return false;
+        lRegistration = new Registration(lPath.register(mWatchService,
+                                                        ENTRY_CREATE,
+                                                        ENTRY_DELETE,
+                                                        ENTRY_MODIFY));
+      }
+      catch (IOException | UnsupportedOperationException e)
+      {
+        warning("Cannot watch folder %s (%s), falling back to polling.",
+                pFolder,
+                e);
+        return false;
+      }
+      mRegistrationMap.put(lPath, lRegistration);
+    }
+    lRegistration.mNotifierList.addIfAbsent(pFileEventNotifier);
+
+    if (mWatchThread == null)
+    {
+      mWatchThread = new Thread(this::watch, "FileWatchService");
+      mWatchThread.setDaemon(true);
+      mWatchThread.start();
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if a given folder must be polled instead of watched, because
+   * polling is configured for all folders, for this folder, or for the type of
+   * its file system.
+   *
+   * @param pFolder
+   *          folder
+   * @return true if the folder must be polled
+   * @throws IOException
+   *           thrown if the folder's file system cannot be determined
+   */
+  private boolean isPolled(Path pFolder) throws IOException
+  {
+    final MachineConfiguration lMachineConfiguration =
+                                                     MachineConfiguration.get();
+    if (lMachineConfiguration.getBooleanProperty("file.watch.polling",
+                                                 false))
+      return true;
+
+    for (String lPolledFolder : getListProperty("file.watch.polling.folders",
+                                                ""))
+      if (pFolder.startsWith(new File(lPolledFolder).toPath()
+                                                    .toAbsolutePath()
+                                                    .normalize()))
+      {
+        info("Folder %s is configured to be polled.", pFolder);
+        return true;
+      }
+
+    final String lFileSystemType = Files.getFileStore(pFolder)
+                                        .type()
+                                        .toLowerCase(Locale.ROOT);
+    for (String lPolledFileSystemType : getListProperty("file.watch.polling.filesystems",
+                                                        cDefaultPolledFileSystemTypes))
+      if (lPolledFileSystemType.toLowerCase(Locale.ROOT)
+                               .equals(lFileSystemType))
+      {
+        info("Folder %s is on a %s file system, it will be polled.",
+             pFolder,
+             lFileSystemType);
+        return true;
+      }
+    return false;
+  }
+
+  private static List<String> getListProperty(String pKey,
+                                              String pDefaultValue)
+  {
+    final String lValue =
+                        MachineConfiguration.get()
+                                            .getStringProperty(pKey,
+                                                               pDefaultValue);
+    final List<String> lList = new ArrayList<>();
+    if (lValue == null)
+      return lList;
+    for (String lItem : lValue.split(","))
+      if (!lItem.trim().isEmpty())
+        lList.add(lItem.trim());
+    return lList;
+  }
+
+  /**
+   * Unregisters a file event notifier from a given folder, the folder stops
+   * being watched once no notifier is registered for it.
+   *
+   * @param pFileEventNotifier
+   *          file event notifier
+   * @param pFolder
+   *          watched folder
+   */
+  synchronized void unregister(FileEventNotifier pFileEventNotifier,
+                               File pFolder)
+  {
+    final Path lPath = pFolder.toPath().toAbsolutePath().normalize();
+    final Registration lRegistration = mRegistrationMap.get(lPath);
+    if (lRegistration == null)
+      return;
+
+    lRegistration.mNotifierList.remove(pFileEventNotifier);
+    if (lRegistration.mNotifierList.isEmpty())
+    {
+      lRegistration.mWatchKey.cancel();
+      mRegistrationMap.remove(lPath);
+    }
+  }
+
+  /**
+   * Returns the number of watched folders
+   *
+   * @return number of watched folders
+   */
+  int getNumberOfWatchedFolders()
+  {
+    return mRegistrationMap.size();
+  }
+
+  private void watch()
+  {
+    try
+    {
+      while (true)
+      {
+        final WatchKey lWatchKey;
+        if (mPendingEventMap.isEmpty())
+          lWatchKey = mWatchService.take();
+        else
+        {
+          final long lTimeOut =
+                              mPendingEventMap.values()
+                                              .iterator()
+                                              .next().mDeadline
+                                - System.nanoTime();
+          lWatchKey = mWatchService.poll(Math.max(0, lTimeOut),
+                                         TimeUnit.NANOSECONDS);
+        }
+
+        if (lWatchKey != null)
+        {
+          final Path lFolder = (Path) lWatchKey.watchable();
+          for (WatchEvent<?> lWatchEvent : lWatchKey.pollEvents())
+          {
+            if (lWatchEvent.kind() == OVERFLOW)
+            {
+              // events were lost, the watched files may have changed:
+              final Registration lRegistration =
+                                               mRegistrationMap.get(lFolder);
+              if (lRegistration != null)
+                for (FileEventNotifier lFileEventNotifier : lRegistration.mNotifierList)
+                  addPendingEvent(lFileEventNotifier.getMonitoredFile()
+                                                    .toPath()
+                                                    .toAbsolutePath()
+                                                    .normalize(),
+                                  FileEventKind.Modified);
+            }
+            else
+              addPendingEvent(lFolder.resolve((Path) lWatchEvent.context()),
+                              toFileEventKind(lWatchEvent.kind()));
+          }
+
+          // the key is invalid once the folder is deleted or unregistered:
+          if (!lWatchKey.reset())
+          {
+            Registration lLostRegistration = null;
+            synchronized (this)
+            {
+              final Registration lRegistration =
+                                               mRegistrationMap.get(lFolder);
+              if (lRegistration != null
+                  && lRegistration.mWatchKey == lWatchKey)
+              {
+                mRegistrationMap.remove(lFolder);
+                lLostRegistration = lRegistration;
+              }
+            }
+
+            // the folder was deleted, notifiers monitor again outside of
+            // the lock as they register again:
+            if (lLostRegistration != null)
+            {
+              warning("Watched folder %s is gone.", lFolder);
+              for (FileEventNotifier lFileEventNotifier : lLostRegistration.mNotifierList)
+                try
+                {
+                  lFileEventNotifier.watchedFolderLost();
+                }
+                catch (Throwable e)
+                {
+                  e.printStackTrace();
+                }
+            }
+          }
+        }
+
+        dispatchDueEvents();
+      }
+    }
+    catch (InterruptedException | ClosedWatchServiceException e)
+    {
+      // stops watching
+    }
+  }
+
+  private static FileEventKind toFileEventKind(WatchEvent.Kind<?> pKind)
+  {
+    if (pKind == ENTRY_CREATE)
+      return FileEventKind.Created;
+    else if (pKind == ENTRY_DELETE)
+      return FileEventKind.Deleted;
+    return FileEventKind.Modified;
+  }
+
+  private void addPendingEvent(Path pPath, FileEventKind pEventKind)
+  {
+    final PendingEvent lPendingEvent = mPendingEventMap.get(pPath);
+    if (lPendingEvent == null)
+    {
+      mPendingEventMap.put(pPath,
+                           new PendingEvent(pEventKind,
+                                            System.nanoTime()
+                                                        + cDebouncePeriodInNanoseconds));
+      return;
+    }
+
+    // merges with the pending event, a file created and then modified is
+    // created, a file deleted and then created is modified:
+    if (lPendingEvent.mEventKind == FileEventKind.Created
+        && pEventKind == FileEventKind.Modified)
+      return;
+    else if (lPendingEvent.mEventKind == FileEventKind.Deleted
+             && pEventKind == FileEventKind.Created)
+      lPendingEvent.mEventKind = FileEventKind.Modified;
+    else
+      lPendingEvent.mEventKind = pEventKind;
+  }
+
+  private void dispatchDueEvents()
+  {
+    final long lNow = System.nanoTime();
+    final Iterator<Map.Entry<Path, PendingEvent>> lIterator =
+                                                           mPendingEventMap.entrySet()
+                                                                           .iterator();
+    while (lIterator.hasNext())
+    {
+      final Map.Entry<Path, PendingEvent> lEntry = lIterator.next();
+      if (lEntry.getValue().mDeadline - lNow > 0)
+        break;
+      lIterator.remove();
+
+      final Path lPath = lEntry.getKey();
+      final Registration lRegistration =
+                                       mRegistrationMap.get(lPath.getParent());
+      if (lRegistration == null)
+        continue;
+
+      for (FileEventNotifier lFileEventNotifier : lRegistration.mNotifierList)
+        try
+        {
+          lFileEventNotifier.notifyFileEvent(lFileEventNotifier,
+                                             lPath.toFile(),
+                                             lEntry.getValue().mEventKind);
+        }
+        catch (Throwable e)
+        {
+          e.printStackTrace();
+        }
+    }
+  }
+
+}
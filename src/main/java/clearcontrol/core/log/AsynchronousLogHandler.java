@@ -0,0 +1,199 @@
+package clearcontrol.core.log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ErrorManager;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import clearcontrol.core.concurrent.executors.ClearControlExecutors;
+
+/**
+ * Asynchronous log handler. Log records are put in a bounded ring buffer and
+ * published to a delegate handler by a background thread, publishing never
+ * blocks the logging thread: records that do not fit in the buffer are dropped
+ * and counted. The number of dropped records is logged once the buffer has
+ * drained.
+ *
+ * @author royer
+ */
+public class AsynchronousLogHandler extends Handler
+{
+  private static final long cPollTimeOutInMilliseconds = 100;
+
+  private final Handler mDelegateHandler;
+  private final ArrayBlockingQueue<LogRecord> mRingBuffer;
+  private final AtomicLong mNumberOfDroppedRecords = new AtomicLong();
+  private final AtomicLong mNumberOfPublishedRecords = new AtomicLong();
+  private final Thread mPublishingThread;
+  private volatile boolean mIsRunning = true;
+  private long mNumberOfReportedDroppedRecords;
+
+  /**
+   * Instantiates an asynchronous log handler
+   *
+   * @param pDelegateHandler
+   *          handler to which records are published
+   * @param pCapacity
+   *          ring buffer capacity
+   */
+  public AsynchronousLogHandler(Handler pDelegateHandler,
+                                int pCapacity)
+  {
+    super();
+    mDelegateHandler = pDelegateHandler;
+    mRingBuffer = new ArrayBlockingQueue<>(Math.max(1, pCapacity));
+
+    mPublishingThread =
+                      ClearControlExecutors.getThreadFactory(AsynchronousLogHandler.class.getSimpleName(),
+                                                             Thread.MIN_PRIORITY)
+                                           .newThread(this::publishLoop);
+    mPublishingThread.start();
+  }
+
+  /**
+   * Returns the delegate handler
+   *
+   * @return delegate handler
+   */
+  public Handler getDelegateHandler()
+  {
+    return mDelegateHandler;
+  }
+
+  @Override
+  public void setFormatter(Formatter pFormatter) throws SecurityException
+  {
+    super.setFormatter(pFormatter);
+    mDelegateHandler.setFormatter(pFormatter);
+  }
+
+  @Override
+  public void publish(LogRecord pRecord)
+  {
+    if (!mIsRunning || !isLoggable(pRecord))
+      return;
+
+    if (!mRingBuffer.offer(pRecord))
+      mNumberOfDroppedRecords.incrementAndGet();
+  }
+
+  private void publishLoop()
+  {
+    while (mIsRunning || !mRingBuffer.isEmpty())
+    {
+      try
+      {
+        final LogRecord lRecord =
+                                mRingBuffer.poll(cPollTimeOutInMilliseconds,
+                                                 TimeUnit.MILLISECONDS);
+        if (lRecord != null)
+        {
+          publishToDelegate(lRecord);
+          mNumberOfPublishedRecords.incrementAndGet();
+        }
+
+        if (mRingBuffer.isEmpty())
+          reportDroppedRecords();
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private void publishToDelegate(LogRecord pRecord)
+  {
+    try
+    {
+      mDelegateHandler.publish(pRecord);
+    }
+    catch (Exception e)
+    {
+      reportError(null, e, ErrorManager.WRITE_FAILURE);
+    }
+  }
+
+  private void reportDroppedRecords()
+  {
+    final long lNumberOfDroppedRecords = mNumberOfDroppedRecords.get();
+    if (lNumberOfDroppedRecords == mNumberOfReportedDroppedRecords)
+      return;
+
+    final LogRecord lRecord =
+                            new LogRecord(Level.WARNING,
+                                          AsynchronousLogHandler.class.getSimpleName()
+                                                         + ": "
+                                                         + (lNumberOfDroppedRecords
+                                                            - mNumberOfReportedDroppedRecords)
+                                                         + " log records dropped");
+    mNumberOfReportedDroppedRecords = lNumberOfDroppedRecords;
+    publishToDelegate(lRecord);
+  }
+
+  /**
+   * Returns the number of records dropped because the ring buffer was full
+   *
+   * @return number of dropped records
+   */
+  public long getNumberOfDroppedRecords()
+  {
+    return mNumberOfDroppedRecords.get();
+  }
+
+  /**
+   * Returns the number of records published to the delegate handler
+   *
+   * @return number of published records
+   */
+  public long getNumberOfPublishedRecords()
+  {
+    return mNumberOfPublishedRecords.get();
+  }
+
+  /**
+   * Returns the number of records waiting in the ring buffer
+   *
+   * @return number of pending records
+   */
+  public int getNumberOfPendingRecords()
+  {
+    return mRingBuffer.size();
+  }
+
+  /**
+   * Waits for the records currently in the ring buffer to be published, and
+   * flushes the delegate handler.
+   */
+  @Override
+  public void flush()
+  {
+    final long lDeadline = System.nanoTime()
+                           + TimeUnit.SECONDS.toNanos(1);
+    while (!mRingBuffer.isEmpty() && mPublishingThread.isAlive()
+           && System.nanoTime() < lDeadline)
+      Thread.yield();
+    mDelegateHandler.flush();
+  }
+
+  @Override
+  public void close() throws SecurityException
+  {
+    mIsRunning = false;
+    try
+    {
+      mPublishingThread.join(TimeUnit.SECONDS.toMillis(1));
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    mDelegateHandler.close();
+  }
+
+}
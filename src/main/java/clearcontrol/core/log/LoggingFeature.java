@@ -1,11 +1,20 @@
 package clearcontrol.core.log;
 
 import java.util.logging.Handler;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import clearcontrol.core.configuration.MachineConfiguration;
+
 /**
  * Logging interface
  *
+ * Messages are only formatted if their level is enabled. By default records
+ * are written to the console asynchronously (see
+ * {@link AsynchronousLogHandler}), so that logging does not block the calling
+ * thread. This can be turned off with the machine configuration property
+ * 'log.asynchronous', and the ring buffer size set with 'log.buffer.capacity'.
+ *
  * @author royer
  */
 public interface LoggingFeature
@@ -21,6 +30,11 @@ public interface LoggingFeature
    */
   static Reference<Logger> sLoggerReference = new Reference<Logger>();
 
+  /**
+   * Default capacity of the asynchronous log handler ring buffer
+   */
+  static final long cDefaultLogBufferCapacity = 4096;
+
   /**
    * Static method that returns the logger
    * 
@@ -43,11 +57,23 @@ public interface LoggingFeature
     for (Handler lHandler : lHandlers)
       sLoggerReference.get().getParent().removeHandler(lHandler);
 
-    StdOutConsoleHandler lStdOutConsoleHandler =
-                                               new StdOutConsoleHandler();
-    sLoggerReference.get()
-                    .getParent()
-                    .addHandler(lStdOutConsoleHandler);
+    Handler lConsoleHandler = new StdOutConsoleHandler();
+    if (MachineConfiguration.get()
+                            .getBooleanProperty("log.asynchronous",
+                                                true))
+    {
+      final long lCapacity =
+                           MachineConfiguration.get()
+                                               .getLongProperty("log.buffer.capacity",
+                                                                cDefaultLogBufferCapacity);
+      final AsynchronousLogHandler lAsynchronousLogHandler =
+                                                           new AsynchronousLogHandler(lConsoleHandler,
+                                                                                      (int) lCapacity);
+      Runtime.getRuntime()
+             .addShutdownHook(new Thread(lAsynchronousLogHandler::flush));
+      lConsoleHandler = lAsynchronousLogHandler;
+    }
+    sLoggerReference.get().getParent().addHandler(lConsoleHandler);
 
     for (final Handler lHandler : sLoggerReference.get()
                                                   .getHandlers())
@@ -81,8 +107,9 @@ public interface LoggingFeature
    */
   public default void info(String pMessage)
   {
-    getLoggerStatic().info(getClassName(this) + ": "
-                           + pMessage.trim());
+    final Logger lLogger = getLoggerStatic();
+    if (lLogger.isLoggable(Level.INFO))
+      lLogger.info(getClassName(this) + ": " + pMessage.trim());
   }
 
   /**
@@ -95,8 +122,10 @@ public interface LoggingFeature
    */
   public default void info(String pFormat, Object... args)
   {
-    getLoggerStatic().info(getClassName(this) + ": "
-                           + String.format(pFormat, args).trim());
+    final Logger lLogger = getLoggerStatic();
+    if (lLogger.isLoggable(Level.INFO))
+      lLogger.info(getClassName(this) + ": "
+                   + String.format(pFormat, args).trim());
   }
 
   /**
@@ -107,8 +136,9 @@ public interface LoggingFeature
    */
   public default void warning(String pMessage)
   {
-    getLoggerStatic().warning(getClassName(this) + ": "
-                              + pMessage.trim());
+    final Logger lLogger = getLoggerStatic();
+    if (lLogger.isLoggable(Level.WARNING))
+      lLogger.warning(getClassName(this) + ": " + pMessage.trim());
   }
 
   /**
@@ -121,8 +151,10 @@ public interface LoggingFeature
    */
   public default void warning(String pFormat, Object... args)
   {
-    getLoggerStatic().warning(getClassName(this) + ": "
-                              + String.format(pFormat, args).trim());
+    final Logger lLogger = getLoggerStatic();
+    if (lLogger.isLoggable(Level.WARNING))
+      lLogger.warning(getClassName(this) + ": "
+                      + String.format(pFormat, args).trim());
   }
 
   /**
@@ -133,8 +165,9 @@ public interface LoggingFeature
    */
   public default void severe(String pMessage)
   {
-    getLoggerStatic().severe(getClassName(this) + ": "
-                             + pMessage.trim());
+    final Logger lLogger = getLoggerStatic();
+    if (lLogger.isLoggable(Level.SEVERE))
+      lLogger.severe(getClassName(this) + ": " + pMessage.trim());
   }
 
   /**
@@ -147,8 +180,10 @@ public interface LoggingFeature
    */
   public default void severe(String pFormat, Object... args)
   {
-    getLoggerStatic().severe(getClassName(this) + ": "
-                             + String.format(pFormat, args).trim());
+    final Logger lLogger = getLoggerStatic();
+    if (lLogger.isLoggable(Level.SEVERE))
+      lLogger.severe(getClassName(this) + ": "
+                     + String.format(pFormat, args).trim());
   }
 
   /**
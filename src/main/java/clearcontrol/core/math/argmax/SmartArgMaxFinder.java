@@ -20,6 +20,13 @@ import clearcontrol.core.math.argmax.methods.Top5ArgMaxFinder;
 /**
  * Smart argmax finder
  *
+ * Computations of an instance are synchronized: an instance keeps the fit of
+ * its last argmax computation (see {@link #fit(double[], double[])} and
+ * {@link #getLastFitProbability()}), its argmax methods keep their last fits,
+ * and each computation refills the same ensemble argmax finder. Computations
+ * that should run concurrently need one instance per thread; the argmax methods
+ * of all instances still run on the bounded executor shared by all ensembles.
+ *
  * @author royer
  */
 public class SmartArgMaxFinder implements
@@ -42,6 +49,7 @@ public class SmartArgMaxFinder implements
   private final ModeArgMaxFinder mModeArgMaxFinder;
   private final MedianArgMaxFinder mMedianArgMaxFinder;
   private final DenoisingArgMaxFinder mDenoisingArgMaxFinder;
+  private final EnsembleArgMaxFinder mEnsembleArgMaxFinder;
 
   private boolean mDenoisingActive = true;
 
@@ -70,11 +78,24 @@ public class SmartArgMaxFinder implements
     mMedianArgMaxFinder = new MedianArgMaxFinder();
     mDenoisingArgMaxFinder =
                            new DenoisingArgMaxFinder(new ModeArgMaxFinder());
+    mEnsembleArgMaxFinder = new EnsembleArgMaxFinder();
+
+  }
 
+  /**
+   * Returns the ensemble argmax finder used internally, for example to set its
+   * deadline and quorum or to get its per-method statistics. Its argmax methods
+   * are replaced at each call to {@link #argmax(double[], double[])}.
+   *
+   * @return ensemble argmax finder
+   */
+  public EnsembleArgMaxFinder getEnsembleArgMaxFinder()
+  {
+    return mEnsembleArgMaxFinder;
   }
 
   @Override
-  public Double argmax(double[] pX, double[] pY)
+  public synchronized Double argmax(double[] pX, double[] pY)
   {
     mFitQualityEstimator = new GaussianFitQualityEstimator();
 
@@ -93,36 +114,47 @@ public class SmartArgMaxFinder implements
     // return null;
 
     final EnsembleArgMaxFinder lEnsembleArgMaxFinder =
-                                                     new EnsembleArgMaxFinder();
-    lEnsembleArgMaxFinder.add(denoiseBefore(lDenoiseBefore,
+                                                     mEnsembleArgMaxFinder;
+    lEnsembleArgMaxFinder.clear();
+    lEnsembleArgMaxFinder.add("ParabolaFit",
+                              denoiseBefore(lDenoiseBefore,
                                             mParabolaFitArgMaxFinder));
-    lEnsembleArgMaxFinder.add(denoiseBefore(lDenoiseBefore,
+    lEnsembleArgMaxFinder.add("SymetricParabolaFit",
+                              denoiseBefore(lDenoiseBefore,
                                             mSymetricParabolaFitArgMaxFinder));
-    lEnsembleArgMaxFinder.add(denoiseBefore(lDenoiseBefore,
+    lEnsembleArgMaxFinder.add("GaussianFit",
+                              denoiseBefore(lDenoiseBefore,
                                             mGaussianFitArgMaxFinder));
-    lEnsembleArgMaxFinder.add(denoiseBefore(lDenoiseBefore,
+    lEnsembleArgMaxFinder.add("QuarticFit",
+                              denoiseBefore(lDenoiseBefore,
                                             mQuarticFitArgMaxFinder));
-    lEnsembleArgMaxFinder.add(denoiseBefore(lDenoiseBefore,
+    lEnsembleArgMaxFinder.add("SplineFit",
+                              denoiseBefore(lDenoiseBefore,
                                             mSplineFitArgMaxFinder));
     /*lEnsembleArgMaxFinder.add(denoiseBefore(lDenoiseBefore,
     																				mRandomSplineFitArgMaxFinder));/**/
-    lEnsembleArgMaxFinder.add(denoiseBefore(lDenoiseBefore,
+    lEnsembleArgMaxFinder.add("LoessFit",
+                              denoiseBefore(lDenoiseBefore,
                                             mLoessFitArgMaxFinder));
-    lEnsembleArgMaxFinder.add(denoiseBefore(lDenoiseBefore,
+    lEnsembleArgMaxFinder.add("Top5Parabola",
+                              denoiseBefore(lDenoiseBefore,
                                             mTop5ParabolaArgMaxFinder));
-    lEnsembleArgMaxFinder.add(denoiseBefore(lDenoiseBefore,
+    lEnsembleArgMaxFinder.add("COM",
+                              denoiseBefore(lDenoiseBefore,
                                             mCOMArgMaxFinder));
-    lEnsembleArgMaxFinder.add(denoiseBefore(lDenoiseBefore,
+    lEnsembleArgMaxFinder.add("Mode",
+                              denoiseBefore(lDenoiseBefore,
                                             mModeArgMaxFinder));
-    lEnsembleArgMaxFinder.add(denoiseBefore(lDenoiseBefore,
+    lEnsembleArgMaxFinder.add("Median",
+                              denoiseBefore(lDenoiseBefore,
                                             mMedianArgMaxFinder));
-    lEnsembleArgMaxFinder.add(mDenoisingArgMaxFinder);
+    lEnsembleArgMaxFinder.add("DenoisedMode", mDenoisingArgMaxFinder);
 
     return lEnsembleArgMaxFinder.argmax(pX, pY);
   }
 
   @Override
-  public double[] fit(double[] pX, double[] pY)
+  public synchronized double[] fit(double[] pX, double[] pY)
   {
     if (mFitQualityEstimator == null)
       if (argmax(pX, pY) == null)
@@ -135,13 +167,13 @@ public class SmartArgMaxFinder implements
   }
 
   @Override
-  public Double getLastFitProbability()
+  public synchronized Double getLastFitProbability()
   {
     return mFitProbability;
   }
 
   @Override
-  public double getRMSD()
+  public synchronized double getRMSD()
   {
     return mRMSD;
   }
@@ -5,21 +5,22 @@ import static java.lang.Math.min;
 import static java.lang.Math.sqrt;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.FutureTask;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 
+import clearcontrol.core.concurrent.executors.ClearControlExecutors;
 import gnu.trove.list.array.TDoubleArrayList;
 
 import org.apache.commons.math3.analysis.differentiation.UnivariateDifferentiableFunction;
@@ -30,6 +31,14 @@ import org.apache.commons.math3.stat.descriptive.moment.Variance;
 /**
  * Gaussian fit quality estimator
  *
+ * The null hypothesis distribution for each data length is computed once, and
+ * stored in a cache file shared by all JVMs (see {@link NullHypothesisCache}).
+ * Distributions for the data lengths of interest can be precomputed with
+ * {@link #precompute(int...)} or {@link NullHypothesisPrecomputation}, which
+ * compute several lengths at once. The randomized data fits of a length are run
+ * in parallel, with a bounded number of fits submitted at any time, and only
+ * distributions for which all fits ran are stored.
+ *
  * @author royer
  */
 public class GaussianFitQualityEstimator
@@ -38,6 +47,19 @@ public class GaussianFitQualityEstimator
 
   private static final ConcurrentHashMap<Integer, NormalDistribution> sNullHypothesisDistribution =
                                                                                                   new ConcurrentHashMap<>();
+  private static final ConcurrentHashMap<Integer, Object> sNullHypothesisLockMap =
+                                                                               new ConcurrentHashMap<>();
+
+  private static final NullHypothesisCache sNullHypothesisCache =
+                                                               new NullHypothesisCache(NullHypothesisCache.getDefaultFile());
+
+  private static final int cNumberOfThreads =
+                                            max(1,
+                                                Runtime.getRuntime()
+                                                       .availableProcessors()
+                                                   / 2);
+
+  private static final int cMaxNumberOfFitsInFlight = 4 * cNumberOfThreads;
 
   private static final int cBufferLength = 128 * 1024;
 
@@ -48,15 +70,16 @@ public class GaussianFitQualityEstimator
   private Double mRealDataRMSD;
 
   /**
-   * Instantiates a fit quality estimator with half the number of cores as
-   * thread pool size.
+   * Instantiates a fit quality estimator using a thread pool, shared by all
+   * estimators, with half the number of cores as size.
    */
   public GaussianFitQualityEstimator()
   {
-    this(Executors.newFixedThreadPool(max(1,
-                                          Runtime.getRuntime()
-                                                 .availableProcessors()
-                                             / 2)));
+    this(ClearControlExecutors.getOrCreateThreadPoolExecutor(GaussianFitQualityEstimator.class,
+                                                             Thread.MIN_PRIORITY,
+                                                             cNumberOfThreads,
+                                                             cNumberOfThreads,
+                                                             Integer.MAX_VALUE));
   }
 
   /**
@@ -72,68 +95,87 @@ public class GaussianFitQualityEstimator
 
   private NormalDistribution getNullHypothesisDistribution(int lLength)
   {
-    // System.out.println("getNullHypothesisDistribution...");
     NormalDistribution lNormalDistribution =
                                            sNullHypothesisDistribution.get(lLength);
-    if (lNormalDistribution == null)
+    if (lNormalDistribution != null)
+      return lNormalDistribution;
+
+    // computed only once per length, concurrent callers wait:
+    sNullHypothesisLockMap.putIfAbsent(lLength, new Object());
+    synchronized (sNullHypothesisLockMap.get(lLength))
     {
-      final File lCacheFile = getFile(lLength);
-      if (!lCacheFile.exists())
-      {
-        lNormalDistribution =
-                            computeNullHypothesisDistribution(lLength);
-        sNullHypothesisDistribution.put(lLength, lNormalDistribution);
-        try
-        {
-          writeToFile(lNormalDistribution, lCacheFile);
-        }
-        catch (final Throwable e)
-        {
-          e.printStackTrace();
-        }
-      }
-      else
-      {
-        try
-        {
-          lNormalDistribution = readFromFile(lCacheFile);
-        }
-        catch (final ClassNotFoundException e)
-        {
-        }
-        catch (final Throwable e)
-        {
-          e.printStackTrace();
-        }
-      }
+      lNormalDistribution = sNullHypothesisDistribution.get(lLength);
+      if (lNormalDistribution != null)
+        return lNormalDistribution;
+
+      lNormalDistribution =
+                          sNullHypothesisCache.get(lLength,
+                                                   cMaxNumberOfRandomizedDatasets);
 
       if (lNormalDistribution == null)
       {
-        lNormalDistribution =
-                            computeNullHypothesisDistribution(lLength);
-        sNullHypothesisDistribution.put(lLength, lNormalDistribution);
-        try
-        {
-          writeToFile(lNormalDistribution, lCacheFile);
-        }
-        catch (final Throwable e)
-        {
-          e.printStackTrace();
-        }
+        lNormalDistribution = readFromLegacyFile(lLength);
+        if (lNormalDistribution == null)
+          lNormalDistribution = computeNullHypothesisDistribution(lLength);
+        if (lNormalDistribution == null)
+          return null;
+        sNullHypothesisCache.put(lLength,
+                                 cMaxNumberOfRandomizedDatasets,
+                                 lNormalDistribution);
       }
 
+      sNullHypothesisDistribution.put(lLength, lNormalDistribution);
+      return lNormalDistribution;
     }
-    // System.out.println("getNullHypothesisDistribution=" +
-    // lNormalDistribution);
-    return lNormalDistribution;
   }
 
-  private File getFile(int pLength)
+  /**
+   * Precomputes the null hypothesis distributions for the given data lengths,
+   * several lengths at a time, distributions already in the cache are skipped.
+   * 
+   * @param pLengths
+   *          data lengths
+   * @return true if the distributions of all lengths are in the cache
+   */
+  public boolean precompute(int... pLengths)
+  {
+    final List<Callable<Boolean>> lTasks = new ArrayList<>();
+    for (final int lLength : pLengths)
+      lTasks.add(() -> getNullHypothesisDistribution(lLength) != null);
+
+    // length tasks wait for their fits, so they must not run on the fit
+    // threads:
+    final ExecutorService lExecutorService =
+                                           Executors.newFixedThreadPool(cNumberOfThreads,
+                                                                        ClearControlExecutors.getThreadFactory(NullHypothesisPrecomputation.class.getSimpleName(),
+                                                                                                               Thread.MIN_PRIORITY));
+    try
+    {
+      boolean lAllComputed = true;
+      for (final Future<Boolean> lFuture : lExecutorService.invokeAll(lTasks))
+        lAllComputed &= lFuture.get();
+      return lAllComputed;
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    catch (ExecutionException e)
+    {
+      e.printStackTrace();
+      return false;
+    }
+    finally
+    {
+      lExecutorService.shutdownNow();
+    }
+  }
+
+  private File getLegacyFile(int pLength)
   {
     final File lUserHome = new File(System.getProperty("user.home"));
     final File lStatsFolder = new File(lUserHome, ".stats");
-    if (!lStatsFolder.exists())
-      lStatsFolder.mkdirs();
     final File lFile = new File(lStatsFolder,
                                 String.format("%s_l=%d.obj",
                                               this.getClass()
@@ -143,19 +185,19 @@ public class GaussianFitQualityEstimator
     return lFile;
   }
 
-  private void writeToFile(NormalDistribution pNormalDistribution,
-                           File pFile) throws IOException
+  private NormalDistribution readFromLegacyFile(int pLength)
   {
-    final FileOutputStream lFileOutputStream =
-                                             new FileOutputStream(pFile);
-    final BufferedOutputStream lBufferedOutputStream =
-                                                     new BufferedOutputStream(lFileOutputStream,
-                                                                              cBufferLength);
-    final ObjectOutputStream lObjectOutputStream =
-                                                 new ObjectOutputStream(lBufferedOutputStream);
-    lObjectOutputStream.writeObject(pNormalDistribution);
-    lObjectOutputStream.close();
-    lFileOutputStream.close();
+    final File lFile = getLegacyFile(pLength);
+    if (!lFile.exists())
+      return null;
+    try
+    {
+      return readFromFile(lFile);
+    }
+    catch (final Throwable e)
+    {
+      return null;
+    }
   }
 
   private NormalDistribution readFromFile(File pFile) throws IOException,
@@ -176,57 +218,90 @@ public class GaussianFitQualityEstimator
     return lNormalDistribution;
   }
 
-  private NormalDistribution computeNullHypothesisDistribution(int lLength)
+  /**
+   * Computes the null hypothesis distribution for a given data length from the
+   * RMSD of Gaussian fits to randomized data. Fits that fail are not counted.
+   * 
+   * @param pLength
+   *          data length
+   * @return null hypothesis distribution, or null if not all fits could be run
+   */
+  private NormalDistribution computeNullHypothesisDistribution(int pLength)
   {
-    // System.out.println("computeNullHypothesisDistribution...");
-    final int lNumberOfRandomizedDatasets =
-                                          cMaxNumberOfRandomizedDatasets;
-
-    final ArrayList<FutureTask<Double>> lTaskList =
-                                                  new ArrayList<FutureTask<Double>>(lNumberOfRandomizedDatasets);
-
-    final double[] lX = new double[lLength];
-    for (int i = 0; i < lLength; i++)
+    final double[] lX = new double[pLength];
+    for (int i = 0; i < pLength; i++)
       lX[i] = i;
 
-    for (int i = 0; i < lNumberOfRandomizedDatasets; i++)
-    {
-      final RandomizedDataGaussianFitter lRandomizedDataGaussianFitter =
-                                                                       new RandomizedDataGaussianFitter();
-      final Callable<Double> lCallable = () -> {
-        Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-        return lRandomizedDataGaussianFitter.computeRMSDForRandomData(lX);
-      };
-      final FutureTask<Double> lFutureTask =
-                                           new FutureTask<Double>(lCallable);
-      mExecutorService.execute(lFutureTask);
-      lTaskList.add(lFutureTask);
-    }
+    // NaN for failed fits:
+    final double[] lRMSDArray = new double[cMaxNumberOfRandomizedDatasets];
 
-    final TDoubleArrayList lIRMSDList = new TDoubleArrayList();
-    for (final FutureTask<Double> lFutureTask : lTaskList)
+    final Semaphore lFitsInFlight =
+                                  new Semaphore(cMaxNumberOfFitsInFlight);
+    try
     {
-      try
-      {
-        final Double lRMSD = lFutureTask.get(200,
-                                             TimeUnit.MILLISECONDS);
-        if (lRMSD != null)
-          lIRMSDList.add(lRMSD);
-      }
-      catch (final Throwable e)
+      for (int i = 0; i < cMaxNumberOfRandomizedDatasets; i++)
       {
+        lFitsInFlight.acquire();
+        final int lIndex = i;
+        final Runnable lFit = () -> {
+          // the executor's threads may be shared, their priority is restored:
+          final Thread lCurrentThread = Thread.currentThread();
+          final int lCurrentThreadPriority = lCurrentThread.getPriority();
+          try
+          {
+            lCurrentThread.setPriority(Thread.MIN_PRIORITY);
+            final Double lRMSD =
+                               new RandomizedDataGaussianFitter().computeRMSDForRandomData(lX);
+            lRMSDArray[lIndex] = lRMSD == null ? Double.NaN : lRMSD;
+          }
+          catch (Throwable e)
+          {
+            lRMSDArray[lIndex] = Double.NaN;
+          }
+          finally
+          {
+            lCurrentThread.setPriority(lCurrentThreadPriority);
+            lFitsInFlight.release();
+          }
+        };
+        try
+        {
+          mExecutorService.execute(lFit);
+        }
+        catch (RejectedExecutionException e)
+        {
+          lFitsInFlight.release();
+          return null;
+        }
       }
+
+      // waits for the last fits:
+      lFitsInFlight.acquire(cMaxNumberOfFitsInFlight);
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      return null;
     }
 
+    final TDoubleArrayList lIRMSDList = new TDoubleArrayList();
+    for (final double lRMSD : lRMSDArray)
+      if (!Double.isNaN(lRMSD))
+        lIRMSDList.add(lRMSD);
+    if (lIRMSDList.size() < 2)
+      return null;
+
     final double[] lIRMSDArray = lIRMSDList.toArray();
     final Mean lMean = new Mean();
     final Variance lVariance = new Variance();
     final double lVarianceValue = lVariance.evaluate(lIRMSDArray);
     final double lCenterValue = lMean.evaluate(lIRMSDArray);
     final double lStandardDeviation = sqrt(lVarianceValue);
+    if (!(lStandardDeviation > 0))
+      return null;
 
     /*System.out.format("n= %d, mu=%g, sigma=%g \n",
-    									lLength,
+    									pLength,
     									lCenterValue,
     									lStandardDeviation);/**/
 
@@ -270,6 +345,8 @@ public class GaussianFitQualityEstimator
 
       final NormalDistribution lNormalDistribution =
                                                    getNullHypothesisDistribution(pX.length);
+      if (lNormalDistribution == null)
+        return 0.0;
 
       final double lProbabilityThatRandomDataHasWorseFit =
                                                          lNormalDistribution.cumulativeProbability(mRealDataRMSD);
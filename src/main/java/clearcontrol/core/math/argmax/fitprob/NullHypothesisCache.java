@@ -0,0 +1,218 @@
+package clearcontrol.core.math.argmax.fitprob;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.math3.distribution.NormalDistribution;
+
+/**
+ * Null hypothesis distribution cache.
+ *
+ * Null hypothesis distributions (mean and standard deviation of the RMSD of
+ * Gaussian fits to random data) are stored in a single compact binary file,
+ * keyed by data length and number of randomized datasets. The file is read in
+ * one go, and locked so that several JVMs can share it: readers take a shared
+ * lock, writers an exclusive lock. The file is not memory-mapped, since a
+ * mapping outlives the channel and prevents truncating the file on Windows.
+ * Entries are only ever appended, so the file can be precomputed and shipped.
+ *
+ * File layout: magic number and version (two ints), followed by fixed size
+ * records: length (int), number of randomized datasets (int), mean (double),
+ * standard deviation (double).
+ *
+ * @author royer
+ */
+public class NullHypothesisCache
+{
+  private static final int cMagicNumber = 0x4E554C48;
+  private static final int cVersion = 1;
+  private static final int cHeaderSize = 2 * Integer.BYTES;
+  private static final int cRecordSize = 2 * Integer.BYTES
+                                         + 2 * Double.BYTES;
+
+  private final File mFile;
+  private final ConcurrentHashMap<Long, NormalDistribution> mDistributionMap =
+                                                                             new ConcurrentHashMap<>();
+
+  /**
+   * Returns the default cache file
+   *
+   * @return default cache file
+   */
+  public static File getDefaultFile()
+  {
+    final File lUserHome = new File(System.getProperty("user.home"));
+    final File lStatsFolder = new File(lUserHome, ".stats");
+    return new File(lStatsFolder,
+                    GaussianFitQualityEstimator.class.getSimpleName()
+                                  + ".nullhypotheses.bin");
+  }
+
+  /**
+   * Instantiates a null hypothesis cache backed by a given file
+   *
+   * @param pFile
+   *          cache file
+   */
+  public NullHypothesisCache(File pFile)
+  {
+    super();
+    mFile = pFile;
+  }
+
+  /**
+   * Returns the cache file
+   *
+   * @return cache file
+   */
+  public File getFile()
+  {
+    return mFile;
+  }
+
+  /**
+   * Returns the null hypothesis distribution for a given data length and
+   * number of randomized datasets, or null if not in the cache.
+   *
+   * @param pLength
+   *          data length
+   * @param pNumberOfRandomizedDatasets
+   *          number of randomized datasets
+   * @return null hypothesis distribution or null
+   */
+  public NormalDistribution get(int pLength,
+                                int pNumberOfRandomizedDatasets)
+  {
+    final long lKey = getKey(pLength, pNumberOfRandomizedDatasets);
+    NormalDistribution lNormalDistribution = mDistributionMap.get(lKey);
+    if (lNormalDistribution == null)
+    {
+      // another JVM might have added it:
+      load();
+      lNormalDistribution = mDistributionMap.get(lKey);
+    }
+    return lNormalDistribution;
+  }
+
+  /**
+   * Adds the null hypothesis distribution for a given data length and number
+   * of randomized datasets to the cache.
+   *
+   * @param pLength
+   *          data length
+   * @param pNumberOfRandomizedDatasets
+   *          number of randomized datasets
+   * @param pNormalDistribution
+   *          null hypothesis distribution
+   */
+  public synchronized void put(int pLength,
+                               int pNumberOfRandomizedDatasets,
+                               NormalDistribution pNormalDistribution)
+  {
+    mDistributionMap.put(getKey(pLength, pNumberOfRandomizedDatasets),
+                         pNormalDistribution);
+
+    mFile.getParentFile().mkdirs();
+    try (FileChannel lFileChannel =
+                                  FileChannel.open(mFile.toPath(),
+                                                   StandardOpenOption.READ,
+                                                   StandardOpenOption.WRITE,
+                                                   StandardOpenOption.CREATE);
+        FileLock lFileLock = lFileChannel.lock())
+    {
+      if (!hasValidHeader(lFileChannel))
+      {
+        lFileChannel.truncate(0);
+        final ByteBuffer lHeader = ByteBuffer.allocate(cHeaderSize);
+        lHeader.putInt(cMagicNumber).putInt(cVersion).flip();
+        lFileChannel.write(lHeader, 0);
+      }
+
+      // a partially written record is overwritten:
+      final long lPosition = cHeaderSize
+                             + (lFileChannel.size() - cHeaderSize)
+                               / cRecordSize
+                               * cRecordSize;
+      final ByteBuffer lRecord = ByteBuffer.allocate(cRecordSize);
+      lRecord.putInt(pLength)
+             .putInt(pNumberOfRandomizedDatasets)
+             .putDouble(pNormalDistribution.getMean())
+             .putDouble(pNormalDistribution.getStandardDeviation())
+             .flip();
+      lFileChannel.write(lRecord, lPosition);
+      lFileChannel.force(false);
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Loads all entries of the cache file
+   */
+  public synchronized void load()
+  {
+    if (!mFile.exists())
+      return;
+
+    try (FileChannel lFileChannel =
+                                  FileChannel.open(mFile.toPath(),
+                                                   StandardOpenOption.READ);
+        FileLock lFileLock = lFileChannel.lock(0, Long.MAX_VALUE, true))
+    {
+      if (!hasValidHeader(lFileChannel))
+        return;
+
+      final long lSize = lFileChannel.size();
+      final ByteBuffer lByteBuffer =
+                                   ByteBuffer.allocate((int) (lSize
+                                                              - cHeaderSize));
+      while (lByteBuffer.hasRemaining())
+        if (lFileChannel.read(lByteBuffer,
+                              cHeaderSize + lByteBuffer.position()) < 0)
+          break;
+      lByteBuffer.flip();
+      while (lByteBuffer.remaining() >= cRecordSize)
+      {
+        final int lLength = lByteBuffer.getInt();
+        final int lNumberOfRandomizedDatasets = lByteBuffer.getInt();
+        final double lMean = lByteBuffer.getDouble();
+        final double lStandardDeviation = lByteBuffer.getDouble();
+
+        final long lKey = getKey(lLength, lNumberOfRandomizedDatasets);
+        if (lStandardDeviation > 0
+            && !mDistributionMap.containsKey(lKey))
+          mDistributionMap.put(lKey,
+                               new NormalDistribution(lMean,
+                                                      lStandardDeviation));
+      }
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+    }
+  }
+
+  private boolean hasValidHeader(FileChannel pFileChannel) throws IOException
+  {
+    if (pFileChannel.size() < cHeaderSize)
+      return false;
+    final ByteBuffer lHeader = ByteBuffer.allocate(cHeaderSize);
+    pFileChannel.read(lHeader, 0);
+    lHeader.flip();
+    return lHeader.getInt() == cMagicNumber
+           && lHeader.getInt() == cVersion;
+  }
+
+  private static long getKey(int pLength, int pNumberOfRandomizedDatasets)
+  {
+    return (((long) pLength) << 32) | pNumberOfRandomizedDatasets;
+  }
+
+}
@@ -0,0 +1,42 @@
+package clearcontrol.core.math.argmax.fitprob;
+
+/**
+ * Precomputes the null hypothesis distributions of the Gaussian fit quality
+ * estimator for a range of data lengths, for example at installation time.
+ * Usage: NullHypothesisPrecomputation [min length] [max length]
+ *
+ * @author royer
+ */
+public class NullHypothesisPrecomputation
+{
+  private static final int cDefaultMinLength = 3;
+  private static final int cDefaultMaxLength = 64;
+
+  /**
+   * Precomputes the null hypothesis distributions
+   * 
+   * @param pArguments
+   *          optional min and max data lengths
+   */
+  public static void main(String[] pArguments)
+  {
+    final int lMinLength = pArguments.length > 0 ? Integer.parseInt(pArguments[0])
+                                                 : cDefaultMinLength;
+    final int lMaxLength = pArguments.length > 1 ? Integer.parseInt(pArguments[1])
+                                                 : cDefaultMaxLength;
+
+    final int[] lLengths = new int[lMaxLength - lMinLength + 1];
+    for (int i = 0; i < lLengths.length; i++)
+      lLengths[i] = lMinLength + i;
+
+    System.out.format("Precomputing null hypothesis distributions for lengths %d to %d into %s \n",
+                      lMinLength,
+                      lMaxLength,
+                      NullHypothesisCache.getDefaultFile());
+    if (new GaussianFitQualityEstimator().precompute(lLengths))
+      System.out.println("Done.");
+    else
+      System.out.println("Failed, not all distributions could be computed.");
+  }
+
+}
@@ -3,12 +3,18 @@ package clearcontrol.core.math.argmax.methods;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import clearcontrol.core.concurrent.executors.ClearControlExecutors;
+import clearcontrol.core.configuration.MachineConfiguration;
 import clearcontrol.core.math.argmax.ArgMaxFinder1DInterface;
 import gnu.trove.list.array.TDoubleArrayList;
 
@@ -16,23 +22,138 @@ import org.apache.commons.math3.stat.descriptive.rank.Median;
 
 /**
  * Ensemble argmax finder.
- * 
+ *
  * Different argmax finders can be added to an ensemble argmax finder. The
  * median argmax finder of all resuling argmaxes will be returned.
- * 
+ *
+ * Argmax finders run in parallel on a bounded executor shared by all ensembles
+ * (its size is set by the machine configuration property
+ * 'argmax.ensemble.threads'). Each argmax finder is given the time out from the
+ * moment it starts, and is abandoned if it does not finish in time or if it
+ * does not start within the time out. Abandoned argmax finders cannot be
+ * interrupted and keep running in the background, methods that are still
+ * running from a previous computation are skipped. Optionally, the collection
+ * stops early once a quorum of argmax finders agree. Timing and failure
+ * statistics are kept per method.
  *
  * @author royer
  */
 public class EnsembleArgMaxFinder implements ArgMaxFinder1DInterface
 {
-  private static final Executor sExecutor =
-                                          Executors.newCachedThreadPool();
-  private static final int cTimeOutInSeconds = 1;
+  private static final int cNumberOfThreads =
+                                            MachineConfiguration.get()
+                                                                .getIntegerProperty("argmax.ensemble.threads",
+                                                                                    Math.max(1,
+                                                                                             Runtime.getRuntime()
+                                                                                                    .availableProcessors()));
+
+  private static final ExecutorService sExecutor =
+                                                 ClearControlExecutors.getOrCreateThreadPoolExecutor(EnsembleArgMaxFinder.class,
+                                                                                                     Thread.NORM_PRIORITY,
+                                                                                                     cNumberOfThreads,
+                                                                                                     cNumberOfThreads,
+                                                                                                     Integer.MAX_VALUE);
+  private static final long cDefaultTimeOutInMilliseconds = 1000;
+
+  /**
+   * Timing and failure statistics of an argmax method
+   */
+  public static class MethodStatistics
+  {
+    private final AtomicLong mNumberOfCalls = new AtomicLong();
+    private final AtomicLong mNumberOfFailures = new AtomicLong();
+    private final AtomicLong mNumberOfCancellations = new AtomicLong();
+    private final AtomicLong mNumberOfSkips = new AtomicLong();
+    private final AtomicLong mNumberOfTimedCalls = new AtomicLong();
+    private final AtomicLong mTotalTimeInNanoseconds = new AtomicLong();
+
+    /**
+     * Returns the number of times the method was called
+     *
+     * @return number of calls
+     */
+    public long getNumberOfCalls()
+    {
+      return mNumberOfCalls.get();
+    }
+
+    /**
+     * Returns the number of times the method failed, either by throwing an
+     * exception or by returning no argmax
+     *
+     * @return number of failures
+     */
+    public long getNumberOfFailures()
+    {
+      return mNumberOfFailures.get();
+    }
+
+    /**
+     * Returns the number of times the method was cancelled because it did not
+     * finish before the deadline or the quorum
+     *
+     * @return number of cancellations
+     */
+    public long getNumberOfCancellations()
+    {
+      return mNumberOfCancellations.get();
+    }
+
+    /**
+     * Returns the number of times the method was skipped because it was still
+     * running from a previous computation
+     *
+     * @return number of skips
+     */
+    public long getNumberOfSkips()
+    {
+      return mNumberOfSkips.get();
+    }
+
+    /**
+     * Returns the average run time of the method, over the calls that did
+     * start
+     *
+     * @return average time in milliseconds
+     */
+    public double getAverageTimeInMilliseconds()
+    {
+      final long lNumberOfTimedCalls = mNumberOfTimedCalls.get();
+      if (lNumberOfTimedCalls == 0)
+        return 0;
+      return mTotalTimeInNanoseconds.get() * 1e-6
+             / lNumberOfTimedCalls;
+    }
+
+    @Override
+    public String toString()
+    {
+      return String.format("MethodStatistics [calls=%d, failures=%d, cancellations=%d, skips=%d, average time=%.3f ms]",
+                           getNumberOfCalls(),
+                           getNumberOfFailures(),
+                           getNumberOfCancellations(),
+                           getNumberOfSkips(),
+                           getAverageTimeInMilliseconds());
+    }
+  }
 
   private final ArrayList<ArgMaxFinder1DInterface> mArgMaxFinder1DInterfaceList =
                                                                                 new ArrayList<ArgMaxFinder1DInterface>();
+  private final ArrayList<String> mMethodNameList =
+                                                  new ArrayList<String>();
+  private final ConcurrentHashMap<String, MethodStatistics> mMethodStatisticsMap =
+                                                                                 new ConcurrentHashMap<>();
+  // argmax finders abandoned while running, per method name:
+  private final ConcurrentHashMap<String, ArgMaxCallable> mAbandonedCallableMap =
+                                                                                 new ConcurrentHashMap<>();
   private final Median mMedian;
 
+  private ExecutorService mExecutor = sExecutor;
+  private volatile long mTimeOutInNanoseconds =
+                                              TimeUnit.MILLISECONDS.toNanos(cDefaultTimeOutInMilliseconds);
+  private volatile int mQuorum = 0;
+  private volatile double mQuorumTolerance = 0;
+
   private final boolean mDebug = false;
 
   /**
@@ -46,42 +167,170 @@ public class EnsembleArgMaxFinder implements ArgMaxFinder1DInterface
 
   /**
    * Adds the given argmax finder to the list of argmax finders to use.
-   * 
+   * Statistics are kept under the argmax finder's class name.
+   *
    * @param pArgMaxFinder1D
    *          argmax finder to add
    */
   public void add(ArgMaxFinder1DInterface pArgMaxFinder1D)
+  {
+    add(pArgMaxFinder1D.getClass().getSimpleName(), pArgMaxFinder1D);
+  }
+
+  /**
+   * Adds the given argmax finder to the list of argmax finders to use.
+   *
+   * @param pMethodName
+   *          method name under which statistics are kept
+   * @param pArgMaxFinder1D
+   *          argmax finder to add
+   */
+  public void add(String pMethodName,
+                  ArgMaxFinder1DInterface pArgMaxFinder1D)
   {
     mArgMaxFinder1DInterfaceList.add(pArgMaxFinder1D);
+    mMethodNameList.add(pMethodName);
+  }
+
+  /**
+   * Removes all argmax finders, statistics are kept.
+   */
+  public void clear()
+  {
+    mArgMaxFinder1DInterfaceList.clear();
+    mMethodNameList.clear();
+  }
+
+  /**
+   * Sets the executor used to run the argmax finders, by default a bounded
+   * executor shared by all ensembles.
+   *
+   * @param pExecutor
+   *          executor
+   */
+  public void setExecutor(ExecutorService pExecutor)
+  {
+    mExecutor = pExecutor == null ? sExecutor : pExecutor;
+  }
+
+  /**
+   * Sets the time out after which an argmax finder is abandoned, counted from
+   * the moment it starts, or from its submission if it has not started yet.
+   *
+   * @param pTimeOut
+   *          time out
+   * @param pTimeUnit
+   *          time unit
+   */
+  public void setTimeOut(long pTimeOut, TimeUnit pTimeUnit)
+  {
+    mTimeOutInNanoseconds = pTimeUnit.toNanos(pTimeOut);
+  }
+
+  /**
+   * Sets the quorum: as soon as that many argmax finders agree, within the
+   * given tolerance, the median of their argmaxes is returned and the remaining
+   * argmax finders are cancelled. A quorum of zero disables early exit.
+   *
+   * @param pQuorum
+   *          number of agreeing argmax finders
+   * @param pTolerance
+   *          max distance between agreeing argmaxes
+   */
+  public void setQuorum(int pQuorum, double pTolerance)
+  {
+    mQuorumTolerance = pTolerance;
+    mQuorum = pQuorum;
+  }
+
+  /**
+   * Returns the statistics of each method
+   *
+   * @return map from method names to statistics
+   */
+  public Map<String, MethodStatistics> getMethodStatistics()
+  {
+    return new HashMap<>(mMethodStatisticsMap);
+  }
+
+  private MethodStatistics getStatistics(String pMethodName)
+  {
+    MethodStatistics lMethodStatistics =
+                                       mMethodStatisticsMap.get(pMethodName);
+    if (lMethodStatistics == null)
+    {
+      mMethodStatisticsMap.putIfAbsent(pMethodName,
+                                       new MethodStatistics());
+      lMethodStatistics = mMethodStatisticsMap.get(pMethodName);
+    }
+    return lMethodStatistics;
   }
 
   private class ArgMaxCallable implements Callable<Double>
   {
     private final double[] mX;
     private final double[] mY;
+    private final String mMethodName;
     private final ArgMaxFinder1DInterface mArgMaxFinder1DInterface;
+    private final MethodStatistics mMethodStatistics;
+    private final long mSubmissionTimeInNs = System.nanoTime();
+    private volatile boolean mStarted;
+    private volatile long mStartTimeInNs;
+    private volatile boolean mFinished;
 
-    public ArgMaxCallable(ArgMaxFinder1DInterface pArgMaxFinder1DInterface,
+    public ArgMaxCallable(String pMethodName,
+                          ArgMaxFinder1DInterface pArgMaxFinder1DInterface,
+                          MethodStatistics pMethodStatistics,
                           double[] pX,
                           double[] pY)
     {
+      mMethodName = pMethodName;
       mArgMaxFinder1DInterface = pArgMaxFinder1DInterface;
+      mMethodStatistics = pMethodStatistics;
       mX = pX;
       mY = pY;
     }
 
+    public long getDeadline(long pTimeOutInNanoseconds)
+    {
+      if (mStarted)
+        return mStartTimeInNs + pTimeOutInNanoseconds;
+      return mSubmissionTimeInNs + pTimeOutInNanoseconds;
+    }
+
+    public boolean isRunning()
+    {
+      return mStarted && !mFinished;
+    }
+
     @Override
     public Double call() throws Exception
     {
-      // final long lStartTimeInNs = System.nanoTime();
-      final Double lArgMax = mArgMaxFinder1DInterface.argmax(mX, mY);
-      // final long lStopTimeInNs = System.nanoTime();
-      /*double lElapsedtimeInSeconds = Magnitude.nano2unit(lStopTimeInNs - lStartTimeInNs);
-      System.out.format("elapsed time: %g for %s \n",
-      										lElapsedtimeInSeconds,
-      										mArgMaxFinder1DInterface.toString());/**/
-
-      return lArgMax;
+      final long lStartTimeInNs = System.nanoTime();
+      mStartTimeInNs = lStartTimeInNs;
+      mStarted = true;
+      try
+      {
+        final Double lArgMax = mArgMaxFinder1DInterface.argmax(mX, mY);
+        if (lArgMax == null)
+          mMethodStatistics.mNumberOfFailures.incrementAndGet();
+        return lArgMax;
+      }
+      catch (Throwable e)
+      {
+        mMethodStatistics.mNumberOfFailures.incrementAndGet();
+        if (mDebug)
+          e.printStackTrace();
+        return null;
+      }
+      finally
+      {
+        mMethodStatistics.mNumberOfTimedCalls.incrementAndGet();
+        mMethodStatistics.mTotalTimeInNanoseconds.addAndGet(System.nanoTime()
+                                                            - lStartTimeInNs);
+        mFinished = true;
+        mAbandonedCallableMap.remove(mMethodName, this);
+      }
     }
 
     @Override
@@ -95,53 +344,126 @@ public class EnsembleArgMaxFinder implements ArgMaxFinder1DInterface
   @Override
   public Double argmax(double[] pX, double[] pY)
   {
-    println("pX=" + Arrays.toString(pX));
-    println("pY=" + Arrays.toString(pY));
     if (constant(pY))
       return null;
 
-    final ArrayList<FutureTask<Double>> lTaskList =
-                                                  new ArrayList<FutureTask<Double>>();
-    final HashMap<FutureTask<Double>, ArgMaxCallable> lTaskToCallableMap =
-                                                                         new HashMap<FutureTask<Double>, ArgMaxCallable>();
+    final long lTimeOutInNanoseconds = mTimeOutInNanoseconds;
+    final int lQuorum = mQuorum;
+    final double lQuorumTolerance = mQuorumTolerance;
 
-    for (final ArgMaxFinder1DInterface lArgMaxFinder1DInterface : mArgMaxFinder1DInterfaceList)
+    final ExecutorCompletionService<Double> lCompletionService =
+                                                               new ExecutorCompletionService<>(mExecutor);
+    final HashMap<Future<Double>, ArgMaxCallable> lFutureToCallableMap =
+                                                                       new HashMap<>();
+
+    for (int i = 0; i < mArgMaxFinder1DInterfaceList.size(); i++)
     {
+      final String lMethodName = mMethodNameList.get(i);
+      final MethodStatistics lMethodStatistics =
+                                               getStatistics(lMethodName);
+
+      // argmax finders are not thread-safe, one that was abandoned while
+      // running is not reused until it finishes:
+      final ArgMaxCallable lAbandonedCallable =
+                                              mAbandonedCallableMap.get(lMethodName);
+      if (lAbandonedCallable != null)
+      {
+        if (lAbandonedCallable.isRunning())
+        {
+          lMethodStatistics.mNumberOfSkips.incrementAndGet();
+          continue;
+        }
+        mAbandonedCallableMap.remove(lMethodName, lAbandonedCallable);
+      }
+
+      lMethodStatistics.mNumberOfCalls.incrementAndGet();
       final ArgMaxCallable lArgMaxCallable =
-                                           new ArgMaxCallable(lArgMaxFinder1DInterface,
+                                           new ArgMaxCallable(lMethodName,
+                                                              mArgMaxFinder1DInterfaceList.get(i),
+                                                              lMethodStatistics,
                                                               pX,
                                                               pY);
-      final FutureTask<Double> lArgMaxFutureTask =
-                                                 new FutureTask<Double>(lArgMaxCallable);
-      sExecutor.execute(lArgMaxFutureTask);
-      lTaskList.add(lArgMaxFutureTask);
-      lTaskToCallableMap.put(lArgMaxFutureTask, lArgMaxCallable);
+      lFutureToCallableMap.put(lCompletionService.submit(lArgMaxCallable),
+                               lArgMaxCallable);
     }
 
     final TDoubleArrayList lArgMaxList = new TDoubleArrayList();
-    for (final FutureTask<Double> lArgMaxFutureTask : lTaskList)
+    double[] lQuorumArgMaxes = null;
+    try
     {
-      try
+      while (!lFutureToCallableMap.isEmpty())
       {
-        final Double lArgMax =
-                             lArgMaxFutureTask.get(cTimeOutInSeconds,
-                                                   TimeUnit.SECONDS);
-        if (lArgMax != null)
+        // abandons argmax finders past their deadline:
+        final long lNow = System.nanoTime();
+        long lNextDeadline = Long.MAX_VALUE;
+        final Iterator<Map.Entry<Future<Double>, ArgMaxCallable>> lIterator =
+                                                                          lFutureToCallableMap.entrySet()
+                                                                                              .iterator();
+        while (lIterator.hasNext())
         {
-          if (mDebug)
-            System.out.println("class: "
-                               + lTaskToCallableMap.get(lArgMaxFutureTask)
-                               + "\n\t\targmax="
-                               + lArgMax);
-          lArgMaxList.add(lArgMax);
+          final Map.Entry<Future<Double>, ArgMaxCallable> lEntry =
+                                                                 lIterator.next();
+          final long lDeadline =
+                               lEntry.getValue()
+                                     .getDeadline(lTimeOutInNanoseconds);
+          if (lDeadline - lNow <= 0)
+          {
+            abandon(lEntry.getKey(), lEntry.getValue());
+            lIterator.remove();
+          }
+          else if (lNextDeadline == Long.MAX_VALUE
+                   || lDeadline - lNextDeadline < 0)
+            lNextDeadline = lDeadline;
+        }
+        if (lFutureToCallableMap.isEmpty())
+          break;
+
+        // deadlines are re-evaluated when polling times out, since an argmax
+        // finder that started in the meantime has a later deadline:
+        final Future<Double> lFuture =
+                                     lCompletionService.poll(lNextDeadline
+                                                             - lNow,
+                                                             TimeUnit.NANOSECONDS);
+        if (lFuture == null)
+          continue;
+        lFutureToCallableMap.remove(lFuture);
+
+        final Double lArgMax = lFuture.get();
+        if (lArgMax == null)
+          continue;
+        lArgMaxList.add(lArgMax);
+
+        if (lQuorum > 0)
+        {
+          lQuorumArgMaxes = findQuorum(lArgMaxList.toArray(),
+                                       lQuorum,
+                                       lQuorumTolerance);
+          if (lQuorumArgMaxes != null)
+            break;
         }
-      }
-      catch (final Throwable e)
-      {
-        if (mDebug)
-          e.printStackTrace();
       }
     }
+    catch (final InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    catch (final Throwable e)
+    {
+      if (mDebug)
+        e.printStackTrace();
+    }
+    finally
+    {
+      // stragglers:
+      for (Map.Entry<Future<Double>, ArgMaxCallable> lEntry : lFutureToCallableMap.entrySet())
+        abandon(lEntry.getKey(), lEntry.getValue());
+    }
+
+    if (lQuorumArgMaxes != null)
+      return mMedian.evaluate(lQuorumArgMaxes);
+
+    if (lArgMaxList.isEmpty())
+      return null;
 
     final double lArgMaxMedian =
                                mMedian.evaluate(lArgMaxList.toArray());
@@ -149,6 +471,34 @@ public class EnsembleArgMaxFinder implements ArgMaxFinder1DInterface
     return lArgMaxMedian;
   }
 
+  private void abandon(Future<Double> pFuture,
+                       ArgMaxCallable pArgMaxCallable)
+  {
+    // cancelling does not stop an argmax finder that is already running, it
+    // is remembered so that it is not reused before it finishes:
+    if (pFuture.cancel(true))
+    {
+      pArgMaxCallable.mMethodStatistics.mNumberOfCancellations.incrementAndGet();
+      mAbandonedCallableMap.put(pArgMaxCallable.mMethodName,
+                                pArgMaxCallable);
+    }
+  }
+
+  private static double[] findQuorum(double[] pArgMaxes,
+                                     int pQuorum,
+                                     double pTolerance)
+  {
+    if (pArgMaxes.length < pQuorum)
+      return null;
+    final double[] lSortedArgMaxes = pArgMaxes.clone();
+    Arrays.sort(lSortedArgMaxes);
+    for (int i = 0; i + pQuorum <= lSortedArgMaxes.length; i++)
+      if (lSortedArgMaxes[i + pQuorum - 1]
+          - lSortedArgMaxes[i] <= pTolerance)
+        return Arrays.copyOfRange(lSortedArgMaxes, i, i + pQuorum);
+    return null;
+  }
+
   private boolean constant(double[] pY)
   {
     for (int i = 0; i < pY.length; i++)
@@ -164,9 +514,4 @@ public class EnsembleArgMaxFinder implements ArgMaxFinder1DInterface
                          mArgMaxFinder1DInterfaceList);
   }
 
-  private void println(String pString)
-  {
-
-  }
-
 }
@@ -219,21 +219,25 @@ public class Variable<O> extends VariableBase<O> implements
 
     // We protect ourselves from called code that might clear the Thread
     // traversal list:
-    final ArrayList<Object> lCopyOfListOfTraversedObjects =
-                                                          EventPropagator.getCopyOfListOfTraversedObjects();
-
-    if (mVariablesToSendUpdatesTo != null)
+    final long lFrame = EventPropagator.beginFrame();
+    try
     {
-      for (final Variable<O> lObjectVariable : mVariablesToSendUpdatesTo)
+      if (mVariablesToSendUpdatesTo != null)
       {
-        EventPropagator.setListOfTraversedObjects(lCopyOfListOfTraversedObjects);
-        if (EventPropagator.hasNotBeenTraversed(lObjectVariable))
+        for (final Variable<O> lObjectVariable : mVariablesToSendUpdatesTo)
         {
-          lObjectVariable.setReferenceInternal(pNewValue);
+          EventPropagator.restoreFrame(lFrame);
+          if (EventPropagator.hasNotBeenTraversed(lObjectVariable))
+          {
+            lObjectVariable.setReferenceInternal(pNewValue);
+          }
         }
       }
     }
-    EventPropagator.setListOfTraversedObjects(lCopyOfListOfTraversedObjects);
+    finally
+    {
+      EventPropagator.endFrame(lFrame);
+    }
     EventPropagator.addAllToListOfTraversedObjects(mVariablesToSendUpdatesTo);
 
   }
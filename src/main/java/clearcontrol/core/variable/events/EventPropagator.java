@@ -1,6 +1,7 @@
 package clearcontrol.core.variable.events;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 
@@ -10,6 +11,15 @@ import java.util.List;
  * This is used for example to prevent variable updates to pass twice through
  * the same variable -- and thus to go on forever -- which is not good.
  *
+ * Traversed objects are kept in a thread-local identity hash table, checking
+ * for traversal is a constant time lookup. Traversed objects are also logged in
+ * order, so that a frame (see {@link #beginFrame()}) can restore the traversal
+ * state as it was at the beginning of the frame, even if called code clears it
+ * in the mean time. Clearing outside of any frame walks the log to empty the
+ * slots it used, so that no reference to traversed objects is kept. None of
+ * this allocates once the tables have grown to the size of the largest
+ * traversal.
+ *
  * @author royer
  */
 public class EventPropagator
@@ -17,6 +27,8 @@ public class EventPropagator
   private static final ThreadLocal<EventPropagator> sEventPropagatorThreadLocal =
                                                                                 new ThreadLocal<EventPropagator>();
 
+  private static final int cInitialCapacity = 64;
+
   /**
    * Returns a thread-local event propagator.
    * 
@@ -39,7 +51,7 @@ public class EventPropagator
    */
   public static final void clear()
   {
-    getEventPropagator().mTraversedObjectList.clear();
+    getEventPropagator().clearInternal();
   }
 
   /**
@@ -50,7 +62,7 @@ public class EventPropagator
    */
   public static final void add(final Object pObject)
   {
-    getEventPropagator().mTraversedObjectList.add(pObject);
+    getEventPropagator().addInternal(pObject);
   }
 
   /**
@@ -62,7 +74,7 @@ public class EventPropagator
    */
   public static final boolean hasBeenTraversed(final Object pObject)
   {
-    return getEventPropagator().mTraversedObjectList.contains(pObject);
+    return getEventPropagator().isTraversed(pObject);
   }
 
   /**
@@ -74,17 +86,55 @@ public class EventPropagator
    */
   public static final boolean hasNotBeenTraversed(final Object pObject)
   {
-    return !getEventPropagator().mTraversedObjectList.contains(pObject);
+    return !getEventPropagator().isTraversed(pObject);
   }
 
   /**
-   * Returns the list of traversed objects
+   * Begins a frame: the traversal state at the beginning of the frame can be
+   * restored with {@link #restoreFrame(long)} any number of times, until the
+   * frame is ended with {@link #endFrame(long)}. Frames must be nested.
    * 
-   * @return list of traversed objects
+   * @return frame to pass to restoreFrame and endFrame
+   */
+  public static final long beginFrame()
+  {
+    return getEventPropagator().beginFrameInternal();
+  }
+
+  /**
+   * Restores the traversal state as it was at the beginning of the given frame.
+   *
+   * @param pFrame
+   *          frame returned by beginFrame
+   */
+  public static final void restoreFrame(final long pFrame)
+  {
+    getEventPropagator().restoreFrameInternal(pFrame);
+  }
+
+  /**
+   * Restores the traversal state as it was at the beginning of the given frame,
+   * and ends the frame.
+   *
+   * @param pFrame
+   *          frame returned by beginFrame
+   */
+  public static final void endFrame(final long pFrame)
+  {
+    getEventPropagator().endFrameInternal(pFrame);
+  }
+
+  /**
+   * Returns a copy of the list of traversed objects. Unlike in earlier
+   * versions, modifying the returned list does not change the traversal state:
+   * use {@link #setListOfTraversedObjects(List)}, or better frames, which do
+   * not allocate, to save and restore the traversal state.
+   *
+   * @return copy of the list of traversed objects
    */
   public static final ArrayList<Object> getListOfTraversedObjects()
   {
-    return getEventPropagator().mTraversedObjectList;
+    return getCopyOfListOfTraversedObjects();
   }
 
   /**
@@ -94,7 +144,11 @@ public class EventPropagator
    */
   public static final ArrayList<Object> getCopyOfListOfTraversedObjects()
   {
-    return new ArrayList<Object>(getEventPropagator().mTraversedObjectList);
+    final EventPropagator lEventPropagator = getEventPropagator();
+    final ArrayList<Object> lList = new ArrayList<Object>();
+    for (int i = lEventPropagator.mFloor; i < lEventPropagator.mLength; i++)
+      lList.add(lEventPropagator.mLog[i]);
+    return lList;
   }
 
   /**
@@ -105,10 +159,10 @@ public class EventPropagator
    */
   public static void setListOfTraversedObjects(final List<Object> pListOfTraversedObjects)
   {
-    final ArrayList<Object> lTraversedObjectList =
-                                                 getEventPropagator().mTraversedObjectList;
-    lTraversedObjectList.clear();
-    lTraversedObjectList.addAll(pListOfTraversedObjects);
+    final EventPropagator lEventPropagator = getEventPropagator();
+    lEventPropagator.clearInternal();
+    for (Object lObject : pListOfTraversedObjects)
+      lEventPropagator.addInternal(lObject);
   }
 
   /**
@@ -119,17 +173,177 @@ public class EventPropagator
    */
   public static void addAllToListOfTraversedObjects(final Collection<?> pListOfTraversedObjects)
   {
-    final ArrayList<Object> lTraversedObjectList =
-                                                 getEventPropagator().mTraversedObjectList;
-    lTraversedObjectList.addAll(pListOfTraversedObjects);
+    final EventPropagator lEventPropagator = getEventPropagator();
+    for (Object lObject : pListOfTraversedObjects)
+      lEventPropagator.addInternal(lObject);
   }
 
-  private final ArrayList<Object> mTraversedObjectList =
-                                                       new ArrayList<Object>();
+  // identity hash table, live slots may hold null objects:
+  private Object[] mSlotObjects = new Object[cInitialCapacity];
+  private boolean[] mSlotLive = new boolean[cInitialCapacity];
+  private int[] mSlotPositions = new int[cInitialCapacity];
+  private int mNumberOfLiveSlots;
+
+  // traversal log, only entries at positions in [mFloor, mLength) are visible:
+  private Object[] mLog = new Object[cInitialCapacity];
+  private int[] mLogSlots = new int[cInitialCapacity];
+  private int[] mLogPreviousPositions = new int[cInitialCapacity];
+  private int mLength;
+  private int mFloor;
+
+  private int mFrameDepth;
 
   EventPropagator()
   {
     super();
   }
 
+  private void clearInternal()
+  {
+    if (mFrameDepth == 0)
+    {
+      // everything can be forgotten, each live slot has at least one entry in
+      // the log:
+      for (int i = 0; i < mLength; i++)
+      {
+        final int lSlot = mLogSlots[i];
+        mSlotObjects[lSlot] = null;
+        mSlotLive[lSlot] = false;
+        mLog[i] = null;
+      }
+      mNumberOfLiveSlots = 0;
+      mLength = 0;
+      mFloor = 0;
+    }
+    else
+    {
+      // the enclosing frames may restore the hidden entries:
+      mFloor = mLength;
+    }
+  }
+
+  private boolean isTraversed(final Object pObject)
+  {
+    final int lSlot = findSlot(pObject);
+    return mSlotLive[lSlot] && mSlotPositions[lSlot] >= mFloor;
+  }
+
+  private void addInternal(final Object pObject)
+  {
+    int lSlot = findSlot(pObject);
+    if (mSlotLive[lSlot])
+    {
+      if (mSlotPositions[lSlot] >= mFloor)
+        return;
+      // traversed before the last clear, hidden until a frame is restored:
+      log(pObject, lSlot, mSlotPositions[lSlot]);
+      mSlotPositions[lSlot] = mLength - 1;
+      return;
+    }
+
+    if (2 * (mNumberOfLiveSlots + 1) > mSlotObjects.length)
+    {
+      rehash(2 * mSlotObjects.length);
+      lSlot = findSlot(pObject);
+    }
+
+    mSlotObjects[lSlot] = pObject;
+    mSlotLive[lSlot] = true;
+    mNumberOfLiveSlots++;
+    log(pObject, lSlot, -1);
+    mSlotPositions[lSlot] = mLength - 1;
+  }
+
+  private void log(final Object pObject,
+                   final int pSlot,
+                   final int pPreviousPosition)
+  {
+    if (mLength == mLog.length)
+    {
+      final int lNewLength = 2 * mLog.length;
+      mLog = Arrays.copyOf(mLog, lNewLength);
+      mLogSlots = Arrays.copyOf(mLogSlots, lNewLength);
+      mLogPreviousPositions =
+                            Arrays.copyOf(mLogPreviousPositions,
+                                                    lNewLength);
+    }
+    mLog[mLength] = pObject;
+    mLogSlots[mLength] = pSlot;
+    mLogPreviousPositions[mLength] = pPreviousPosition;
+    mLength++;
+  }
+
+  private long beginFrameInternal()
+  {
+    mFrameDepth++;
+    return (((long) mFloor) << 32) | mLength;
+  }
+
+  private void restoreFrameInternal(final long pFrame)
+  {
+    final int lLength = (int) pFrame;
+
+    // entries are removed in reverse order of insertion, so that removing a
+    // slot never breaks the probe sequence of another live slot:
+    while (mLength > lLength)
+    {
+      mLength--;
+      final int lSlot = mLogSlots[mLength];
+      final int lPreviousPosition = mLogPreviousPositions[mLength];
+      if (lPreviousPosition >= 0)
+        mSlotPositions[lSlot] = lPreviousPosition;
+      else
+      {
+        mSlotObjects[lSlot] = null;
+        mSlotLive[lSlot] = false;
+        mNumberOfLiveSlots--;
+      }
+      mLog[mLength] = null;
+    }
+    mFloor = (int) (pFrame >>> 32);
+  }
+
+  private void endFrameInternal(final long pFrame)
+  {
+    restoreFrameInternal(pFrame);
+    mFrameDepth--;
+  }
+
+  private int findSlot(final Object pObject)
+  {
+    final int lMask = mSlotObjects.length - 1;
+    int lSlot = mix(System.identityHashCode(pObject)) & lMask;
+    while (mSlotLive[lSlot] && mSlotObjects[lSlot] != pObject)
+      lSlot = (lSlot + 1) & lMask;
+    return lSlot;
+  }
+
+  private void rehash(final int pNewCapacity)
+  {
+    mSlotObjects = new Object[pNewCapacity];
+    mSlotLive = new boolean[pNewCapacity];
+    mSlotPositions = new int[pNewCapacity];
+
+    // live objects are re-inserted in log order, the log keeps track of the
+    // new slots:
+    for (int i = 0; i < mLength; i++)
+    {
+      final Object lObject = mLog[i];
+      final int lSlot = findSlot(lObject);
+      if (!mSlotLive[lSlot])
+      {
+        mSlotObjects[lSlot] = lObject;
+        mSlotLive[lSlot] = true;
+      }
+      mSlotPositions[lSlot] = i;
+      mLogSlots[i] = lSlot;
+    }
+  }
+
+  private static int mix(final int pHashCode)
+  {
+    final int lHash = pHashCode * 0x9E3779B9;
+    return lHash ^ (lHash >>> 16);
+  }
+
 }
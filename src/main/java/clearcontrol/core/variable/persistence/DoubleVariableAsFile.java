@@ -25,6 +25,7 @@ public class DoubleVariableAsFile extends Variable<Double>
   private Double mCachedValue;
 
   private final File mFile;
+  private final PersistentVariableStore mStore;
   // private FileEventNotifier mFileEventNotifier;
 
   private final Object mLock = new Object();
@@ -45,12 +46,35 @@ public class DoubleVariableAsFile extends Variable<Double>
   {
     super(pVariableName, pDoubleValue);
     mFile = pFile;
+    mStore = null;
+  }
 
+  /**
+   * Double variable delegating to a persistent variable store, the value is
+   * kept under the variable's name.
+   * 
+   * @param pStore
+   *          persistent variable store
+   * @param pVariableName
+   *          variable name
+   * @param pDoubleValue
+   *          double value, used if the store holds no value yet
+   */
+  public DoubleVariableAsFile(final PersistentVariableStore pStore,
+                              final String pVariableName,
+                              final double pDoubleValue)
+  {
+    super(pVariableName, pDoubleValue);
+    mFile = null;
+    mStore = pStore;
   }
 
   @Override
   public Double get()
   {
+    if (mStore != null)
+      return mStore.get(getName(), super.get());
+
     if (mCachedValue != null)
     {
       return mCachedValue;
@@ -83,6 +107,11 @@ public class DoubleVariableAsFile extends Variable<Double>
   public void set(final Double pNewValue)
   {
     super.set(pNewValue);
+    if (mStore != null)
+    {
+      mStore.put(getName(), pNewValue);
+      return;
+    }
     mCachedValue = pNewValue;
     mSingleThreadExecutor.execute(mFileSaverRunnable);
   }
@@ -151,6 +180,8 @@ public class DoubleVariableAsFile extends Variable<Double>
   @Override
   public void close() throws IOException
   {
+    if (mStore != null)
+      mStore.flush();
     /*
     try
     {
@@ -0,0 +1,699 @@
+package clearcontrol.core.variable.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+import clearcontrol.core.concurrent.executors.AsynchronousSchedulerFeature;
+import clearcontrol.core.concurrent.executors.ClearControlExecutors;
+import clearcontrol.core.configuration.MachineConfiguration;
+import clearcontrol.core.file.FileEventNotifier;
+import clearcontrol.core.file.FileEventNotifier.FileEventKind;
+import clearcontrol.core.log.LoggingFeature;
+
+/**
+ * Persistent variable store
+ *
+ * Stores the values of many persistent variables, identified by keys, in a
+ * single append-only journal file. Values are kept in memory, so that reads
+ * never touch the file system. Writes update the memory immediately and are
+ * appended to the journal asynchronously: rapid updates of a given key (for
+ * example from a GUI slider) are coalesced into a single record. Numbers,
+ * booleans and strings have a compact typed binary encoding, other values are
+ * stored using Java's standard serialization. Once the journal holds many more
+ * records than keys, it is compacted by atomically replacing it with a journal
+ * holding only the latest value of each key.
+ *
+ * The journal file is watched, if another process appends to or compacts it,
+ * the in-memory values are reloaded. Processes sharing a journal take an
+ * exclusive lock on a companion '.lock' file to append, compact, or truncate a
+ * torn record. Values that cannot be deserialized, for example because their
+ * class is missing, are skipped but kept in the journal. Stores are shared per
+ * file, see {@link #get(File)}.
+ *
+ * @author royer
+ */
+public class PersistentVariableStore implements
+                                     AsynchronousSchedulerFeature,
+                                     LoggingFeature,
+                                     AutoCloseable
+{
+  private static final int cMagicNumber = 0x43434a31; // 'CCJ1'
+
+  private static final byte cNullType = 0;
+  private static final byte cBooleanType = 1;
+  private static final byte cIntegerType = 2;
+  private static final byte cLongType = 3;
+  private static final byte cFloatType = 4;
+  private static final byte cDoubleType = 5;
+  private static final byte cStringType = 6;
+  private static final byte cObjectType = 7;
+
+  private static final long cDefaultCoalescingDelayInMilliseconds =
+                                                                  50;
+  private static final int cMinimalNumberOfRecordsForCompaction =
+                                                                1024;
+  private static final int cCompactionRatio = 4;
+
+  // ConcurrentHashMap does not accept null values:
+  private static final Object cNull = new Object();
+
+  private static final ConcurrentHashMap<File, PersistentVariableStore> sStoreMap =
+                                                                                 new ConcurrentHashMap<>();
+
+  static
+  {
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      for (PersistentVariableStore lStore : sStoreMap.values())
+        lStore.flush();
+    }, "PersistentVariableStoreShutdownHook"));
+  }
+
+  /**
+   * Returns the store for a given journal file, creating it if needed. Stores
+   * are shared per file.
+   *
+   * @param pJournalFile
+   *          journal file
+   * @return persistent variable store
+   */
+  public static PersistentVariableStore get(File pJournalFile)
+  {
+    return sStoreMap.computeIfAbsent(pJournalFile.getAbsoluteFile(),
+                                     (f) -> new PersistentVariableStore(f));
+  }
+
+  /**
+   * Returns the default store, its journal lives in the machine's persistency
+   * folder.
+   *
+   * @return default persistent variable store
+   */
+  public static PersistentVariableStore getDefault()
+  {
+    return get(new File(MachineConfiguration.get()
+                                            .getPersistencyFolder(),
+                        "PersistentVariables.journal"));
+  }
+
+  private final File mJournalFile;
+  private final File mLockFile;
+  private final ConcurrentHashMap<String, Object> mValueMap =
+                                                            new ConcurrentHashMap<>();
+  // records whose value could not be deserialized, rewritten as they are:
+  private final ConcurrentHashMap<String, byte[]> mUndecodableRecordMap =
+                                                                        new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Object> mPendingMap =
+                                                              new ConcurrentHashMap<>();
+  private final AtomicBoolean mFlushScheduled = new AtomicBoolean();
+  private volatile long mCoalescingDelayInMilliseconds =
+                                                       cDefaultCoalescingDelayInMilliseconds;
+
+  private final Object mLock = new Object();
+  private long mJournalLength;
+  private int mNumberOfRecords;
+
+  private final FileEventNotifier mFileEventNotifier;
+
+  /**
+   * Instantiates a persistent variable store for a given journal file. Use
+   * {@link #get(File)} to share stores.
+   *
+   * @param pJournalFile
+   *          journal file
+   */
+  private PersistentVariableStore(File pJournalFile)
+  {
+    super();
+    mJournalFile = pJournalFile;
+    mLockFile = new File(mJournalFile.getParentFile(),
+                         mJournalFile.getName() + ".lock");
+    mJournalFile.getParentFile().mkdirs();
+    reload();
+
+    mFileEventNotifier = new FileEventNotifier(mJournalFile);
+    mFileEventNotifier.addFileEventListener((n, f, k) -> {
+      if (k != FileEventKind.Deleted)
+        reloadIfModifiedExternally();
+    });
+    mFileEventNotifier.startMonitoring();
+  }
+
+  /**
+   * Returns the journal file
+   *
+   * @return journal file
+   */
+  public File getJournalFile()
+  {
+    return mJournalFile;
+  }
+
+  /**
+   * Sets the delay during which updates are coalesced before being written.
+   *
+   * @param pDelay
+   *          delay
+   * @param pTimeUnit
+   *          delay time unit
+   */
+  public void setCoalescingDelay(long pDelay, TimeUnit pTimeUnit)
+  {
+    mCoalescingDelayInMilliseconds = pTimeUnit.toMillis(pDelay);
+  }
+
+  /**
+   * Returns true if this store holds a value for a given key
+   *
+   * @param pKey
+   *          key
+   * @return true if a value is stored
+   */
+  public boolean contains(String pKey)
+  {
+    return mValueMap.containsKey(pKey);
+  }
+
+  /**
+   * Returns the value for a given key, or a default value if none is stored.
+   *
+   * @param pKey
+   *          key
+   * @param pDefaultValue
+   *          default value
+   * @return value
+   */
+  @SuppressWarnings("unchecked")
+  public <O> O get(String pKey, O pDefaultValue)
+  {
+    final Object lValue = mValueMap.get(pKey);
+    if (lValue == null)
+      return pDefaultValue;
+    return lValue == cNull ? null : (O) lValue;
+  }
+
+  /**
+   * Sets the value for a given key. The value is immediately visible to
+   * readers, and written to the journal asynchronously.
+   *
+   * @param pKey
+   *          key
+   * @param pValue
+   *          value
+   */
+  public void put(String pKey, Object pValue)
+  {
+    final Object lValue = pValue == null ? cNull : pValue;
+    final Object lPreviousValue = mValueMap.put(pKey, lValue);
+    mUndecodableRecordMap.remove(pKey);
+
+    // unchanged immutable values need not be written again:
+    final boolean lImmutable = lValue == cNull
+                               || lValue instanceof Number
+                               || lValue instanceof Boolean
+                               || lValue instanceof String;
+    if (lImmutable && lValue.equals(lPreviousValue))
+      return;
+
+    mPendingMap.put(pKey, lValue);
+    if (mFlushScheduled.compareAndSet(false, true))
+      schedule(() -> {
+        mFlushScheduled.set(false);
+        flush();
+      }, mCoalescingDelayInMilliseconds, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Writes pending updates to the journal, and compacts the journal if it
+   * holds too many obsolete records. Updates that could not be written stay
+   * pending.
+   *
+   * @return true for success
+   */
+  public boolean flush()
+  {
+    synchronized (mLock)
+    {
+      if (mPendingMap.isEmpty())
+        return true;
+
+      final Map<String, Object> lUpdateMap = new LinkedHashMap<>();
+      for (String lKey : mPendingMap.keySet())
+      {
+        final Object lValue = mPendingMap.remove(lKey);
+        if (lValue != null)
+          lUpdateMap.put(lKey, lValue);
+      }
+
+      try (FileChannel lLockChannel = openLockChannel();
+          FileLock lFileLock = lLockChannel.lock())
+      {
+        // another process appended to or compacted the journal:
+        if (mJournalFile.length() != mJournalLength)
+          reload(true);
+
+        final boolean lNewJournal = !mJournalFile.exists()
+                                    || mJournalLength == 0;
+        try (DataOutputStream lDataOutputStream =
+                                                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mJournalFile,
+                                                                                                                   !lNewJournal))))
+        {
+          if (lNewJournal)
+          {
+            lDataOutputStream.writeInt(cMagicNumber);
+            mNumberOfRecords = 0;
+          }
+
+          for (Map.Entry<String, Object> lEntry : lUpdateMap.entrySet())
+          {
+            writeRecord(lDataOutputStream,
+                        lEntry.getKey(),
+                        lEntry.getValue());
+            mNumberOfRecords++;
+          }
+        }
+        mJournalLength = mJournalFile.length();
+
+        if (mNumberOfRecords > cMinimalNumberOfRecordsForCompaction
+            && mNumberOfRecords > cCompactionRatio * mValueMap.size())
+          return compactWithLock();
+
+        return true;
+      }
+      catch (final IOException e)
+      {
+        e.printStackTrace();
+
+        // updates made in the meantime are more recent:
+        for (Map.Entry<String, Object> lEntry : lUpdateMap.entrySet())
+          mPendingMap.putIfAbsent(lEntry.getKey(), lEntry.getValue());
+
+        // a partially written record is dropped by the next reload:
+        mJournalLength = -1;
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Rewrites the journal with only the latest value of each key. The new
+   * journal atomically replaces the old one.
+   *
+   * @return true for success
+   */
+  public boolean compact()
+  {
+    synchronized (mLock)
+    {
+      try (FileChannel lLockChannel = openLockChannel();
+          FileLock lFileLock = lLockChannel.lock())
+      {
+        if (mJournalFile.length() != mJournalLength)
+          reload(true);
+        return compactWithLock();
+      }
+      catch (final IOException e)
+      {
+        e.printStackTrace();
+        return false;
+      }
+    }
+  }
+
+  private boolean compactWithLock()
+  {
+    final File lTempFile = new File(mJournalFile.getParentFile(),
+                                    mJournalFile.getName() + ".tmp");
+    try
+    {
+      int lNumberOfRecords = 0;
+      try (DataOutputStream lDataOutputStream =
+                                              new DataOutputStream(new BufferedOutputStream(new FileOutputStream(lTempFile))))
+      {
+        lDataOutputStream.writeInt(cMagicNumber);
+        for (Map.Entry<String, Object> lEntry : mValueMap.entrySet())
+        {
+          writeRecord(lDataOutputStream,
+                      lEntry.getKey(),
+                      lEntry.getValue());
+          lNumberOfRecords++;
+        }
+        for (Map.Entry<String, byte[]> lEntry : mUndecodableRecordMap.entrySet())
+          if (!mValueMap.containsKey(lEntry.getKey()))
+          {
+            writeRecord(lDataOutputStream, lEntry.getValue());
+            lNumberOfRecords++;
+          }
+      }
+
+      try
+      {
+        Files.move(lTempFile.toPath(),
+                   mJournalFile.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch (AtomicMoveNotSupportedException e)
+      {
+        Files.move(lTempFile.toPath(),
+                   mJournalFile.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING);
+      }
+
+      mNumberOfRecords = lNumberOfRecords;
+      mJournalLength = mJournalFile.length();
+      return true;
+    }
+    catch (final IOException e)
+    {
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  /**
+   * Reloads all values from the journal. Updates not yet written take
+   * precedence over the values read.
+   *
+   * @return true for success
+   */
+  public boolean reload()
+  {
+    synchronized (mLock)
+    {
+      try (FileChannel lLockChannel = openLockChannel();
+          FileLock lFileLock = lLockChannel.lock())
+      {
+        return reload(true);
+      }
+      catch (final IOException e)
+      {
+        // without the lock, a torn record may be an append in progress:
+        warning("Could not lock journal %s (%s), reading it without truncating it.",
+                mJournalFile,
+                e);
+        return reload(false);
+      }
+    }
+  }
+
+  private boolean reload(boolean pTruncateTornRecord)
+  {
+    // values are read into a separate map so that readers never miss them:
+    final Map<String, Object> lValueMap = new HashMap<>();
+    final Map<String, byte[]> lUndecodableRecordMap = new HashMap<>();
+    mNumberOfRecords = 0;
+    mJournalLength = 0;
+
+    if (mJournalFile.exists() && mJournalFile.length() > 0)
+    {
+      long lValidLength = 0;
+      try (DataInputStream lDataInputStream =
+                                            new DataInputStream(new BufferedInputStream(new FileInputStream(mJournalFile))))
+      {
+        if (lDataInputStream.readInt() != cMagicNumber)
+        {
+          warning("File %s is not a variable journal, ignoring it.",
+                  mJournalFile);
+          return false;
+        }
+        lValidLength = 4;
+
+        long lRecordLength;
+        while ((lRecordLength = readRecord(lDataInputStream,
+                                          lValueMap,
+                                          lUndecodableRecordMap)) > 0)
+        {
+          lValidLength += lRecordLength;
+          mNumberOfRecords++;
+        }
+      }
+      catch (final IOException e)
+      {
+        e.printStackTrace();
+        return false;
+      }
+
+      // drops a torn or corrupted record at the end of the journal, the
+      // exclusive lock guarantees that it is not being appended:
+      if (lValidLength < mJournalFile.length() && pTruncateTornRecord)
+        try (FileChannel lFileChannel =
+                                      FileChannel.open(mJournalFile.toPath(),
+                                                       StandardOpenOption.WRITE))
+        {
+          warning("Truncating journal %s from %d to %d bytes",
+                  mJournalFile,
+                  lFileChannel.size(),
+                  lValidLength);
+          lFileChannel.truncate(lValidLength);
+        }
+        catch (final IOException e)
+        {
+          e.printStackTrace();
+        }
+      mJournalLength = pTruncateTornRecord ? lValidLength
+                                           : mJournalFile.length();
+    }
+
+    for (String lKey : lUndecodableRecordMap.keySet())
+      if (!lValueMap.containsKey(lKey))
+        warning("Skipping value of '%s' in journal %s, it cannot be deserialized.",
+                lKey,
+                mJournalFile);
+
+    mValueMap.putAll(lValueMap);
+    mUndecodableRecordMap.putAll(lUndecodableRecordMap);
+    for (String lKey : lValueMap.keySet())
+      mUndecodableRecordMap.remove(lKey);
+    mValueMap.putAll(mPendingMap);
+    return true;
+  }
+
+  private void reloadIfModifiedExternally()
+  {
+    synchronized (mLock)
+    {
+      if (mJournalFile.length() != mJournalLength)
+        reload();
+    }
+  }
+
+  private FileChannel openLockChannel() throws IOException
+  {
+    return FileChannel.open(mLockFile.toPath(),
+                            StandardOpenOption.READ,
+                            StandardOpenOption.WRITE,
+                            StandardOpenOption.CREATE);
+  }
+
+  private void writeRecord(DataOutputStream pDataOutputStream,
+                           String pKey,
+                           Object pValue) throws IOException
+  {
+    final ByteArrayOutputStream lByteArrayOutputStream =
+                                                       new ByteArrayOutputStream();
+    final DataOutputStream lDataOutputStream =
+                                             new DataOutputStream(lByteArrayOutputStream);
+    writeString(lDataOutputStream, pKey);
+
+    if (pValue == cNull)
+      lDataOutputStream.writeByte(cNullType);
+    else if (pValue instanceof Boolean)
+    {
+      lDataOutputStream.writeByte(cBooleanType);
+      lDataOutputStream.writeBoolean((Boolean) pValue);
+    }
+    else if (pValue instanceof Integer)
+    {
+      lDataOutputStream.writeByte(cIntegerType);
+      lDataOutputStream.writeInt((Integer) pValue);
+    }
+    else if (pValue instanceof Long)
+    {
+      lDataOutputStream.writeByte(cLongType);
+      lDataOutputStream.writeLong((Long) pValue);
+    }
+    else if (pValue instanceof Float)
+    {
+      lDataOutputStream.writeByte(cFloatType);
+      lDataOutputStream.writeFloat((Float) pValue);
+    }
+    else if (pValue instanceof Double)
+    {
+      lDataOutputStream.writeByte(cDoubleType);
+      lDataOutputStream.writeDouble((Double) pValue);
+    }
+    else if (pValue instanceof String)
+    {
+      lDataOutputStream.writeByte(cStringType);
+      writeString(lDataOutputStream, (String) pValue);
+    }
+    else
+    {
+      lDataOutputStream.writeByte(cObjectType);
+      final ByteArrayOutputStream lObjectByteArrayOutputStream =
+                                                             new ByteArrayOutputStream();
+      try (ObjectOutputStream lObjectOutputStream =
+                                                  new ObjectOutputStream(lObjectByteArrayOutputStream))
+      {
+        lObjectOutputStream.writeObject(pValue);
+      }
+      lDataOutputStream.writeInt(lObjectByteArrayOutputStream.size());
+      lObjectByteArrayOutputStream.writeTo(lDataOutputStream);
+    }
+    lDataOutputStream.flush();
+
+    writeRecord(pDataOutputStream, lByteArrayOutputStream.toByteArray());
+  }
+
+  private static void writeRecord(DataOutputStream pDataOutputStream,
+                                  byte[] pRecord) throws IOException
+  {
+    final CRC32 lCRC32 = new CRC32();
+    lCRC32.update(pRecord);
+    pDataOutputStream.writeInt(pRecord.length);
+    pDataOutputStream.writeInt((int) lCRC32.getValue());
+    pDataOutputStream.write(pRecord);
+  }
+
+  /**
+   * Reads a record and puts its key and value in a given map. Records whose
+   * value cannot be deserialized go to another map.
+   *
+   * @return number of bytes read, or 0 if no valid record could be read
+   */
+  private long readRecord(DataInputStream pDataInputStream,
+                          Map<String, Object> pValueMap,
+                          Map<String, byte[]> pUndecodableRecordMap) throws IOException
+  {
+    final byte[] lRecord;
+    try
+    {
+      final int lLength = pDataInputStream.readInt();
+      final int lChecksum = pDataInputStream.readInt();
+      if (lLength <= 0)
+        return 0;
+      lRecord = new byte[lLength];
+      pDataInputStream.readFully(lRecord);
+
+      final CRC32 lCRC32 = new CRC32();
+      lCRC32.update(lRecord);
+      if ((int) lCRC32.getValue() != lChecksum)
+        return 0;
+    }
+    catch (EOFException e)
+    {
+      return 0;
+    }
+
+    final DataInputStream lDataInputStream =
+                                           new DataInputStream(new ByteArrayInputStream(lRecord));
+    final String lKey = readString(lDataInputStream);
+    final byte lType = lDataInputStream.readByte();
+    final Object lValue;
+    switch (lType)
+    {
+    case cBooleanType:
+      lValue = lDataInputStream.readBoolean();
+      break;
+    case cIntegerType:
+      lValue = lDataInputStream.readInt();
+      break;
+    case cLongType:
+      lValue = lDataInputStream.readLong();
+      break;
+    case cFloatType:
+      lValue = lDataInputStream.readFloat();
+      break;
+    case cDoubleType:
+      lValue = lDataInputStream.readDouble();
+      break;
+    case cStringType:
+      lValue = readString(lDataInputStream);
+      break;
+    case cObjectType:
+      final byte[] lObjectBytes =
+                                new byte[lDataInputStream.readInt()];
+      lDataInputStream.readFully(lObjectBytes);
+      try (ObjectInputStream lObjectInputStream =
+                                                new ObjectInputStream(new ByteArrayInputStream(lObjectBytes)))
+      {
+        lValue = lObjectInputStream.readObject();
+      }
+      catch (ClassNotFoundException | ObjectStreamException e)
+      {
+        pValueMap.remove(lKey);
+        pUndecodableRecordMap.put(lKey, lRecord);
+        return 8 + lRecord.length;
+      }
+      break;
+    default:
+      lValue = cNull;
+    }
+    pValueMap.put(lKey, lValue);
+    pUndecodableRecordMap.remove(lKey);
+
+    return 8 + lRecord.length;
+  }
+
+  private static void writeString(DataOutputStream pDataOutputStream,
+                                  String pString) throws IOException
+  {
+    final byte[] lBytes = pString.getBytes(StandardCharsets.UTF_8);
+    pDataOutputStream.writeInt(lBytes.length);
+    pDataOutputStream.write(lBytes);
+  }
+
+  private static String readString(DataInputStream pDataInputStream) throws IOException
+  {
+    final byte[] lBytes = new byte[pDataInputStream.readInt()];
+    pDataInputStream.readFully(lBytes);
+    return new String(lBytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Writes pending updates, stops watching the journal, and forgets this
+   * store. Later calls to {@link #get(File)} create a new store.
+   */
+  @Override
+  public void close()
+  {
+    flush();
+    try
+    {
+      mFileEventNotifier.close();
+    }
+    catch (final IOException e)
+    {
+      e.printStackTrace();
+    }
+    sStoreMap.remove(mJournalFile, this);
+    ClearControlExecutors.release(this);
+  }
+
+}
@@ -17,7 +17,8 @@ import clearcontrol.core.variable.Variable;
  * Variable as File
  * 
  * Stores and retrieves the variable value in a file using Java's standard
- * serialization
+ * serialization, or in a {@link PersistentVariableStore} under the variable's
+ * name.
  *
  * @param <O>
  *          variable type
@@ -31,25 +32,36 @@ public class VariableAsFile<O> extends Variable<O>
                                                       Long.MIN_VALUE;
 
   private final File mFile;
+  private final PersistentVariableStore mStore;
 
   private final Object mLock = new Object();
 
   /**
    * Instantiates a variables-as-file with a given name. The file is retrieved
-   * from the machine's configuration.
+   * from the machine's configuration, unless the machine configuration property
+   * 'persistence.journal' is true, in which case the value is kept in the
+   * default persistent variable store.
    * 
    * @param pVariableName
    *          variable name
    */
   public VariableAsFile(final String pVariableName)
   {
-
     this(pVariableName,
-         MachineConfiguration.get()
-                             .getPersistentVariableFile(pVariableName),
+         isJournaled() ? null
+                       : MachineConfiguration.get()
+                                             .getPersistentVariableFile(pVariableName),
+         isJournaled() ? PersistentVariableStore.getDefault() : null,
          null);
   }
 
+  private static boolean isJournaled()
+  {
+    return MachineConfiguration.get()
+                               .getBooleanProperty("persistence.journal",
+                                                   false);
+  }
+
   /**
    * Instantiates a variable-as-file with a given name, file
    * 
@@ -63,15 +75,49 @@ public class VariableAsFile<O> extends Variable<O>
   public VariableAsFile(final String pVariableName,
                         final File pFile,
                         final O pValue)
+  {
+    this(pVariableName, pFile, null, pValue);
+  }
+
+  /**
+   * Instantiates a variable-as-file with a given name that delegates to a
+   * persistent variable store: the value is kept under the variable's name.
+   * 
+   * @param pVariableName
+   *          variable name
+   * @param pStore
+   *          persistent variable store
+   * @param pValue
+   *          initial value, used if the store holds no value yet
+   */
+  public VariableAsFile(final String pVariableName,
+                        final PersistentVariableStore pStore,
+                        final O pValue)
+  {
+    this(pVariableName, null, pStore, pValue);
+  }
+
+  private VariableAsFile(final String pVariableName,
+                         final File pFile,
+                         final PersistentVariableStore pStore,
+                         final O pValue)
   {
     super(pVariableName, pValue);
     mFile = pFile;
-    mFile.getParentFile().mkdirs();
+    mStore = pStore;
+    if (mFile != null)
+      mFile.getParentFile().mkdirs();
   }
 
   @Override
   public O get()
   {
+    if (mStore != null)
+    {
+      mValue = mStore.get(getName(), mValue);
+      return super.get();
+    }
+
     if (mValue != null && mFile != null
         && mFile.exists()
         && mFile.lastModified() < mCachedReferenceFileSignature)
@@ -94,7 +140,10 @@ public class VariableAsFile<O> extends Variable<O>
   @Override
   public void set(final O pNewReference)
   {
-    saveToFile(pNewReference);
+    if (mStore != null)
+      mStore.put(getName(), pNewReference);
+    else
+      saveToFile(pNewReference);
     super.set(pNewReference);
   }
 
@@ -191,8 +240,10 @@ public class VariableAsFile<O> extends Variable<O>
   @Override
   public void close() throws IOException
   {
-    saveToFile(mValue);
-    // nothing to do
+    if (mStore != null)
+      mStore.flush();
+    else
+      saveToFile(mValue);
   }
 
 }
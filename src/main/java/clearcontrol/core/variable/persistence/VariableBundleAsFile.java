@@ -5,6 +5,7 @@ import java.util.Collection;
 import java.util.Formatter;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -12,10 +13,16 @@ import java.util.concurrent.TimeUnit;
 
 import clearcontrol.core.variable.Variable;
 import clearcontrol.core.variable.VariableListener;
+import clearcontrol.core.variable.VariableSetListener;
 import clearcontrol.core.variable.bundle.VariableBundle;
 
 /**
  * Variable bundle as file
+ * 
+ * Stores and retrieves the values of the variables of a bundle in a text file,
+ * or in a {@link PersistentVariableStore} under keys made of the bundle name
+ * and the variables' prefixes and names. With a store, an update of a variable
+ * only updates its own key, instead of rewriting the whole bundle.
  *
  * @author royer
  */
@@ -32,6 +39,11 @@ public class VariableBundleAsFile extends VariableBundle
   private final VariableListener mVariableListener;
 
   private final File mFile;
+  private final PersistentVariableStore mStore;
+  private final ConcurrentHashMap<Variable<?>, VariableSetListener<?>> mStoreListenerMap =
+                                                                                       new ConcurrentHashMap<>();
+  private final ThreadLocal<Boolean> mReadingFromStoreThreadLocal =
+                                                                 new ThreadLocal<>();
 
   private final Object mLock = new Object();
 
@@ -59,13 +71,38 @@ public class VariableBundleAsFile extends VariableBundle
    * @param pAutoReadOnGet
    *          if true the file will be read for every get
    */
-  @SuppressWarnings("rawtypes")
   public VariableBundleAsFile(final String pBundleName,
                               final File pFile,
                               final boolean pAutoReadOnGet)
+  {
+    this(pBundleName, pFile, null, pAutoReadOnGet);
+  }
+
+  /**
+   * Instantiates a variable-bundle-as-file object that delegates to a
+   * persistent variable store.
+   * 
+   * @param pBundleName
+   *          bundle name
+   * @param pStore
+   *          persistent variable store to use to store and retrieve the
+   *          bundle's variable values.
+   */
+  public VariableBundleAsFile(final String pBundleName,
+                              final PersistentVariableStore pStore)
+  {
+    this(pBundleName, null, pStore, false);
+  }
+
+  @SuppressWarnings("rawtypes")
+  private VariableBundleAsFile(final String pBundleName,
+                               final File pFile,
+                               final PersistentVariableStore pStore,
+                               final boolean pAutoReadOnGet)
   {
     super(pBundleName);
     mFile = pFile;
+    mStore = pStore;
 
     mVariableListener = new VariableListener()
     {
@@ -111,7 +148,10 @@ public class VariableBundleAsFile extends VariableBundle
     final String lKey = pPrefix + (pPrefix.isEmpty() ? "" : ".")
                         + pVariable.getName();
     mPrefixWithNameToVariableMap.put(lKey.trim(), pVariable);
-    registerListener(pVariable);
+    if (mStore != null)
+      registerStoreListener(lKey.trim(), pVariable);
+    else
+      registerListener(pVariable);
   }
 
   @Override
@@ -146,6 +186,30 @@ public class VariableBundleAsFile extends VariableBundle
   private void unregisterListener(final Variable<?> pVariable)
   {
     pVariable.removeListener(mVariableListener);
+    unregisterStoreListener(pVariable);
+  }
+
+  private <O> void registerStoreListener(final String pPrefixAndName,
+                                         final Variable<O> pVariable)
+  {
+    // with a store, only the key of the updated variable is written, values
+    // read from the store are not written back:
+    final String lStoreKey = getStoreKey(pPrefixAndName);
+    final VariableSetListener<O> lVariableSetListener = (o, n) -> {
+      if (!isReadingFromStore())
+        mStore.put(lStoreKey, n);
+    };
+    pVariable.addSetListener(lVariableSetListener);
+    mStoreListenerMap.put(pVariable, lVariableSetListener);
+  }
+
+  @SuppressWarnings("unchecked")
+  private void unregisterStoreListener(final Variable<?> pVariable)
+  {
+    final VariableSetListener<?> lVariableSetListener =
+                                                      mStoreListenerMap.remove(pVariable);
+    if (lVariableSetListener != null)
+      ((Variable<Object>) pVariable).removeSetListener((VariableSetListener<Object>) lVariableSetListener);
   }
 
   @SuppressWarnings("unchecked")
@@ -155,6 +219,7 @@ public class VariableBundleAsFile extends VariableBundle
     for (final Variable<?> lVariable : lAllVariables)
     {
       lVariable.removeListener(mVariableListener);
+      unregisterStoreListener(lVariable);
     }
   }
 
@@ -165,6 +230,8 @@ public class VariableBundleAsFile extends VariableBundle
    */
   public boolean read()
   {
+    if (mStore != null)
+      return readFromStore();
 
     try
     {
@@ -271,6 +338,14 @@ public class VariableBundleAsFile extends VariableBundle
    */
   public boolean write()
   {
+    if (mStore != null)
+    {
+      for (final Map.Entry<String, Variable<?>> lVariableEntry : mPrefixWithNameToVariableMap.entrySet())
+        mStore.put(getStoreKey(lVariableEntry.getKey()),
+                   lVariableEntry.getValue().get());
+      return mStore.flush();
+    }
+
     synchronized (mLock)
     {
       Formatter lFormatter = null;
@@ -324,8 +399,48 @@ public class VariableBundleAsFile extends VariableBundle
 
   }
 
+  private String getStoreKey(String pPrefixAndName)
+  {
+    return getName() + "." + pPrefixAndName;
+  }
+
+  @SuppressWarnings("unchecked")
+  private boolean readFromStore()
+  {
+    // set listeners are called on this thread:
+    mReadingFromStoreThreadLocal.set(true);
+    try
+    {
+      for (final Map.Entry<String, Variable<?>> lVariableEntry : mPrefixWithNameToVariableMap.entrySet())
+      {
+        final String lKey = getStoreKey(lVariableEntry.getKey());
+        if (mStore.contains(lKey))
+        {
+          final Variable<Object> lVariable =
+                                           (Variable<Object>) lVariableEntry.getValue();
+          lVariable.set(mStore.get(lKey, lVariable.get()));
+        }
+      }
+      return true;
+    }
+    finally
+    {
+      mReadingFromStoreThreadLocal.remove();
+    }
+  }
+
+  private boolean isReadingFromStore()
+  {
+    final Boolean lReadingFromStore = mReadingFromStoreThreadLocal.get();
+    return lReadingFromStore != null && lReadingFromStore;
+  }
+
+  @Override
   public void close()
   {
+    if (mStore != null)
+      mStore.flush();
+
     cSingleThreadExecutor.shutdown();
     try
     {
@@ -6,10 +6,15 @@ import static java.lang.Math.round;
 import static java.lang.Math.toIntExact;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 
 import nirioj.direttore.Direttore;
 import clearcontrol.core.concurrent.executors.AsynchronousExecutorFeature;
+import clearcontrol.core.concurrent.executors.ClearControlExecutors;
 import clearcontrol.devices.signalgen.measure.Measure;
 import clearcontrol.devices.signalgen.measure.MeasureInterface;
 import clearcontrol.devices.signalgen.score.ScoreInterface;
@@ -17,25 +22,140 @@ import clearcontrol.devices.signalgen.staves.ConstantStave;
 import clearcontrol.devices.signalgen.staves.IntervalStave;
 import clearcontrol.devices.signalgen.staves.StaveInterface;
 import clearcontrol.devices.signalgen.staves.ZeroStave;
+import coremem.ContiguousMemoryInterface;
 import coremem.buffers.ContiguousBuffer;
 
+/**
+ * Compiles scores into the buffers played by the NI RIO signal generator.
+ * 
+ * Each stave of a measure is evaluated into a contiguous float array, then
+ * quantised and interleaved into a short array that is copied in one go to the
+ * measure's region of the score buffer. Measures are compiled in parallel.
+ *
+ * @author royer
+ */
 public class NIRIOScoreCompiler implements AsynchronousExecutorFeature
 {
-
+  private static final int cNumberOfThreads =
+                                            Math.max(1,
+                                                     Runtime.getRuntime()
+                                                            .availableProcessors());
+
+  // only used as a plain executor, futures are kept locally by each
+  // compilation so that the executor does not accumulate them:
+  private static final Executor sExecutor =
+                                          ClearControlExecutors.getOrCreateThreadPoolExecutor(NIRIOScoreCompiler.class,
+                                                                                              Thread.NORM_PRIORITY,
+                                                                                              cNumberOfThreads,
+                                                                                              cNumberOfThreads,
+                                                                                              Integer.MAX_VALUE);
+
+  // per-thread scratch arrays, reused as long as the measure size does not
+  // change:
+  private static final ThreadLocal<float[]> sStaveValues =
+                                                         new ThreadLocal<>();
+  private static final ThreadLocal<short[]> sMeasureShorts =
+                                                           new ThreadLocal<>();
+
+  /**
+   * Compiles the given score into the given compiled score, measures are
+   * compiled in parallel.
+   * 
+   * @param pNIRIOCompiledScore
+   *          compiled score
+   * @param pScore
+   *          score
+   */
   public static void compile(NIRIOCompiledScore pNIRIOCompiledScore,
                              ScoreInterface pScore)
   {
+    compile(pNIRIOCompiledScore, pScore, true);
+  }
+
+  /**
+   * Compiles the given score into the given compiled score, measures are
+   * compiled in parallel or sequentially.
+   * 
+   * @param pNIRIOCompiledScore
+   *          compiled score
+   * @param pScore
+   *          score
+   * @param pParallel
+   *          true for compiling measures in parallel
+   */
+  public static void compile(NIRIOCompiledScore pNIRIOCompiledScore,
+                             ScoreInterface pScore,
+                             boolean pParallel)
+  {
 
     ensureBuffersAreLargeEnough(pNIRIOCompiledScore, pScore);
 
     final ArrayList<MeasureInterface> lMeasures =
                                                   pScore.getMeasures();
+    final int lNumberOfMeasures = lMeasures.size();
+
+    // offsets of each measure in the score buffer, in shorts:
+    final long[] lMeasureOffsets = new long[lNumberOfMeasures + 1];
+    for (int m = 0; m < lNumberOfMeasures; m++)
+    {
+      final MeasureInterface lMeasure = lMeasures.get(m);
+      compileMeasureHeader(pNIRIOCompiledScore, lMeasure);
+      lMeasureOffsets[m + 1] = lMeasureOffsets[m]
+                               + getNumberOfTimePoints(lMeasure)
+                                 * lMeasure.getNumberOfStaves();
+    }
+
+    final ContiguousMemoryInterface lScoreMemory =
+                                                 pNIRIOCompiledScore.getScoreBuffer()
+                                                                    .getContiguousMemory();
 
-    for (final MeasureInterface lMeasure : lMeasures)
+    if (!pParallel || lNumberOfMeasures <= 1 || cNumberOfThreads <= 1)
     {
-      compileMeasure(pNIRIOCompiledScore, lMeasure);
+      compileMeasures(lScoreMemory,
+                      lMeasures,
+                      lMeasureOffsets,
+                      0,
+                      lNumberOfMeasures);
+    }
+    else
+    {
+      // a few more tasks than threads to balance uneven measures:
+      final int lNumberOfTasks = Math.min(lNumberOfMeasures,
+                                          4 * cNumberOfThreads);
+      final ArrayList<FutureTask<Object>> lFutureList = new ArrayList<>();
+      for (int i = 0; i < lNumberOfTasks; i++)
+      {
+        final int lBegin = (int) ((long) lNumberOfMeasures * i
+                                  / lNumberOfTasks);
+        final int lEnd = (int) ((long) lNumberOfMeasures * (i + 1)
+                                / lNumberOfTasks);
+        final FutureTask<Object> lFuture =
+                                         new FutureTask<>(() -> compileMeasures(lScoreMemory,
+                                                                                lMeasures,
+                                                                                lMeasureOffsets,
+                                                                                lBegin,
+                                                                                lEnd),
+                                                          null);
+        lFutureList.add(lFuture);
+        sExecutor.execute(lFuture);
+      }
+
+      for (FutureTask<Object> lFuture : lFutureList)
+      {
+        try
+        {
+          lFuture.get();
+        }
+        catch (InterruptedException | ExecutionException e)
+        {
+          throw new RuntimeException("Could not compile score "
+                                     + pScore, e);
+        }
+      }
     }
 
+    pNIRIOCompiledScore.getScoreBuffer()
+                       .skipShorts(lMeasureOffsets[lNumberOfMeasures]);
   }
 
   private static void ensureBuffersAreLargeEnough(NIRIOCompiledScore pNIRIOCompiledScore,
@@ -92,8 +212,8 @@ public class NIRIOScoreCompiler implements AsynchronousExecutorFeature
 
   }
 
-  private static void compileMeasure(NIRIOCompiledScore pNIRIOCompiledScore,
-                                      MeasureInterface pMeasure)
+  private static void compileMeasureHeader(NIRIOCompiledScore pNIRIOCompiledScore,
+                                           MeasureInterface pMeasure)
   {
     final int pDeltaTimeInTicks =
                                 round(getDeltaTimeInNs(pMeasure)
@@ -110,82 +230,109 @@ public class NIRIOScoreCompiler implements AsynchronousExecutorFeature
     pNIRIOCompiledScore.getNumberOfTimePointsBuffer()
                        .writeInt(toIntExact(lNumberOfTimePoints));
 
-    addMeasureToBuffer(pNIRIOCompiledScore.getScoreBuffer(),
-                        pMeasure);
-
     pNIRIOCompiledScore.setNumberOfMeasures(pNIRIOCompiledScore.getNumberOfMeasures()
                                              + 1);
   }
 
-  private static void addMeasureToBuffer(ContiguousBuffer pScoreBuffer,
-                                          MeasureInterface pMeasure)
+  private static void compileMeasures(ContiguousMemoryInterface pScoreMemory,
+                                      ArrayList<MeasureInterface> pMeasures,
+                                      long[] pMeasureOffsets,
+                                      int pBegin,
+                                      int pEnd)
   {
-    final long lNumberOfTimePoints = getNumberOfTimePoints(pMeasure);
+    for (int m = pBegin; m < pEnd; m++)
+    {
+      final long lOffset = pMeasureOffsets[m];
+      final long lLength = pMeasureOffsets[m + 1] - lOffset;
+      if (lLength == 0)
+        continue;
+
+      final short[] lMeasureShorts =
+                                   compileMeasure(pMeasures.get(m),
+                                                  toIntExact(lLength));
+
+      pScoreMemory.subRegion(2 * lOffset, 2 * lLength)
+                  .copyFrom(lMeasureShorts);
+    }
+  }
+
+  private static short[] compileMeasure(MeasureInterface pMeasure,
+                                        int pNumberOfShorts)
+  {
+    final int lNumberOfTimePoints =
+                                  toIntExact(getNumberOfTimePoints(pMeasure));
     final int lNumberOfStaves = pMeasure.getNumberOfStaves();
 
-    pScoreBuffer.pushPosition();
-    long lNumberOfShortsInMeasure = lNumberOfTimePoints
-                                     * lNumberOfStaves;
-    pScoreBuffer.writeBytes(2 * lNumberOfShortsInMeasure, (byte) 0);
-    pScoreBuffer.popPosition();
+    final float[] lStaveValues = getScratchFloats(lNumberOfTimePoints);
+    final short[] lMeasureShorts = getScratchShorts(pNumberOfShorts);
 
-    pScoreBuffer.pushPosition();
     for (int s = 0; s < lNumberOfStaves; s++)
     {
-
-      pScoreBuffer.pushPosition();
       final StaveInterface lStave = pMeasure.getStave(s);
 
       if (lStave instanceof ZeroStave)
       {
-        addZeroStaveToBuffer(pScoreBuffer,
-                             lNumberOfTimePoints,
-                             lNumberOfStaves);
+        fillZeroStaveValues(lStaveValues, lNumberOfTimePoints);
       }
       else if (lStave instanceof ConstantStave)
       {
         final ConstantStave lConstantStave = (ConstantStave) lStave;
-        addConstantStaveToBuffer(pScoreBuffer,
-                                 lNumberOfTimePoints,
-                                 lNumberOfStaves,
-                                 lConstantStave.getConstantValue());
+        fillConstantStaveValues(lStaveValues,
+                                lNumberOfTimePoints,
+                                lConstantStave.getConstantValue());
       }
       else if (lStave instanceof IntervalStave)
       {
         final IntervalStave lIntervalStave = (IntervalStave) lStave;
-        addIntervalStaveToBuffer(pScoreBuffer,
-                                 lNumberOfTimePoints,
-                                 lNumberOfStaves,
-                                 lIntervalStave);
+        fillIntervalStaveValues(lStaveValues,
+                                lNumberOfTimePoints,
+                                lIntervalStave);
       } /**/
       else
       {
-        addStaveToBuffer(pScoreBuffer,
-                         lNumberOfTimePoints,
-                         lNumberOfStaves,
-                         lStave);
+        lStave.getValues(lStaveValues, lNumberOfTimePoints);
       }
 
-      pScoreBuffer.popPosition();
-      pScoreBuffer.skipShorts(1);
+      // quantises and interleaves the stave's values:
+      for (int t = 0, i = s; t < lNumberOfTimePoints; t++, i +=
+                                                           lNumberOfStaves)
+        lMeasureShorts[i] = getShortForFloat(lStaveValues[t]);
     }
-    pScoreBuffer.popPosition();
 
-    pScoreBuffer.skipShorts(lNumberOfShortsInMeasure);
+    return lMeasureShorts;
+  }
+
+  private static float[] getScratchFloats(int pLength)
+  {
+    float[] lArray = sStaveValues.get();
+    if (lArray == null || lArray.length < pLength)
+    {
+      lArray = new float[pLength];
+      sStaveValues.set(lArray);
+    }
+    return lArray;
+  }
 
+  private static short[] getScratchShorts(int pLength)
+  {
+    // must be of the exact length since it is copied as a whole:
+    short[] lArray = sMeasureShorts.get();
+    if (lArray == null || lArray.length != pLength)
+    {
+      lArray = new short[pLength];
+      sMeasureShorts.set(lArray);
+    }
+    return lArray;
   }
 
-  private static void addIntervalStaveToBuffer(ContiguousBuffer pScoreBuffer,
-                                               long pNumberOfTimePoints,
-                                               int pNumberOfStaves,
-                                               IntervalStave pIntervalStave)
+  private static void fillIntervalStaveValues(float[] pValues,
+                                              int pNumberOfTimePoints,
+                                              IntervalStave pIntervalStave)
   {
     final float lSyncStart = pIntervalStave.getStart();
     final float lSyncStop = pIntervalStave.getStop();
-    final short lInsideValue =
-                             getShortForFloat(pIntervalStave.getInsideValue());
-    final short lOutsideValue =
-                              getShortForFloat(pIntervalStave.getOutsideValue());
+    final float lInsideValue = pIntervalStave.getInsideValue();
+    final float lOutsideValue = pIntervalStave.getOutsideValue();
     final boolean lEnabled = pIntervalStave.isEnabled();
 
     final float lInvNumberOfTimepoints = 1f / pNumberOfTimePoints;
@@ -195,60 +342,35 @@ public class NIRIOScoreCompiler implements AsynchronousExecutorFeature
 
       if (!lEnabled)
       {
-        pScoreBuffer.writeShort(lOutsideValue);
+        pValues[t] = lOutsideValue;
       }
       else if (t == pNumberOfTimePoints - 1 && lSyncStart == 0)
       {
-        pScoreBuffer.writeShort(lOutsideValue);
+        pValues[t] = lOutsideValue;
       }
       else
       {
         if (lNormalizedTime < lSyncStart
             || lNormalizedTime > lSyncStop)
-          pScoreBuffer.writeShort(lOutsideValue);
+          pValues[t] = lOutsideValue;
         else
-          pScoreBuffer.writeShort(lInsideValue);
+          pValues[t] = lInsideValue;
       }
-
-      pScoreBuffer.skipShorts(pNumberOfStaves - 1);
     }
 
   }
 
-  private static void addConstantStaveToBuffer(ContiguousBuffer pScoreBuffer,
-                                               final long pNumberOfTimePoints,
-                                               final int pNumberOfStaves,
-                                               final float pFloatConstant)
+  private static void fillConstantStaveValues(float[] pValues,
+                                              final int pNumberOfTimePoints,
+                                              final float pFloatConstant)
   {
-    final short lShortValue = getShortForFloat(pFloatConstant);
-    for (int t = 0; t < pNumberOfTimePoints; t++)
-    {
-      pScoreBuffer.writeShort(lShortValue);
-      pScoreBuffer.skipShorts(pNumberOfStaves - 1);
-    }
-  }
-
-  private static void addZeroStaveToBuffer(ContiguousBuffer pScoreBuffer,
-                                           final long pNumberOfTimePoints,
-                                           final int pNumberOfStaves)
-  {
-    // do nothing - already 0
+    Arrays.fill(pValues, 0, pNumberOfTimePoints, pFloatConstant);
   }
 
-  private static void addStaveToBuffer(ContiguousBuffer pScoreBuffer,
-                                       final long pNumberOfTimePoints,
-                                       final int pNumberOfStaves,
-                                       final StaveInterface pStave)
+  private static void fillZeroStaveValues(float[] pValues,
+                                          final int pNumberOfTimePoints)
   {
-    final float lInvNumberOfTimepoints = 1f / pNumberOfTimePoints;
-    for (int t = 0; t < pNumberOfTimePoints; t++)
-    {
-      final float lNormalizedTime = t * lInvNumberOfTimepoints;
-      final float lFloatValue = pStave.getValue(lNormalizedTime);
-      final short lShortValue = getShortForFloat(lFloatValue);
-      pScoreBuffer.writeShort(lShortValue);
-      pScoreBuffer.skipShorts(pNumberOfStaves - 1);
-    }
+    Arrays.fill(pValues, 0, pNumberOfTimePoints, 0f);
   }
 
   private static short getShortForFloat(final float lFloatValue)
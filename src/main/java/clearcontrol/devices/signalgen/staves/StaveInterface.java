@@ -45,4 +45,21 @@ public interface StaveInterface extends NameableInterface, Cloneable
    */
   float getValue(float pNormalizedTime);
 
+  /**
+   * Evaluates this stave at the normalized times t/n for t in [0,n) and writes
+   * the values to the given array. Derived classes can override this to
+   * compute the values in bulk.
+   * 
+   * @param pValues
+   *          array receiving the values, of length at least n
+   * @param pNumberOfTimePoints
+   *          number of time points n
+   */
+  default void getValues(float[] pValues, int pNumberOfTimePoints)
+  {
+    final float lInvNumberOfTimepoints = 1f / pNumberOfTimePoints;
+    for (int t = 0; t < pNumberOfTimePoints; t++)
+      pValues[t] = getValue(t * lInvNumberOfTimepoints);
+  }
+
 }
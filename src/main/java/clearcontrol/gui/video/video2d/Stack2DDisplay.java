@@ -12,8 +12,10 @@ import clearcontrol.gui.video.StackDisplayInterface;
 import clearcontrol.gui.video.util.MinMaxControlDialog;
 import clearcontrol.gui.video.video2d.videowindow.VideoWindow;
 import clearcontrol.stack.EmptyStack;
+import clearcontrol.stack.OffHeapPlanarStack;
 import clearcontrol.stack.StackInterface;
 import clearcontrol.stack.imglib2.ImageJStackDisplay;
+import clearcontrol.stack.processor.projection.StackProjections;
 import cleargl.ClearGLWindow;
 
 import com.jogamp.newt.event.KeyAdapter;
@@ -29,6 +31,19 @@ import coremem.exceptions.FreedException;
 /**
  * Stack 2D display
  *
+ * Only the plane that is displayed is copied from each received stack, so that
+ * received stacks can be forwarded right away. While the user browses through
+ * slices, or inspects the stack in ImageJ, whole stacks are copied so that any
+ * slice of the last received stack can be shown. Received stacks are not
+ * retained once forwarded, so a slice, or the whole stack for ImageJ, that is
+ * requested while no whole stack copy is available is shown as soon as the
+ * next stack is received.
+ *
+ * Automatic contrast is taken from the histogram of the last stack projections
+ * received (see {@link #getInputProjectionsVariable()}) when these projections
+ * match the last received stack in size, type and index, otherwise from
+ * sampling the displayed plane.
+ *
  * @author royer
  */
 public class Stack2DDisplay extends VirtualDevice implements
@@ -41,7 +56,21 @@ public class Stack2DDisplay extends VirtualDevice implements
   private boolean mFlipX = false;
   private Variable<StackInterface> mOutputStackVariable;
 
+  private static final long cSliceBrowsingTimeOutInMilliseconds = 10000;
+  private static final double cAutoContrastLowFraction = 0.0001;
+  private static final double cAutoContrastHighFraction = 0.9999;
+
   private volatile StackInterface mReceivedStackCopy;
+  private volatile StackInterface mReceivedPlaneCopy;
+  private volatile long mSliceBrowsingDeadlineInMilliseconds;
+  private volatile boolean mImageJDisplayRequested;
+
+  // last received stack, to check that projections match it:
+  private volatile long mReceivedStackWidth;
+  private volatile long mReceivedStackHeight;
+  private volatile long mReceivedStackDepth;
+  private volatile long mReceivedStackIndex = -1;
+  private volatile NativeTypeEnum mReceivedStackDataType;
 
   private final Variable<Boolean> mDisplayOn;
   private final Variable<Boolean> mManualMinMaxIntensity;
@@ -50,6 +79,8 @@ public class Stack2DDisplay extends VirtualDevice implements
 
   private final Variable<Double> mStackSliceNormalizedIndex;
 
+  private final Variable<StackProjections> mInputProjectionsVariable;
+
   private AsynchronousProcessorBase<StackInterface, Object> mAsynchronousDisplayUpdater;
 
   private final ReentrantLock mDisplayLock = new ReentrantLock();
@@ -137,7 +168,11 @@ public class Stack2DDisplay extends VirtualDevice implements
           final double nx = ((double) pMouseEvent.getX())
                             / mVideoWindow.getWindowWidth();
           mStackSliceNormalizedIndex.set(nx);
-          displayStack(mReceivedStackCopy, true);
+          requestSliceBrowsing();
+          // without a whole stack copy the new slice shows up with the next
+          // received stack:
+          if (mReceivedStackCopy != null)
+            displayStack(mReceivedStackCopy, true);
         }
 
         super.mouseDragged(pMouseEvent);
@@ -156,9 +191,13 @@ public class Stack2DDisplay extends VirtualDevice implements
         case KeyEvent.VK_I:
           try
           {
-            mDisplayLock.lock();
-            ImageJStackDisplay.show(mReceivedStackCopy);
-            mDisplayLock.unlock();
+            requestSliceBrowsing();
+            // the plane copy is not a stack worth inspecting, the next
+            // received stack is copied whole and shown instead:
+            if (mReceivedStackCopy != null)
+              showReceivedStackCopyInImageJ();
+            else
+              mImageJDisplayRequested = true;
           }
           catch (Throwable e)
           {
@@ -194,11 +233,27 @@ public class Stack2DDisplay extends VirtualDevice implements
 
                                     try
                                     {
+                                      setReceivedStack(pStack);
                                       if (mVideoWindow.isVisible())
                                       {
-                                        makeCopyOfReceivedStack(pStack);
-                                        displayStack(mReceivedStackCopy,
-                                                     false);
+                                        if (isSliceBrowsing())
+                                        {
+                                          makeCopyOfReceivedStack(pStack);
+                                          displayStack(mReceivedStackCopy,
+                                                       false);
+                                          if (mImageJDisplayRequested)
+                                          {
+                                            mImageJDisplayRequested =
+                                                                    false;
+                                            showReceivedStackCopyInImageJ();
+                                          }
+                                        }
+                                        else
+                                        {
+                                          makeCopyOfReceivedPlane(pStack);
+                                          displayStack(mReceivedPlaneCopy,
+                                                       false);
+                                        }
                                       }
                                       forwardStack(pStack);
                                     }
@@ -287,17 +342,44 @@ public class Stack2DDisplay extends VirtualDevice implements
                                new Variable<Double>("StackSliceNormalizedIndex",
                                                     Double.NaN);
 
+    mInputProjectionsVariable =
+                              new Variable<StackProjections>(pWindowName
+                                                             + "ProjectionsInput",
+                                                             null);
+
     Runnable lAutoRescaleRunnable = () -> {
+      final StackProjections lProjections = getMatchingProjections();
+      if (lProjections != null)
+      {
+        // histogram is already computed, no need to sample:
+        try
+        {
+          final double lMin =
+                            lProjections.getPercentile(cAutoContrastLowFraction)
+                              / (double) StackProjections.cMaximalValue;
+          final double lMax =
+                            lProjections.getPercentile(cAutoContrastHighFraction)
+                              / (double) StackProjections.cMaximalValue;
+          mVideoWindow.updateSampledMinMax(lMin, lMax);
+        }
+        finally
+        {
+          lProjections.release();
+        }
+        return;
+      }
+
       boolean lTryLock = false;
       try
       {
         lTryLock = mDisplayLock.tryLock(1, TimeUnit.MILLISECONDS);
-        if (lTryLock && mReceivedStackCopy != null)
+        final StackInterface lLastViewedStack = getLastViewedStack();
+        if (lTryLock && lLastViewedStack != null)
         {
           int lStackZIndex =
-                           getCurrentStackPlaneIndex(mReceivedStackCopy);
+                           getCurrentStackPlaneIndex(lLastViewedStack);
           ContiguousMemoryInterface lContiguousMemory =
-                                                      mReceivedStackCopy.getContiguousMemory(lStackZIndex);
+                                                      lLastViewedStack.getContiguousMemory(lStackZIndex);
 
           if (mVideoWindow != null)
             mVideoWindow.fastMinMaxSampling(lContiguousMemory);
@@ -330,6 +412,115 @@ public class Stack2DDisplay extends VirtualDevice implements
     MinMaxControlDialog.showDialog(mVideoWindow);
   }
 
+  private void showReceivedStackCopyInImageJ()
+  {
+    mDisplayLock.lock();
+    try
+    {
+      if (mReceivedStackCopy != null)
+        ImageJStackDisplay.show(mReceivedStackCopy);
+    }
+    finally
+    {
+      mDisplayLock.unlock();
+    }
+  }
+
+  private void requestSliceBrowsing()
+  {
+    mSliceBrowsingDeadlineInMilliseconds =
+                                         System.currentTimeMillis()
+                                           + cSliceBrowsingTimeOutInMilliseconds;
+  }
+
+  private boolean isSliceBrowsing()
+  {
+    return System.currentTimeMillis() < mSliceBrowsingDeadlineInMilliseconds;
+  }
+
+  private void setReceivedStack(final StackInterface pStack)
+  {
+    final Long lStackIndex = pStack.getMetaData() == null ? null
+                                                          : pStack.getMetaData()
+                                                                  .getIndex();
+    // the type is cleared while the other fields are updated:
+    mReceivedStackDataType = null;
+    mReceivedStackWidth = pStack.getWidth();
+    mReceivedStackHeight = pStack.getHeight();
+    mReceivedStackDepth = pStack.getDepth();
+    mReceivedStackIndex = lStackIndex == null ? -1 : lStackIndex;
+    mReceivedStackDataType = pStack.getDataType();
+  }
+
+  /**
+   * Returns the last received projections if they were computed from the last
+   * received stack. Projections are unsigned 16-bit, and normalized the same
+   * way as the displayed unsigned 16-bit planes. Returned projections are
+   * acquired, and must be released once read.
+   * 
+   * @return matching projections, or null
+   */
+  private StackProjections getMatchingProjections()
+  {
+    final StackProjections lProjections = mInputProjectionsVariable.get();
+    if (lProjections == null || !lProjections.acquire())
+      return null;
+
+    // without stack indices, only sizes can be compared:
+    final long lStackIndex = lProjections.getStackIndex();
+    if (mReceivedStackDataType != NativeTypeEnum.UnsignedShort
+        || lProjections.getWidth() != mReceivedStackWidth
+        || lProjections.getHeight() != mReceivedStackHeight
+        || lProjections.getNumberOfPlanes() != mReceivedStackDepth
+        || (lStackIndex != -1 && mReceivedStackIndex != -1
+            && lStackIndex != mReceivedStackIndex))
+    {
+      lProjections.release();
+      return null;
+    }
+
+    return lProjections;
+  }
+
+  private void makeCopyOfReceivedPlane(final StackInterface pStack)
+  {
+    final ContiguousMemoryInterface lPlaneMemory =
+                                                 pStack.getContiguousMemory(getCurrentStackPlaneIndex(pStack));
+
+    if (mReceivedPlaneCopy == null
+        || mReceivedPlaneCopy.getWidth() != pStack.getWidth()
+        || mReceivedPlaneCopy.getHeight() != pStack.getHeight()
+        || mReceivedPlaneCopy.getDataType() != pStack.getDataType()
+        || mReceivedPlaneCopy.getSizeInBytes() != lPlaneMemory.getSizeInBytes())
+    {
+      final StackInterface lPlaneCopy =
+                                      new OffHeapPlanarStack(false,
+                                                             0,
+                                                             pStack.getDataType(),
+                                                             pStack.getNumberOfChannels(),
+                                                             pStack.getWidth(),
+                                                             pStack.getHeight(),
+                                                             1);
+      mDisplayLock.lock();
+      final StackInterface lStackToFree = mReceivedPlaneCopy;
+      mReceivedPlaneCopy = lPlaneCopy;
+      if (lStackToFree != null)
+        lStackToFree.free();
+      mDisplayLock.unlock();
+    }
+
+    mDisplayLock.lock();
+    if (mReceivedStackCopy != null)
+    {
+      // slice browsing is over, the whole stack copy is not needed anymore:
+      mReceivedStackCopy.free();
+      mReceivedStackCopy = null;
+    }
+    if (!mReceivedPlaneCopy.isFree())
+      mReceivedPlaneCopy.getContiguousMemory().copyFrom(lPlaneMemory);
+    mDisplayLock.unlock();
+  }
+
   private void makeCopyOfReceivedStack(final StackInterface pStack)
   {
     if (mReceivedStackCopy == null
@@ -480,6 +671,17 @@ public class Stack2DDisplay extends VirtualDevice implements
     return mInputStackVariable;
   }
 
+  /**
+   * Returns the variable receiving stack projections, the histogram of the
+   * last projections received is used for automatic contrast.
+   * 
+   * @return input projections variable
+   */
+  public Variable<StackProjections> getInputProjectionsVariable()
+  {
+    return mInputProjectionsVariable;
+  }
+
   public VideoWindow getVideoWindow()
   {
     return mVideoWindow;
@@ -547,9 +749,18 @@ public class Stack2DDisplay extends VirtualDevice implements
     return mVideoWindow.getGLWindow();
   }
 
+  /**
+   * Returns a copy of the last viewed stack, this is the whole stack only while
+   * browsing slices, otherwise only the displayed plane.
+   * 
+   * @return copy of last viewed stack or plane
+   */
   public StackInterface getLastViewedStack()
   {
-    return mReceivedStackCopy;
+    final StackInterface lReceivedStackCopy = mReceivedStackCopy;
+    if (lReceivedStackCopy != null)
+      return lReceivedStackCopy;
+    return mReceivedPlaneCopy;
   }
 
   public boolean isFlipX()
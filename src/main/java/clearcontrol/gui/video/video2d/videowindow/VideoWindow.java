@@ -392,6 +392,21 @@ public class VideoWindow implements AutoCloseable
         lMax = max(lMax, lDoubleAligned);
       }
 
+    updateSampledMinMax(lMin, lMax);
+  }
+
+  /**
+   * Updates the automatic min and max intensities with given normalized
+   * intensities, for example taken from a precomputed histogram. Updates are
+   * smoothed over time.
+   * 
+   * @param pMin
+   *          normalized min intensity
+   * @param pMax
+   *          normalized max intensity
+   */
+  public void updateSampledMinMax(final double pMin, final double pMax)
+  {
     if (!Double.isFinite(this.mSampledMinIntensity))
       this.mSampledMinIntensity = 0;
 
@@ -400,10 +415,10 @@ public class VideoWindow implements AutoCloseable
 
     this.mSampledMinIntensity = (1 - VideoWindow.cEpsilon)
                                 * this.mSampledMinIntensity
-                                + VideoWindow.cEpsilon * lMin;
+                                + VideoWindow.cEpsilon * pMin;
     this.mSampledMaxIntensity = (1 - VideoWindow.cEpsilon)
                                 * this.mSampledMaxIntensity
-                                + VideoWindow.cEpsilon * lMax;
+                                + VideoWindow.cEpsilon * pMax;
 
     // System.out.println("mSampledMinIntensity=" +
     // mSampledMinIntensity);
@@ -0,0 +1,443 @@
+package clearcontrol.ip.iqm;
+
+import static java.lang.Math.toIntExact;
+
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+
+import clearcontrol.core.concurrent.executors.ClearControlExecutors;
+import clearcontrol.core.concurrent.executors.CompletingThreadPoolExecutor;
+import clearcontrol.stack.OffHeapPlanarStack;
+import coremem.ContiguousMemoryInterface;
+
+import org.jtransforms.dct.DoubleDCT_2D;
+import org.jtransforms.dct.FloatDCT_2D;
+
+/**
+ * Thread-safe and parallel variant of {@link DCTS2D}. Planes are processed
+ * concurrently, each plane task takes working arrays and a DCT plan from a pool
+ * that only lives for the duration of a call, so that no plane-sized arrays are
+ * retained between calls. L2
+ * normalisation and entropy are computed in a single pass over the DCT
+ * coefficients, without writing normalised coefficients back. Optionally, the
+ * DCT is computed in float precision, and only on a central crop of each plane.
+ *
+ * @author royer
+ */
+public class ParallelDCTS2D implements ImageQualityMetricInterface
+{
+  private static final int cNumberOfThreads =
+                                            Math.max(1,
+                                                     Runtime.getRuntime()
+                                                            .availableProcessors());
+
+  private static final CompletingThreadPoolExecutor sExecutor =
+                                                              ClearControlExecutors.getOrCreateThreadPoolExecutor(ParallelDCTS2D.class,
+                                                                                                                  Thread.NORM_PRIORITY,
+                                                                                                                  cNumberOfThreads,
+                                                                                                                  cNumberOfThreads,
+                                                                                                                  Integer.MAX_VALUE);
+
+  /**
+   * Working arrays and DCT plan for planes of a given size and precision
+   */
+  private static class Workspace
+  {
+    final int mWidth;
+    final int mHeight;
+    final boolean mFloatPrecision;
+    final short[] mRow;
+    double[] mDoubleArray;
+    float[] mFloatArray;
+    DoubleDCT_2D mDoubleDCT;
+    FloatDCT_2D mFloatDCT;
+
+    Workspace(int pWidth, int pHeight, boolean pFloatPrecision)
+    {
+      mWidth = pWidth;
+      mHeight = pHeight;
+      mFloatPrecision = pFloatPrecision;
+      mRow = new short[pWidth];
+      if (pFloatPrecision)
+      {
+        mFloatArray = new float[pWidth * pHeight];
+        mFloatDCT = new FloatDCT_2D(pHeight, pWidth);
+      }
+      else
+      {
+        mDoubleArray = new double[pWidth * pHeight];
+        mDoubleDCT = new DoubleDCT_2D(pHeight, pWidth);
+      }
+    }
+  }
+
+  private volatile double mPSFSupportRadius = 3;
+  private volatile boolean mFloatPrecision = false;
+  private volatile long mCropWidth = 0;
+  private volatile long mCropHeight = 0;
+
+  /**
+   * Instantiates a parallel DCTS2D image quality metric
+   */
+  public ParallelDCTS2D()
+  {
+    super();
+  }
+
+  @Override
+  public final double[] computeImageQualityMetric(OffHeapPlanarStack pStack)
+  {
+    final int lWidth = toIntExact(pStack.getWidth());
+    final int lHeight = toIntExact(pStack.getHeight());
+    final int lDepth = toIntExact(pStack.getDepth());
+
+    // central crop:
+    final int lCropWidth = getEffectiveCropSize(mCropWidth, lWidth);
+    final int lCropHeight = getEffectiveCropSize(mCropHeight, lHeight);
+    final int lCropX = (lWidth - lCropWidth) / 2;
+    final int lCropY = (lHeight - lCropHeight) / 2;
+
+    final double[] lDCTSArray = new double[lDepth];
+    final boolean lFloatPrecision = mFloatPrecision;
+
+    if (lDepth <= 1 || cNumberOfThreads <= 1)
+    {
+      final Workspace lWorkspace = new Workspace(lCropWidth,
+                                                 lCropHeight,
+                                                 lFloatPrecision);
+      for (int z = 0; z < lDepth; z++)
+        lDCTSArray[z] = computeDCTS(lWorkspace,
+                                    pStack.getContiguousMemory(z),
+                                    lWidth,
+                                    lCropX,
+                                    lCropY);
+      return lDCTSArray;
+    }
+
+    // at most one workspace per concurrently running task, dropped on return:
+    final ConcurrentLinkedQueue<Workspace> lWorkspacePool =
+                                                          new ConcurrentLinkedQueue<>();
+
+    // the completion service executes its tasks without retaining their
+    // futures in the executor:
+    final CompletionService<Object> lCompletionService =
+                                                       new ExecutorCompletionService<>(sExecutor);
+    for (int z = 0; z < lDepth; z++)
+    {
+      final int lPlaneIndex = z;
+      final ContiguousMemoryInterface lPlaneMemory =
+                                                   pStack.getContiguousMemory(z);
+      lCompletionService.submit(() -> {
+        Workspace lWorkspace = lWorkspacePool.poll();
+        if (lWorkspace == null)
+          lWorkspace = new Workspace(lCropWidth,
+                                     lCropHeight,
+                                     lFloatPrecision);
+        lDCTSArray[lPlaneIndex] = computeDCTS(lWorkspace,
+                                              lPlaneMemory,
+                                              lWidth,
+                                              lCropX,
+                                              lCropY);
+        lWorkspacePool.offer(lWorkspace);
+      }, null);
+    }
+
+    try
+    {
+      for (int z = 0; z < lDepth; z++)
+        lCompletionService.take().get();
+    }
+    catch (InterruptedException | ExecutionException e)
+    {
+      throw new RuntimeException("Could not compute DCTS for stack "
+                                 + pStack, e);
+    }
+
+    return lDCTSArray;
+  }
+
+  /**
+   * Computes the DCTS of a single plane given as an array of unsigned 16-bit
+   * values. The central crop, if set, is applied.
+   *
+   * @param pPlane
+   *          plane values
+   * @param pWidth
+   *          plane width
+   * @param pHeight
+   *          plane height
+   * @return DCTS value
+   */
+  public double computeDCTS(short[] pPlane, int pWidth, int pHeight)
+  {
+    final int lCropWidth = getEffectiveCropSize(mCropWidth, pWidth);
+    final int lCropHeight = getEffectiveCropSize(mCropHeight, pHeight);
+    final int lCropX = (pWidth - lCropWidth) / 2;
+    final int lCropY = (pHeight - lCropHeight) / 2;
+
+    final Workspace lWorkspace = new Workspace(lCropWidth,
+                                               lCropHeight,
+                                               mFloatPrecision);
+    for (int y = 0; y < lCropHeight; y++)
+      loadRow(lWorkspace,
+              pPlane,
+              (lCropY + y) * pWidth + lCropX,
+              y);
+    return computeDCTS(lWorkspace);
+  }
+
+  private double computeDCTS(Workspace pWorkspace,
+                             ContiguousMemoryInterface pPlaneMemory,
+                             int pWidth,
+                             int pCropX,
+                             int pCropY)
+  {
+    final short[] lRow = pWorkspace.mRow;
+    final int lCropWidth = pWorkspace.mWidth;
+    for (int y = 0; y < pWorkspace.mHeight; y++)
+    {
+      final long lOffset = 2L * ((long) (pCropY + y) * pWidth + pCropX);
+      pPlaneMemory.subRegion(lOffset, 2L * lCropWidth).copyTo(lRow);
+      loadRow(pWorkspace, lRow, 0, y);
+    }
+    return computeDCTS(pWorkspace);
+  }
+
+  private static void loadRow(Workspace pWorkspace,
+                              short[] pSource,
+                              int pSourceOffset,
+                              int pY)
+  {
+    final int lWidth = pWorkspace.mWidth;
+    final int lOffset = pY * lWidth;
+    if (pWorkspace.mFloatPrecision)
+    {
+      final float[] lArray = pWorkspace.mFloatArray;
+      for (int x = 0; x < lWidth; x++)
+        lArray[lOffset + x] = pSource[pSourceOffset + x] & 0xFFFF;
+    }
+    else
+    {
+      final double[] lArray = pWorkspace.mDoubleArray;
+      for (int x = 0; x < lWidth; x++)
+        lArray[lOffset + x] = pSource[pSourceOffset + x] & 0xFFFF;
+    }
+  }
+
+  private double computeDCTS(Workspace pWorkspace)
+  {
+    final int lWidth = pWorkspace.mWidth;
+    final int lHeight = pWorkspace.mHeight;
+    final long lOTFSupportRadiusX = Math.round(lWidth
+                                               / mPSFSupportRadius);
+    final long lOTFSupportRadiusY = Math.round(lHeight
+                                               / mPSFSupportRadius);
+
+    // sums over the whole plane of v^2, and over the OTF support triangle of
+    // |v|.log|v| and |v|:
+    final double[] lSums = new double[3];
+    if (pWorkspace.mFloatPrecision)
+    {
+      pWorkspace.mFloatDCT.forward(pWorkspace.mFloatArray, false);
+      accumulate(pWorkspace.mFloatArray,
+                 lWidth,
+                 lHeight,
+                 lOTFSupportRadiusX,
+                 lOTFSupportRadiusY,
+                 lSums);
+    }
+    else
+    {
+      pWorkspace.mDoubleDCT.forward(pWorkspace.mDoubleArray, false);
+      accumulate(pWorkspace.mDoubleArray,
+                 lWidth,
+                 lHeight,
+                 lOTFSupportRadiusX,
+                 lOTFSupportRadiusY,
+                 lSums);
+    }
+
+    // with L the L2 norm, sum of (|v|/L).log(|v|/L) over the triangle is:
+    final double lL2 = Math.sqrt(lSums[0]);
+    final double lEntropy = (lSums[1] - lSums[2] * Math.log(lL2))
+                            / lL2;
+
+    return -lEntropy / (2 * lOTFSupportRadiusX * lOTFSupportRadiusY);
+  }
+
+  private static void accumulate(double[] pArray,
+                                 int pWidth,
+                                 int pHeight,
+                                 long pOTFSupportRadiusX,
+                                 long pOTFSupportRadiusY,
+                                 double[] pSums)
+  {
+    double lSumOfSquares = 0, lSumOfEntropies = 0, lSumOfAbsolutes = 0;
+    for (int y = 0; y < pHeight; y++)
+    {
+      final int lRowOffset = y * pWidth;
+      final int lTriangleEnd = getTriangleEnd(y,
+                                              pWidth,
+                                              pOTFSupportRadiusX,
+                                              pOTFSupportRadiusY);
+      int x = 0;
+      for (; x < lTriangleEnd; x++)
+      {
+        final double lValue = pArray[lRowOffset + x];
+        lSumOfSquares += lValue * lValue;
+        final double lAbsoluteValue = Math.abs(lValue);
+        if (lAbsoluteValue > 0)
+        {
+          lSumOfEntropies += lAbsoluteValue * Math.log(lAbsoluteValue);
+          lSumOfAbsolutes += lAbsoluteValue;
+        }
+      }
+      for (; x < pWidth; x++)
+      {
+        final double lValue = pArray[lRowOffset + x];
+        lSumOfSquares += lValue * lValue;
+      }
+    }
+    pSums[0] = lSumOfSquares;
+    pSums[1] = lSumOfEntropies;
+    pSums[2] = lSumOfAbsolutes;
+  }
+
+  private static void accumulate(float[] pArray,
+                                 int pWidth,
+                                 int pHeight,
+                                 long pOTFSupportRadiusX,
+                                 long pOTFSupportRadiusY,
+                                 double[] pSums)
+  {
+    double lSumOfSquares = 0, lSumOfEntropies = 0, lSumOfAbsolutes = 0;
+    for (int y = 0; y < pHeight; y++)
+    {
+      final int lRowOffset = y * pWidth;
+      final int lTriangleEnd = getTriangleEnd(y,
+                                              pWidth,
+                                              pOTFSupportRadiusX,
+                                              pOTFSupportRadiusY);
+      int x = 0;
+      for (; x < lTriangleEnd; x++)
+      {
+        final double lValue = pArray[lRowOffset + x];
+        lSumOfSquares += lValue * lValue;
+        final double lAbsoluteValue = Math.abs(lValue);
+        if (lAbsoluteValue > 0)
+        {
+          lSumOfEntropies += lAbsoluteValue * Math.log(lAbsoluteValue);
+          lSumOfAbsolutes += lAbsoluteValue;
+        }
+      }
+      for (; x < pWidth; x++)
+      {
+        final double lValue = pArray[lRowOffset + x];
+        lSumOfSquares += lValue * lValue;
+      }
+    }
+    pSums[0] = lSumOfSquares;
+    pSums[1] = lSumOfEntropies;
+    pSums[2] = lSumOfAbsolutes;
+  }
+
+  private static int getTriangleEnd(int pY,
+                                    int pWidth,
+                                    long pOTFSupportRadiusX,
+                                    long pOTFSupportRadiusY)
+  {
+    if (pY >= pOTFSupportRadiusY)
+      return 0;
+    return (int) Math.min(pWidth,
+                          pOTFSupportRadiusX - pY * pOTFSupportRadiusX
+                                          / pOTFSupportRadiusY);
+  }
+
+  private static int getEffectiveCropSize(long pCropSize, int pSize)
+  {
+    if (pCropSize <= 0 || pCropSize >= pSize)
+      return pSize;
+    return (int) pCropSize;
+  }
+
+  /**
+   * Returns the PSF support radius
+   *
+   * @return PSF support radius
+   */
+  public double getPSFSupportRadius()
+  {
+    return mPSFSupportRadius;
+  }
+
+  /**
+   * Sets the PSF support radius
+   *
+   * @param pPSFSupportRadius
+   *          PSF support radius
+   */
+  public void setPSFSupportRadius(double pPSFSupportRadius)
+  {
+    mPSFSupportRadius = pPSFSupportRadius;
+  }
+
+  /**
+   * Returns true if the DCT is computed in float precision
+   *
+   * @return true for float precision, false for double precision
+   */
+  public boolean isFloatPrecision()
+  {
+    return mFloatPrecision;
+  }
+
+  /**
+   * Sets whether the DCT is computed in float precision, which is faster and
+   * usually precise enough to compare planes.
+   *
+   * @param pFloatPrecision
+   *          true for float precision, false for double precision
+   */
+  public void setFloatPrecision(boolean pFloatPrecision)
+  {
+    mFloatPrecision = pFloatPrecision;
+  }
+
+  /**
+   * Sets the size of the central crop of each plane on which the metric is
+   * computed. A size of 0, or larger than the plane, means no cropping.
+   *
+   * @param pCropWidth
+   *          crop width
+   * @param pCropHeight
+   *          crop height
+   */
+  public void setCentralCrop(long pCropWidth, long pCropHeight)
+  {
+    mCropWidth = pCropWidth;
+    mCropHeight = pCropHeight;
+  }
+
+  /**
+   * Returns the central crop width, 0 for no cropping
+   *
+   * @return crop width
+   */
+  public long getCropWidth()
+  {
+    return mCropWidth;
+  }
+
+  /**
+   * Returns the central crop height, 0 for no cropping
+   *
+   * @return crop height
+   */
+  public long getCropHeight()
+  {
+    return mCropHeight;
+  }
+
+}
@@ -13,6 +13,7 @@ import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
 
 import clearcontrol.core.concurrent.executors.AsynchronousSchedulerFeature;
+import clearcontrol.core.concurrent.executors.ClearControlExecutors;
 import clearcontrol.core.concurrent.future.FutureBooleanList;
 import clearcontrol.core.configuration.MachineConfiguration;
 import clearcontrol.core.device.VirtualDevice;
@@ -35,6 +36,7 @@ import clearcontrol.microscope.state.AcquisitionStateManager;
 import clearcontrol.stack.StackInterface;
 import clearcontrol.stack.StackRequest;
 import clearcontrol.stack.metadata.StackMetaData;
+import clearcontrol.stack.pool.OffHeapSlabPool;
 import clearcontrol.stack.processor.AsynchronousPoolStackProcessorPipeline;
 import clearcontrol.stack.processor.AsynchronousStackProcessorPipeline;
 import clearcontrol.stack.processor.StackProcessingPipelineInterface;
@@ -100,7 +102,13 @@ public abstract class MicroscopeBase<M extends MicroscopeBase<M, Q>, Q extends M
 
     mDeviceLists = new MicroscopeDeviceLists();
 
-    mStackRecyclerManager = new StackRecyclerManager();
+    final boolean lStackPoolEnabled =
+                                     MachineConfiguration.get()
+                                                         .getBooleanProperty("stack.pool.enabled",
+                                                                             false);
+    mStackRecyclerManager =
+                          new StackRecyclerManager(lStackPoolEnabled ? OffHeapSlabPool.getDefault()
+                                                                     : null);
     mDeviceLists.addDevice(0, mStackRecyclerManager);
 
     for (int i = 0; i < 128; i++)
@@ -370,6 +378,7 @@ public abstract class MicroscopeBase<M extends MicroscopeBase<M, Q>, Q extends M
 
           info("Closing device: " + lDevice);
           boolean lResult = lOpenCloseDevice.close();
+          ClearControlExecutors.release(lDevice);
 
           if (lResult)
             info("Successfully closed device: " + lDevice);
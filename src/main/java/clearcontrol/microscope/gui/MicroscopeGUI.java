@@ -38,6 +38,7 @@ import clearcontrol.scripting.lang.ScriptingLanguageInterface;
 import clearcontrol.scripting.lang.groovy.GroovyScripting;
 import clearcontrol.scripting.lang.jython.JythonScripting;
 import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.processor.projection.ProjectionStackProcessor;
 import halcyon.HalcyonFrame;
 import halcyon.model.node.HalcyonNodeType;
 
@@ -70,6 +71,7 @@ public class MicroscopeGUI extends VirtualDevice implements
   private HalcyonGUIGenerator mHalcyonGUIGenerator;
   private Stage mPrimaryStage;
   private HalcyonFrame mHalcyonFrame;
+  private ProjectionStackProcessor mPipelineProjectionStackProcessor;
 
   /**
    * Instanciates a microscope GUI given a microscope, an array of halcyon node
@@ -441,6 +443,42 @@ public class MicroscopeGUI extends VirtualDevice implements
     lStack2dDisplay.setOutputStackVariable(new Variable<StackInterface>("Null"));
   }
 
+  /**
+   * Sends the projections of the stacks coming out of the microscope's stack
+   * processing pipeline to the 2D display of given index, which then takes its
+   * automatic contrast from their histograms instead of sampling planes.
+   *
+   * This is opt-in since it changes the acquisition pipeline: the first call
+   * appends a projection stack processor to the pipeline, which adds a pass
+   * over every acquired stack. That processor passes stacks through and never
+   * takes stacks from its recycler.
+   *
+   * @param p2DDisplayIndex
+   *          2D display index
+   */
+  public void connectPipelineProjectionsTo2D(int p2DDisplayIndex)
+  {
+    Stack2DDisplay lStack2dDisplay =
+                                   mStack2DDisplayList.get(p2DDisplayIndex);
+
+    getPipelineProjectionStackProcessor().getProjectionsVariable()
+                                         .sendUpdatesTo(lStack2dDisplay.getInputProjectionsVariable());
+  }
+
+  private synchronized ProjectionStackProcessor getPipelineProjectionStackProcessor()
+  {
+    if (mPipelineProjectionStackProcessor == null)
+    {
+      mPipelineProjectionStackProcessor =
+                                        new ProjectionStackProcessor("PipelineProjection");
+      mMicroscope.addStackProcessor(mPipelineProjectionStackProcessor,
+                                    "PipelineProjectionRecycler",
+                                    1,
+                                    1);
+    }
+    return mPipelineProjectionStackProcessor;
+  }
+
   /**
    * Connects Stack cameras to 3D display.
    *
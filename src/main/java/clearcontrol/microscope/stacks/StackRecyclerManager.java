@@ -1,11 +1,14 @@
 package clearcontrol.microscope.stacks;
 
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import clearcontrol.core.device.VirtualDevice;
 import clearcontrol.stack.ContiguousOffHeapPlanarStackFactory;
 import clearcontrol.stack.StackInterface;
 import clearcontrol.stack.StackRequest;
+import clearcontrol.stack.pool.OffHeapSlabPool;
+import clearcontrol.stack.pool.PooledOffHeapPlanarStackFactory;
 import coremem.recycling.BasicRecycler;
 import coremem.recycling.RecyclerInterface;
 
@@ -13,6 +16,10 @@ import coremem.recycling.RecyclerInterface;
  * StackRecyclerManager handle a collection of named stack recyclers used for
  * different purposes. Methods are available to clear all recyclers.
  * 
+ * Optionally, the stacks of all recyclers can draw their memory from a shared
+ * off-heap slab pool, in which case recyclers only keep memory-less stacks
+ * around and the total off-heap memory is bounded by the pool's budget.
+ * 
  * @author royer
  */
 public class StackRecyclerManager extends VirtualDevice
@@ -24,14 +31,34 @@ public class StackRecyclerManager extends VirtualDevice
   final private ConcurrentHashMap<String, RecyclerInterface<StackInterface, StackRequest>> mRecyclerMap =
                                                                                                         new ConcurrentHashMap<>();
 
+  final private OffHeapSlabPool mOffHeapSlabPool;
+
+  final private ConcurrentHashMap<String, PooledOffHeapPlanarStackFactory> mPooledStackFactoryMap =
+                                                                                              new ConcurrentHashMap<>();
+
+  private volatile long mPoolWaitTimeInMilliseconds = 1000;
+
   private boolean mAutoFree = false;
 
   /**
    * Creates StackRecyclerManager
    */
   public StackRecyclerManager()
+  {
+    this(null);
+  }
+
+  /**
+   * Creates StackRecyclerManager whose recyclers draw memory from a given
+   * off-heap slab pool
+   * 
+   * @param pOffHeapSlabPool
+   *          slab pool, or null for unpooled recyclers
+   */
+  public StackRecyclerManager(OffHeapSlabPool pOffHeapSlabPool)
   {
     super("Stack Recycler Manager");
+    mOffHeapSlabPool = pOffHeapSlabPool;
   }
 
   /**
@@ -58,7 +85,17 @@ public class StackRecyclerManager extends VirtualDevice
         || lRecycler.getMaxNumberOfAvailableObjects() != pMaximumNumberOfAvailableObjects
         || lRecycler.getMaxNumberOfLiveObjects() != pMaximumNumberOfLiveObjects)
     {
-      lRecycler = new BasicRecycler<>(mOffHeapPlanarStackFactory,
+      if (mOffHeapSlabPool == null)
+        lRecycler = new BasicRecycler<>(mOffHeapPlanarStackFactory,
+                                        pMaximumNumberOfLiveObjects,
+                                        pMaximumNumberOfAvailableObjects,
+                                        mAutoFree);
+      else
+        lRecycler =
+                  new BasicRecycler<>(mPooledStackFactoryMap.computeIfAbsent(pName,
+                                                                             (n) -> new PooledOffHeapPlanarStackFactory(mOffHeapSlabPool,
+                                                                                                                        mPoolWaitTimeInMilliseconds,
+                                                                                                                        TimeUnit.MILLISECONDS)),
                                       pMaximumNumberOfLiveObjects,
                                       pMaximumNumberOfAvailableObjects,
                                       mAutoFree);
@@ -113,4 +150,40 @@ public class StackRecyclerManager extends VirtualDevice
     return mOffHeapPlanarStackFactory;
   }
 
+  /**
+   * Returns the off-heap slab pool used by the recyclers
+   * 
+   * @return slab pool, or null if recyclers are not pooled
+   */
+  public OffHeapSlabPool getOffHeapSlabPool()
+  {
+    return mOffHeapSlabPool;
+  }
+
+  /**
+   * Returns the pooled stack factory used by the recycler of given name, its
+   * statistics tell how much pooled memory that recycler's stacks hold.
+   * 
+   * @param pName
+   *          recycler name
+   * @return pooled stack factory, or null if recyclers are not pooled or no
+   *         such recycler was requested
+   */
+  public PooledOffHeapPlanarStackFactory getPooledStackFactory(String pName)
+  {
+    return mPooledStackFactoryMap.get(pName);
+  }
+
+  /**
+   * Sets how long new stacks wait for pooled memory when the pool's budget is
+   * exhausted. Applies to recyclers created afterwards.
+   * 
+   * @param pPoolWaitTimeInMilliseconds
+   *          wait time in milliseconds
+   */
+  public void setPoolWaitTimeInMilliseconds(long pPoolWaitTimeInMilliseconds)
+  {
+    mPoolWaitTimeInMilliseconds = pPoolWaitTimeInMilliseconds;
+  }
+
 }
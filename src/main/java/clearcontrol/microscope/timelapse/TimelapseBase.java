@@ -5,6 +5,7 @@ import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import clearcl.util.ElapsedTime;
@@ -16,13 +17,18 @@ import clearcontrol.core.variable.bounded.BoundedVariable;
 import clearcontrol.gui.jfx.var.combo.enums.TimeUnitEnum;
 import clearcontrol.microscope.MicroscopeInterface;
 import clearcontrol.microscope.adaptive.AdaptiveEngine;
+import clearcontrol.microscope.stacks.StackRecyclerManager;
 import clearcontrol.microscope.state.AcquisitionStateInterface;
 import clearcontrol.microscope.timelapse.timer.TimelapseTimerInterface;
-import clearcontrol.microscope.timelapse.timer.fixed.FixedIntervalTimelapseTimer;
+import clearcontrol.microscope.timelapse.timer.adaptive.AdaptiveAcquisitionTimer;
 import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackRequest;
 import clearcontrol.stack.metadata.MetaDataChannel;
 import clearcontrol.stack.sourcesink.StackSinkSourceInterface;
+import clearcontrol.stack.sourcesink.sink.AsynchronousStackSinkAdapter;
 import clearcontrol.stack.sourcesink.sink.FileStackSinkInterface;
+import clearcontrol.stack.sourcesink.sink.QueueFullPolicy;
+import coremem.recycling.RecyclerInterface;
 
 /**
  * Base implementation providing common fields and methods for all Timelapse
@@ -103,6 +109,30 @@ public abstract class TimelapseBase extends LoopTaskDevice
                                                       new Variable<Boolean>("SaveStacks",
                                                                             true);
 
+  private final Variable<Boolean> mAsynchronousSavingVariable =
+                                                              new Variable<Boolean>("AsynchronousSaving",
+                                                                                    true);
+
+  private final BoundedVariable<Integer> mSavingQueueSizeVariable =
+                                                                 new BoundedVariable<Integer>("SavingQueueSize",
+                                                                                              8,
+                                                                                              1,
+                                                                                              Integer.MAX_VALUE,
+                                                                                              1);
+
+  private final BoundedVariable<Integer> mNumberOfSavingThreadsVariable =
+                                                                       new BoundedVariable<Integer>("NumberOfSavingThreads",
+                                                                                                    1,
+                                                                                                    1,
+                                                                                                    Integer.MAX_VALUE,
+                                                                                                    1);
+
+  private final Variable<QueueFullPolicy> mSavingQueueFullPolicyVariable =
+                                                                         new Variable<>("SavingQueueFullPolicy",
+                                                                                        QueueFullPolicy.Block);
+
+  private volatile AsynchronousStackSinkAdapter mAsynchronousStackSinkAdapter;
+
   private final Variable<Boolean> mAdaptiveEngineOnVariable =
                                                             new Variable<Boolean>("AdaptiveEngineOnVariable",
                                                                                   true);
@@ -172,10 +202,15 @@ public abstract class TimelapseBase extends LoopTaskDevice
                               lChannelInMetaData != null ? lChannelInMetaData
                                                          : StackSinkSourceInterface.cDefaultChannel;
 
-        ElapsedTime.measureForceOutput("TimeLapse stack saving",
-                                       () -> lStackSinkVariable.get()
-                                                               .appendStack(lChannel,
-                                                                            n));
+        AsynchronousStackSinkAdapter lAsynchronousStackSinkAdapter =
+                                                                   mAsynchronousStackSinkAdapter;
+        if (lAsynchronousStackSinkAdapter != null)
+          lAsynchronousStackSinkAdapter.appendStack(lChannel, n);
+        else
+          ElapsedTime.measureForceOutput("TimeLapse stack saving",
+                                         () -> lStackSinkVariable.get()
+                                                                 .appendStack(lChannel,
+                                                                              n));
 
       }
     };
@@ -194,14 +229,29 @@ public abstract class TimelapseBase extends LoopTaskDevice
   }
 
   /**
-   * Instantiates a timelapse with a fixed interval timer
+   * Instantiates a timelapse with an adaptive acquisition timer. Adaptive
+   * pacing can be switched on and off while the timelapse runs, and is off by
+   * default (machine configuration property 'timelapse.adaptivepacing'), in
+   * which case the timer behaves as a fixed interval timer.
    * 
    * @param pMicroscope
    *          microscope
    */
   public TimelapseBase(MicroscopeInterface<?> pMicroscope)
   {
-    this(pMicroscope, new FixedIntervalTimelapseTimer());
+    this(pMicroscope, createDefaultTimelapseTimer());
+  }
+
+  private static TimelapseTimerInterface createDefaultTimelapseTimer()
+  {
+    AdaptiveAcquisitionTimer lAdaptiveAcquisitionTimer =
+                                                       new AdaptiveAcquisitionTimer(1,
+                                                                                    TimeUnit.SECONDS);
+    lAdaptiveAcquisitionTimer.getAdaptivePacingVariable()
+                             .set(MachineConfiguration.get()
+                                                      .getBooleanProperty("timelapse.adaptivepacing",
+                                                                          false));
+    return lAdaptiveAcquisitionTimer;
   }
 
   /**
@@ -297,12 +347,14 @@ public abstract class TimelapseBase extends LoopTaskDevice
       }*/
 
       initAdaptiveEngine();
+      setupPacing();
 
       super.run();
       /*
       if (mMicroscope != null)
         lPipelineStackVariable.removeSetListener(mStackListener);
       */
+      closeFileSink();
       getCurrentFileStackSinkVariable().set((FileStackSinkInterface) null);
     }
     catch (InstantiationException e)
@@ -321,6 +373,8 @@ public abstract class TimelapseBase extends LoopTaskDevice
     }
     finally
     {
+      if (getTimelapseTimerVariable().get() instanceof AdaptiveAcquisitionTimer)
+        ((AdaptiveAcquisitionTimer) getTimelapseTimerVariable().get()).clearBacklogSources();
       mMicroscope.getCurrentTask().set(null);
     }
 
@@ -353,6 +407,7 @@ public abstract class TimelapseBase extends LoopTaskDevice
     lTimelapseTimer.waitToAcquire(1, TimeUnit.DAYS);
     lTimelapseTimer.notifyAcquisition();
     acquire();
+    lTimelapseTimer.notifyAcquisitionFinished();
 
     getTimePointCounterVariable().increment();
 
@@ -407,6 +462,19 @@ public abstract class TimelapseBase extends LoopTaskDevice
                            lNowDateTimeString + "-"
                                                       + getDataSetNamePostfixVariable().get());
 
+    closeFileSink();
+
+    getCurrentFileStackSinkVariable().set(lStackSink);
+
+    if (getAsynchronousSavingVariable().get())
+      startAsynchronousSaving(lStackSink);
+  }
+
+  private void closeFileSink()
+  {
+    // pending stacks must be saved before the sink is closed:
+    stopAsynchronousSaving();
+
     if (getCurrentFileStackSinkVariable().get() != null)
       try
       {
@@ -417,8 +485,117 @@ public abstract class TimelapseBase extends LoopTaskDevice
         severe("Error occured while closing stack sink: %s", e);
         e.printStackTrace();
       }
+  }
 
-    getCurrentFileStackSinkVariable().set(lStackSink);
+  private void startAsynchronousSaving(FileStackSinkInterface pStackSink)
+  {
+    int lQueueSize = getSavingQueueSizeVariable().get();
+    int lNumberOfThreads = getNumberOfSavingThreadsVariable().get();
+
+    AsynchronousStackSinkAdapter lAsynchronousStackSinkAdapter =
+                                                               new AsynchronousStackSinkAdapter(pStackSink,
+                                                                                                lQueueSize,
+                                                                                                lNumberOfThreads,
+                                                                                                getSavingQueueFullPolicyVariable().get());
+
+    // Stacks are copied into recycled stacks so that the pipeline stack can be
+    // released or reused independently of saving:
+    StackRecyclerManager lStackRecyclerManager =
+                                               mMicroscope == null ? null
+                                                                   : mMicroscope.getDevice(StackRecyclerManager.class,
+                                                                                           0);
+    if (lStackRecyclerManager != null)
+    {
+      int lMaxNumberOfStacks = lQueueSize * lNumberOfThreads
+                               + lNumberOfThreads;
+      lAsynchronousStackSinkAdapter.setStackRecycler(lStackRecyclerManager.getRecycler("TimelapseSaving",
+                                                                                       lMaxNumberOfStacks,
+                                                                                       lMaxNumberOfStacks));
+    }
+
+    lAsynchronousStackSinkAdapter.start();
+    mAsynchronousStackSinkAdapter = lAsynchronousStackSinkAdapter;
+  }
+
+  private void stopAsynchronousSaving()
+  {
+    AsynchronousStackSinkAdapter lAsynchronousStackSinkAdapter =
+                                                               mAsynchronousStackSinkAdapter;
+    if (lAsynchronousStackSinkAdapter == null)
+      return;
+
+    mAsynchronousStackSinkAdapter = null;
+
+    info("Waiting for %d queued stacks to be saved...",
+         lAsynchronousStackSinkAdapter.getQueueLength());
+    if (!lAsynchronousStackSinkAdapter.waitToFinish(1, TimeUnit.HOURS))
+      severe("Timeout while waiting for stacks to be saved!");
+    lAsynchronousStackSinkAdapter.stop();
+
+    if (lAsynchronousStackSinkAdapter.getNumberOfDroppedStacksVariable()
+                                     .get() > 0)
+      warning("%d stacks were dropped because the saving queue was full",
+              lAsynchronousStackSinkAdapter.getNumberOfDroppedStacksVariable()
+                                           .get());
+  }
+
+  /**
+   * Returns the asynchronous stack sink adapter currently used for saving, or
+   * null if stacks are saved synchronously. The adapter exposes saving
+   * backlog and throughput variables.
+   * 
+   * @return current asynchronous stack sink adapter or null
+   */
+  public AsynchronousStackSinkAdapter getAsynchronousStackSinkAdapter()
+  {
+    return mAsynchronousStackSinkAdapter;
+  }
+
+  /**
+   * Lets an adaptive acquisition timer pace this timelapse: the backlog of the
+   * pipeline is measured by the stack recyclers, and the backlog of the sink by
+   * the fullest saving queue.
+   */
+  private void setupPacing()
+  {
+    if (!(getTimelapseTimerVariable().get() instanceof AdaptiveAcquisitionTimer))
+      return;
+
+    AdaptiveAcquisitionTimer lAdaptiveAcquisitionTimer =
+                                                       (AdaptiveAcquisitionTimer) getTimelapseTimerVariable().get();
+    lAdaptiveAcquisitionTimer.clearBacklogSources();
+
+    StackRecyclerManager lStackRecyclerManager =
+                                               mMicroscope == null ? null
+                                                                   : mMicroscope.getDevice(StackRecyclerManager.class,
+                                                                                           0);
+    if (lStackRecyclerManager != null)
+      lAdaptiveAcquisitionTimer.addPipelineBacklogSource(() -> {
+        double lBacklog = 0;
+        for (Map.Entry<String, RecyclerInterface<StackInterface, StackRequest>> lEntry : lStackRecyclerManager.getRecyclerMap()
+                                                                                                               .entrySet())
+        {
+          long lMaxNumberOfLiveObjects =
+                                       lEntry.getValue()
+                                             .getMaxNumberOfLiveObjects();
+          // the saving recycler is accounted for by the saving queue:
+          if (lMaxNumberOfLiveObjects > 0
+              && !lEntry.getKey().equals("TimelapseSaving"))
+            lBacklog = Math.max(lBacklog,
+                                (double) lEntry.getValue()
+                                               .getNumberOfLiveObjects()
+                                          / lMaxNumberOfLiveObjects);
+        }
+        return lBacklog;
+      });
+
+    lAdaptiveAcquisitionTimer.addSinkBacklogSource(() -> {
+      AsynchronousStackSinkAdapter lAsynchronousStackSinkAdapter =
+                                                                 mAsynchronousStackSinkAdapter;
+      if (lAsynchronousStackSinkAdapter == null)
+        return 0;
+      return lAsynchronousStackSinkAdapter.getMaxWriterFillFraction();
+    });
   }
 
   @SuppressWarnings(
@@ -605,6 +782,30 @@ public abstract class TimelapseBase extends LoopTaskDevice
     return mSaveStacksVariable;
   }
 
+  @Override
+  public Variable<Boolean> getAsynchronousSavingVariable()
+  {
+    return mAsynchronousSavingVariable;
+  }
+
+  @Override
+  public BoundedVariable<Integer> getSavingQueueSizeVariable()
+  {
+    return mSavingQueueSizeVariable;
+  }
+
+  @Override
+  public BoundedVariable<Integer> getNumberOfSavingThreadsVariable()
+  {
+    return mNumberOfSavingThreadsVariable;
+  }
+
+  @Override
+  public Variable<QueueFullPolicy> getSavingQueueFullPolicyVariable()
+  {
+    return mSavingQueueFullPolicyVariable;
+  }
+
   @Override
   public BoundedVariable<Integer> getMinAdaptiveEngineStepsVariable()
   {
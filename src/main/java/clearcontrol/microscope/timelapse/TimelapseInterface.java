@@ -11,6 +11,7 @@ import clearcontrol.core.variable.bounded.BoundedVariable;
 import clearcontrol.gui.jfx.var.combo.enums.TimeUnitEnum;
 import clearcontrol.microscope.timelapse.timer.TimelapseTimerInterface;
 import clearcontrol.stack.sourcesink.sink.FileStackSinkInterface;
+import clearcontrol.stack.sourcesink.sink.QueueFullPolicy;
 
 /**
  * Interface implemented by all timelapse devices.
@@ -169,6 +170,40 @@ public interface TimelapseInterface extends
    */
   Variable<Boolean> getSaveStacksVariable();
 
+  /**
+   * Returns the variable holding the boolean flag that decides whether the
+   * stacks should be saved asynchronously, decoupled from the thread that
+   * delivers them.
+   * 
+   * @return asynchronous saving variable
+   */
+  Variable<Boolean> getAsynchronousSavingVariable();
+
+  /**
+   * Returns the variable holding the max number of stacks queued per writer
+   * thread when saving asynchronously
+   * 
+   * @return saving queue size variable
+   */
+  BoundedVariable<Integer> getSavingQueueSizeVariable();
+
+  /**
+   * Returns the variable holding the number of writer threads used when saving
+   * asynchronously. Stacks of the same channel are always written by the same
+   * thread.
+   * 
+   * @return number of saving threads variable
+   */
+  BoundedVariable<Integer> getNumberOfSavingThreadsVariable();
+
+  /**
+   * Returns the variable holding the policy to apply when the saving queue is
+   * full
+   * 
+   * @return saving queue full policy variable
+   */
+  Variable<QueueFullPolicy> getSavingQueueFullPolicyVariable();
+
   /**
    * Returns the variable holding the min number of adaptive steps per time
    * point
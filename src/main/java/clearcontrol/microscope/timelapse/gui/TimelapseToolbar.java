@@ -20,6 +20,7 @@ import clearcontrol.gui.jfx.var.lcd.VariableLCD;
 import clearcontrol.gui.jfx.var.textfield.NumberVariableTextField;
 import clearcontrol.gui.jfx.var.textfield.StringVariableTextField;
 import clearcontrol.microscope.timelapse.TimelapseInterface;
+import clearcontrol.microscope.timelapse.timer.adaptive.AdaptiveAcquisitionTimer;
 import eu.hansolo.enzo.lcd.Lcd;
 import eu.hansolo.enzo.lcd.LcdBuilder;
 import eu.hansolo.enzo.simpleindicator.SimpleIndicator;
@@ -280,6 +281,31 @@ public class TimelapseToolbar extends CustomGridPane
       mRow++;
     }
 
+    if (mTimelapseInterface.getTimelapseTimerVariable()
+                           .get() instanceof AdaptiveAcquisitionTimer)
+    {
+      AdaptiveAcquisitionTimer lAdaptiveAcquisitionTimer =
+                                                         (AdaptiveAcquisitionTimer) mTimelapseInterface.getTimelapseTimerVariable()
+                                                                                                       .get();
+
+      VariableCheckBox lAdaptivePacingCheckBox =
+                                               new VariableCheckBox("Adaptive pacing",
+                                                                    lAdaptiveAcquisitionTimer.getAdaptivePacingVariable());
+
+      GridPane.setHalignment(lAdaptivePacingCheckBox.getCheckBox(),
+                             HPos.RIGHT);
+      GridPane.setColumnSpan(lAdaptivePacingCheckBox.getCheckBox(), 1);
+      GridPane.setColumnSpan(lAdaptivePacingCheckBox.getLabel(), 3);
+
+      lAdvancedOptionsGridPane.add(lAdaptivePacingCheckBox.getCheckBox(),
+                                   0,
+                                   mRow);
+      lAdvancedOptionsGridPane.add(lAdaptivePacingCheckBox.getLabel(),
+                                   1,
+                                   mRow);
+      mRow++;
+    }
+
     lAdvancedOptionsGridPane.addSeparator();
 
     {
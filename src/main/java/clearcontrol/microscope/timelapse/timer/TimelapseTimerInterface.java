@@ -88,6 +88,14 @@ public interface TimelapseTimerInterface
    */
   void notifyAcquisition();
 
+  /**
+   * Notifies that the acquisition of the current time point has finished. This
+   * lets timers measure how long time points take. By default, nothing is done.
+   */
+  default void notifyAcquisitionFinished()
+  {
+  }
+
   /**
    * Returns the current acquisition interval in the given time unit
    * 
@@ -1,33 +1,405 @@
 package clearcontrol.microscope.timelapse.timer.adaptive;
 
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
 
+import clearcontrol.core.log.LoggingFeature;
+import clearcontrol.core.variable.Variable;
 import clearcontrol.microscope.timelapse.timer.TimelapseTimerBase;
 import clearcontrol.microscope.timelapse.timer.TimelapseTimerInterface;
 
 /**
  * Adaptive acquisition timer
  * 
- * TODO: finish
+ * Paces the timelapse to the fastest rate that the acquisition, processing and
+ * saving can sustain. After each time point, the timer measures the time point
+ * duration and the backlogs of the processing pipeline and of the stack sink
+ * (as fractions of their capacities). While the backlogs are low, the interval
+ * shrinks towards the average time point duration; once a backlog goes above
+ * its high watermark, the interval is stretched so that queues and recyclers do
+ * not overflow. The paced interval always stays within the minimal and maximal
+ * acquisition intervals set by the user. The acquisition interval variable
+ * holds the interval from which pacing starts. Pacing decisions and
+ * measurements are exposed as variables for plotting.
  *
  * @author royer
  */
 public class AdaptiveAcquisitionTimer extends TimelapseTimerBase
                                       implements
-                                      TimelapseTimerInterface
+                                      TimelapseTimerInterface,
+                                      LoggingFeature
 {
+  private static final double cDurationSmoothingFactor = 0.3;
+  private static final double cDurationMargin = 0.1;
+  private static final double cShrinkFactor = 0.25;
+  private static final double cStretchFactor = 1.25;
+  private static final double cLowBacklogWatermark = 0.25;
+  private static final double cHighBacklogWatermark = 0.75;
 
   /**
+   * Pacing decision taken after a time point
+   */
+  public static enum PacingDecision
+  {
+   /**
+    * Interval shrunk towards the fastest sustainable interval
+    */
+   Shrink,
+   /**
+    * Interval kept, backlogs are building up but are still below their high
+    * watermark
+    */
+   Hold,
+   /**
+    * Interval stretched to let backlogs drain
+    */
+   Stretch
+  }
+
+  private final Variable<Boolean> mAdaptivePacingVariable =
+                                                          new Variable<Boolean>("AdaptivePacing",
+                                                                                true);
+  private final Variable<Long> mMinAcquisitionIntervalVariable =
+                                                               new Variable<Long>("MinAcquisitionInterval",
+                                                                                  0L);
+  private final Variable<Long> mMaxAcquisitionIntervalVariable =
+                                                               new Variable<Long>("MaxAcquisitionInterval",
+                                                                                  Long.MAX_VALUE);
+  private final Variable<Double> mPacedAcquisitionIntervalInSecondsVariable =
+                                                                          new Variable<Double>("PacedAcquisitionIntervalInSeconds",
+                                                                                               0.0);
+  private final Variable<Double> mTimePointDurationInSecondsVariable =
+                                                                     new Variable<Double>("TimePointDurationInSeconds",
+                                                                                          0.0);
+  private final Variable<Double> mAverageTimePointDurationInSecondsVariable =
+                                                                            new Variable<Double>("AverageTimePointDurationInSeconds",
+                                                                                                 0.0);
+  private final Variable<Double> mPipelineBacklogVariable =
+                                                          new Variable<Double>("PipelineBacklog",
+                                                                               0.0);
+  private final Variable<Double> mSinkBacklogVariable =
+                                                      new Variable<Double>("SinkBacklog",
+                                                                           0.0);
+  private final Variable<PacingDecision> mPacingDecisionVariable =
+                                                                 new Variable<PacingDecision>("PacingDecision",
+                                                                                              PacingDecision.Hold);
+
+  private final CopyOnWriteArrayList<DoubleSupplier> mPipelineBacklogSourceList =
+                                                                                new CopyOnWriteArrayList<>();
+  private final CopyOnWriteArrayList<DoubleSupplier> mSinkBacklogSourceList =
+                                                                            new CopyOnWriteArrayList<>();
+
+  private volatile long mPacedIntervalInNanoseconds = -1;
+  private volatile long mTimePointStartTimeInNanoseconds = -1;
+  private volatile double mAverageTimePointDurationInNanoseconds = -1;
+  private volatile double mLastBacklog;
+
+  /**
+   * Instantiates an adaptive acquisition timer with a given initial
+   * acquisition interval
+   *
    * @param pAcquisitionInterval
-   *          ..
+   *          initial acquisition interval
    * @param pTimeUnit
-   *          ..
+   *          time unit
    */
   public AdaptiveAcquisitionTimer(long pAcquisitionInterval,
                                   TimeUnit pTimeUnit)
   {
     super(pAcquisitionInterval, pTimeUnit);
-    // TODO Auto-generated constructor stub
+
+    // pacing restarts from the acquisition interval when it changes:
+    getAcquisitionIntervalVariable().addSetListener((o, n) -> {
+      mPacedIntervalInNanoseconds = -1;
+    });
+  }
+
+  /**
+   * Adds a source of pipeline backlog, it must return the fraction (0 to 1) of
+   * its capacity in use, for example the number of live stacks of a recycler
+   * divided by its maximal number of live stacks.
+   *
+   * @param pBacklogSource
+   *          backlog source
+   */
+  public void addPipelineBacklogSource(DoubleSupplier pBacklogSource)
+  {
+    mPipelineBacklogSourceList.add(pBacklogSource);
+  }
+
+  /**
+   * Adds a source of sink backlog, it must return the fraction (0 to 1) of its
+   * capacity in use, for example the length of a saving queue divided by its
+   * size.
+   *
+   * @param pBacklogSource
+   *          backlog source
+   */
+  public void addSinkBacklogSource(DoubleSupplier pBacklogSource)
+  {
+    mSinkBacklogSourceList.add(pBacklogSource);
+  }
+
+  /**
+   * Removes all backlog sources
+   */
+  public void clearBacklogSources()
+  {
+    mPipelineBacklogSourceList.clear();
+    mSinkBacklogSourceList.clear();
+  }
+
+  @Override
+  public void reset()
+  {
+    super.reset();
+    mPacedIntervalInNanoseconds = -1;
+    mTimePointStartTimeInNanoseconds = -1;
+    mAverageTimePointDurationInNanoseconds = -1;
+    mLastBacklog = 0;
+  }
+
+  @Override
+  public long getAcquisitionInterval(TimeUnit pTimeUnit)
+  {
+    if (!mAdaptivePacingVariable.get())
+      return super.getAcquisitionInterval(pTimeUnit);
+
+    return pTimeUnit.convert(getPacedInterval(),
+                             TimeUnit.NANOSECONDS);
+  }
+
+  private long getPacedInterval()
+  {
+    long lPacedIntervalInNanoseconds = mPacedIntervalInNanoseconds;
+    if (lPacedIntervalInNanoseconds < 0)
+    {
+      lPacedIntervalInNanoseconds =
+                                  clamp(super.getAcquisitionInterval(TimeUnit.NANOSECONDS));
+      mPacedIntervalInNanoseconds = lPacedIntervalInNanoseconds;
+    }
+    return lPacedIntervalInNanoseconds;
+  }
+
+  @Override
+  public void notifyAcquisition()
+  {
+    super.notifyAcquisition();
+    mTimePointStartTimeInNanoseconds = System.nanoTime();
+  }
+
+  @Override
+  public void notifyAcquisitionFinished()
+  {
+    if (mTimePointStartTimeInNanoseconds < 0)
+      return;
+    updatePacing(System.nanoTime() - mTimePointStartTimeInNanoseconds);
+  }
+
+  /**
+   * Updates the paced interval given the duration of the last time point and
+   * the current backlogs.
+   *
+   * @param pTimePointDurationInNanoseconds
+   *          duration of the last time point in nanoseconds
+   * @return pacing decision
+   */
+  public PacingDecision updatePacing(long pTimePointDurationInNanoseconds)
+  {
+    if (mAverageTimePointDurationInNanoseconds < 0)
+      mAverageTimePointDurationInNanoseconds =
+                                             pTimePointDurationInNanoseconds;
+    else
+      mAverageTimePointDurationInNanoseconds +=
+                                             cDurationSmoothingFactor
+                                               * (pTimePointDurationInNanoseconds
+                                                  - mAverageTimePointDurationInNanoseconds);
+
+    final double lPipelineBacklog =
+                                  getBacklog(mPipelineBacklogSourceList);
+    final double lSinkBacklog = getBacklog(mSinkBacklogSourceList);
+    final double lBacklog = Math.max(lPipelineBacklog, lSinkBacklog);
+
+    final double lSustainableIntervalInNanoseconds =
+                                                   mAverageTimePointDurationInNanoseconds
+                                                     * (1 + cDurationMargin);
+    final double lIntervalInNanoseconds = getPacedInterval();
+
+    final PacingDecision lPacingDecision;
+    double lNewIntervalInNanoseconds;
+    if (lBacklog > cHighBacklogWatermark)
+    {
+      lPacingDecision = PacingDecision.Stretch;
+      lNewIntervalInNanoseconds =
+                                Math.max(lIntervalInNanoseconds,
+                                         lSustainableIntervalInNanoseconds)
+                                  * cStretchFactor;
+    }
+    else if (lBacklog > cLowBacklogWatermark && lBacklog >= mLastBacklog)
+    {
+      lPacingDecision = PacingDecision.Hold;
+      lNewIntervalInNanoseconds = lIntervalInNanoseconds;
+    }
+    else
+    {
+      lPacingDecision = PacingDecision.Shrink;
+      lNewIntervalInNanoseconds =
+                                lIntervalInNanoseconds
+                                  - cShrinkFactor
+                                    * (lIntervalInNanoseconds
+                                       - lSustainableIntervalInNanoseconds);
+    }
+    mLastBacklog = lBacklog;
+
+    final long lPacedIntervalInNanoseconds =
+                                           clamp((long) lNewIntervalInNanoseconds);
+    if (mAdaptivePacingVariable.get())
+      mPacedIntervalInNanoseconds = lPacedIntervalInNanoseconds;
+
+    mTimePointDurationInSecondsVariable.set(pTimePointDurationInNanoseconds
+                                            * 1e-9);
+    mAverageTimePointDurationInSecondsVariable.set(mAverageTimePointDurationInNanoseconds
+                                                   * 1e-9);
+    mPipelineBacklogVariable.set(lPipelineBacklog);
+    mSinkBacklogVariable.set(lSinkBacklog);
+    if (lPacingDecision == PacingDecision.Stretch
+        && mPacingDecisionVariable.get() != PacingDecision.Stretch)
+      info("Backlog at %.0f%%, stretching acquisition interval from %.3f s",
+           100 * lBacklog,
+           lIntervalInNanoseconds * 1e-9);
+    mPacingDecisionVariable.set(lPacingDecision);
+    mPacedAcquisitionIntervalInSecondsVariable.set(lPacedIntervalInNanoseconds
+                                                   * 1e-9);
+
+    return lPacingDecision;
+  }
+
+  private static double getBacklog(Iterable<DoubleSupplier> pBacklogSources)
+  {
+    double lBacklog = 0;
+    for (DoubleSupplier lBacklogSource : pBacklogSources)
+      try
+      {
+        lBacklog = Math.max(lBacklog, lBacklogSource.getAsDouble());
+      }
+      catch (Throwable e)
+      {
+        e.printStackTrace();
+      }
+    return lBacklog;
+  }
+
+  private long clamp(long pIntervalInNanoseconds)
+  {
+    final TimeUnit lTimeUnit = getAcquisitionIntervalUnitVariable().get()
+                                                                   .getTimeUnit();
+    final long lMinIntervalInNanoseconds =
+                                         TimeUnit.NANOSECONDS.convert(mMinAcquisitionIntervalVariable.get(),
+                                                                      lTimeUnit);
+    final long lMaxIntervalInNanoseconds =
+                                         TimeUnit.NANOSECONDS.convert(mMaxAcquisitionIntervalVariable.get(),
+                                                                      lTimeUnit);
+    return Math.max(lMinIntervalInNanoseconds,
+                    Math.min(lMaxIntervalInNanoseconds,
+                             pIntervalInNanoseconds));
+  }
+
+  /**
+   * Returns the variable that enables adaptive pacing, if false the timer
+   * behaves as a fixed interval timer.
+   *
+   * @return adaptive pacing variable
+   */
+  public Variable<Boolean> getAdaptivePacingVariable()
+  {
+    return mAdaptivePacingVariable;
+  }
+
+  /**
+   * Returns the minimal acquisition interval variable, in the acquisition
+   * interval unit
+   *
+   * @return minimal acquisition interval variable
+   */
+  public Variable<Long> getMinAcquisitionIntervalVariable()
+  {
+    return mMinAcquisitionIntervalVariable;
+  }
+
+  /**
+   * Returns the maximal acquisition interval variable, in the acquisition
+   * interval unit
+   *
+   * @return maximal acquisition interval variable
+   */
+  public Variable<Long> getMaxAcquisitionIntervalVariable()
+  {
+    return mMaxAcquisitionIntervalVariable;
+  }
+
+  /**
+   * Returns the variable holding the paced acquisition interval in seconds
+   *
+   * @return paced acquisition interval variable
+   */
+  public Variable<Double> getPacedAcquisitionIntervalInSecondsVariable()
+  {
+    return mPacedAcquisitionIntervalInSecondsVariable;
+  }
+
+  /**
+   * Returns the variable holding the duration of the last time point in
+   * seconds
+   *
+   * @return time point duration variable
+   */
+  public Variable<Double> getTimePointDurationInSecondsVariable()
+  {
+    return mTimePointDurationInSecondsVariable;
+  }
+
+  /**
+   * Returns the variable holding the smoothed duration of time points in
+   * seconds
+   *
+   * @return average time point duration variable
+   */
+  public Variable<Double> getAverageTimePointDurationInSecondsVariable()
+  {
+    return mAverageTimePointDurationInSecondsVariable;
+  }
+
+  /**
+   * Returns the variable holding the pipeline backlog (0 to 1) measured after
+   * the last time point
+   *
+   * @return pipeline backlog variable
+   */
+  public Variable<Double> getPipelineBacklogVariable()
+  {
+    return mPipelineBacklogVariable;
+  }
+
+  /**
+   * Returns the variable holding the sink backlog (0 to 1) measured after the
+   * last time point
+   *
+   * @return sink backlog variable
+   */
+  public Variable<Double> getSinkBacklogVariable()
+  {
+    return mSinkBacklogVariable;
+  }
+
+  /**
+   * Returns the variable holding the last pacing decision
+   *
+   * @return pacing decision variable
+   */
+  public Variable<PacingDecision> getPacingDecisionVariable()
+  {
+    return mPacingDecisionVariable;
   }
 
 }
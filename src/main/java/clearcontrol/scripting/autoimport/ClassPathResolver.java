@@ -12,6 +12,16 @@ import org.reflections.scanners.SubTypesScanner;
 import org.reflections.util.ClasspathHelper;
 import org.reflections.util.ConfigurationBuilder;
 
+/**
+ * Class path resolver, resolves simple class names to fully qualified names.
+ *
+ * The class path of each base package is scanned once, and indexes all the
+ * classes found by simple name, without loading them. Names not found in the
+ * index are looked up in the other packages known to the current class
+ * loader, the results of these lookups are remembered too.
+ *
+ * @author royer
+ */
 public class ClassPathResolver
 {
 
@@ -19,6 +29,12 @@ public class ClassPathResolver
   static ConcurrentHashMap<String, HashSet<String>> sClassNameToFullyQualifiedNames =
                                                                                     new ConcurrentHashMap<>();
 
+  private static final Set<String> sIndexedBasePackages =
+                                                        new HashSet<>();
+  private static final Set<String> sIndexedPackages = new HashSet<>();
+  private static final ConcurrentHashMap<String, Set<String>> sSimpleNameToFullyQualifiedNamesIndex =
+                                                                                                 new ConcurrentHashMap<>();
+
   public static List<String> getFullyQualifiedNames(String pSimpleName)
   {
     return getFullyQualifiedNames("rtlib", pSimpleName);
@@ -29,11 +45,12 @@ public class ClassPathResolver
   {
     final List<String> lFullyQualifiedNames = new ArrayList<String>();
 
-    if (sPackages == null)
-    {
-      sPackages = getPackagesFromClassPath(pBasePackage);
-      sPackages.addAll(getPackagesFromCurrentClassLoader());
-    }
+    ensureIndexed(pBasePackage);
+
+    final Set<String> lIndexedFullyQualifiedNames =
+                                                  sSimpleNameToFullyQualifiedNamesIndex.get(pSimpleName);
+    if (lIndexedFullyQualifiedNames != null)
+      lFullyQualifiedNames.addAll(lIndexedFullyQualifiedNames);
 
     HashSet<String> lKnownFullyQualifiedNames =
                                               sClassNameToFullyQualifiedNames.get(pSimpleName);
@@ -44,13 +61,9 @@ public class ClassPathResolver
       return lFullyQualifiedNames;
     }
 
-    if (lKnownFullyQualifiedNames == null)
-    {
-      lKnownFullyQualifiedNames = new HashSet<String>();
-      sClassNameToFullyQualifiedNames.put(pSimpleName,
-                                          lKnownFullyQualifiedNames);
-    }
+    lKnownFullyQualifiedNames = new HashSet<String>();
 
+    // packages that are not indexed, typically the JDK's:
     for (final String aPackage : sPackages)
     {
       final String lCandidateFullyQualifiedName = aPackage + "."
@@ -58,11 +71,12 @@ public class ClassPathResolver
 
       try
       {
-        Class.forName(lCandidateFullyQualifiedName);
-        lFullyQualifiedNames.add(lCandidateFullyQualifiedName);
+        Class.forName(lCandidateFullyQualifiedName,
+                      false,
+                      ClassPathResolver.class.getClassLoader());
         lKnownFullyQualifiedNames.add(lCandidateFullyQualifiedName);
       }
-      catch (final Exception e)
+      catch (final Throwable e)
       {
         /*System.out.format("package '%s' does not exist. \n",
         									lCandidateFullyQualifiedName);/**/
@@ -70,9 +84,71 @@ public class ClassPathResolver
       }
     }
 
+    sClassNameToFullyQualifiedNames.put(pSimpleName,
+                                        lKnownFullyQualifiedNames);
+    lFullyQualifiedNames.addAll(lKnownFullyQualifiedNames);
     return lFullyQualifiedNames;
   }
 
+  /**
+   * Scans the class path of a given base package, if not done yet, and indexes
+   * the classes found by simple name.
+   * 
+   * @param pBasePackage
+   *          base package
+   */
+  public static synchronized void ensureIndexed(String pBasePackage)
+  {
+    if (sIndexedBasePackages.contains(pBasePackage))
+      return;
+    sIndexedBasePackages.add(pBasePackage);
+
+    for (final String lType : getTypesFromClassPath(pBasePackage))
+    {
+      final int lLastDotIndex = lType.lastIndexOf('.');
+      if (lLastDotIndex < 0 || lType.indexOf('$') >= 0)
+        continue;
+      sIndexedPackages.add(lType.substring(0, lLastDotIndex));
+
+      final String lSimpleName = lType.substring(lLastDotIndex + 1);
+      Set<String> lFullyQualifiedNames =
+                                       sSimpleNameToFullyQualifiedNamesIndex.get(lSimpleName);
+      if (lFullyQualifiedNames == null)
+      {
+        lFullyQualifiedNames =
+                             Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        sSimpleNameToFullyQualifiedNamesIndex.put(lSimpleName,
+                                                  lFullyQualifiedNames);
+      }
+      lFullyQualifiedNames.add(lType);
+    }
+
+    final Set<String> lPackages =
+                                Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    lPackages.addAll(getPackagesFromCurrentClassLoader());
+    lPackages.removeAll(sIndexedPackages);
+    sPackages = lPackages;
+
+    // lookups done before might have missed indexed classes:
+    sClassNameToFullyQualifiedNames.clear();
+  }
+
+  private static Set<String> getTypesFromClassPath(String pBasePackage)
+  {
+    try
+    {
+      final Reflections lReflections =
+                                     new Reflections(new ConfigurationBuilder().setUrls(ClasspathHelper.forPackage(pBasePackage))
+                                                                               .setScanners(new SubTypesScanner(false)));
+      return lReflections.getAllTypes();
+    }
+    catch (final Throwable e)
+    {
+      // nothing found for this base package:
+      return Collections.emptySet();
+    }
+  }
+
   public static HashSet<String> getPackagesFromCurrentClassLoader()
   {
     final HashSet<String> lPackages = new HashSet<String>();
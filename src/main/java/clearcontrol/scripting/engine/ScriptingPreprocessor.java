@@ -4,28 +4,127 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Scanner;
 
 import org.apache.commons.io.IOUtils;
 
+/**
+ * Script preprocessor, resolves include directives. Preprocessed scripts are
+ * cached, and reused as long as the modification times of the included files
+ * are unchanged.
+ *
+ * @author royer
+ */
 public class ScriptingPreprocessor
 {
+  private static final int cProcessedScriptCacheCapacity = 32;
+
+  /**
+   * Preprocessed script and the modification times of the files it includes
+   */
+  private static class ProcessedScript
+  {
+    final String mProcessedScriptString;
+    final HashMap<File, Long> mIncludedFileTimeStamps;
+
+    ProcessedScript(String pProcessedScriptString,
+                    HashMap<File, Long> pIncludedFileTimeStamps)
+    {
+      mProcessedScriptString = pProcessedScriptString;
+      mIncludedFileTimeStamps = pIncludedFileTimeStamps;
+    }
+
+    boolean isUpToDate()
+    {
+      for (Map.Entry<File, Long> lEntry : mIncludedFileTimeStamps.entrySet())
+        if (lEntry.getKey().lastModified() != lEntry.getValue())
+          return false;
+      return true;
+    }
+  }
+
+  /**
+   * Least recently used cache of preprocessed scripts
+   */
+  @SuppressWarnings("serial")
+  private static class ProcessedScriptCache extends
+                                            LinkedHashMap<String, ProcessedScript>
+  {
+    ProcessedScriptCache()
+    {
+      super(16, 0.75f, true);
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, ProcessedScript> pEldest)
+    {
+      return size() > cProcessedScriptCacheCapacity;
+    }
+  }
+
+  private static final Map<String, ProcessedScript> sProcessedScriptCache =
+                                                                          Collections.synchronizedMap(new ProcessedScriptCache());
 
   public static String process(final Class pClassInPackageWhereScriptsCanBeFound,
                                final String pPathForFindingScripts,
                                final String pScriptString)
   {
-    return process(pClassInPackageWhereScriptsCanBeFound,
-                   pPathForFindingScripts,
-                   pScriptString,
-                   new HashSet<String>());
+    final String lKey = pClassInPackageWhereScriptsCanBeFound.getName()
+                        + "\n"
+                        + pPathForFindingScripts
+                        + "\n"
+                        + pScriptString;
+
+    final ProcessedScript lCachedProcessedScript =
+                                                 sProcessedScriptCache.get(lKey);
+    if (lCachedProcessedScript != null
+        && lCachedProcessedScript.isUpToDate())
+      return lCachedProcessedScript.mProcessedScriptString;
+
+    final HashMap<File, Long> lIncludedFileTimeStamps = new HashMap<>();
+    final String lProcessedScriptString =
+                                        process(pClassInPackageWhereScriptsCanBeFound,
+                                                pPathForFindingScripts,
+                                                pScriptString,
+                                                new HashSet<String>(),
+                                                lIncludedFileTimeStamps);
+
+    sProcessedScriptCache.put(lKey,
+                              new ProcessedScript(lProcessedScriptString,
+                                                  lIncludedFileTimeStamps));
+    return lProcessedScriptString;
+  }
+
+  /**
+   * Clears the preprocessed script cache
+   */
+  public static void clearCache()
+  {
+    sProcessedScriptCache.clear();
   }
 
   public static String process(final Class pClassForFindingScripts,
                                final String pPathForFindingScripts,
                                final String pScriptString,
                                final HashSet<String> pAllreadyIncludedFiles)
+  {
+    return process(pClassForFindingScripts,
+                   pPathForFindingScripts,
+                   pScriptString,
+                   pAllreadyIncludedFiles,
+                   new HashMap<File, Long>());
+  }
+
+  private static String process(final Class pClassForFindingScripts,
+                                final String pPathForFindingScripts,
+                                final String pScriptString,
+                                final HashSet<String> pAllreadyIncludedFiles,
+                                final HashMap<File, Long> pIncludedFileTimeStamps)
   {
     final StringBuilder lStringBuilder = new StringBuilder();
 
@@ -40,6 +139,9 @@ public class ScriptingPreprocessor
         String lFileName = lLine.substring(9);
         lFileName = lFileName.trim();
         final File lIncludedFile = new File(lFileName);
+        // recorded even if missing, so that the file appearing is noticed:
+        pIncludedFileTimeStamps.put(lIncludedFile,
+                                    lIncludedFile.lastModified());
 
         try
         {
@@ -55,7 +157,8 @@ public class ScriptingPreprocessor
                                                          process(pClassForFindingScripts,
                                                                  pPathForFindingScripts,
                                                                  lIncludedFileString,
-                                                                 pAllreadyIncludedFiles);
+                                                                 pAllreadyIncludedFiles,
+                                                                 pIncludedFileTimeStamps);
             lStringBuilder.append(lPreProcessedIncludedFileString);
             lStringBuilder.append("\n");
           }
@@ -86,7 +189,8 @@ public class ScriptingPreprocessor
                                                          process(pClassForFindingScripts,
                                                                  pPathForFindingScripts,
                                                                  lIncludedFileString,
-                                                                 pAllreadyIncludedFiles);
+                                                                 pAllreadyIncludedFiles,
+                                                                 pIncludedFileTimeStamps);
             lStringBuilder.append(lPreProcessedIncludedFileString);
             lStringBuilder.append("\n");
           }
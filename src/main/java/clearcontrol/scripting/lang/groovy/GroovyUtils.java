@@ -4,19 +4,35 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import clearcontrol.scripting.autoimport.AutoImport;
 import groovy.lang.Binding;
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.GroovyCodeSource;
 import groovy.lang.GroovyShell;
 
 import org.apache.commons.io.IOUtils;
 import org.codehaus.groovy.control.CompilationFailedException;
 import org.codehaus.groovy.control.CompilerConfiguration;
 import org.codehaus.groovy.control.customizers.ImportCustomizer;
+import org.codehaus.groovy.runtime.InvokerHelper;
 
+/**
+ * Groovy utilities. Compiled script classes are cached, keyed by a hash of the
+ * script name and source: running the same script again only costs its
+ * execution, auto-import resolution and compilation are skipped.
+ *
+ * @author royer
+ */
 public class GroovyUtils
 {
+  private static final int cCompiledScriptCacheCapacity = 64;
 
   static final CompilerConfiguration cCompilerConfiguration =
                                                             new CompilerConfiguration();
@@ -31,6 +47,28 @@ public class GroovyUtils
     cCompilerConfiguration.addCompilationCustomizers(new ASTTransformationCustomizer(CompileStatic.class));/**/
   }
 
+  private static final Map<String, Class<?>> sCompiledScriptCache =
+                                                                 Collections.synchronizedMap(new CompiledScriptCache());
+
+  /**
+   * Least recently used cache of compiled script classes
+   */
+  @SuppressWarnings("serial")
+  private static class CompiledScriptCache extends
+                                           LinkedHashMap<String, Class<?>>
+  {
+    CompiledScriptCache()
+    {
+      super(16, 0.75f, true);
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Class<?>> pEldest)
+    {
+      return size() > cCompiledScriptCacheCapacity;
+    }
+  }
+
   public static CompilerConfiguration getCompilerConfiguration()
   {
     return cCompilerConfiguration;
@@ -39,11 +77,31 @@ public class GroovyUtils
   public static void addImports(final String... pClassNames)
   {
     cImportCustomizer.addImports(pClassNames);
+    clearCompiledScriptCache();
   }
 
   public static void addStaticStarImport(final String... pClassNames)
   {
     cImportCustomizer.addStaticStars(pClassNames);
+    clearCompiledScriptCache();
+  }
+
+  /**
+   * Clears the compiled script cache
+   */
+  public static void clearCompiledScriptCache()
+  {
+    sCompiledScriptCache.clear();
+  }
+
+  /**
+   * Returns the number of compiled scripts currently cached
+   * 
+   * @return number of cached compiled scripts
+   */
+  public static int getNumberOfCompiledScripts()
+  {
+    return sCompiledScriptCache.size();
   }
 
   public static Object runScript(final String pScriptName,
@@ -132,11 +190,6 @@ public class GroovyUtils
       pBinding.setProperty("err", new PrintStream(pOutputStream));
     }
 
-    final GroovyShell lGroovyShell =
-                                   new GroovyShell(GroovyUtils.class.getClassLoader(),
-                                                   pBinding,
-                                                   cCompilerConfiguration);
-
     final String lPreamble = pPreambleString != null ? pPreambleString
                                                      : "";
 
@@ -154,23 +207,73 @@ public class GroovyUtils
                                               + lPostamble
                                               + "\n////Postamble end\n\n";
 
+    final Class<?> lScriptClass =
+                                getCompiledScriptClass(pScriptName,
+                                                       lPreambleAndScriptCombined);
+
+    final Object lObject = InvokerHelper.createScript(lScriptClass,
+                                                      pBinding)
+                                        .run();
+
+    return lObject;
+
+  }
+
+  private static Class<?> getCompiledScriptClass(final String pScriptName,
+                                                 final String pPreambleAndScriptCombined)
+  {
+    final String lKey = getContentHash(pScriptName + "\n"
+                                       + pPreambleAndScriptCombined);
+
+    Class<?> lScriptClass = sCompiledScriptCache.get(lKey);
+    if (lScriptClass != null)
+      return lScriptClass;
+
     final String lImportsStatements =
-                                    AutoImport.generateImportStatements(lPreambleAndScriptCombined);
+                                    AutoImport.generateImportStatements(pPreambleAndScriptCombined);
 
     final String lPreambleAndScriptCombinedWithImports =
                                                        "////AutoImports begin\n"
                                                          + lImportsStatements
                                                          + "////AutoImports end\n\n"
-                                                         + lPreambleAndScriptCombined;
+                                                         + pPreambleAndScriptCombined;
 
     // System.out.println(lPreambleAndScriptCombinedWithImports);
 
-    final Object lObject =
-                         lGroovyShell.evaluate(lPreambleAndScriptCombinedWithImports,
-                                               pScriptName);
+    // a Groovy class loader keeps all the classes it parses, each script gets
+    // its own so that evicted classes can be unloaded with their loader:
+    final GroovyClassLoader lGroovyClassLoader =
+                                               new GroovyClassLoader(GroovyUtils.class.getClassLoader(),
+                                                                     cCompilerConfiguration);
+    final GroovyCodeSource lGroovyCodeSource =
+                                             new GroovyCodeSource(lPreambleAndScriptCombinedWithImports,
+                                                                  pScriptName,
+                                                                  GroovyShell.DEFAULT_CODE_BASE);
+    lGroovyCodeSource.setCachable(false);
+    lScriptClass = lGroovyClassLoader.parseClass(lGroovyCodeSource,
+                                                 false);
 
-    return lObject;
+    sCompiledScriptCache.put(lKey, lScriptClass);
+    return lScriptClass;
+  }
 
+  private static String getContentHash(final String pString)
+  {
+    try
+    {
+      final MessageDigest lMessageDigest =
+                                         MessageDigest.getInstance("SHA-256");
+      final byte[] lDigest =
+                           lMessageDigest.digest(pString.getBytes(StandardCharsets.UTF_8));
+      final StringBuilder lStringBuilder = new StringBuilder();
+      for (final byte lByte : lDigest)
+        lStringBuilder.append(String.format("%02x", lByte));
+      return lStringBuilder.toString();
+    }
+    catch (final NoSuchAlgorithmException e)
+    {
+      throw new RuntimeException(e);
+    }
   }
 
 }
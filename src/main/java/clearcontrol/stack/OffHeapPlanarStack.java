@@ -202,6 +202,32 @@ public class OffHeapPlanarStack extends StackBase
 
   }
 
+  /**
+   * Replaces the memory and dimensions of this stack, the data type and number
+   * of channels are unchanged. This is used by derived classes to re-view a
+   * buffer for different dimensions.
+   * 
+   * @param pContiguousMemory
+   *          contiguous memory to use
+   * @param pDimensions
+   *          dimensions
+   */
+  protected void setContiguousMemory(final ContiguousMemoryInterface pContiguousMemory,
+                                     final long... pDimensions)
+  {
+    mDimensions = Arrays.copyOf(pDimensions, pDimensions.length);
+
+    final ContiguousMemoryInterface lContiguousMemory =
+                                                      SafeContiguousMemory.wrap(pContiguousMemory,
+                                                                                mIsSafe);
+
+    long lNumberOfFragments = pDimensions[pDimensions.length - 1];
+
+    mFragmentedMemory = FragmentedMemory.split(lContiguousMemory,
+                                               lNumberOfFragments);
+    mContiguousMemory = lContiguousMemory;
+  }
+
   /**
    * Returns true if off-heap memory is wrapped by a safe contiguous memory
    * object
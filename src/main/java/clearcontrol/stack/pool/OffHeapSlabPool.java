@@ -0,0 +1,507 @@
+package clearcontrol.stack.pool;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import clearcontrol.core.configuration.MachineConfiguration;
+import clearcontrol.core.log.LoggingFeature;
+import coremem.ContiguousMemoryInterface;
+import coremem.offheap.OffHeapMemory;
+
+/**
+ * Pool of off-heap memory slabs shared by stack recyclers. Slabs are allocated
+ * in size classes (powers of two and their midpoints), and a released slab can
+ * serve any later request that it can hold without wasting more than a given
+ * factor. The total allocated memory is capped by a budget: idle slabs are
+ * evicted, least recently released first, to make room for new slabs. Slabs
+ * that stay idle for longer than a given time are evicted too. The last holder
+ * of a released slab can take it back as long as it is still idle.
+ *
+ * @author royer
+ */
+public class OffHeapSlabPool implements LoggingFeature
+{
+  private static final long cMinimalSlabSizeInBytes = 64 * 1024;
+  private static final long cDefaultAlignment = 4096;
+
+  private static OffHeapSlabPool sDefaultOffHeapSlabPool;
+
+  /**
+   * Returns the machine-wide slab pool. Its budget is read from the machine
+   * configuration property 'stack.pool.budget' (in bytes, unlimited if
+   * missing).
+   *
+   * @return machine-wide slab pool
+   */
+  public static synchronized OffHeapSlabPool getDefault()
+  {
+    if (sDefaultOffHeapSlabPool == null)
+    {
+      final long lBudgetInBytes =
+                                MachineConfiguration.get()
+                                                    .getLongProperty("stack.pool.budget",
+                                                                     Long.MAX_VALUE);
+      sDefaultOffHeapSlabPool = new OffHeapSlabPool(lBudgetInBytes);
+    }
+    return sDefaultOffHeapSlabPool;
+  }
+
+  private static class Slab
+  {
+    final ContiguousMemoryInterface mMemory;
+    final long mCapacityInBytes;
+    final long mAlignment;
+    long mReleaseTimeInMilliseconds;
+    Object mOwner;
+
+    Slab(ContiguousMemoryInterface pMemory,
+         long pCapacityInBytes,
+         long pAlignment)
+    {
+      mMemory = pMemory;
+      mCapacityInBytes = pCapacityInBytes;
+      mAlignment = pAlignment;
+    }
+  }
+
+  private final ReentrantLock mLock = new ReentrantLock();
+  private final Condition mSlabReleasedCondition = mLock.newCondition();
+
+  private final IdentityHashMap<ContiguousMemoryInterface, Slab> mSlabMap =
+                                                                          new IdentityHashMap<>();
+  private final TreeMap<Long, ArrayDeque<Slab>> mIdleSlabsBySize =
+                                                                 new TreeMap<>();
+  private final LinkedHashSet<Slab> mIdleSlabsInReleaseOrder =
+                                                             new LinkedHashSet<>();
+
+  private volatile long mBudgetInBytes;
+  private volatile double mMaxWasteFactor = 2;
+  private volatile long mMaxIdleTimeInMilliseconds = 60_000;
+
+  private long mAllocatedBytes;
+  private long mIdleBytes;
+
+  /**
+   * Instantiates a slab pool with a given budget.
+   *
+   * @param pBudgetInBytes
+   *          maximal number of bytes allocated at any time
+   */
+  public OffHeapSlabPool(long pBudgetInBytes)
+  {
+    super();
+    mBudgetInBytes = pBudgetInBytes;
+  }
+
+  /**
+   * Returns the size class for a given size: the smallest power of two, or
+   * midpoint between consecutive powers of two, that is at least as large.
+   *
+   * @param pSizeInBytes
+   *          size in bytes
+   * @return size class in bytes
+   */
+  public static long getSizeClass(long pSizeInBytes)
+  {
+    if (pSizeInBytes <= cMinimalSlabSizeInBytes)
+      return cMinimalSlabSizeInBytes;
+    final long lPowerOfTwo = Long.highestOneBit(pSizeInBytes - 1);
+    final long lMidPoint = lPowerOfTwo + lPowerOfTwo / 2;
+    return pSizeInBytes <= lMidPoint ? lMidPoint : 2 * lPowerOfTwo;
+  }
+
+  /**
+   * Acquires a slab of at least the given size. An idle slab is reused if
+   * possible, otherwise a new slab is allocated within the budget, evicting
+   * idle slabs if needed. Waits for slabs to be released if the budget is
+   * exhausted.
+   *
+   * @param pOwner
+   *          object on behalf of which the slab is acquired, used for
+   *          statistics
+   * @param pSizeInBytes
+   *          minimal size in bytes
+   * @param pAlignment
+   *          required alignment in bytes, 0 for the default
+   * @param pWaitTime
+   *          maximal time to wait for memory
+   * @param pTimeUnit
+   *          wait time unit
+   * @return slab memory, or null if the budget could not be met in time
+   */
+  public ContiguousMemoryInterface acquire(Object pOwner,
+                                           long pSizeInBytes,
+                                           long pAlignment,
+                                           long pWaitTime,
+                                           TimeUnit pTimeUnit)
+  {
+    final long lAlignment = Math.max(cDefaultAlignment, pAlignment);
+    final long lSizeClass = getSizeClass(pSizeInBytes);
+    final long lDeadline = System.nanoTime()
+                           + pTimeUnit.toNanos(pWaitTime);
+
+    mLock.lock();
+    try
+    {
+      while (true)
+      {
+        evictExpiredSlabs();
+
+        Slab lSlab = takeIdleSlab(pSizeInBytes, lAlignment);
+        if (lSlab == null && makeRoomFor(lSizeClass))
+          lSlab = allocateSlab(lSizeClass, lAlignment);
+
+        if (lSlab != null)
+        {
+          lSlab.mOwner = pOwner;
+          return lSlab.mMemory;
+        }
+
+        final long lRemainingTime = lDeadline - System.nanoTime();
+        if (lRemainingTime <= 0)
+        {
+          warning("Off-heap budget of %d bytes exhausted, could not acquire %d bytes (allocated: %d bytes, idle: %d bytes)",
+                  mBudgetInBytes,
+                  lSizeClass,
+                  mAllocatedBytes,
+                  mIdleBytes);
+          return null;
+        }
+        mSlabReleasedCondition.awaitNanos(lRemainingTime);
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+    finally
+    {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * Releases a slab back to this pool, it becomes idle and can be reused.
+   * Memory that was not acquired from this pool is freed.
+   *
+   * @param pOwner
+   *          object on behalf of which the slab is released, used for
+   *          statistics
+   * @param pMemory
+   *          slab memory
+   */
+  public void release(Object pOwner, ContiguousMemoryInterface pMemory)
+  {
+    mLock.lock();
+    try
+    {
+      final Slab lSlab = mSlabMap.get(pMemory);
+      if (lSlab == null)
+      {
+        if (!pMemory.isFree())
+          pMemory.free();
+        return;
+      }
+      if (mIdleSlabsInReleaseOrder.contains(lSlab))
+        return;
+
+      lSlab.mOwner = pOwner;
+      lSlab.mReleaseTimeInMilliseconds = System.currentTimeMillis();
+      mIdleSlabsBySize.computeIfAbsent(lSlab.mCapacityInBytes,
+                                       (k) -> new ArrayDeque<>())
+                      .push(lSlab);
+      mIdleSlabsInReleaseOrder.add(lSlab);
+      mIdleBytes += lSlab.mCapacityInBytes;
+
+      evictExpiredSlabs();
+      mSlabReleasedCondition.signalAll();
+    }
+    finally
+    {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * Takes back a released slab, if it is still idle, on behalf of the given
+   * owner
+   *
+   * @param pOwner
+   *          object on behalf of which the slab is taken back, used for
+   *          statistics
+   * @param pMemory
+   *          slab memory
+   * @return true if the slab was still idle and is now held again, false if it
+   *         was evicted or acquired in the meantime
+   */
+  public boolean reclaim(Object pOwner, ContiguousMemoryInterface pMemory)
+  {
+    mLock.lock();
+    try
+    {
+      final Slab lSlab = mSlabMap.get(pMemory);
+      if (lSlab == null || !mIdleSlabsInReleaseOrder.remove(lSlab))
+        return false;
+
+      final ArrayDeque<Slab> lSlabs =
+                                    mIdleSlabsBySize.get(lSlab.mCapacityInBytes);
+      lSlabs.remove(lSlab);
+      if (lSlabs.isEmpty())
+        mIdleSlabsBySize.remove(lSlab.mCapacityInBytes);
+      mIdleBytes -= lSlab.mCapacityInBytes;
+      lSlab.mOwner = pOwner;
+      return true;
+    }
+    finally
+    {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * Frees all idle slabs
+   */
+  public void evictAllIdleSlabs()
+  {
+    mLock.lock();
+    try
+    {
+      while (!mIdleSlabsInReleaseOrder.isEmpty())
+        evict(mIdleSlabsInReleaseOrder.iterator().next());
+    }
+    finally
+    {
+      mLock.unlock();
+    }
+  }
+
+  private Slab takeIdleSlab(long pSizeInBytes, long pAlignment)
+  {
+    final long lMaxCapacity = (long) (mMaxWasteFactor
+                                      * getSizeClass(pSizeInBytes));
+    for (Map.Entry<Long, ArrayDeque<Slab>> lEntry : mIdleSlabsBySize.tailMap(pSizeInBytes,
+                                                                             true)
+                                                                    .entrySet())
+    {
+      if (lEntry.getKey() > lMaxCapacity)
+        break;
+      final Iterator<Slab> lIterator = lEntry.getValue().iterator();
+      while (lIterator.hasNext())
+      {
+        final Slab lSlab = lIterator.next();
+        if (lSlab.mAlignment % pAlignment == 0)
+        {
+          lIterator.remove();
+          if (lEntry.getValue().isEmpty())
+            mIdleSlabsBySize.remove(lEntry.getKey());
+          mIdleSlabsInReleaseOrder.remove(lSlab);
+          mIdleBytes -= lSlab.mCapacityInBytes;
+          return lSlab;
+        }
+      }
+    }
+    return null;
+  }
+
+  private boolean makeRoomFor(long pSizeInBytes)
+  {
+    while (mAllocatedBytes + pSizeInBytes > mBudgetInBytes
+           && !mIdleSlabsInReleaseOrder.isEmpty())
+      evict(mIdleSlabsInReleaseOrder.iterator().next());
+    return mAllocatedBytes + pSizeInBytes <= mBudgetInBytes;
+  }
+
+  private Slab allocateSlab(long pSizeInBytes, long pAlignment)
+  {
+    try
+    {
+      final ContiguousMemoryInterface lMemory =
+                                              OffHeapMemory.allocateAlignedBytes("OffHeapSlab"
+                                                                                 + pSizeInBytes,
+                                                                                 pSizeInBytes,
+                                                                                 pAlignment);
+      final Slab lSlab = new Slab(lMemory, pSizeInBytes, pAlignment);
+      mSlabMap.put(lMemory, lSlab);
+      mAllocatedBytes += pSizeInBytes;
+      return lSlab;
+    }
+    catch (Throwable e)
+    {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  private void evictExpiredSlabs()
+  {
+    final long lOldestReleaseTime = System.currentTimeMillis()
+                                    - mMaxIdleTimeInMilliseconds;
+    while (!mIdleSlabsInReleaseOrder.isEmpty())
+    {
+      final Slab lSlab = mIdleSlabsInReleaseOrder.iterator().next();
+      if (lSlab.mReleaseTimeInMilliseconds > lOldestReleaseTime)
+        break;
+      evict(lSlab);
+    }
+  }
+
+  private void evict(Slab pSlab)
+  {
+    final ArrayDeque<Slab> lSlabs =
+                                  mIdleSlabsBySize.get(pSlab.mCapacityInBytes);
+    if (lSlabs != null)
+    {
+      lSlabs.remove(pSlab);
+      if (lSlabs.isEmpty())
+        mIdleSlabsBySize.remove(pSlab.mCapacityInBytes);
+    }
+    mIdleSlabsInReleaseOrder.remove(pSlab);
+    mSlabMap.remove(pSlab.mMemory);
+    mIdleBytes -= pSlab.mCapacityInBytes;
+    mAllocatedBytes -= pSlab.mCapacityInBytes;
+    pSlab.mMemory.free();
+  }
+
+  /**
+   * Returns the budget
+   *
+   * @return budget in bytes
+   */
+  public long getBudgetInBytes()
+  {
+    return mBudgetInBytes;
+  }
+
+  /**
+   * Sets the budget. Idle slabs are evicted lazily if the new budget is below
+   * the currently allocated memory.
+   *
+   * @param pBudgetInBytes
+   *          budget in bytes
+   */
+  public void setBudgetInBytes(long pBudgetInBytes)
+  {
+    mBudgetInBytes = pBudgetInBytes;
+  }
+
+  /**
+   * Returns the max waste factor: an idle slab serves a request only if its
+   * capacity is at most this factor times the request's size class.
+   *
+   * @return max waste factor
+   */
+  public double getMaxWasteFactor()
+  {
+    return mMaxWasteFactor;
+  }
+
+  /**
+   * Sets the max waste factor
+   *
+   * @param pMaxWasteFactor
+   *          max waste factor, at least 1
+   */
+  public void setMaxWasteFactor(double pMaxWasteFactor)
+  {
+    mMaxWasteFactor = Math.max(1, pMaxWasteFactor);
+  }
+
+  /**
+   * Returns the time after which idle slabs are evicted
+   *
+   * @return max idle time in milliseconds
+   */
+  public long getMaxIdleTimeInMilliseconds()
+  {
+    return mMaxIdleTimeInMilliseconds;
+  }
+
+  /**
+   * Sets the time after which idle slabs are evicted
+   *
+   * @param pMaxIdleTimeInMilliseconds
+   *          max idle time in milliseconds
+   */
+  public void setMaxIdleTimeInMilliseconds(long pMaxIdleTimeInMilliseconds)
+  {
+    mMaxIdleTimeInMilliseconds = pMaxIdleTimeInMilliseconds;
+  }
+
+  /**
+   * Returns the number of bytes currently allocated, idle or not
+   *
+   * @return allocated bytes
+   */
+  public long getAllocatedBytes()
+  {
+    mLock.lock();
+    try
+    {
+      return mAllocatedBytes;
+    }
+    finally
+    {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of bytes in idle slabs
+   *
+   * @return idle bytes
+   */
+  public long getIdleBytes()
+  {
+    mLock.lock();
+    try
+    {
+      return mIdleBytes;
+    }
+    finally
+    {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of idle slabs last released by a given owner
+   *
+   * @param pOwner
+   *          owner, or null for all idle slabs
+   * @return number of idle slabs
+   */
+  public int getNumberOfIdleSlabs(Object pOwner)
+  {
+    mLock.lock();
+    try
+    {
+      int lCount = 0;
+      for (Slab lSlab : mIdleSlabsInReleaseOrder)
+        if (pOwner == null || lSlab.mOwner == pOwner)
+          lCount++;
+      return lCount;
+    }
+    finally
+    {
+      mLock.unlock();
+    }
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("OffHeapSlabPool [budget=%d, allocated=%d, idle=%d]",
+                         mBudgetInBytes,
+                         getAllocatedBytes(),
+                         getIdleBytes());
+  }
+
+}
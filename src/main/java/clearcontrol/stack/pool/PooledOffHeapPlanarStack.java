@@ -0,0 +1,140 @@
+package clearcontrol.stack.pool;
+
+import clearcontrol.stack.OffHeapPlanarStack;
+import clearcontrol.stack.StackRequest;
+import coremem.ContiguousMemoryInterface;
+import coremem.enums.NativeTypeEnum;
+
+/**
+ * Stack backed by a slab from a shared off-heap slab pool. The stack's memory
+ * is a view of the first bytes of the slab, so that a slab can serve any stack
+ * request that it can hold.
+ *
+ * When the stack is released to its recycler, its slab goes back to the pool as
+ * an idle slab: stacks waiting in recyclers do not hold memory against the
+ * pool's budget, and their slabs can be reused by any recycler, or evicted.
+ * When a recycler checks whether such a stack is compatible with a request, the
+ * stack takes its slab back if it is still idle and fits, and otherwise
+ * acquires another slab without waiting. A recycled stack is always rebound to
+ * the slab it holds, so that no two live stacks ever share memory. The memory
+ * of a released stack must therefore not be accessed anymore.
+ *
+ * @author royer
+ */
+public class PooledOffHeapPlanarStack extends OffHeapPlanarStack
+{
+  private final PooledOffHeapPlanarStackFactory mFactory;
+  private ContiguousMemoryInterface mSlab;
+  private ContiguousMemoryInterface mReleasedSlab;
+  private volatile boolean mIsFree;
+
+  /**
+   * Instantiates a pooled stack for a given slab and stack request
+   *
+   * @param pFactory
+   *          factory that acquired the slab
+   * @param pSlab
+   *          slab
+   * @param pStackRequest
+   *          stack request
+   */
+  PooledOffHeapPlanarStack(PooledOffHeapPlanarStackFactory pFactory,
+                           ContiguousMemoryInterface pSlab,
+                           StackRequest pStackRequest)
+  {
+    super(pSlab.subRegion(0,
+                          PooledOffHeapPlanarStackFactory.getSizeInBytes(pStackRequest)),
+          false,
+          NativeTypeEnum.UnsignedShort,
+          1,
+          pStackRequest.getWidth(),
+          pStackRequest.getHeight(),
+          pStackRequest.getDepth());
+    mFactory = pFactory;
+    mSlab = pSlab;
+  }
+
+  @Override
+  public synchronized boolean isCompatible(final StackRequest pStackRequest)
+  {
+    if (mIsFree)
+      return false;
+
+    if (mSlab != null)
+      return mFactory.fits(mSlab.getSizeInBytes(), pStackRequest);
+
+    // the slab given back on release is taken back if possible:
+    if (mReleasedSlab != null
+        && mFactory.fits(mReleasedSlab.getSizeInBytes(), pStackRequest)
+        && mFactory.reclaimSlab(mReleasedSlab))
+    {
+      mSlab = mReleasedSlab;
+      mReleasedSlab = null;
+      return true;
+    }
+
+    final ContiguousMemoryInterface lSlab =
+                                          mFactory.acquireSlab(pStackRequest,
+                                                               0);
+    if (lSlab == null)
+      return false;
+    mSlab = lSlab;
+    mReleasedSlab = null;
+    return true;
+  }
+
+  @Override
+  public synchronized void recycle(final StackRequest pStackRequest)
+  {
+    if (mSlab == null)
+      mSlab = mFactory.acquireSlab(pStackRequest);
+    setContiguousMemory(mSlab.subRegion(0,
+                                        PooledOffHeapPlanarStackFactory.getSizeInBytes(pStackRequest)),
+                        pStackRequest.getWidth(),
+                        pStackRequest.getHeight(),
+                        pStackRequest.getDepth());
+    super.recycle(pStackRequest);
+  }
+
+  @Override
+  public void release()
+  {
+    // the slab is given back before the stack can be handed out again:
+    if (mStackRecycler != null)
+      synchronized (this)
+      {
+        if (mSlab != null)
+        {
+          mFactory.releaseSlab(mSlab);
+          mReleasedSlab = mSlab;
+          mSlab = null;
+        }
+      }
+    super.release();
+  }
+
+  @Override
+  public void free()
+  {
+    releaseSlab();
+    mIsFree = true;
+  }
+
+  @Override
+  public boolean isFree()
+  {
+    return mIsFree;
+  }
+
+  private synchronized void releaseSlab()
+  {
+    if (mSlab != null)
+    {
+      mFactory.releaseSlab(mSlab);
+      mSlab = null;
+    }
+    // a slab given back on release may already belong to another stack:
+    mReleasedSlab = null;
+  }
+
+}
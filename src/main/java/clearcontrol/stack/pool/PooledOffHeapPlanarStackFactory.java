@@ -0,0 +1,183 @@
+package clearcontrol.stack.pool;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackRequest;
+import coremem.ContiguousMemoryInterface;
+import coremem.enums.NativeTypeEnum;
+import coremem.recycling.RecyclableFactoryInterface;
+import coremem.util.Size;
+
+/**
+ * Stack factory that returns stacks backed by slabs from a shared off-heap slab
+ * pool (see {@link PooledOffHeapPlanarStack}). Keeps track of the memory held
+ * by the stacks it created, stacks released to their recycler hold no memory.
+ *
+ * @author royer
+ */
+public class PooledOffHeapPlanarStackFactory implements
+                                             RecyclableFactoryInterface<StackInterface, StackRequest>
+{
+  private final OffHeapSlabPool mOffHeapSlabPool;
+  private final long mWaitTimeInMilliseconds;
+
+  private final AtomicLong mNumberOfHeldSlabs = new AtomicLong();
+  private final AtomicLong mHeldBytes = new AtomicLong();
+
+  /**
+   * Instantiates a pooled stack factory
+   *
+   * @param pOffHeapSlabPool
+   *          slab pool
+   * @param pWaitTime
+   *          maximal time to wait for memory when the pool's budget is
+   *          exhausted
+   * @param pTimeUnit
+   *          wait time unit
+   */
+  public PooledOffHeapPlanarStackFactory(OffHeapSlabPool pOffHeapSlabPool,
+                                         long pWaitTime,
+                                         TimeUnit pTimeUnit)
+  {
+    super();
+    mOffHeapSlabPool = pOffHeapSlabPool;
+    mWaitTimeInMilliseconds = pTimeUnit.toMillis(pWaitTime);
+  }
+
+  @Override
+  public PooledOffHeapPlanarStack create(StackRequest pStackRequest)
+  {
+    final ContiguousMemoryInterface lSlab = acquireSlab(pStackRequest);
+    if (lSlab == null)
+      return null;
+
+    return new PooledOffHeapPlanarStack(this, lSlab, pStackRequest);
+  }
+
+  /**
+   * Returns the number of bytes needed for a given stack request, including
+   * metadata
+   *
+   * @param pStackRequest
+   *          stack request
+   * @return size in bytes
+   */
+  public static long getSizeInBytes(StackRequest pStackRequest)
+  {
+    final long lBytesPerVoxel = Size.of(NativeTypeEnum.UnsignedShort);
+    final long lVolume = pStackRequest.getWidth()
+                         * pStackRequest.getHeight()
+                         * pStackRequest.getDepth();
+    return lVolume * lBytesPerVoxel
+           + pStackRequest.getMetadataSizeInBytes();
+  }
+
+  ContiguousMemoryInterface acquireSlab(StackRequest pStackRequest,
+                                        long pWaitTimeInMilliseconds)
+  {
+    final ContiguousMemoryInterface lSlab =
+                                          mOffHeapSlabPool.acquire(this,
+                                                                   getSizeInBytes(pStackRequest),
+                                                                   pStackRequest.getAlignment(),
+                                                                   pWaitTimeInMilliseconds,
+                                                                   TimeUnit.MILLISECONDS);
+    if (lSlab != null)
+    {
+      mNumberOfHeldSlabs.incrementAndGet();
+      mHeldBytes.addAndGet(lSlab.getSizeInBytes());
+    }
+    return lSlab;
+  }
+
+  ContiguousMemoryInterface acquireSlab(StackRequest pStackRequest)
+  {
+    return acquireSlab(pStackRequest, mWaitTimeInMilliseconds);
+  }
+
+  boolean reclaimSlab(ContiguousMemoryInterface pSlab)
+  {
+    if (!mOffHeapSlabPool.reclaim(this, pSlab))
+      return false;
+    mNumberOfHeldSlabs.incrementAndGet();
+    mHeldBytes.addAndGet(pSlab.getSizeInBytes());
+    return true;
+  }
+
+  void releaseSlab(ContiguousMemoryInterface pSlab)
+  {
+    mNumberOfHeldSlabs.decrementAndGet();
+    mHeldBytes.addAndGet(-pSlab.getSizeInBytes());
+    mOffHeapSlabPool.release(this, pSlab);
+  }
+
+  /**
+   * Returns true if a slab of given size can hold the stack requested without
+   * too much waste
+   *
+   * @param pSlabSizeInBytes
+   *          slab size in bytes
+   * @param pStackRequest
+   *          stack request
+   * @return true if the slab fits
+   */
+  boolean fits(long pSlabSizeInBytes, StackRequest pStackRequest)
+  {
+    final long lSizeInBytes = getSizeInBytes(pStackRequest);
+    return pSlabSizeInBytes >= lSizeInBytes
+           && pSlabSizeInBytes <= mOffHeapSlabPool.getMaxWasteFactor()
+                                  * OffHeapSlabPool.getSizeClass(lSizeInBytes);
+  }
+
+  /**
+   * Returns the slab pool
+   *
+   * @return slab pool
+   */
+  public OffHeapSlabPool getOffHeapSlabPool()
+  {
+    return mOffHeapSlabPool;
+  }
+
+  /**
+   * Returns the number of slabs held by the stacks created by this factory
+   *
+   * @return number of held slabs
+   */
+  public long getNumberOfHeldSlabs()
+  {
+    return mNumberOfHeldSlabs.get();
+  }
+
+  /**
+   * Returns the number of bytes held by the stacks created by this factory
+   *
+   * @return held bytes
+   */
+  public long getHeldBytes()
+  {
+    return mHeldBytes.get();
+  }
+
+  /**
+   * Returns the number of idle slabs in the pool that were last released by
+   * stacks created by this factory
+   *
+   * @return number of idle slabs
+   */
+  public int getNumberOfIdleSlabs()
+  {
+    return mOffHeapSlabPool.getNumberOfIdleSlabs(this);
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("PooledOffHeapPlanarStackFactory [held slabs=%d, held bytes=%d, idle slabs=%d]",
+                         getNumberOfHeldSlabs(),
+                         getHeldBytes(),
+                         getNumberOfIdleSlabs());
+  }
+
+}
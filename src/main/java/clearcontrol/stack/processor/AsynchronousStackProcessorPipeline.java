@@ -1,6 +1,9 @@
 package clearcontrol.stack.processor;
 
 import clearcontrol.core.concurrent.asyncprocs.AsynchronousProcessorBase;
+import clearcontrol.core.concurrent.asyncprocs.AsynchronousProcessorInterface;
+import clearcontrol.core.concurrent.asyncprocs.RingBufferAsynchronousProcessor;
+import clearcontrol.core.concurrent.asyncprocs.WaitStrategy;
 import clearcontrol.core.device.openclose.OpenCloseDeviceInterface;
 import clearcontrol.microscope.stacks.StackRecyclerManager;
 import clearcontrol.stack.StackInterface;
@@ -19,7 +22,7 @@ public class AsynchronousStackProcessorPipeline extends
 {
 
   // single threaded asycn processor:
-  AsynchronousProcessorBase<StackInterface, StackInterface> mAsyncStackProcessor;
+  AsynchronousProcessorInterface<StackInterface, StackInterface> mAsyncStackProcessor;
 
   /**
    * Instanciates a synchronous stack processor
@@ -34,6 +37,29 @@ public class AsynchronousStackProcessorPipeline extends
   public AsynchronousStackProcessorPipeline(String pName,
                                             StackRecyclerManager pStackRecyclerManager,
                                             int pMaxQueueSize)
+  {
+    this(pName, pStackRecyclerManager, pMaxQueueSize, null);
+  }
+
+  /**
+   * Instanciates a synchronous stack processor that hands stacks over to its
+   * processing thread through a lock-free ring buffer with the given wait
+   * strategy.
+   * 
+   * @param pName
+   *          processor name
+   * @param pStackRecyclerManager
+   *          stack recycler manager
+   * @param pMaxQueueSize
+   *          max queue size
+   * @param pWaitStrategy
+   *          wait strategy, or null to use a scheduled processor polling a
+   *          blocking queue
+   */
+  public AsynchronousStackProcessorPipeline(String pName,
+                                            StackRecyclerManager pStackRecyclerManager,
+                                            int pMaxQueueSize,
+                                            WaitStrategy pWaitStrategy)
   {
     super(pName, pStackRecyclerManager);
 
@@ -51,23 +77,60 @@ public class AsynchronousStackProcessorPipeline extends
       @Override
       public StackInterface process(StackInterface pInput)
       {
-        try
-        {
-          StackInterface lProcessedStack = doProcess(pInput);
-          if (lProcessedStack != null)
-            getOutputVariable().set(lProcessedStack);
-          return lProcessedStack;
-        }
-        catch (Throwable e)
-        {
-          e.printStackTrace();
-          pInput.release();
-          return null;
-        }
+        return processStack(pInput);
       }
     }
 
-    mAsyncStackProcessor = new Processor(pName, pMaxQueueSize);
+    class RingBufferProcessor extends
+                              RingBufferAsynchronousProcessor<StackInterface, StackInterface>
+    {
+      public RingBufferProcessor(String pName,
+                                 int pMaxQueueSize,
+                                 WaitStrategy pWaitStrategy)
+      {
+        super(pName, pMaxQueueSize, pWaitStrategy);
+      }
+
+      @Override
+      public StackInterface process(StackInterface pInput)
+      {
+        return processStack(pInput);
+      }
+    }
+
+    if (pWaitStrategy == null)
+      mAsyncStackProcessor = new Processor(pName, pMaxQueueSize);
+    else
+      mAsyncStackProcessor = new RingBufferProcessor(pName,
+                                                     pMaxQueueSize,
+                                                     pWaitStrategy);
+  }
+
+  private StackInterface processStack(StackInterface pInput)
+  {
+    try
+    {
+      StackInterface lProcessedStack = doProcess(pInput);
+      if (lProcessedStack != null)
+        getOutputVariable().set(lProcessedStack);
+      return lProcessedStack;
+    }
+    catch (Throwable e)
+    {
+      e.printStackTrace();
+      pInput.release();
+      return null;
+    }
+  }
+
+  /**
+   * Returns the asynchronous processor used by this pipeline
+   * 
+   * @return asynchronous processor
+   */
+  public AsynchronousProcessorInterface<StackInterface, StackInterface> getAsynchronousProcessor()
+  {
+    return mAsyncStackProcessor;
   }
 
   @Override
@@ -0,0 +1,341 @@
+package clearcontrol.stack.processor;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import clearcontrol.core.concurrent.executors.ClearControlExecutors;
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackRequest;
+import coremem.recycling.RecyclerInterface;
+
+/**
+ * Stage of a staged stack processing pipeline. A stage wraps a single stack
+ * processor, has its own bounded input queue, and its own worker threads, which
+ * all call the same stack processor. Stacks
+ * processed by a stage are handed over to the next stage, or to the pipeline
+ * output for the last stage. Throughput and backlog statistics are maintained.
+ *
+ * @author royer
+ */
+public class StackProcessingStage
+{
+  private static final long cPollTimeOutInMilliseconds = 100;
+
+  /**
+   * Stack tagged with its sequence number in the pipeline input. A null stack
+   * stands for a stack that was dropped by a stage, it still flows through the
+   * pipeline so that the output can be re-sequenced.
+   */
+  static class SequencedStack
+  {
+    final long mSequenceNumber;
+    final StackInterface mStack;
+
+    SequencedStack(long pSequenceNumber, StackInterface pStack)
+    {
+      mSequenceNumber = pSequenceNumber;
+      mStack = pStack;
+    }
+  }
+
+  /**
+   * Receives the stacks processed by a stage
+   */
+  interface SequencedStackReceiver
+  {
+    void receive(SequencedStack pSequencedStack) throws InterruptedException;
+  }
+
+  private final String mName;
+  private final StackProcessorInterface mStackProcessor;
+  private final RecyclerInterface<StackInterface, StackRequest> mRecycler;
+  private final int mNumberOfWorkers;
+  private final BlockingQueue<SequencedStack> mInputQueue;
+  private final SequencedStackReceiver mReceiver;
+
+  private final ArrayList<Thread> mWorkerThreadList = new ArrayList<>();
+  private volatile boolean mIsRunning;
+
+  private final AtomicLong mNumberOfProcessedStacks = new AtomicLong();
+  private final AtomicLong mTotalProcessingTimeInNanoseconds =
+                                                             new AtomicLong();
+  private volatile long mCounterResetTimeInNanoseconds =
+                                                       System.nanoTime();
+
+  /**
+   * Instantiates a stack processing stage
+   *
+   * @param pName
+   *          stage name
+   * @param pStackProcessor
+   *          stack processor
+   * @param pRecycler
+   *          recycler used by the stack processor
+   * @param pMaxQueueSize
+   *          max input queue size
+   * @param pNumberOfWorkers
+   *          number of worker threads
+   * @param pReceiver
+   *          receiver of processed stacks
+   */
+  StackProcessingStage(String pName,
+                       StackProcessorInterface pStackProcessor,
+                       RecyclerInterface<StackInterface, StackRequest> pRecycler,
+                       int pMaxQueueSize,
+                       int pNumberOfWorkers,
+                       SequencedStackReceiver pReceiver)
+  {
+    super();
+    mName = pName;
+    mStackProcessor = pStackProcessor;
+    mRecycler = pRecycler;
+    mNumberOfWorkers = Math.max(1, pNumberOfWorkers);
+    mInputQueue = new ArrayBlockingQueue<>(Math.max(1, pMaxQueueSize));
+    mReceiver = pReceiver;
+  }
+
+  /**
+   * Starts the worker threads of this stage
+   */
+  synchronized void start()
+  {
+    if (mIsRunning)
+      return;
+    mIsRunning = true;
+
+    final ThreadFactory lThreadFactory =
+                                       ClearControlExecutors.getThreadFactory(mName,
+                                                                              Thread.NORM_PRIORITY);
+    for (int i = 0; i < mNumberOfWorkers; i++)
+    {
+      Thread lThread = lThreadFactory.newThread(this::work);
+      mWorkerThreadList.add(lThread);
+      lThread.start();
+    }
+  }
+
+  /**
+   * Stops the worker threads of this stage, waits for them to terminate, and
+   * releases the stacks left in the input queue.
+   *
+   * @param pTimeOut
+   *          time out
+   * @param pTimeUnit
+   *          time unit
+   * @return true if all workers terminated in time
+   */
+  synchronized boolean stop(long pTimeOut, TimeUnit pTimeUnit)
+  {
+    mIsRunning = false;
+
+    boolean lAllTerminated = true;
+    final long lDeadline = System.nanoTime() + pTimeUnit.toNanos(pTimeOut);
+    for (Thread lThread : mWorkerThreadList)
+    {
+      try
+      {
+        lThread.join(Math.max(1,
+                              TimeUnit.NANOSECONDS.toMillis(lDeadline
+                                                            - System.nanoTime())));
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+      lAllTerminated &= !lThread.isAlive();
+    }
+    mWorkerThreadList.clear();
+
+    SequencedStack lSequencedStack;
+    while ((lSequencedStack = mInputQueue.poll()) != null)
+      release(lSequencedStack);
+
+    return lAllTerminated;
+  }
+
+  /**
+   * Passes a stack to this stage, waits while the input queue is full. The
+   * stack is released if this stage is stopped.
+   *
+   * @param pSequencedStack
+   *          sequenced stack
+   * @throws InterruptedException
+   *           thrown if interrupted while waiting
+   */
+  void pass(SequencedStack pSequencedStack) throws InterruptedException
+  {
+    while (mIsRunning)
+    {
+      if (mInputQueue.offer(pSequencedStack,
+                            cPollTimeOutInMilliseconds,
+                            TimeUnit.MILLISECONDS))
+      {
+        // the input queue might have been drained by stop() just before:
+        if (!mIsRunning && mInputQueue.remove(pSequencedStack))
+          release(pSequencedStack);
+        return;
+      }
+    }
+    release(pSequencedStack);
+  }
+
+  private void release(SequencedStack pSequencedStack)
+  {
+    if (pSequencedStack.mStack != null)
+      pSequencedStack.mStack.release();
+  }
+
+  private void work()
+  {
+    while (mIsRunning)
+    {
+      try
+      {
+        SequencedStack lSequencedStack =
+                                       mInputQueue.poll(cPollTimeOutInMilliseconds,
+                                                        TimeUnit.MILLISECONDS);
+        if (lSequencedStack == null)
+          continue;
+
+        StackInterface lStack = lSequencedStack.mStack;
+        if (lStack != null && mStackProcessor.isActive())
+        {
+          final long lStartTime = System.nanoTime();
+          lStack = process(lStack);
+          mTotalProcessingTimeInNanoseconds.addAndGet(System.nanoTime()
+                                                      - lStartTime);
+          mNumberOfProcessedStacks.incrementAndGet();
+        }
+
+        mReceiver.receive(new SequencedStack(lSequencedStack.mSequenceNumber,
+                                             lStack));
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private StackInterface process(StackInterface pStack)
+  {
+    try
+    {
+      return mStackProcessor.process(pStack, mRecycler);
+    }
+    catch (Throwable e)
+    {
+      e.printStackTrace();
+      pStack.release();
+      return null;
+    }
+  }
+
+  /**
+   * Returns this stage's name
+   *
+   * @return name
+   */
+  public String getName()
+  {
+    return mName;
+  }
+
+  /**
+   * Returns this stage's stack processor
+   *
+   * @return stack processor
+   */
+  public StackProcessorInterface getStackProcessor()
+  {
+    return mStackProcessor;
+  }
+
+  /**
+   * Returns the number of worker threads of this stage
+   *
+   * @return number of workers
+   */
+  public int getNumberOfWorkers()
+  {
+    return mNumberOfWorkers;
+  }
+
+  /**
+   * Returns the number of stacks waiting in this stage's input queue
+   *
+   * @return backlog
+   */
+  public int getInputQueueLength()
+  {
+    return mInputQueue.size();
+  }
+
+  /**
+   * Returns the number of stacks processed since the last counter reset
+   *
+   * @return number of processed stacks
+   */
+  public long getNumberOfProcessedStacks()
+  {
+    return mNumberOfProcessedStacks.get();
+  }
+
+  /**
+   * Returns the number of stacks processed per second since the last counter
+   * reset
+   *
+   * @return throughput in stacks per second
+   */
+  public double getThroughputInStacksPerSecond()
+  {
+    final double lElapsedTimeInSeconds = (System.nanoTime()
+                                          - mCounterResetTimeInNanoseconds)
+                                         * 1e-9;
+    if (lElapsedTimeInSeconds <= 0)
+      return 0;
+    return mNumberOfProcessedStacks.get() / lElapsedTimeInSeconds;
+  }
+
+  /**
+   * Returns the average time taken to process a stack since the last counter
+   * reset
+   *
+   * @return average processing time in milliseconds
+   */
+  public double getAverageProcessingTimeInMilliseconds()
+  {
+    final long lNumberOfProcessedStacks = mNumberOfProcessedStacks.get();
+    if (lNumberOfProcessedStacks == 0)
+      return 0;
+    return mTotalProcessingTimeInNanoseconds.get() * 1e-6
+           / lNumberOfProcessedStacks;
+  }
+
+  /**
+   * Resets the throughput and processing time counters
+   */
+  public void resetCounters()
+  {
+    mNumberOfProcessedStacks.set(0);
+    mTotalProcessingTimeInNanoseconds.set(0);
+    mCounterResetTimeInNanoseconds = System.nanoTime();
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("StackProcessingStage [mName=%s, mNumberOfWorkers=%s, getInputQueueLength()=%s, getNumberOfProcessedStacks()=%s, getThroughputInStacksPerSecond()=%.2f]",
+                         mName,
+                         mNumberOfWorkers,
+                         getInputQueueLength(),
+                         getNumberOfProcessedStacks(),
+                         getThroughputInStacksPerSecond());
+  }
+
+}
@@ -39,4 +39,15 @@ public interface StackProcessorInterface
   public StackInterface process(StackInterface pStack,
                                 RecyclerInterface<StackInterface, StackRequest> pStackRecycler);
 
+  /**
+   * Returns whether this processor can process several stacks concurrently,
+   * from different threads. Processors are not thread-safe by default.
+   * 
+   * @return true -> processor is thread-safe
+   */
+  default boolean isThreadSafe()
+  {
+    return false;
+  }
+
 }
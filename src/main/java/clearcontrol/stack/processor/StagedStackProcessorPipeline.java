@@ -0,0 +1,334 @@
+package clearcontrol.stack.processor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import clearcontrol.core.device.openclose.OpenCloseDeviceInterface;
+import clearcontrol.core.log.LoggingFeature;
+import clearcontrol.microscope.stacks.StackRecyclerManager;
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.processor.StackProcessingStage.SequencedStack;
+
+/**
+ * Staged stack processor pipeline. Each stack processor runs in its own stage,
+ * with its own bounded input queue and its own worker threads, stacks flow from
+ * stage to stage. This way a slow stage does not hold up the other stages, and
+ * can be given more workers. Only stages of thread-safe stack processors (see
+ * {@link StackProcessorInterface#isThreadSafe()}) get more than one worker, as
+ * all workers of a stage share the same processor. Stages with more than one
+ * worker may reorder stacks, the pipeline output can optionally be re-sequenced
+ * to the input order.
+ *
+ * Stages are set up when the pipeline is opened, processors added or removed
+ * while the pipeline is open are taken into account at the next opening.
+ *
+ * @author royer
+ */
+public class StagedStackProcessorPipeline extends
+                                          StackProcessorPipelineBase
+                                          implements
+                                          StackProcessingPipelineInterface,
+                                          OpenCloseDeviceInterface,
+                                          LoggingFeature
+{
+  private static final long cStopTimeOutInSeconds = 10;
+
+  private final int mDefaultMaxQueueSize;
+  private final int mDefaultNumberOfWorkers;
+  private final boolean mPreserveOrder;
+
+  private final ConcurrentHashMap<StackProcessorInterface, int[]> mStageConfigurationMap =
+                                                                                       new ConcurrentHashMap<>();
+  private final CopyOnWriteArrayList<StackProcessingStage> mStageList =
+                                                                      new CopyOnWriteArrayList<>();
+
+  private final Object mInputLock = new Object();
+  private final AtomicLong mInputSequenceNumber = new AtomicLong();
+  private final HashMap<Long, StackInterface> mPendingOutputMap =
+                                                                new HashMap<>();
+  private long mNextOutputSequenceNumber;
+  private boolean mIsEmitting;
+  private volatile boolean mIsOpen;
+
+  /**
+   * Instanciates a staged stack processing pipeline
+   *
+   * @param pName
+   *          pipeline name
+   * @param pStackRecyclerManager
+   *          stack recycler manager
+   * @param pDefaultMaxQueueSize
+   *          default max input queue size per stage
+   * @param pDefaultNumberOfWorkers
+   *          default number of worker threads per stage, only applies to
+   *          thread-safe stack processors
+   * @param pPreserveOrder
+   *          true if output stacks are re-sequenced to the input order
+   */
+  public StagedStackProcessorPipeline(String pName,
+                                      StackRecyclerManager pStackRecyclerManager,
+                                      int pDefaultMaxQueueSize,
+                                      int pDefaultNumberOfWorkers,
+                                      boolean pPreserveOrder)
+  {
+    super(pName, pStackRecyclerManager);
+    mDefaultMaxQueueSize = pDefaultMaxQueueSize;
+    mDefaultNumberOfWorkers = pDefaultNumberOfWorkers;
+    mPreserveOrder = pPreserveOrder;
+
+    getInputVariable().addSetListener((o, n) -> enqueue(n));
+  }
+
+  /**
+   * Sets the input queue size and number of workers of the stage running a
+   * given stack processor. Takes effect at the next opening of the pipeline.
+   *
+   * @param pStackProcessor
+   *          stack processor
+   * @param pMaxQueueSize
+   *          max input queue size
+   * @param pNumberOfWorkers
+   *          number of worker threads, more than one requires a thread-safe
+   *          stack processor
+   */
+  public void setStageConfiguration(StackProcessorInterface pStackProcessor,
+                                    int pMaxQueueSize,
+                                    int pNumberOfWorkers)
+  {
+    if (pNumberOfWorkers > 1 && !pStackProcessor.isThreadSafe())
+      throw new IllegalArgumentException("Stack processor "
+                                         + pStackProcessor
+                                         + " is not thread-safe and cannot have more than one worker");
+    mStageConfigurationMap.put(pStackProcessor, new int[]
+    { pMaxQueueSize, pNumberOfWorkers });
+  }
+
+  /**
+   * Returns true if the output stacks are re-sequenced to the input order
+   *
+   * @return true if order is preserved
+   */
+  public boolean isOrderPreserved()
+  {
+    return mPreserveOrder;
+  }
+
+  /**
+   * Returns the stages of this pipeline, as set up at the last opening
+   *
+   * @return list of stages
+   */
+  public List<StackProcessingStage> getStageList()
+  {
+    return new ArrayList<>(mStageList);
+  }
+
+  /**
+   * Returns the number of processed stacks held back waiting for earlier
+   * stacks, when the output order is preserved.
+   *
+   * @return re-sequencing backlog
+   */
+  public int getResequencingBacklog()
+  {
+    synchronized (mPendingOutputMap)
+    {
+      return mPendingOutputMap.size();
+    }
+  }
+
+  @Override
+  public synchronized boolean open()
+  {
+    if (mIsOpen)
+      return true;
+    try
+    {
+      mInputSequenceNumber.set(0);
+      synchronized (mPendingOutputMap)
+      {
+        mPendingOutputMap.clear();
+        mNextOutputSequenceNumber = 0;
+        mIsEmitting = false;
+      }
+
+      // stages are built from last to first, each stage passes to the next:
+      final ArrayList<StackProcessingStage> lStageList = new ArrayList<>();
+      StackProcessingStage.SequencedStackReceiver lReceiver =
+                                                            this::emit;
+      for (int i = mProcessorList.size() - 1; i >= 0; i--)
+      {
+        final StackProcessorInterface lStackProcessor =
+                                                      mProcessorList.get(i);
+        final int[] lConfiguration =
+                                   mStageConfigurationMap.get(lStackProcessor);
+
+        // all workers of a stage call the same processor:
+        int lNumberOfWorkers = lConfiguration == null ? mDefaultNumberOfWorkers
+                                                      : lConfiguration[1];
+        if (lNumberOfWorkers > 1 && !lStackProcessor.isThreadSafe())
+        {
+          warning("Stack processor %s is not thread-safe, its stage gets a single worker",
+                  lStackProcessor);
+          lNumberOfWorkers = 1;
+        }
+
+        final StackProcessingStage lStage =
+                                          new StackProcessingStage(getName()
+                                                                   + "-stage"
+                                                                   + i,
+                                                                   lStackProcessor,
+                                                                   mRecyclerList.get(i),
+                                                                   lConfiguration == null ? mDefaultMaxQueueSize
+                                                                                          : lConfiguration[0],
+                                                                   lNumberOfWorkers,
+                                                                   lReceiver);
+        lStageList.add(0, lStage);
+        lReceiver = lStage::pass;
+      }
+
+      for (StackProcessingStage lStage : lStageList)
+        lStage.start();
+      mStageList.clear();
+      mStageList.addAll(lStageList);
+
+      mIsOpen = true;
+      return true;
+    }
+    catch (Throwable e)
+    {
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  @Override
+  public synchronized boolean close()
+  {
+    if (!mIsOpen)
+      return true;
+
+    // once closed under the input lock, no stack can enter the pipeline
+    // anymore, stacks still being handed over are released by the stopped
+    // stage:
+    synchronized (mInputLock)
+    {
+      mIsOpen = false;
+    }
+
+    // stopped from first to last, so that upstream workers blocked on a full
+    // queue can still hand over their stacks:
+    boolean lAllStopped = true;
+    for (StackProcessingStage lStage : mStageList)
+      lAllStopped &= lStage.stop(cStopTimeOutInSeconds, TimeUnit.SECONDS);
+
+    synchronized (mPendingOutputMap)
+    {
+      for (StackInterface lStack : mPendingOutputMap.values())
+        if (lStack != null)
+          lStack.release();
+      mPendingOutputMap.clear();
+    }
+    return lAllStopped;
+  }
+
+  private void enqueue(StackInterface pStack)
+  {
+    if (pStack == null)
+      return;
+
+    // the open state is checked under the lock, but the stack is handed over
+    // outside of it since that can block while the first stage is full, and
+    // would then also block close():
+    final SequencedStack lSequencedStack;
+    final StackProcessingStage lFirstStage;
+    synchronized (mInputLock)
+    {
+      if (!mIsOpen)
+      {
+        pStack.release();
+        return;
+      }
+
+      lSequencedStack =
+                      new SequencedStack(mInputSequenceNumber.getAndIncrement(),
+                                         pStack);
+      lFirstStage = mStageList.isEmpty() ? null : mStageList.get(0);
+    }
+
+    try
+    {
+      if (lFirstStage == null)
+        emit(lSequencedStack);
+      else
+        lFirstStage.pass(lSequencedStack);
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      pStack.release();
+    }
+  }
+
+  private void emit(SequencedStack pSequencedStack)
+  {
+    if (!mPreserveOrder)
+    {
+      if (pSequencedStack.mStack != null)
+        getOutputVariable().set(pSequencedStack.mStack);
+      return;
+    }
+
+    synchronized (mPendingOutputMap)
+    {
+      mPendingOutputMap.put(pSequencedStack.mSequenceNumber,
+                            pSequencedStack.mStack);
+
+      // the thread already emitting also emits this stack when its turn comes:
+      if (mIsEmitting)
+        return;
+      mIsEmitting = true;
+    }
+
+    // the output variable is set outside of the lock, as its listeners can be
+    // slow, and only one thread emits at a time so that the order is kept:
+    final ArrayList<StackInterface> lReadyStackList = new ArrayList<>();
+    while (true)
+    {
+      synchronized (mPendingOutputMap)
+      {
+        while (mPendingOutputMap.containsKey(mNextOutputSequenceNumber))
+        {
+          final StackInterface lStack =
+                                      mPendingOutputMap.remove(mNextOutputSequenceNumber);
+          mNextOutputSequenceNumber++;
+          if (lStack != null)
+            lReadyStackList.add(lStack);
+        }
+
+        if (lReadyStackList.isEmpty())
+        {
+          mIsEmitting = false;
+          return;
+        }
+      }
+
+      for (StackInterface lStack : lReadyStackList)
+        try
+        {
+          getOutputVariable().set(lStack);
+        }
+        catch (Throwable e)
+        {
+          e.printStackTrace();
+        }
+      lReadyStackList.clear();
+    }
+  }
+
+}
@@ -0,0 +1,280 @@
+package clearcontrol.stack.processor.projection;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+
+import clearcontrol.core.concurrent.executors.ClearControlExecutors;
+import clearcontrol.core.concurrent.executors.CompletingThreadPoolExecutor;
+import clearcontrol.core.variable.Variable;
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackRequest;
+import clearcontrol.stack.processor.StackProcessorBase;
+import coremem.ContiguousMemoryInterface;
+import coremem.enums.NativeTypeEnum;
+import coremem.recycling.RecyclerInterface;
+
+/**
+ * Stack processor computing max, sum and mean projections, as well as an
+ * intensity histogram, for live monitoring. Stacks are passed through
+ * unchanged. Planes are accumulated one at a time, each plane being split in
+ * stripes of rows accumulated in parallel. Sources that deliver planes one by
+ * one can accumulate them as they arrive with
+ * {@link #beginStack(int, int, long)},
+ * {@link #accumulatePlane(ContiguousMemoryInterface)} and {@link #endStack()};
+ * cameras deliver whole stacks, in which case {@link #process} accumulates all
+ * planes once the stack is received.
+ *
+ * Only unsigned 16-bit stacks are accumulated, for other stacks the
+ * projections variable is set to null so that stale projections are not used.
+ * Projections carry the index of their stack so that consumers can check that
+ * they match the stack they display.
+ *
+ * Projections are published through a variable. Projections that are no longer
+ * published are reused for later stacks once their consumers have released
+ * them (see {@link StackProjections#acquire()}).
+ *
+ * @author royer
+ */
+public class ProjectionStackProcessor extends StackProcessorBase
+{
+  private static final int cNumberOfThreads =
+                                            Math.max(1,
+                                                     Runtime.getRuntime()
+                                                            .availableProcessors());
+
+  private static final CompletingThreadPoolExecutor sExecutor =
+                                                              ClearControlExecutors.getOrCreateThreadPoolExecutor(ProjectionStackProcessor.class,
+                                                                                                                  Thread.NORM_PRIORITY,
+                                                                                                                  cNumberOfThreads,
+                                                                                                                  cNumberOfThreads,
+                                                                                                                  Integer.MAX_VALUE);
+
+  private final Variable<StackProjections> mProjectionsVariable;
+
+  private static final int cMaxNumberOfRetiredProjections = 2;
+
+  private StackProjections mCurrentProjections;
+  private final ArrayList<StackProjections> mRetiredProjectionsList =
+                                                                    new ArrayList<>();
+
+  // stripes of rows, with their own scratch values and histograms:
+  private int[] mStripePixelOffsets;
+  private short[][] mStripeValues;
+  private int[][] mStripeHistograms;
+
+  /**
+   * Instantiates a projection stack processor
+   *
+   * @param pProcessorName
+   *          processor name
+   */
+  public ProjectionStackProcessor(String pProcessorName)
+  {
+    super(pProcessorName);
+    mProjectionsVariable =
+                         new Variable<StackProjections>(pProcessorName
+                                                        + "Projections",
+                                                        null);
+  }
+
+  @Override
+  public StackInterface process(StackInterface pStack,
+                                RecyclerInterface<StackInterface, StackRequest> pStackRecycler)
+  {
+    if (pStack.getDataType() != NativeTypeEnum.UnsignedShort)
+    {
+      clearProjections();
+      return pStack;
+    }
+
+    final Long lStackIndex = pStack.getMetaData() == null ? null
+                                                          : pStack.getMetaData()
+                                                                  .getIndex();
+    beginStack((int) pStack.getWidth(),
+               (int) pStack.getHeight(),
+               lStackIndex == null ? -1 : lStackIndex);
+    final int lDepth = (int) pStack.getDepth();
+    for (int z = 0; z < lDepth; z++)
+      accumulatePlane(pStack.getContiguousMemory(z));
+    endStack();
+
+    return pStack;
+  }
+
+  /**
+   * Begins accumulating the planes of a new stack of unknown index
+   *
+   * @param pWidth
+   *          plane width
+   * @param pHeight
+   *          plane height
+   */
+  public void beginStack(int pWidth, int pHeight)
+  {
+    beginStack(pWidth, pHeight, -1);
+  }
+
+  /**
+   * Begins accumulating the planes of a new stack
+   *
+   * @param pWidth
+   *          plane width
+   * @param pHeight
+   *          plane height
+   * @param pStackIndex
+   *          stack index, -1 if unknown
+   */
+  public synchronized void beginStack(int pWidth,
+                                      int pHeight,
+                                      long pStackIndex)
+  {
+    mCurrentProjections = getFreeProjections(pWidth, pHeight);
+    mCurrentProjections.setStackIndex(pStackIndex);
+
+    final int lNumberOfStripes = Math.max(1,
+                                          Math.min(cNumberOfThreads,
+                                                   pHeight));
+    if (mStripeValues == null
+        || mStripeValues.length != lNumberOfStripes
+        || mStripePixelOffsets[lNumberOfStripes] != pWidth * pHeight)
+    {
+      mStripePixelOffsets = new int[lNumberOfStripes + 1];
+      mStripeValues = new short[lNumberOfStripes][];
+      mStripeHistograms = new int[lNumberOfStripes][];
+      for (int s = 0; s < lNumberOfStripes; s++)
+      {
+        final int lBeginRow = (int) ((long) pHeight * s
+                                     / lNumberOfStripes);
+        final int lEndRow = (int) ((long) pHeight * (s + 1)
+                                   / lNumberOfStripes);
+        mStripePixelOffsets[s] = lBeginRow * pWidth;
+        mStripePixelOffsets[s + 1] = lEndRow * pWidth;
+        mStripeValues[s] = new short[(lEndRow - lBeginRow) * pWidth];
+        mStripeHistograms[s] = StackProjections.newHistogram();
+      }
+    }
+  }
+
+  /**
+   * Accumulates the next plane of the current stack
+   *
+   * @param pPlaneMemory
+   *          plane memory, unsigned 16-bit values
+   */
+  public synchronized void accumulatePlane(ContiguousMemoryInterface pPlaneMemory)
+  {
+    final int lNumberOfStripes = mStripeValues.length;
+    if (lNumberOfStripes == 1)
+      accumulateStripe(pPlaneMemory, 0);
+    else
+    {
+      // the completion service executes its tasks without retaining their
+      // futures in the executor:
+      final CompletionService<Object> lCompletionService =
+                                                         new ExecutorCompletionService<>(sExecutor);
+      for (int s = 0; s < lNumberOfStripes; s++)
+      {
+        final int lStripe = s;
+        lCompletionService.submit(() -> accumulateStripe(pPlaneMemory,
+                                                         lStripe),
+                                  null);
+      }
+
+      try
+      {
+        for (int s = 0; s < lNumberOfStripes; s++)
+          lCompletionService.take().get();
+      }
+      catch (InterruptedException | ExecutionException e)
+      {
+        throw new RuntimeException("Could not accumulate plane", e);
+      }
+    }
+    mCurrentProjections.endPlane(mStripeHistograms);
+  }
+
+  private void accumulateStripe(ContiguousMemoryInterface pPlaneMemory,
+                                int pStripe)
+  {
+    final short[] lValues = mStripeValues[pStripe];
+    final int lPixelOffset = mStripePixelOffsets[pStripe];
+    pPlaneMemory.subRegion(2L * lPixelOffset, 2L * lValues.length)
+                .copyTo(lValues);
+    mCurrentProjections.accumulate(lValues,
+                                   lPixelOffset,
+                                   lValues.length,
+                                   mStripeHistograms[pStripe]);
+  }
+
+  /**
+   * Ends the current stack and publishes its projections
+   *
+   * @return projections of the stack
+   */
+  public synchronized StackProjections endStack()
+  {
+    final StackProjections lProjections = mCurrentProjections;
+    final StackProjections lPublishedProjections =
+                                                 mProjectionsVariable.get();
+    mCurrentProjections = null;
+    lProjections.hold();
+    mProjectionsVariable.set(lProjections);
+    retire(lPublishedProjections);
+    return lProjections;
+  }
+
+  private synchronized void clearProjections()
+  {
+    final StackProjections lProjections = mProjectionsVariable.get();
+    if (lProjections == null)
+      return;
+    mProjectionsVariable.set((StackProjections) null);
+    retire(lProjections);
+  }
+
+  private void retire(StackProjections pProjections)
+  {
+    if (pProjections == null)
+      return;
+    pProjections.release();
+    if (mRetiredProjectionsList.size() < cMaxNumberOfRetiredProjections)
+      mRetiredProjectionsList.add(pProjections);
+  }
+
+  private StackProjections getFreeProjections(int pWidth, int pHeight)
+  {
+    // retired projections still held by consumers are left alone:
+    final Iterator<StackProjections> lIterator =
+                                               mRetiredProjectionsList.iterator();
+    while (lIterator.hasNext())
+    {
+      final StackProjections lProjections = lIterator.next();
+      if (!lProjections.isReleased())
+        continue;
+      lIterator.remove();
+      if (lProjections.getWidth() == pWidth
+          && lProjections.getHeight() == pHeight)
+      {
+        lProjections.clear();
+        return lProjections;
+      }
+    }
+    return new StackProjections(pWidth, pHeight);
+  }
+
+  /**
+   * Returns the variable holding the projections of the last processed stack,
+   * null if that stack could not be projected. Consumers that read projections
+   * after the variable's listeners have returned must acquire them first.
+   *
+   * @return projections variable
+   */
+  public Variable<StackProjections> getProjectionsVariable()
+  {
+    return mProjectionsVariable;
+  }
+
+}
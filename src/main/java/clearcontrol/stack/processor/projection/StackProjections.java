@@ -0,0 +1,308 @@
+package clearcontrol.stack.processor.projection;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Max and sum projections along z, and intensity histogram, of an unsigned
+ * 16-bit stack. Projections are accumulated plane by plane, and disjoint pixel
+ * ranges of a plane can be accumulated concurrently.
+ *
+ * Published projections are held by their publisher, and by each consumer that
+ * acquires them (see {@link #acquire()}). They are reused for another stack
+ * only once all holds have been released.
+ *
+ * @author royer
+ */
+public class StackProjections
+{
+  private static final int cNumberOfHistogramBins = 1 << 16;
+
+  /**
+   * Largest intensity value, projections and histogram are unsigned 16-bit
+   */
+  public static final int cMaximalValue = cNumberOfHistogramBins - 1;
+
+  private final int mWidth;
+  private final int mHeight;
+  private final char[] mMaxProjection;
+  private final int[] mSumProjection;
+  private final long[] mHistogram = new long[cNumberOfHistogramBins];
+  private volatile int mNumberOfPlanes;
+  private volatile long mStackIndex = -1;
+
+  // publisher hold plus consumer holds, zero while these projections are
+  // accumulated or may be reused:
+  private final AtomicInteger mNumberOfHolds = new AtomicInteger();
+
+  /**
+   * Instantiates empty projections for planes of given size
+   *
+   * @param pWidth
+   *          plane width
+   * @param pHeight
+   *          plane height
+   */
+  public StackProjections(int pWidth, int pHeight)
+  {
+    super();
+    mWidth = pWidth;
+    mHeight = pHeight;
+    mMaxProjection = new char[pWidth * pHeight];
+    mSumProjection = new int[pWidth * pHeight];
+  }
+
+  /**
+   * Returns an empty histogram suitable for accumulation
+   *
+   * @return empty histogram
+   */
+  public static int[] newHistogram()
+  {
+    return new int[cNumberOfHistogramBins];
+  }
+
+  /**
+   * Clears the projections and histogram
+   */
+  public void clear()
+  {
+    Arrays.fill(mMaxProjection, (char) 0);
+    Arrays.fill(mSumProjection, 0);
+    Arrays.fill(mHistogram, 0);
+    mNumberOfPlanes = 0;
+    mStackIndex = -1;
+  }
+
+  /**
+   * Accumulates a range of pixels of the current plane. Ranges that do not
+   * overlap can be accumulated concurrently, each with its own histogram.
+   *
+   * @param pValues
+   *          unsigned 16-bit pixel values
+   * @param pPixelOffset
+   *          index of the first pixel in the plane
+   * @param pLength
+   *          number of pixels
+   * @param pHistogram
+   *          histogram to accumulate into, see {@link #newHistogram()}
+   */
+  public void accumulate(short[] pValues,
+                         int pPixelOffset,
+                         int pLength,
+                         int[] pHistogram)
+  {
+    final char[] lMaxProjection = mMaxProjection;
+    final int[] lSumProjection = mSumProjection;
+    for (int i = 0, j = pPixelOffset; i < pLength; i++, j++)
+    {
+      final int lValue = pValues[i] & 0xFFFF;
+      if (lValue > lMaxProjection[j])
+        lMaxProjection[j] = (char) lValue;
+      lSumProjection[j] += lValue;
+      pHistogram[lValue]++;
+    }
+  }
+
+  /**
+   * Ends the current plane, merging and clearing the histograms used to
+   * accumulate it.
+   *
+   * @param pHistograms
+   *          histograms used to accumulate the plane
+   */
+  public void endPlane(int[]... pHistograms)
+  {
+    for (int[] lHistogram : pHistograms)
+    {
+      for (int i = 0; i < cNumberOfHistogramBins; i++)
+        mHistogram[i] += lHistogram[i];
+      Arrays.fill(lHistogram, 0);
+    }
+    mNumberOfPlanes++;
+  }
+
+  /**
+   * Returns the plane width
+   *
+   * @return width
+   */
+  public int getWidth()
+  {
+    return mWidth;
+  }
+
+  /**
+   * Returns the plane height
+   *
+   * @return height
+   */
+  public int getHeight()
+  {
+    return mHeight;
+  }
+
+  /**
+   * Sets the index of the stack these projections are computed from
+   *
+   * @param pStackIndex
+   *          stack index, -1 if unknown
+   */
+  public void setStackIndex(long pStackIndex)
+  {
+    mStackIndex = pStackIndex;
+  }
+
+  /**
+   * Returns the index of the stack these projections are computed from
+   *
+   * @return stack index, -1 if unknown
+   */
+  public long getStackIndex()
+  {
+    return mStackIndex;
+  }
+
+  /**
+   * Returns the number of planes accumulated
+   *
+   * @return number of planes
+   */
+  public int getNumberOfPlanes()
+  {
+    return mNumberOfPlanes;
+  }
+
+  /**
+   * Returns the max projection, pixels are unsigned 16-bit values
+   *
+   * @return max projection
+   */
+  public char[] getMaxProjection()
+  {
+    return mMaxProjection;
+  }
+
+  /**
+   * Returns the sum projection. Sums are exact for up to 32768 planes.
+   *
+   * @return sum projection
+   */
+  public int[] getSumProjection()
+  {
+    return mSumProjection;
+  }
+
+  /**
+   * Computes the mean projection
+   *
+   * @param pMeanProjection
+   *          array to write the mean projection to
+   */
+  public void getMeanProjection(float[] pMeanProjection)
+  {
+    final float lInverseNumberOfPlanes =
+                                       mNumberOfPlanes == 0 ? 0
+                                                            : 1f / mNumberOfPlanes;
+    for (int i = 0; i < mSumProjection.length; i++)
+      pMeanProjection[i] = (mSumProjection[i] & 0xFFFFFFFFL)
+                           * lInverseNumberOfPlanes;
+  }
+
+  /**
+   * Returns the intensity histogram, one bin per unsigned 16-bit value
+   *
+   * @return histogram
+   */
+  public long[] getHistogram()
+  {
+    return mHistogram;
+  }
+
+  /**
+   * Returns the smallest intensity value such that at least the given fraction
+   * of voxels have an intensity lower or equal.
+   *
+   * @param pFraction
+   *          fraction within [0,1]
+   * @return intensity value
+   */
+  public int getPercentile(double pFraction)
+  {
+    long lTotal = 0;
+    for (int i = 0; i < cNumberOfHistogramBins; i++)
+      lTotal += mHistogram[i];
+    if (lTotal == 0)
+      return 0;
+
+    final long lTarget = Math.max(1,
+                                  (long) Math.ceil(pFraction * lTotal));
+    long lCumulated = 0;
+    for (int i = 0; i < cNumberOfHistogramBins; i++)
+    {
+      lCumulated += mHistogram[i];
+      if (lCumulated >= lTarget)
+        return i;
+    }
+    return cMaximalValue;
+  }
+
+  /**
+   * Acquires these projections, so that they are not reused for another stack
+   * while being read. Acquired projections must be released once read.
+   *
+   * @return true if acquired, false if these projections are no longer
+   *         published and cannot be read
+   */
+  public boolean acquire()
+  {
+    int lNumberOfHolds;
+    do
+    {
+      lNumberOfHolds = mNumberOfHolds.get();
+      if (lNumberOfHolds == 0)
+        return false;
+    }
+    while (!mNumberOfHolds.compareAndSet(lNumberOfHolds,
+                                         lNumberOfHolds + 1));
+    return true;
+  }
+
+  /**
+   * Releases a hold on these projections, see {@link #acquire()}
+   */
+  public void release()
+  {
+    mNumberOfHolds.decrementAndGet();
+  }
+
+  /**
+   * Returns true if no one holds these projections, in which case they can be
+   * reused
+   *
+   * @return true if not held
+   */
+  public boolean isReleased()
+  {
+    return mNumberOfHolds.get() <= 0;
+  }
+
+  /**
+   * Takes the publisher hold, once accumulation is done and before publishing
+   */
+  void hold()
+  {
+    mNumberOfHolds.set(1);
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("StackProjections [mWidth=%s, mHeight=%s, mNumberOfPlanes=%s, mStackIndex=%s]",
+                         mWidth,
+                         mHeight,
+                         mNumberOfPlanes,
+                         mStackIndex);
+  }
+
+}
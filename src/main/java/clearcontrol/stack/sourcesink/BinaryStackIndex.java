@@ -0,0 +1,526 @@
+package clearcontrol.stack.sourcesink;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Fixed-record binary stack index of a single channel. Each stack has one
+ * record of cRecordSizeInBytes bytes in the index file:
+ *
+ * stack index (long), time stamp in seconds (double), width, height and depth
+ * (longs), data offset in bytes within the stack's data file (long), metadata
+ * offset in bytes within the metadata file (long), metadata length in bytes
+ * (int), and data segment (int): zero if the stack has its own data file,
+ * otherwise the 1-based index of the segment file holding the stack data.
+ *
+ * Metadata strings are appended to a separate metadata file, one per line, and
+ * are only parsed on demand. Records are in increasing stack index order. When
+ * stacks are numbered from zero without gaps, as written by
+ * BinaryIndexedStackSink, a record is read with a single positional read given
+ * the stack index. Datasets with gaps, such as converted legacy datasets, are
+ * looked up by binary search. A trailing partial record, or a record whose
+ * metadata is not entirely on disk, is ignored: it is what remains after a
+ * crash.
+ *
+ * @author royer
+ */
+public class BinaryStackIndex implements AutoCloseable
+{
+  /**
+   * Index file extension
+   */
+  public static final String cIndexFileExtension = ".index.bin";
+
+  /**
+   * Metadata file extension
+   */
+  public static final String cMetaDataFileExtension = ".metadata.bin";
+
+  /**
+   * Size of index records in bytes
+   */
+  public static final int cRecordSizeInBytes = 64;
+
+  /**
+   * Format of segment file names, given the segment index
+   */
+  public static final String cSegmentFileFormat = "segment%06d.raw";
+
+  /**
+   * Returns the segment file for a given segment index
+   *
+   * @param pFolder
+   *          folder holding the segment files
+   * @param pSegmentIndex
+   *          1-based segment index
+   * @return segment file
+   */
+  public static File getSegmentFile(File pFolder, int pSegmentIndex)
+  {
+    return new File(pFolder,
+                    String.format(cSegmentFileFormat, pSegmentIndex));
+  }
+
+  private final FileChannel mIndexFileChannel;
+  private final FileChannel mMetaDataFileChannel;
+  private final boolean mReadOnly;
+
+  private volatile long mNumberOfEntries;
+  private long mMetaDataFileSize;
+
+  /**
+   * Index entry
+   */
+  public static class Entry
+  {
+    private final long mStackIndex;
+    private final double mTimeStampInSeconds;
+    private final long mWidth, mHeight, mDepth;
+    private final long mDataOffset;
+    private final long mMetaDataOffset;
+    private final int mMetaDataLength;
+    private final int mDataSegment;
+
+    private Entry(ByteBuffer pRecord)
+    {
+      mStackIndex = pRecord.getLong();
+      mTimeStampInSeconds = pRecord.getDouble();
+      mWidth = pRecord.getLong();
+      mHeight = pRecord.getLong();
+      mDepth = pRecord.getLong();
+      mDataOffset = pRecord.getLong();
+      mMetaDataOffset = pRecord.getLong();
+      mMetaDataLength = pRecord.getInt();
+      mDataSegment = pRecord.getInt();
+    }
+
+    /**
+     * Returns the stack index
+     *
+     * @return stack index
+     */
+    public long getStackIndex()
+    {
+      return mStackIndex;
+    }
+
+    /**
+     * Returns the time stamp in seconds
+     *
+     * @return time stamp in seconds
+     */
+    public double getTimeStampInSeconds()
+    {
+      return mTimeStampInSeconds;
+    }
+
+    /**
+     * Returns the stack width
+     *
+     * @return width
+     */
+    public long getWidth()
+    {
+      return mWidth;
+    }
+
+    /**
+     * Returns the stack height
+     *
+     * @return height
+     */
+    public long getHeight()
+    {
+      return mHeight;
+    }
+
+    /**
+     * Returns the stack depth
+     *
+     * @return depth
+     */
+    public long getDepth()
+    {
+      return mDepth;
+    }
+
+    /**
+     * Returns the offset in bytes of the stack data within its data file
+     *
+     * @return data offset in bytes
+     */
+    public long getDataOffset()
+    {
+      return mDataOffset;
+    }
+
+    /**
+     * Returns the offset in bytes of the metadata within the metadata file
+     *
+     * @return metadata offset in bytes
+     */
+    public long getMetaDataOffset()
+    {
+      return mMetaDataOffset;
+    }
+
+    /**
+     * Returns the length in bytes of the metadata
+     *
+     * @return metadata length in bytes
+     */
+    public int getMetaDataLength()
+    {
+      return mMetaDataLength;
+    }
+
+    /**
+     * Returns the data segment holding the stack data
+     *
+     * @return 1-based segment index, or zero if the stack has its own file
+     */
+    public int getDataSegment()
+    {
+      return mDataSegment;
+    }
+  }
+
+  /**
+   * Opens a binary stack index
+   *
+   * @param pIndexFile
+   *          index file
+   * @param pMetaDataFile
+   *          metadata file
+   * @param pReadOnly
+   *          true for read only access, false for appending entries
+   * @throws IOException
+   *           thrown if files cannot be opened
+   */
+  public BinaryStackIndex(File pIndexFile,
+                          File pMetaDataFile,
+                          boolean pReadOnly) throws IOException
+  {
+    super();
+    mReadOnly = pReadOnly;
+    if (pReadOnly)
+    {
+      mIndexFileChannel = FileChannel.open(pIndexFile.toPath(),
+                                           StandardOpenOption.READ);
+      mMetaDataFileChannel = FileChannel.open(pMetaDataFile.toPath(),
+                                              StandardOpenOption.READ);
+    }
+    else
+    {
+      mIndexFileChannel = FileChannel.open(pIndexFile.toPath(),
+                                           StandardOpenOption.READ,
+                                           StandardOpenOption.WRITE,
+                                           StandardOpenOption.CREATE);
+      mMetaDataFileChannel = FileChannel.open(pMetaDataFile.toPath(),
+                                              StandardOpenOption.READ,
+                                              StandardOpenOption.WRITE,
+                                              StandardOpenOption.CREATE);
+    }
+    update();
+  }
+
+  /**
+   * Updates the number of entries from the current file sizes. Trailing entries
+   * that are incomplete are not counted, and are overwritten by subsequent
+   * appends.
+   *
+   * @throws IOException
+   *           thrown if files cannot be read
+   */
+  public synchronized void update() throws IOException
+  {
+    mMetaDataFileSize = mMetaDataFileChannel.size();
+    long lNumberOfEntries = mIndexFileChannel.size()
+                            / cRecordSizeInBytes;
+
+    while (lNumberOfEntries > 0)
+    {
+      Entry lLastEntry = readRecord(lNumberOfEntries - 1);
+      final long lMetaDataEnd = lLastEntry.getMetaDataOffset()
+                                + lLastEntry.getMetaDataLength()
+                                + 1;
+      if (lLastEntry.getMetaDataLength() >= 0
+          && lMetaDataEnd <= mMetaDataFileSize)
+      {
+        mMetaDataFileSize = lMetaDataEnd;
+        break;
+      }
+      lNumberOfEntries--;
+    }
+    if (lNumberOfEntries == 0)
+      mMetaDataFileSize = 0;
+
+    mNumberOfEntries = lNumberOfEntries;
+  }
+
+  /**
+   * Returns the number of entries
+   *
+   * @return number of entries
+   */
+  public long getNumberOfEntries()
+  {
+    return mNumberOfEntries;
+  }
+
+  /**
+   * Reads the entry for a given stack index
+   *
+   * @param pStackIndex
+   *          stack index
+   * @return entry, or null if no such entry
+   * @throws IOException
+   *           thrown if the index file cannot be read
+   */
+  public Entry getEntry(long pStackIndex) throws IOException
+  {
+    final long lNumberOfEntries = mNumberOfEntries;
+    if (pStackIndex < 0 || lNumberOfEntries == 0)
+      return null;
+
+    // stacks numbered without gaps are at the position of their index:
+    if (pStackIndex < lNumberOfEntries)
+    {
+      final Entry lEntry = readRecord(pStackIndex);
+      if (lEntry.getStackIndex() == pStackIndex)
+        return lEntry;
+    }
+
+    // otherwise stack indices increase by at least one per record:
+    long lLow = 0;
+    long lHigh = Math.min(pStackIndex, lNumberOfEntries - 1);
+    while (lLow <= lHigh)
+    {
+      final long lMiddle = (lLow + lHigh) >>> 1;
+      final Entry lEntry = readRecord(lMiddle);
+      if (lEntry.getStackIndex() == pStackIndex)
+        return lEntry;
+      else if (lEntry.getStackIndex() < pStackIndex)
+        lLow = lMiddle + 1;
+      else
+        lHigh = lMiddle - 1;
+    }
+    return null;
+  }
+
+  /**
+   * Reads the entry at a given position in the index, regardless of its stack
+   * index
+   *
+   * @param pPosition
+   *          position, from zero to the number of entries excluded
+   * @return entry, or null if no such entry
+   * @throws IOException
+   *           thrown if the index file cannot be read
+   */
+  public Entry getEntryAt(long pPosition) throws IOException
+  {
+    if (pPosition < 0 || pPosition >= mNumberOfEntries)
+      return null;
+    return readRecord(pPosition);
+  }
+
+  private Entry readRecord(long pPosition) throws IOException
+  {
+    ByteBuffer lRecord = ByteBuffer.allocate(cRecordSizeInBytes);
+    readFully(mIndexFileChannel,
+              lRecord,
+              pPosition * cRecordSizeInBytes);
+    return new Entry(lRecord);
+  }
+
+  /**
+   * Reads the metadata string of a given entry
+   *
+   * @param pEntry
+   *          entry
+   * @return metadata string
+   * @throws IOException
+   *           thrown if the metadata file cannot be read
+   */
+  public String getMetaData(Entry pEntry) throws IOException
+  {
+    ByteBuffer lMetaData = ByteBuffer.allocate(pEntry.getMetaDataLength());
+    readFully(mMetaDataFileChannel,
+              lMetaData,
+              pEntry.getMetaDataOffset());
+    return new String(lMetaData.array(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Appends an entry. The metadata is written before the index record, so that
+   * an index record always refers to existing metadata. Entries are durable
+   * only after force is called. Stack indices must increase from one entry to
+   * the next.
+   *
+   * @param pStackIndex
+   *          stack index
+   * @param pTimeStampInSeconds
+   *          time stamp in seconds
+   * @param pWidth
+   *          width
+   * @param pHeight
+   *          height
+   * @param pDepth
+   *          depth
+   * @param pDataOffset
+   *          offset in bytes of the stack data within its data file
+   * @param pMetaData
+   *          metadata string (single line)
+   * @throws IOException
+   *           thrown if the entry cannot be written
+   */
+  public void append(long pStackIndex,
+                     double pTimeStampInSeconds,
+                     long pWidth,
+                     long pHeight,
+                     long pDepth,
+                     long pDataOffset,
+                     String pMetaData) throws IOException
+  {
+    append(pStackIndex,
+           pTimeStampInSeconds,
+           pWidth,
+           pHeight,
+           pDepth,
+           0,
+           pDataOffset,
+           pMetaData);
+  }
+
+  /**
+   * Appends an entry for a stack stored in a segment file. The metadata is
+   * written before the index record, so that an index record always refers to
+   * existing metadata. Entries are durable only after force is called.
+   *
+   * @param pStackIndex
+   *          stack index
+   * @param pTimeStampInSeconds
+   *          time stamp in seconds
+   * @param pWidth
+   *          width
+   * @param pHeight
+   *          height
+   * @param pDepth
+   *          depth
+   * @param pDataSegment
+   *          1-based segment index, or zero if the stack has its own file
+   * @param pDataOffset
+   *          offset in bytes of the stack data within its data file
+   * @param pMetaData
+   *          metadata string (single line)
+   * @throws IOException
+   *           thrown if the entry cannot be written
+   */
+  public synchronized void append(long pStackIndex,
+                                  double pTimeStampInSeconds,
+                                  long pWidth,
+                                  long pHeight,
+                                  long pDepth,
+                                  int pDataSegment,
+                                  long pDataOffset,
+                                  String pMetaData) throws IOException
+  {
+    if (mReadOnly)
+      throw new IOException("Binary stack index opened read only");
+
+    final byte[] lMetaDataBytes =
+                                pMetaData.getBytes(StandardCharsets.UTF_8);
+    final ByteBuffer lMetaDataBuffer =
+                                     ByteBuffer.allocate(lMetaDataBytes.length
+                                                         + 1);
+    lMetaDataBuffer.put(lMetaDataBytes);
+    lMetaDataBuffer.put((byte) '\n');
+    lMetaDataBuffer.flip();
+
+    final long lMetaDataOffset = mMetaDataFileSize;
+    writeFully(mMetaDataFileChannel, lMetaDataBuffer, lMetaDataOffset);
+
+    final ByteBuffer lRecord = ByteBuffer.allocate(cRecordSizeInBytes);
+    lRecord.putLong(pStackIndex);
+    lRecord.putDouble(pTimeStampInSeconds);
+    lRecord.putLong(pWidth);
+    lRecord.putLong(pHeight);
+    lRecord.putLong(pDepth);
+    lRecord.putLong(pDataOffset);
+    lRecord.putLong(lMetaDataOffset);
+    lRecord.putInt(lMetaDataBytes.length);
+    lRecord.putInt(pDataSegment);
+    lRecord.flip();
+    writeFully(mIndexFileChannel,
+               lRecord,
+               mNumberOfEntries * cRecordSizeInBytes);
+
+    mMetaDataFileSize += lMetaDataBytes.length + 1;
+    mNumberOfEntries++;
+  }
+
+  /**
+   * Forces all appended entries to disk, metadata first.
+   *
+   * @throws IOException
+   *           thrown if forcing fails
+   */
+  public synchronized void force() throws IOException
+  {
+    if (mReadOnly)
+      return;
+    mMetaDataFileChannel.force(false);
+    mIndexFileChannel.force(false);
+  }
+
+  @Override
+  public synchronized void close() throws IOException
+  {
+    try
+    {
+      if (!mReadOnly && mIndexFileChannel.isOpen())
+      {
+        // removes any stale tail left over by a crash:
+        mMetaDataFileChannel.truncate(mMetaDataFileSize);
+        mIndexFileChannel.truncate(mNumberOfEntries
+                                   * cRecordSizeInBytes);
+        force();
+      }
+    }
+    finally
+    {
+      mIndexFileChannel.close();
+      mMetaDataFileChannel.close();
+    }
+  }
+
+  private static void readFully(FileChannel pFileChannel,
+                                ByteBuffer pByteBuffer,
+                                long pPosition) throws IOException
+  {
+    long lPosition = pPosition;
+    while (pByteBuffer.hasRemaining())
+    {
+      final int lRead = pFileChannel.read(pByteBuffer, lPosition);
+      if (lRead < 0)
+        throw new IOException("Unexpected end of file in binary stack index");
+      lPosition += lRead;
+    }
+    pByteBuffer.flip();
+  }
+
+  private static void writeFully(FileChannel pFileChannel,
+                                 ByteBuffer pByteBuffer,
+                                 long pPosition) throws IOException
+  {
+    long lPosition = pPosition;
+    while (pByteBuffer.hasRemaining())
+      lPosition += pFileChannel.write(pByteBuffer, lPosition);
+  }
+
+}
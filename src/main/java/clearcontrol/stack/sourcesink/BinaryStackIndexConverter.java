@@ -0,0 +1,176 @@
+package clearcontrol.stack.sourcesink;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import clearcontrol.core.log.LoggingFeature;
+
+/**
+ * Converts the index and metadata text files of a dataset into binary stack
+ * indices (see {@link BinaryStackIndex}) so that the dataset can be opened with
+ * a binary indexed stack source. Stack data files are left untouched, and the
+ * text files are kept. Metadata lines are copied verbatim, without parsing.
+ * Entries keep the stack index parsed from the text index, so that datasets
+ * with gaps in their stack indices still find their stack files.
+ *
+ * @author royer
+ */
+public class BinaryStackIndexConverter
+{
+  private static final String cIndexTextFileExtension = ".index.txt";
+  private static final String cMetaDataTextFileExtension =
+                                                         ".metadata.txt";
+
+  private static final LoggingFeature cLoggingFeature =
+                                                      new LoggingFeature()
+                                                      {
+                                                      };
+
+  /**
+   * Converts all channels of a given dataset. Existing binary indices are
+   * replaced.
+   *
+   * @param pRootFolder
+   *          root folder
+   * @param pDataSetName
+   *          dataset name
+   * @return total number of converted entries
+   * @throws IOException
+   *           thrown if files cannot be read or written
+   */
+  public static long convert(File pRootFolder,
+                             String pDataSetName) throws IOException
+  {
+    final File lFolder = new File(pRootFolder, pDataSetName);
+
+    long lNumberOfEntries = 0;
+    for (String lChannel : getTextIndexChannelList(lFolder))
+      lNumberOfEntries += convertChannel(lFolder, lChannel);
+
+    return lNumberOfEntries;
+  }
+
+  /**
+   * Converts a single channel of a given dataset folder. Conversion stops at
+   * the first index entry that cannot be parsed, or that has no metadata, as it
+   * was only partially written. Entries whose stack index is not greater than
+   * the previous one are skipped.
+   *
+   * @param pFolder
+   *          dataset folder
+   * @param pChannel
+   *          channel
+   * @return number of converted entries
+   * @throws IOException
+   *           thrown if files cannot be read or written
+   */
+  public static long convertChannel(File pFolder,
+                                    String pChannel) throws IOException
+  {
+    final File lIndexTextFile = new File(pFolder,
+                                         pChannel
+                                                  + cIndexTextFileExtension);
+    final File lMetaDataTextFile =
+                                 new File(pFolder,
+                                          pChannel + cMetaDataTextFileExtension);
+    final File lIndexFile = new File(pFolder,
+                                     pChannel
+                                              + BinaryStackIndex.cIndexFileExtension);
+    final File lMetaDataFile =
+                             new File(pFolder,
+                                      pChannel + BinaryStackIndex.cMetaDataFileExtension);
+
+    lIndexFile.delete();
+    lMetaDataFile.delete();
+
+    long lNumberOfEntries = 0;
+    long lLastStackIndex = -1;
+    try (
+        BufferedReader lIndexReader =
+                                    new BufferedReader(new FileReader(lIndexTextFile));
+        BufferedReader lMetaDataReader =
+                                       new BufferedReader(new FileReader(lMetaDataTextFile));
+        BinaryStackIndex lBinaryStackIndex =
+                                           new BinaryStackIndex(lIndexFile,
+                                                                lMetaDataFile,
+                                                                false))
+    {
+      String lIndexLine;
+      while ((lIndexLine = lIndexReader.readLine()) != null)
+      {
+        final String lMetaDataLine = lMetaDataReader.readLine();
+        if (lMetaDataLine == null)
+          break;
+
+        final long lStackIndex;
+        final double lTimeStampInSeconds;
+        final long lWidth, lHeight, lDepth;
+        try
+        {
+          final String[] lSplittedLine = lIndexLine.split("\t", -1);
+          lStackIndex = Long.parseLong(lSplittedLine[0].trim());
+          lTimeStampInSeconds =
+                              Double.parseDouble(lSplittedLine[1].trim());
+          final String[] lDimensionsStringArray =
+                                                lSplittedLine[2].split(", ");
+
+          lWidth = Long.parseLong(lDimensionsStringArray[0]);
+          lHeight = Long.parseLong(lDimensionsStringArray[1]);
+          lDepth = Long.parseLong(lDimensionsStringArray[2].trim());
+        }
+        catch (Throwable e)
+        {
+          cLoggingFeature.warning("Ignoring partially written index entry %d of channel %s",
+                                  lNumberOfEntries,
+                                  pChannel);
+          break;
+        }
+
+        // binary indices are looked up by stack index, in increasing order:
+        if (lStackIndex <= lLastStackIndex)
+        {
+          cLoggingFeature.warning("Skipping out of order stack index %d of channel %s",
+                                  lStackIndex,
+                                  pChannel);
+          continue;
+        }
+
+        lBinaryStackIndex.append(lStackIndex,
+                                 lTimeStampInSeconds,
+                                 lWidth,
+                                 lHeight,
+                                 lDepth,
+                                 0,
+                                 lMetaDataLine);
+        lLastStackIndex = lStackIndex;
+        lNumberOfEntries++;
+      }
+    }
+
+    return lNumberOfEntries;
+  }
+
+  private static ArrayList<String> getTextIndexChannelList(File pFolder)
+  {
+    ArrayList<String> lChannelList = new ArrayList<String>();
+
+    File[] lListOfFiles = pFolder.listFiles();
+    if (lListOfFiles == null)
+      return lChannelList;
+
+    for (File lFile : lListOfFiles)
+    {
+      String lFileName = lFile.getName();
+      if (lFileName.endsWith(cIndexTextFileExtension))
+        lChannelList.add(lFileName.substring(0,
+                                             lFileName.length()
+                                                - cIndexTextFileExtension.length()));
+    }
+
+    return lChannelList;
+  }
+
+}
@@ -0,0 +1,262 @@
+package clearcontrol.stack.sourcesink;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Chunk offset table of chunked sqeazy stack files. A chunked file is a
+ * sequence of independently compressed chunks, each holding a slab of
+ * consecutive planes, followed by a footer:
+ *
+ * for each chunk: offset (long), length (long), first plane (int), number of
+ * planes (int), then: number of chunks (int), number of planes per chunk (int),
+ * magic number (long).
+ *
+ * Files without the magic number at the end are monolithic sqeazy files.
+ *
+ * @author royer
+ */
+public class SqeazyChunkTable
+{
+  /**
+   * Magic number terminating chunked sqeazy files ('SQYCHUNK')
+   */
+  public static final long cMagicNumber = 0x5351594348554E4BL;
+
+  private static final int cEntrySizeInBytes = 2 * Long.BYTES
+                                               + 2 * Integer.BYTES;
+  private static final int cTrailerSizeInBytes = 2 * Integer.BYTES
+                                                 + Long.BYTES;
+
+  private final int mPlanesPerChunk;
+  private final long[] mOffsets;
+  private final long[] mLengths;
+  private final int[] mFirstPlanes;
+  private final int[] mNumberOfPlanes;
+
+  /**
+   * Instantiates a chunk table for a stack of given depth split in chunks of a
+   * given number of planes. Offsets and lengths are set once chunks are
+   * written.
+   *
+   * @param pDepth
+   *          stack depth
+   * @param pPlanesPerChunk
+   *          number of planes per chunk
+   */
+  public SqeazyChunkTable(long pDepth, int pPlanesPerChunk)
+  {
+    mPlanesPerChunk = Math.max(1, pPlanesPerChunk);
+    final int lNumberOfChunks = (int) ((pDepth + mPlanesPerChunk - 1)
+                                       / mPlanesPerChunk);
+    mOffsets = new long[lNumberOfChunks];
+    mLengths = new long[lNumberOfChunks];
+    mFirstPlanes = new int[lNumberOfChunks];
+    mNumberOfPlanes = new int[lNumberOfChunks];
+
+    for (int i = 0; i < lNumberOfChunks; i++)
+    {
+      mFirstPlanes[i] = i * mPlanesPerChunk;
+      mNumberOfPlanes[i] = (int) Math.min(mPlanesPerChunk,
+                                          pDepth - mFirstPlanes[i]);
+    }
+  }
+
+  private SqeazyChunkTable(int pPlanesPerChunk, int pNumberOfChunks)
+  {
+    mPlanesPerChunk = pPlanesPerChunk;
+    mOffsets = new long[pNumberOfChunks];
+    mLengths = new long[pNumberOfChunks];
+    mFirstPlanes = new int[pNumberOfChunks];
+    mNumberOfPlanes = new int[pNumberOfChunks];
+  }
+
+  /**
+   * Returns the number of chunks
+   *
+   * @return number of chunks
+   */
+  public int getNumberOfChunks()
+  {
+    return mOffsets.length;
+  }
+
+  /**
+   * Returns the number of planes per chunk (the last chunk may have less)
+   *
+   * @return number of planes per chunk
+   */
+  public int getPlanesPerChunk()
+  {
+    return mPlanesPerChunk;
+  }
+
+  /**
+   * Returns the index of the chunk containing a given plane
+   *
+   * @param pPlaneIndex
+   *          plane index
+   * @return chunk index
+   */
+  public int getChunkIndex(long pPlaneIndex)
+  {
+    return (int) (pPlaneIndex / mPlanesPerChunk);
+  }
+
+  /**
+   * Returns the offset in bytes of a given chunk within the file
+   *
+   * @param pChunkIndex
+   *          chunk index
+   * @return offset in bytes
+   */
+  public long getOffset(int pChunkIndex)
+  {
+    return mOffsets[pChunkIndex];
+  }
+
+  /**
+   * Returns the compressed length in bytes of a given chunk
+   *
+   * @param pChunkIndex
+   *          chunk index
+   * @return compressed length in bytes
+   */
+  public long getLength(int pChunkIndex)
+  {
+    return mLengths[pChunkIndex];
+  }
+
+  /**
+   * Returns the index of the first plane of a given chunk
+   *
+   * @param pChunkIndex
+   *          chunk index
+   * @return first plane index
+   */
+  public int getFirstPlane(int pChunkIndex)
+  {
+    return mFirstPlanes[pChunkIndex];
+  }
+
+  /**
+   * Returns the number of planes of a given chunk
+   *
+   * @param pChunkIndex
+   *          chunk index
+   * @return number of planes
+   */
+  public int getNumberOfPlanes(int pChunkIndex)
+  {
+    return mNumberOfPlanes[pChunkIndex];
+  }
+
+  /**
+   * Sets the offset and compressed length of a given chunk
+   *
+   * @param pChunkIndex
+   *          chunk index
+   * @param pOffset
+   *          offset in bytes within the file
+   * @param pLength
+   *          compressed length in bytes
+   */
+  public void setChunk(int pChunkIndex, long pOffset, long pLength)
+  {
+    mOffsets[pChunkIndex] = pOffset;
+    mLengths[pChunkIndex] = pLength;
+  }
+
+  /**
+   * Appends this chunk table as footer to the given file channel
+   *
+   * @param pFileChannel
+   *          file channel
+   * @throws IOException
+   *           thrown if writing fails
+   */
+  public void writeTo(FileChannel pFileChannel) throws IOException
+  {
+    final ByteBuffer lByteBuffer =
+                                 ByteBuffer.allocate(getNumberOfChunks()
+                                                     * cEntrySizeInBytes
+                                                     + cTrailerSizeInBytes);
+    for (int i = 0; i < getNumberOfChunks(); i++)
+    {
+      lByteBuffer.putLong(mOffsets[i]);
+      lByteBuffer.putLong(mLengths[i]);
+      lByteBuffer.putInt(mFirstPlanes[i]);
+      lByteBuffer.putInt(mNumberOfPlanes[i]);
+    }
+    lByteBuffer.putInt(getNumberOfChunks());
+    lByteBuffer.putInt(mPlanesPerChunk);
+    lByteBuffer.putLong(cMagicNumber);
+    lByteBuffer.flip();
+
+    while (lByteBuffer.hasRemaining())
+      pFileChannel.write(lByteBuffer);
+  }
+
+  /**
+   * Reads the chunk table from the footer of a file.
+   *
+   * @param pFileChannel
+   *          file channel
+   * @return chunk table, or null if the file is not a chunked sqeazy file
+   * @throws IOException
+   *           thrown if reading fails
+   */
+  public static SqeazyChunkTable readFrom(FileChannel pFileChannel) throws IOException
+  {
+    final long lFileSize = pFileChannel.size();
+    if (lFileSize < cTrailerSizeInBytes)
+      return null;
+
+    final ByteBuffer lTrailer = ByteBuffer.allocate(cTrailerSizeInBytes);
+    readFully(pFileChannel, lTrailer, lFileSize - cTrailerSizeInBytes);
+    final int lNumberOfChunks = lTrailer.getInt();
+    final int lPlanesPerChunk = lTrailer.getInt();
+    if (lTrailer.getLong() != cMagicNumber || lNumberOfChunks < 0
+        || lPlanesPerChunk <= 0)
+      return null;
+
+    final long lTableSizeInBytes = ((long) lNumberOfChunks)
+                                   * cEntrySizeInBytes;
+    if (lTableSizeInBytes > lFileSize - cTrailerSizeInBytes)
+      return null;
+
+    final ByteBuffer lTable = ByteBuffer.allocate((int) lTableSizeInBytes);
+    readFully(pFileChannel,
+              lTable,
+              lFileSize - cTrailerSizeInBytes - lTableSizeInBytes);
+
+    final SqeazyChunkTable lChunkTable =
+                                       new SqeazyChunkTable(lPlanesPerChunk,
+                                                            lNumberOfChunks);
+    for (int i = 0; i < lNumberOfChunks; i++)
+    {
+      lChunkTable.mOffsets[i] = lTable.getLong();
+      lChunkTable.mLengths[i] = lTable.getLong();
+      lChunkTable.mFirstPlanes[i] = lTable.getInt();
+      lChunkTable.mNumberOfPlanes[i] = lTable.getInt();
+    }
+    return lChunkTable;
+  }
+
+  private static void readFully(FileChannel pFileChannel,
+                                ByteBuffer pByteBuffer,
+                                long pPosition) throws IOException
+  {
+    long lPosition = pPosition;
+    while (pByteBuffer.hasRemaining())
+    {
+      final int lRead = pFileChannel.read(pByteBuffer, lPosition);
+      if (lRead < 0)
+        throw new IOException("Unexpected end of file while reading chunk table");
+      lPosition += lRead;
+    }
+    pByteBuffer.flip();
+  }
+
+}
@@ -1,29 +1,285 @@
 package clearcontrol.stack.sourcesink.sink;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import clearcontrol.core.concurrent.asyncprocs.AsynchronousProcessorBase;
+import clearcontrol.core.concurrent.executors.ClearControlExecutors;
 import clearcontrol.core.variable.Variable;
 import clearcontrol.stack.StackInterface;
-
-import org.apache.commons.lang3.tuple.Pair;
+import clearcontrol.stack.StackRequest;
+import clearcontrol.stack.metadata.StackMetaData;
+import coremem.recycling.RecyclerInterface;
 
 /**
  * Asynchronous stack sink adapter. This sink adapter can wrap anotehr sink an
- * provides asynchronous decoupling via an elastic queue.
+ * provides asynchronous decoupling via bounded queues.
+ *
+ * Stacks are dispatched to one of several writer threads according to their
+ * channel, so that the stacks of a given channel are always written in order
+ * by the same thread. When a queue is full, the adapter's
+ * {@link QueueFullPolicy} decides whether to block, drop or spill. Spilled
+ * stacks wait in a bounded overflow queue that the writer drains, in order, as
+ * room frees up in its bounded queue.
+ *
+ * If a stack recycler is set, appended stacks are first copied into recycled
+ * stacks, and these copies are released back to the recycler once they have
+ * been written. Stacks are never allocated outside of the recycler. Otherwise,
+ * appended stacks can optionally be released once written.
  *
  * @author royer
  */
 public class AsynchronousStackSinkAdapter implements
                                           StackSinkInterface
 {
+  private static final long cRecyclerWaitTimeInMilliseconds = 100;
+  private static final long cQueueWaitTimeInMilliseconds = 100;
 
   private StackSinkInterface mStackSink;
 
-  private AsynchronousProcessorBase<Pair<String, StackInterface>, StackInterface> mAsynchronousConversionProcessor;
+  private final ArrayList<Writer> mWriterList = new ArrayList<>();
+
+  private final QueueFullPolicy mQueueFullPolicy;
+
+  private volatile RecyclerInterface<StackInterface, StackRequest> mStackRecycler;
+  private volatile boolean mReleaseStacksAfterWriting = false;
+  private volatile int mMaxOverflowQueueSize;
 
   private Variable<StackInterface> mFinishedProcessingStackVariable;
 
+  private final AtomicInteger mQueueLength = new AtomicInteger();
+  private final AtomicInteger mNumberOfPendingStacks = new AtomicInteger();
+  private final Object mPendingStacksLock = new Object();
+  private final AtomicLong mNumberOfWrittenStacks = new AtomicLong();
+  private final AtomicLong mNumberOfFailedStacks = new AtomicLong();
+  private final AtomicLong mNumberOfDroppedStacks = new AtomicLong();
+  private final AtomicLong mNumberOfSpilledStacks = new AtomicLong();
+  private final AtomicLong mBlockedTimeInNanoseconds = new AtomicLong();
+
+  private final Variable<Integer> mQueueLengthVariable =
+                                                       new Variable<>("QueueLength",
+                                                                      0);
+  private final Variable<Integer> mMaxQueueLengthVariable =
+                                                          new Variable<>("MaxQueueLength",
+                                                                         0);
+  private final Variable<Long> mNumberOfWrittenStacksVariable =
+                                                              new Variable<>("NumberOfWrittenStacks",
+                                                                             0L);
+  private final Variable<Long> mNumberOfFailedStacksVariable =
+                                                             new Variable<>("NumberOfFailedStacks",
+                                                                            0L);
+  private final Variable<Long> mNumberOfDroppedStacksVariable =
+                                                              new Variable<>("NumberOfDroppedStacks",
+                                                                             0L);
+  private final Variable<Long> mNumberOfSpilledStacksVariable =
+                                                              new Variable<>("NumberOfSpilledStacks",
+                                                                             0L);
+  private final Variable<Double> mBlockedTimeInSecondsVariable =
+                                                               new Variable<>("BlockedTimeInSeconds",
+                                                                              0.0);
+  private final Variable<Double> mLastWriteTimeInSecondsVariable =
+                                                                 new Variable<>("LastWriteTimeInSeconds",
+                                                                                0.0);
+  private final Variable<StackMetaData> mFinishedStackMetaDataVariable =
+                                                                      new Variable<>("FinishedStackMetaData",
+                                                                                     null);
+
+  /**
+   * Stack waiting to be written, together with what to do with it once written
+   */
+  private static class QueuedStack
+  {
+    private final String mChannel;
+    private final StackInterface mStack;
+    private final boolean mRelease;
+
+    private QueuedStack(String pChannel,
+                        StackInterface pStack,
+                        boolean pRelease)
+    {
+      mChannel = pChannel;
+      mStack = pStack;
+      mRelease = pRelease;
+    }
+  }
+
+  /**
+   * Writer thread, each writer has its own bounded queue and overflow queue
+   */
+  private class Writer extends
+                       AsynchronousProcessorBase<QueuedStack, StackInterface>
+  {
+    // guarded by itself, non-empty only while the bounded queue is full:
+    private final ArrayDeque<QueuedStack> mOverflowQueue =
+                                                         new ArrayDeque<>();
+    private final int mMaxQueueSize;
+
+    // held while a stack is written, so that stopping can wait for the write:
+    private final ReentrantLock mWriteLock = new ReentrantLock();
+    private volatile boolean mStopRequested;
+
+    public Writer(String pName, int pMaxQueueSize)
+    {
+      super(pName, pMaxQueueSize);
+      mMaxQueueSize = pMaxQueueSize;
+    }
+
+    /**
+     * Returns the number of queued stacks, overflowing ones included, divided
+     * by the capacity of the bounded queue
+     *
+     * @return fill fraction, above one while overflowing
+     */
+    private double getFillFraction()
+    {
+      synchronized (mOverflowQueue)
+      {
+        return (double) (getInputQueueLength() + mOverflowQueue.size())
+               / Math.max(1, mMaxQueueSize);
+      }
+    }
+
+    @Override
+    public StackInterface process(final QueuedStack pQueuedStack)
+    {
+      mWriteLock.lock();
+      try
+      {
+        updateQueueLength(-1);
+        // a stack taken from the queue while stopping is not written:
+        if (mStopRequested)
+          drop(pQueuedStack);
+        else
+          write(pQueuedStack);
+      }
+      finally
+      {
+        decrementPendingStacks();
+        mWriteLock.unlock();
+        drainOverflowQueue();
+      }
+      return null;
+    }
+
+    private boolean startWriter()
+    {
+      mStopRequested = false;
+      final boolean lSuccess = start();
+      drainOverflowQueue();
+      return lSuccess;
+    }
+
+    private boolean stopWriter()
+    {
+      mStopRequested = true;
+      final boolean lSuccess = stop();
+
+      // waits for the stack being written, if any:
+      mWriteLock.lock();
+      mWriteLock.unlock();
+
+      discardQueuedStacks();
+      return lSuccess;
+    }
+
+    /**
+     * Returns true if the calling thread may keep waiting for room in this
+     * writer's queue, or for a recycled stack
+     *
+     * @return true if not stopped and not interrupted
+     */
+    private boolean isAccepting()
+    {
+      return !mStopRequested && !Thread.currentThread().isInterrupted();
+    }
+
+    /**
+     * Offers a stack to the bounded queue, waiting at most the given time for
+     * room. Stacks can be queued before the writer is started, but not once it
+     * has been stopped.
+     *
+     * @param pQueuedStack
+     *          stack to queue
+     * @param pWaitTimeInMilliseconds
+     *          max time to wait for room, zero to not wait
+     * @return true if queued
+     */
+    private boolean offer(QueuedStack pQueuedStack,
+                          long pWaitTimeInMilliseconds)
+    {
+      if (mStopRequested)
+        return false;
+      try
+      {
+        if (pWaitTimeInMilliseconds <= 0 ? !getInputQueue().offer(pQueuedStack)
+                                         : !getInputQueue().offer(pQueuedStack,
+                                                                  pWaitTimeInMilliseconds,
+                                                                  TimeUnit.MILLISECONDS))
+          return false;
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+      // stopping may have discarded the queue before this stack got in:
+      return !(mStopRequested && getInputQueue().remove(pQueuedStack));
+    }
+
+    /**
+     * Queues a stack behind any overflowing stack
+     *
+     * @param pQueuedStack
+     *          stack to queue
+     * @param pOverflow
+     *          true if the stack may overflow the bounded queue
+     * @return true if queued
+     */
+    private boolean queue(QueuedStack pQueuedStack, boolean pOverflow)
+    {
+      synchronized (mOverflowQueue)
+      {
+        if (mOverflowQueue.isEmpty() && offer(pQueuedStack, 0))
+          return true;
+        if (!pOverflow || mStopRequested
+            || mOverflowQueue.size() >= mMaxOverflowQueueSize)
+          return false;
+        mOverflowQueue.add(pQueuedStack);
+        mNumberOfSpilledStacksVariable.set(mNumberOfSpilledStacks.incrementAndGet());
+        return true;
+      }
+    }
+
+    private void drainOverflowQueue()
+    {
+      synchronized (mOverflowQueue)
+      {
+        while (!mOverflowQueue.isEmpty()
+               && offer(mOverflowQueue.peek(), 0))
+          mOverflowQueue.poll();
+      }
+    }
+
+    private void discardQueuedStacks()
+    {
+      synchronized (mOverflowQueue)
+      {
+        QueuedStack lQueuedStack;
+        while ((lQueuedStack = getInputQueue().poll()) != null
+               || (lQueuedStack = mOverflowQueue.poll()) != null)
+        {
+          updateQueueLength(-1);
+          drop(lQueuedStack);
+          decrementPendingStacks();
+        }
+      }
+    }
+  }
+
   /**
    * Wraps an existing stack sink to provide asynchronous capability
    * 
@@ -42,7 +298,8 @@ public class AsynchronousStackSinkAdapter implements
 
   /**
    * Instanciates an asynchronous stack sink adapter for a given existing sink
-   * and max queue size.
+   * and max queue size. A single writer thread is used and appending blocks
+   * when the queue is full.
    * 
    * @param pStackSink
    *          sink to wrap
@@ -51,30 +308,80 @@ public class AsynchronousStackSinkAdapter implements
    */
   public AsynchronousStackSinkAdapter(final StackSinkInterface pStackSink,
                                       final int pMaxQueueSize)
+  {
+    this(pStackSink, pMaxQueueSize, 1, QueueFullPolicy.Block);
+  }
+
+  /**
+   * Instanciates an asynchronous stack sink adapter for a given existing sink,
+   * max queue size per writer thread, number of writer threads, and queue full
+   * policy.
+   *
+   * @param pStackSink
+   *          sink to wrap
+   * @param pMaxQueueSize
+   *          max queue size per writer thread
+   * @param pNumberOfWriterThreads
+   *          number of writer threads, channels are assigned to writer threads
+   *          by hashing
+   * @param pQueueFullPolicy
+   *          policy to apply when a writer's queue is full
+   */
+  public AsynchronousStackSinkAdapter(final StackSinkInterface pStackSink,
+                                      final int pMaxQueueSize,
+                                      final int pNumberOfWriterThreads,
+                                      final QueueFullPolicy pQueueFullPolicy)
   {
     super();
     mStackSink = pStackSink;
+    mQueueFullPolicy = pQueueFullPolicy;
+    mMaxOverflowQueueSize = pMaxQueueSize;
 
-    mAsynchronousConversionProcessor =
-                                     new AsynchronousProcessorBase<Pair<String, StackInterface>, StackInterface>("AsynchronousStackSinkAdapter",
-                                                                                                                 pMaxQueueSize)
-                                     {
-                                       @Override
-                                       public StackInterface process(final Pair<String, StackInterface> pPair)
-                                       {
-                                         String lChannel =
-                                                         pPair.getLeft();
-                                         StackInterface lStack =
-                                                               pPair.getRight();
-                                         mStackSink.appendStack(lChannel,
-                                                                lStack);
-                                         if (mFinishedProcessingStackVariable != null)
-                                         {
-                                           mFinishedProcessingStackVariable.set(lStack);
-                                         }
-                                         return null;
-                                       }
-                                     };
+    for (int i = 0; i < Math.max(1, pNumberOfWriterThreads); i++)
+    {
+      Writer lWriter = new Writer("AsynchronousStackSinkAdapter" + i,
+                                  pMaxQueueSize);
+      mWriterList.add(lWriter);
+    }
+  }
+
+  /**
+   * Sets the recycler from which stacks are obtained to hold copies of the
+   * appended stacks. Copies are released back to this recycler once written.
+   * If null, appended stacks are queued directly.
+   *
+   * @param pStackRecycler
+   *          stack recycler, or null
+   */
+  public void setStackRecycler(RecyclerInterface<StackInterface, StackRequest> pStackRecycler)
+  {
+    mStackRecycler = pStackRecycler;
+  }
+
+  /**
+   * Sets whether appended stacks should be released once written. This only
+   * applies when no stack recycler is set, in which case this adapter takes
+   * ownership of the appended stacks.
+   *
+   * @param pReleaseStacksAfterWriting
+   *          true to release stacks once written
+   */
+  public void setReleaseStacksAfterWriting(boolean pReleaseStacksAfterWriting)
+  {
+    mReleaseStacksAfterWriting = pReleaseStacksAfterWriting;
+  }
+
+  /**
+   * Sets the max number of stacks that can overflow the bounded queue of a
+   * writer with the spill policy. Stacks that would overflow beyond this are
+   * dropped. By default, this is the max queue size.
+   *
+   * @param pMaxOverflowQueueSize
+   *          max overflow queue size per writer thread
+   */
+  public void setMaxOverflowQueueSize(int pMaxOverflowQueueSize)
+  {
+    mMaxOverflowQueueSize = Math.max(0, pMaxOverflowQueueSize);
   }
 
   /**
@@ -84,17 +391,29 @@ public class AsynchronousStackSinkAdapter implements
    */
   public boolean start()
   {
-    return mAsynchronousConversionProcessor.start();
+    boolean lSuccess = true;
+    for (Writer lWriter : mWriterList)
+      lSuccess &= lWriter.startWriter();
+    return lSuccess;
   }
 
   /**
-   * Stops the thread that passes the stacks to the sink
+   * Stops the thread that passes the stacks to the sink. The stack being
+   * written, if any, is written before this method returns, stacks still queued
+   * are dropped: call {@link #waitToFinish(long, TimeUnit)} first to have them
+   * written. Threads blocked appending stacks give up and drop their stack.
    * 
    * @return true -> success
    */
   public boolean stop()
   {
-    return mAsynchronousConversionProcessor.stop();
+    boolean lSuccess = true;
+    for (Writer lWriter : mWriterList)
+    {
+      lSuccess &= lWriter.stopWriter();
+      ClearControlExecutors.release(lWriter);
+    }
+    return lSuccess;
   }
 
   @Override
@@ -107,13 +426,189 @@ public class AsynchronousStackSinkAdapter implements
   public boolean appendStack(String pChannel,
                              final StackInterface pStack)
   {
-    return mAsynchronousConversionProcessor.passOrWait(Pair.of(pChannel,
-                                                               pStack));
+    if (pStack == null)
+      return false;
+
+    final Writer lWriter = getWriter(pChannel);
+
+    QueuedStack lQueuedStack = prepareStack(pChannel, pStack, 1);
+    if (lQueuedStack == null
+        && mQueueFullPolicy == QueueFullPolicy.Block)
+    {
+      // waits for a stack to be released to the recycler, until stopped:
+      final long lStartTime = System.nanoTime();
+      while (lQueuedStack == null && lWriter.isAccepting())
+        lQueuedStack = prepareStack(pChannel,
+                                    pStack,
+                                    cRecyclerWaitTimeInMilliseconds);
+      addBlockedTime(lStartTime);
+    }
+
+    if (lQueuedStack == null)
+    {
+      // no recycled stack available for the copy, nothing to release:
+      mNumberOfDroppedStacksVariable.set(mNumberOfDroppedStacks.incrementAndGet());
+      return false;
+    }
+
+    incrementPendingStacks();
+    updateQueueLength(+1);
+    if (lWriter.queue(lQueuedStack,
+                      mQueueFullPolicy == QueueFullPolicy.Spill))
+    {
+      updateMaxQueueLength();
+      return true;
+    }
+
+    if (mQueueFullPolicy == QueueFullPolicy.Block)
+    {
+      // waits for room in the queue, until stopped:
+      final long lStartTime = System.nanoTime();
+      boolean lQueued = false;
+      while (!lQueued && lWriter.isAccepting())
+        lQueued = lWriter.offer(lQueuedStack,
+                                cQueueWaitTimeInMilliseconds);
+      addBlockedTime(lStartTime);
+      if (lQueued)
+      {
+        updateMaxQueueLength();
+        return true;
+      }
+    }
+
+    updateQueueLength(-1);
+    drop(lQueuedStack);
+    decrementPendingStacks();
+    return false;
+  }
+
+  private void addBlockedTime(long pStartTime)
+  {
+    mBlockedTimeInSecondsVariable.set(1e-9
+                                      * mBlockedTimeInNanoseconds.addAndGet(System.nanoTime()
+                                                                            - pStartTime));
+  }
+
+  private QueuedStack prepareStack(String pChannel,
+                                   StackInterface pStack,
+                                   long pWaitTimeInMilliseconds)
+  {
+    final RecyclerInterface<StackInterface, StackRequest> lStackRecycler =
+                                                                         mStackRecycler;
+    if (lStackRecycler == null)
+      return new QueuedStack(pChannel,
+                             pStack,
+                             mReleaseStacksAfterWriting);
+
+    final StackInterface lCopy =
+                               lStackRecycler.getOrWait(pWaitTimeInMilliseconds,
+                                                        TimeUnit.MILLISECONDS,
+                                                        StackRequest.buildFrom(pStack));
+    if (lCopy == null)
+      return null;
+
+    return new QueuedStack(pChannel, copy(pStack, lCopy), true);
+  }
+
+  private static StackInterface copy(StackInterface pStack,
+                                     StackInterface pCopy)
+  {
+    pCopy.getContiguousMemory().copyFrom(pStack.getContiguousMemory());
+    pCopy.copyMetaDataFrom(pStack);
+    return pCopy;
+  }
+
+  private void write(QueuedStack pQueuedStack)
+  {
+    long lStartTime = System.nanoTime();
+    boolean lSuccess = false;
+    try
+    {
+      lSuccess = mStackSink.appendStack(pQueuedStack.mChannel,
+                                        pQueuedStack.mStack);
+    }
+    catch (Throwable e)
+    {
+      e.printStackTrace();
+    }
+    mLastWriteTimeInSecondsVariable.set(1e-9 * (System.nanoTime()
+                                                - lStartTime));
+
+    if (lSuccess)
+    {
+      mNumberOfWrittenStacksVariable.set(mNumberOfWrittenStacks.incrementAndGet());
+
+      final StackMetaData lMetaData = pQueuedStack.mStack.getMetaData();
+      mFinishedStackMetaDataVariable.set(lMetaData == null ? null
+                                                           : lMetaData.clone());
+
+      // stacks released below may be reused as soon as they are released, and
+      // are thus not published:
+      if (mFinishedProcessingStackVariable != null
+          && !pQueuedStack.mRelease)
+        mFinishedProcessingStackVariable.set(pQueuedStack.mStack);
+    }
+    else
+      mNumberOfFailedStacksVariable.set(mNumberOfFailedStacks.incrementAndGet());
+
+    // The stack has been written (sinks force their data to disk before
+    // returning) and can now be handed back to its recycler:
+    dispose(pQueuedStack);
+  }
+
+  private void drop(QueuedStack pQueuedStack)
+  {
+    dispose(pQueuedStack);
+    mNumberOfDroppedStacksVariable.set(mNumberOfDroppedStacks.incrementAndGet());
+  }
+
+  private static void dispose(QueuedStack pQueuedStack)
+  {
+    if (pQueuedStack.mRelease)
+      pQueuedStack.mStack.release();
+  }
+
+  private Writer getWriter(String pChannel)
+  {
+    final int lIndex = Math.floorMod(pChannel == null ? 0
+                                                      : pChannel.hashCode(),
+                                     mWriterList.size());
+    return mWriterList.get(lIndex);
+  }
+
+  private void updateQueueLength(int pDelta)
+  {
+    mQueueLengthVariable.set(mQueueLength.addAndGet(pDelta));
+  }
+
+  private void updateMaxQueueLength()
+  {
+    final int lQueueLength = mQueueLength.get();
+    synchronized (mMaxQueueLengthVariable)
+    {
+      if (lQueueLength > mMaxQueueLengthVariable.get())
+        mMaxQueueLengthVariable.set(lQueueLength);
+    }
+  }
+
+  private void incrementPendingStacks()
+  {
+    mNumberOfPendingStacks.incrementAndGet();
+  }
+
+  private void decrementPendingStacks()
+  {
+    if (mNumberOfPendingStacks.decrementAndGet() == 0)
+      synchronized (mPendingStacksLock)
+      {
+        mPendingStacksLock.notifyAll();
+      }
   }
 
   /**
    * Waits for this asynchronous sink adapter to pas all pending stacks to the
-   * delegated sink.
+   * delegated sink. A stack is pending from the moment it is appended until
+   * the delegated sink has returned from writing it.
    * 
    * @param pTimeOut
    *          time out
@@ -123,8 +618,36 @@ public class AsynchronousStackSinkAdapter implements
    */
   public boolean waitToFinish(final long pTimeOut, TimeUnit pTimeUnit)
   {
-    return mAsynchronousConversionProcessor.waitToFinish(pTimeOut,
-                                                         pTimeUnit);
+    final long lDeadline = System.nanoTime() + pTimeUnit.toNanos(pTimeOut);
+    synchronized (mPendingStacksLock)
+    {
+      while (mNumberOfPendingStacks.get() > 0)
+      {
+        final long lTimeToWait = lDeadline - System.nanoTime();
+        if (lTimeToWait <= 0)
+          return false;
+        try
+        {
+          TimeUnit.NANOSECONDS.timedWait(mPendingStacksLock,
+                                         lTimeToWait);
+        }
+        catch (InterruptedException e)
+        {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the number of pending stacks: queued, or being written
+   *
+   * @return number of pending stacks
+   */
+  public int getNumberOfPendingStacks()
+  {
+    return mNumberOfPendingStacks.get();
   }
 
   /**
@@ -134,12 +657,61 @@ public class AsynchronousStackSinkAdapter implements
    */
   public int getQueueLength()
   {
-    return mAsynchronousConversionProcessor.getInputQueueLength();
+    return mQueueLength.get();
+  }
+
+  /**
+   * Returns the fill fraction of the fullest writer queue: its number of queued
+   * stacks, overflowing ones included, divided by its capacity. Since channels
+   * are assigned to writers by hashing, one writer can be full while the others
+   * are idle.
+   *
+   * @return max fill fraction over writers, above one while overflowing
+   */
+  public double getMaxWriterFillFraction()
+  {
+    double lMaxFillFraction = 0;
+    for (Writer lWriter : mWriterList)
+      lMaxFillFraction = Math.max(lMaxFillFraction,
+                                  lWriter.getFillFraction());
+    return lMaxFillFraction;
+  }
+
+  /**
+   * Returns the number of writer threads
+   *
+   * @return number of writer threads
+   */
+  public int getNumberOfWriterThreads()
+  {
+    return mWriterList.size();
+  }
+
+  /**
+   * Returns the queue full policy
+   *
+   * @return queue full policy
+   */
+  public QueueFullPolicy getQueueFullPolicy()
+  {
+    return mQueueFullPolicy;
+  }
+
+  /**
+   * Returns the delegated sink
+   *
+   * @return delegated sink
+   */
+  public StackSinkInterface getDelegatedStackSink()
+  {
+    return mStackSink;
   }
 
   /**
    * Sets the variable that receives stacks once they have been successfully
-   * passed to the sink.
+   * passed to the sink. Only stacks that this adapter does not release once
+   * written are published: recycled copies, and stacks released after writing,
+   * are not, see {@link #getFinishedStackMetaDataVariable()} instead.
    * 
    * @param pVariable
    *          variable that received stacks
@@ -149,4 +721,100 @@ public class AsynchronousStackSinkAdapter implements
     mFinishedProcessingStackVariable = pVariable;
   }
 
+  /**
+   * Returns the variable receiving a copy of the metadata of each stack once it
+   * has been successfully passed to the sink
+   *
+   * @return finished stack metadata variable
+   */
+  public Variable<StackMetaData> getFinishedStackMetaDataVariable()
+  {
+    return mFinishedStackMetaDataVariable;
+  }
+
+  /**
+   * Returns the variable holding the current number of queued stacks, for all
+   * writer threads
+   *
+   * @return queue length variable
+   */
+  public Variable<Integer> getQueueLengthVariable()
+  {
+    return mQueueLengthVariable;
+  }
+
+  /**
+   * Returns the variable holding the highest number of queued stacks observed
+   *
+   * @return max queue length variable
+   */
+  public Variable<Integer> getMaxQueueLengthVariable()
+  {
+    return mMaxQueueLengthVariable;
+  }
+
+  /**
+   * Returns the variable holding the number of stacks successfully written
+   *
+   * @return number of written stacks variable
+   */
+  public Variable<Long> getNumberOfWrittenStacksVariable()
+  {
+    return mNumberOfWrittenStacksVariable;
+  }
+
+  /**
+   * Returns the variable holding the number of stacks that the delegated sink
+   * failed to write
+   *
+   * @return number of failed stacks variable
+   */
+  public Variable<Long> getNumberOfFailedStacksVariable()
+  {
+    return mNumberOfFailedStacksVariable;
+  }
+
+  /**
+   * Returns the variable holding the number of stacks dropped because the
+   * queue was full
+   *
+   * @return number of dropped stacks variable
+   */
+  public Variable<Long> getNumberOfDroppedStacksVariable()
+  {
+    return mNumberOfDroppedStacksVariable;
+  }
+
+  /**
+   * Returns the variable holding the number of stacks that overflowed a full
+   * queue
+   *
+   * @return number of spilled stacks variable
+   */
+  public Variable<Long> getNumberOfSpilledStacksVariable()
+  {
+    return mNumberOfSpilledStacksVariable;
+  }
+
+  /**
+   * Returns the variable holding the total time that appending threads have
+   * been blocked because the queue was full
+   *
+   * @return blocked time variable
+   */
+  public Variable<Double> getBlockedTimeInSecondsVariable()
+  {
+    return mBlockedTimeInSecondsVariable;
+  }
+
+  /**
+   * Returns the variable holding the time it took to write the last stack
+   *
+   * @return last write time variable
+   */
+  public Variable<Double> getLastWriteTimeInSecondsVariable()
+  {
+    return mLastWriteTimeInSecondsVariable;
+  }
+
 }
@@ -0,0 +1,259 @@
+package clearcontrol.stack.sourcesink.sink;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import clearcontrol.core.units.OrderOfMagnitude;
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackRequest;
+import clearcontrol.stack.sourcesink.BinaryStackIndex;
+import clearcontrol.stack.sourcesink.FileStackBase;
+import clearcontrol.stack.sourcesink.FileStackInterface;
+import clearcontrol.stack.sourcesink.StackSinkSourceInterface;
+import coremem.fragmented.FragmentedMemoryInterface;
+
+/**
+ * Raw file stack sink that uses a fixed-record binary index (see
+ * {@link BinaryStackIndex}) instead of the index and metadata text files. Stack
+ * data files are laid out as for {@link RawFileStackSink}, unless a segment
+ * size is given: stacks are then appended contiguously into large segment files
+ * (see {@link StackSegmentAppender}), and the index records the segment and
+ * offset of each stack.
+ *
+ * @author royer
+ */
+public class BinaryIndexedStackSink extends FileStackBase implements
+                                    FileStackInterface,
+                                    FileStackSinkInterface,
+                                    AutoCloseable
+{
+
+  private final AtomicLong mFirstTimePointAbsoluteNanoSeconds =
+                                                              new AtomicLong();
+  private final ConcurrentHashMap<String, BinaryStackIndex> mBinaryStackIndexMap =
+                                                                                  new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, StackSegmentAppender> mStackSegmentAppenderMap =
+                                                                                         new ConcurrentHashMap<>();
+
+  private final long mSegmentSizeInBytes;
+  private final long mAlignmentInBytes;
+
+  /**
+   * Instantiates a binary indexed stack sink that writes one file per stack.
+   *
+   */
+  public BinaryIndexedStackSink()
+  {
+    this(0, 1);
+  }
+
+  /**
+   * Instantiates a binary indexed stack sink that appends stacks into segment
+   * files of a given size. A new segment is started when the next stack does
+   * not fit in the current one.
+   *
+   * @param pSegmentSizeInBytes
+   *          segment size in bytes, zero or less for one file per stack
+   * @param pAlignmentInBytes
+   *          alignment in bytes of stack offsets within segments (for example
+   *          4096 for page alignment)
+   */
+  public BinaryIndexedStackSink(long pSegmentSizeInBytes,
+                                long pAlignmentInBytes)
+  {
+    super(false);
+    mSegmentSizeInBytes = pSegmentSizeInBytes;
+    mAlignmentInBytes = pAlignmentInBytes;
+  }
+
+  /**
+   * Returns true if stacks are appended into segment files
+   *
+   * @return true if segmented
+   */
+  public boolean isSegmented()
+  {
+    return mSegmentSizeInBytes > 0;
+  }
+
+  @Override
+  public boolean appendStack(StackInterface pStack)
+  {
+    return appendStack(cDefaultChannel, pStack);
+  }
+
+  @Override
+  public boolean appendStack(String pChannel,
+                             final StackInterface pStack)
+  {
+    try
+    {
+      BinaryStackIndex lBinaryStackIndex = getBinaryStackIndex(pChannel);
+
+      // stack indices are allocated and index records written in the same
+      // order, one stack at a time per channel:
+      synchronized (lBinaryStackIndex)
+      {
+        final long lStackIndex = getNextStackIndex(lBinaryStackIndex);
+
+        final int lDataSegment;
+        final long lDataOffset;
+        if (isSegmented())
+        {
+          StackSegmentAppender lStackSegmentAppender =
+                                                     getStackSegmentAppender(pChannel,
+                                                                             lBinaryStackIndex);
+          synchronized (lStackSegmentAppender)
+          {
+            lDataOffset = lStackSegmentAppender.append(pStack);
+            lDataSegment = lStackSegmentAppender.getSegmentIndex();
+          }
+        }
+        else
+        {
+          writeStackData(lStackIndex, pChannel, pStack);
+          lDataSegment = 0;
+          lDataOffset = 0;
+        }
+
+        long lTimeStampInNanoseconds;
+        if (pStack.getMetaData() != null
+            && pStack.getMetaData().getTimeStampInNanoseconds() != null)
+          lTimeStampInNanoseconds = pStack.getMetaData()
+                                          .getTimeStampInNanoseconds();
+        else
+          lTimeStampInNanoseconds = System.nanoTime();
+
+        if (lStackIndex == 0)
+          mFirstTimePointAbsoluteNanoSeconds.set(lTimeStampInNanoseconds);
+
+        final double lTimeStampInSeconds =
+                                         OrderOfMagnitude.nano2unit(lTimeStampInNanoseconds
+                                                                    - mFirstTimePointAbsoluteNanoSeconds.get());
+
+        lBinaryStackIndex.append(lStackIndex,
+                                 lTimeStampInSeconds,
+                                 pStack.getWidth(),
+                                 pStack.getHeight(),
+                                 pStack.getDepth(),
+                                 lDataSegment,
+                                 lDataOffset,
+                                 pStack.getMetaData().toString());
+        lBinaryStackIndex.force();
+
+        setStackTimeStampInSeconds(pChannel,
+                                   lStackIndex,
+                                   lTimeStampInSeconds);
+        setStackRequest(pChannel,
+                        lStackIndex,
+                        StackRequest.buildFrom(pStack));
+      }
+      return true;
+    }
+    catch (final Throwable e)
+    {
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  private static long getNextStackIndex(BinaryStackIndex pBinaryStackIndex) throws IOException
+  {
+    // converted datasets may have gaps in their stack indices:
+    final long lNumberOfEntries = pBinaryStackIndex.getNumberOfEntries();
+    if (lNumberOfEntries == 0)
+      return 0;
+    return pBinaryStackIndex.getEntryAt(lNumberOfEntries - 1)
+                            .getStackIndex()
+           + 1;
+  }
+
+  protected void writeStackData(long pIndex,
+                                String pChannel,
+                                final StackInterface pStack) throws IOException
+  {
+    String lFileName = String.format(StackSinkSourceInterface.cFormat,
+                                     pIndex);
+    File lFile = new File(getChannelFolder(pChannel), lFileName);
+
+    // a stale file left over by a crash is overwritten:
+    lFile.delete();
+
+    FileChannel lBinnaryFileChannel = getFileChannel(lFile, false);
+    FragmentedMemoryInterface lFragmentedMemory =
+                                                pStack.getFragmentedMemory();
+
+    lFragmentedMemory.writeBytesToFileChannel(lBinnaryFileChannel, 0);
+
+    lBinnaryFileChannel.force(false);
+    lBinnaryFileChannel.close();
+  }
+
+  private synchronized BinaryStackIndex getBinaryStackIndex(String pChannel) throws IOException
+  {
+    BinaryStackIndex lBinaryStackIndex =
+                                       mBinaryStackIndexMap.get(pChannel);
+    if (lBinaryStackIndex == null)
+    {
+      mFolder.mkdirs();
+      lBinaryStackIndex =
+                        new BinaryStackIndex(new File(mFolder,
+                                                      pChannel
+                                                               + BinaryStackIndex.cIndexFileExtension),
+                                             new File(mFolder,
+                                                      pChannel
+                                                               + BinaryStackIndex.cMetaDataFileExtension),
+                                             false);
+      mBinaryStackIndexMap.put(pChannel, lBinaryStackIndex);
+    }
+    return lBinaryStackIndex;
+  }
+
+  private synchronized StackSegmentAppender getStackSegmentAppender(String pChannel,
+                                                                    BinaryStackIndex pBinaryStackIndex) throws IOException
+  {
+    StackSegmentAppender lStackSegmentAppender =
+                                               mStackSegmentAppenderMap.get(pChannel);
+    if (lStackSegmentAppender == null)
+    {
+      // appending to an existing dataset starts a new segment:
+      int lFirstSegmentIndex = 1;
+      final long lNumberOfEntries = pBinaryStackIndex.getNumberOfEntries();
+      if (lNumberOfEntries > 0)
+        lFirstSegmentIndex += pBinaryStackIndex.getEntryAt(lNumberOfEntries
+                                                           - 1)
+                                               .getDataSegment();
+
+      lStackSegmentAppender =
+                            new StackSegmentAppender(getChannelFolder(pChannel),
+                                                     lFirstSegmentIndex,
+                                                     mSegmentSizeInBytes,
+                                                     mAlignmentInBytes);
+      mStackSegmentAppenderMap.put(pChannel, lStackSegmentAppender);
+    }
+    return lStackSegmentAppender;
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    try
+    {
+      for (StackSegmentAppender lStackSegmentAppender : mStackSegmentAppenderMap.values())
+        lStackSegmentAppender.close();
+      mStackSegmentAppenderMap.clear();
+
+      for (BinaryStackIndex lBinaryStackIndex : mBinaryStackIndexMap.values())
+        lBinaryStackIndex.close();
+      mBinaryStackIndexMap.clear();
+    }
+    finally
+    {
+      super.close();
+    }
+  }
+
+}
@@ -0,0 +1,267 @@
+package clearcontrol.stack.sourcesink.sink;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import clearcontrol.core.concurrent.executors.AsynchronousSchedulerFeature;
+import clearcontrol.core.concurrent.executors.ClearControlExecutors;
+import clearcontrol.core.concurrent.executors.WaitingScheduledFuture;
+
+/**
+ * Group-committed, line oriented, append-only journal file. Entries are
+ * buffered in memory and written and forced to disk in one go once a given
+ * number of entries are pending, or periodically after a given commit period,
+ * whichever comes first. The file channel is kept open between commits.
+ *
+ * When opened, a journal truncates any partially written line at the end of
+ * the file, which is what remains after a crash in the middle of a commit.
+ *
+ * @author royer
+ */
+public class GroupCommitJournal implements
+                                AsynchronousSchedulerFeature,
+                                AutoCloseable
+{
+  private static final byte cEndOfLine = '\n';
+
+  private final File mFile;
+  private final FileChannel mFileChannel;
+  private final int mMaxPendingEntries;
+
+  private final ByteArrayOutputStream mPendingBytes =
+                                                    new ByteArrayOutputStream();
+  private int mNumberOfPendingEntries = 0;
+
+  private final AtomicLong mNumberOfCommittedEntries =
+                                                     new AtomicLong();
+  private final AtomicLong mNumberOfCommits = new AtomicLong();
+
+  private WaitingScheduledFuture<?> mPeriodicCommitFuture;
+  private volatile IOException mLastPeriodicCommitException;
+
+  /**
+   * Opens a group commit journal for a given file. Entries are committed as soon
+   * as the given number of entries are pending, or after at most the given
+   * commit period.
+   *
+   * @param pFile
+   *          journal file
+   * @param pMaxPendingEntries
+   *          max number of entries pending before a commit is forced
+   * @param pCommitPeriod
+   *          max time that entries remain pending, zero or less for no periodic
+   *          commit
+   * @param pTimeUnit
+   *          commit period time unit
+   * @throws IOException
+   *           thrown if the journal file cannot be recovered or opened
+   */
+  public GroupCommitJournal(File pFile,
+                            int pMaxPendingEntries,
+                            long pCommitPeriod,
+                            TimeUnit pTimeUnit) throws IOException
+  {
+    super();
+    mFile = pFile;
+    mMaxPendingEntries = Math.max(1, pMaxPendingEntries);
+
+    truncatePartialTail(mFile);
+
+    mFileChannel = FileChannel.open(mFile.toPath(),
+                                    StandardOpenOption.APPEND,
+                                    StandardOpenOption.WRITE,
+                                    StandardOpenOption.CREATE);
+
+    if (pCommitPeriod > 0)
+    {
+      mPeriodicCommitFuture = scheduleAtFixedRate(() -> {
+        try
+        {
+          commit();
+        }
+        catch (IOException e)
+        {
+          mLastPeriodicCommitException = e;
+        }
+      }, pCommitPeriod, pCommitPeriod, pTimeUnit);
+    }
+  }
+
+  /**
+   * Appends an entry to this journal. A line terminator is added to the entry.
+   * The entry is durable only once it has been committed.
+   *
+   * @param pEntry
+   *          entry (single line, no line terminator)
+   * @throws IOException
+   *           thrown if a commit triggered by this append fails, or if a
+   *           previous periodic commit failed
+   */
+  public synchronized void append(String pEntry) throws IOException
+  {
+    throwLastPeriodicCommitException();
+
+    final byte[] lEntryBytes = pEntry.getBytes();
+    mPendingBytes.write(lEntryBytes, 0, lEntryBytes.length);
+    mPendingBytes.write(cEndOfLine);
+    mNumberOfPendingEntries++;
+
+    if (mNumberOfPendingEntries >= mMaxPendingEntries)
+      commit();
+  }
+
+  /**
+   * Writes all pending entries to the journal file and forces them to disk
+   *
+   * @throws IOException
+   *           thrown if writing or forcing fails
+   */
+  public synchronized void commit() throws IOException
+  {
+    if (mNumberOfPendingEntries == 0 || !mFileChannel.isOpen())
+      return;
+
+    final ByteBuffer lByteBuffer =
+                                 ByteBuffer.wrap(mPendingBytes.toByteArray());
+    while (lByteBuffer.hasRemaining())
+      mFileChannel.write(lByteBuffer);
+    mFileChannel.force(false);
+
+    mNumberOfCommittedEntries.addAndGet(mNumberOfPendingEntries);
+    mNumberOfCommits.incrementAndGet();
+    mPendingBytes.reset();
+    mNumberOfPendingEntries = 0;
+  }
+
+  /**
+   * Returns the number of entries pending commit
+   *
+   * @return number of pending entries
+   */
+  public synchronized int getNumberOfPendingEntries()
+  {
+    return mNumberOfPendingEntries;
+  }
+
+  /**
+   * Returns the number of entries committed since this journal was opened
+   *
+   * @return number of committed entries
+   */
+  public long getNumberOfCommittedEntries()
+  {
+    return mNumberOfCommittedEntries.get();
+  }
+
+  /**
+   * Returns the number of commits (forces to disk) since this journal was
+   * opened
+   *
+   * @return number of commits
+   */
+  public long getNumberOfCommits()
+  {
+    return mNumberOfCommits.get();
+  }
+
+  /**
+   * Returns the journal file
+   *
+   * @return journal file
+   */
+  public File getFile()
+  {
+    return mFile;
+  }
+
+  /**
+   * Closes this journal, committing all pending entries first.
+   *
+   * @throws IOException
+   *           thrown if the final commit or a previous periodic commit failed
+   */
+  @Override
+  public void close() throws IOException
+  {
+    if (mPeriodicCommitFuture != null)
+    {
+      mPeriodicCommitFuture.cancel(false);
+      ScheduledThreadPoolExecutor lScheduledThreadPoolExecutor =
+                                                               ClearControlExecutors.getScheduledThreadPoolExecutor(this);
+      if (lScheduledThreadPoolExecutor != null)
+        lScheduledThreadPoolExecutor.shutdown();
+      ClearControlExecutors.resetScheduledThreadPoolExecutor(this);
+    }
+
+    synchronized (this)
+    {
+      try
+      {
+        commit();
+      }
+      finally
+      {
+        mFileChannel.close();
+      }
+      throwLastPeriodicCommitException();
+    }
+  }
+
+  private void throwLastPeriodicCommitException() throws IOException
+  {
+    final IOException lException = mLastPeriodicCommitException;
+    if (lException != null)
+    {
+      mLastPeriodicCommitException = null;
+      throw lException;
+    }
+  }
+
+  /**
+   * Truncates a line oriented file after its last line terminator, thus
+   * removing any partially written last line. Files that do not exist are left
+   * untouched.
+   *
+   * @param pFile
+   *          file to recover
+   * @return number of bytes removed
+   * @throws IOException
+   *           thrown if file cannot be read or truncated
+   */
+  private static long truncatePartialTail(File pFile) throws IOException
+  {
+    if (!pFile.exists())
+      return 0;
+
+    try (RandomAccessFile lRandomAccessFile =
+                                            new RandomAccessFile(pFile,
+                                                                 "rw"))
+    {
+      final long lLength = lRandomAccessFile.length();
+      long lPosition = lLength;
+      while (lPosition > 0)
+      {
+        lRandomAccessFile.seek(lPosition - 1);
+        if (lRandomAccessFile.readByte() == cEndOfLine)
+          break;
+        lPosition--;
+      }
+
+      if (lPosition < lLength)
+      {
+        lRandomAccessFile.setLength(lPosition);
+        lRandomAccessFile.getFD().sync();
+      }
+      return lLength - lPosition;
+    }
+  }
+
+}
@@ -0,0 +1,29 @@
+package clearcontrol.stack.sourcesink.sink;
+
+/**
+ * Policy applied by asynchronous stack sinks when a stack is appended while
+ * the writing queue is full.
+ *
+ * @author royer
+ */
+public enum QueueFullPolicy
+{
+ /**
+  * The appending thread waits until there is room in the queue, or until the
+  * sink is stopped
+  */
+ Block,
+
+ /**
+  * The stack is not saved
+  */
+ Drop,
+
+ /**
+  * The stack is queued in a bounded overflow queue, the appending thread never
+  * waits. Overflowing stacks are written in order, after the stacks already
+  * queued. The stack is dropped when the overflow queue is full too, or when no
+  * recycled stack is available for the copy.
+  */
+ Spill
+}
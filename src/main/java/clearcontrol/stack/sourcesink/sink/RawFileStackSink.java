@@ -6,8 +6,13 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Arrays;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
+import clearcontrol.core.concurrent.executors.AsynchronousSchedulerFeature;
+import clearcontrol.core.concurrent.executors.ClearControlExecutors;
+import clearcontrol.core.concurrent.executors.WaitingScheduledFuture;
 import clearcontrol.core.units.OrderOfMagnitude;
 import clearcontrol.stack.StackInterface;
 import clearcontrol.stack.StackRequest;
@@ -20,11 +25,18 @@ import coremem.fragmented.FragmentedMemoryInterface;
 /**
  * Raw file stack sink
  *
+ * In journal mode, the index and metadata files of each channel are kept open
+ * and their entries are group-committed (see {@link GroupCommitJournal})
+ * instead of being forced to disk for every stack. Stack data files are always
+ * forced before their index entry is appended, so that a committed index entry
+ * never refers to missing data.
+ *
  * @author royer
  */
 public class RawFileStackSink extends FileStackBase implements
                               FileStackInterface,
                               FileStackSinkInterface,
+                              AsynchronousSchedulerFeature,
                               AutoCloseable
 {
 
@@ -33,6 +45,17 @@ public class RawFileStackSink extends FileStackBase implements
   private final ConcurrentHashMap<String, AtomicLong> mNextFreeStackIndexMap =
                                                                              new ConcurrentHashMap<>();
 
+  private final boolean mJournalMode;
+  private final int mMaxPendingJournalEntries;
+  private final long mJournalCommitPeriod;
+  private final TimeUnit mJournalCommitPeriodTimeUnit;
+  private final ConcurrentHashMap<String, GroupCommitJournal> mIndexJournalMap =
+                                                                               new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, GroupCommitJournal> mMetaDataJournalMap =
+                                                                                  new ConcurrentHashMap<>();
+  private volatile WaitingScheduledFuture<?> mPeriodicCommitFuture;
+  private volatile IOException mLastPeriodicCommitException;
+
   /**
    * Instantiates a raw file stack sink.
    * 
@@ -40,6 +63,44 @@ public class RawFileStackSink extends FileStackBase implements
   public RawFileStackSink()
   {
     super(false);
+    mJournalMode = false;
+    mMaxPendingJournalEntries = 1;
+    mJournalCommitPeriod = 0;
+    mJournalCommitPeriodTimeUnit = TimeUnit.MILLISECONDS;
+  }
+
+  /**
+   * Instantiates a raw file stack sink in journal mode. Index and metadata
+   * entries are committed to disk once the given number of entries are
+   * pending, or after at most the given commit period.
+   * 
+   * @param pMaxPendingEntries
+   *          max number of pending index and metadata entries per channel
+   * @param pCommitPeriod
+   *          max time that entries remain uncommitted, zero or less for no
+   *          periodic commit
+   * @param pTimeUnit
+   *          commit period time unit
+   */
+  public RawFileStackSink(int pMaxPendingEntries,
+                          long pCommitPeriod,
+                          TimeUnit pTimeUnit)
+  {
+    super(false);
+    mJournalMode = true;
+    mMaxPendingJournalEntries = pMaxPendingEntries;
+    mJournalCommitPeriod = pCommitPeriod;
+    mJournalCommitPeriodTimeUnit = pTimeUnit;
+  }
+
+  /**
+   * Returns true if this sink group-commits its index and metadata entries
+   * 
+   * @return true if in journal mode
+   */
+  public boolean isJournalMode()
+  {
+    return mJournalMode;
   }
 
   @Override
@@ -55,13 +116,15 @@ public class RawFileStackSink extends FileStackBase implements
 
     try
     {
+      throwLastPeriodicCommitException();
+
       AtomicLong lNextFreeStackIndex = getIndexForChannel(pChannel);
 
       writeStackData(lNextFreeStackIndex.get(), pChannel, pStack);
+      writeMetaDataFileEntry(pChannel, pStack);
       writeIndexFileEntry(lNextFreeStackIndex.get(),
                           pChannel,
                           pStack);
-      writeMetaDataFileEntry(pChannel, pStack);
 
       setStackRequest(pChannel,
                       lNextFreeStackIndex.get(),
@@ -113,11 +176,6 @@ public class RawFileStackSink extends FileStackBase implements
 
     final String lDimensionsString = Arrays.toString(lDimensions);
 
-    final FileChannel lIndexFileChannel =
-                                        getFileChannel(getIndexFile(pChannel),
-
-                                                       false);
-
     long lTimeStampInNanoseconds;
 
     if (pStack.getMetaData() != null
@@ -143,6 +201,17 @@ public class RawFileStackSink extends FileStackBase implements
                                                 lDimensionsString.substring(1,
                                                                             lDimensionsString.length()
                                                                                - 1));
+
+    if (mJournalMode)
+    {
+      getJournal(mIndexJournalMap,
+                 getIndexFile(pChannel)).append(lIndexLineString.trim());
+      return;
+    }
+
+    final FileChannel lIndexFileChannel =
+                                        getFileChannel(getIndexFile(pChannel),
+                                                       false);
     final byte[] lIndexLineStringBytes = lIndexLineString.getBytes();
     final ByteBuffer lIndexLineStringByteBuffer =
                                                 ByteBuffer.wrap(lIndexLineStringBytes);
@@ -154,12 +223,19 @@ public class RawFileStackSink extends FileStackBase implements
   protected void writeMetaDataFileEntry(String pChannel,
                                         final StackInterface pStack) throws IOException
   {
+    StackMetaData lMetaData = pStack.getMetaData();
+
+    if (mJournalMode)
+    {
+      getJournal(mMetaDataJournalMap,
+                 getMetadataFile(pChannel)).append(lMetaData.toString());
+      return;
+    }
+
     final FileChannel lMetaDataFileChannel =
                                            getFileChannel(getMetadataFile(pChannel),
                                                           false);
 
-    StackMetaData lMetaData = pStack.getMetaData();
-
     final String lMetaDataString = lMetaData.toString() + "\n";
     final byte[] lMetaDataStringBytes = lMetaDataString.getBytes();
     final ByteBuffer lMetaDataStringByteBuffer =
@@ -169,10 +245,93 @@ public class RawFileStackSink extends FileStackBase implements
     lMetaDataFileChannel.close();
   }
 
+  private synchronized GroupCommitJournal getJournal(ConcurrentHashMap<String, GroupCommitJournal> pJournalMap,
+                                                     File pFile) throws IOException
+  {
+    GroupCommitJournal lJournal = pJournalMap.get(pFile.getName());
+    if (lJournal == null)
+    {
+      // periodic commits are done here for all journals at once, so that
+      // metadata entries are always committed before their index entries:
+      lJournal = new GroupCommitJournal(pFile,
+                                        mMaxPendingJournalEntries,
+                                        0,
+                                        mJournalCommitPeriodTimeUnit);
+      pJournalMap.put(pFile.getName(), lJournal);
+
+      if (mPeriodicCommitFuture == null && mJournalCommitPeriod > 0)
+        mPeriodicCommitFuture = scheduleAtFixedRate(() -> {
+          try
+          {
+            commit();
+          }
+          catch (IOException e)
+          {
+            mLastPeriodicCommitException = e;
+          }
+        },
+                                                    mJournalCommitPeriod,
+                                                    mJournalCommitPeriod,
+                                                    mJournalCommitPeriodTimeUnit);
+    }
+    return lJournal;
+  }
+
+  private void throwLastPeriodicCommitException() throws IOException
+  {
+    final IOException lException = mLastPeriodicCommitException;
+    if (lException != null)
+    {
+      mLastPeriodicCommitException = null;
+      throw lException;
+    }
+  }
+
+  /**
+   * Commits all pending index and metadata entries to disk. Metadata entries
+   * are committed before index entries so that an indexed stack always has its
+   * metadata. This does nothing if this sink is not in journal mode.
+   * 
+   * @throws IOException
+   *           thrown if a journal cannot be committed
+   */
+  public void commit() throws IOException
+  {
+    for (GroupCommitJournal lJournal : mMetaDataJournalMap.values())
+      lJournal.commit();
+    for (GroupCommitJournal lJournal : mIndexJournalMap.values())
+      lJournal.commit();
+  }
+
   @Override
   public void close() throws IOException
   {
-    super.close();
+    if (mPeriodicCommitFuture != null)
+    {
+      mPeriodicCommitFuture.cancel(false);
+      mPeriodicCommitFuture = null;
+      ScheduledThreadPoolExecutor lScheduledThreadPoolExecutor =
+                                                               ClearControlExecutors.getScheduledThreadPoolExecutor(this);
+      if (lScheduledThreadPoolExecutor != null)
+        lScheduledThreadPoolExecutor.shutdown();
+      ClearControlExecutors.resetScheduledThreadPoolExecutor(this);
+    }
+
+    try
+    {
+      commit();
+    }
+    finally
+    {
+      for (GroupCommitJournal lJournal : mMetaDataJournalMap.values())
+        lJournal.close();
+      for (GroupCommitJournal lJournal : mIndexJournalMap.values())
+        lJournal.close();
+      mMetaDataJournalMap.clear();
+      mIndexJournalMap.clear();
+      super.close();
+    }
+    throwLastPeriodicCommitException();
   }
 
 }
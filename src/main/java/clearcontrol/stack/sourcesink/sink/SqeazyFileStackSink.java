@@ -5,19 +5,26 @@ import java.io.IOException;
 import java.lang.Runtime;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
+import clearcontrol.core.concurrent.executors.ClearControlExecutors;
 import clearcontrol.core.units.OrderOfMagnitude;
 import clearcontrol.stack.StackInterface;
 import clearcontrol.stack.StackRequest;
 import clearcontrol.stack.metadata.StackMetaData;
 import clearcontrol.stack.sourcesink.FileStackBase;
 import clearcontrol.stack.sourcesink.FileStackInterface;
+import clearcontrol.stack.sourcesink.SqeazyChunkTable;
 import clearcontrol.stack.sourcesink.StackSinkSourceInterface;
+import coremem.ContiguousMemoryInterface;
 import coremem.offheap.OffHeapMemory;
 
 import org.bridj.CLong;
@@ -34,6 +41,19 @@ public class SqeazyFileStackSink extends FileStackBase implements
                                  FileStackSinkInterface,
                                  AutoCloseable
 {
+  private static final int cNumberOfThreads =
+                                            Math.max(1,
+                                                     Runtime.getRuntime()
+                                                            .availableProcessors());
+
+  // chunks of all sinks are compressed on one shared executor, futures are
+  // kept locally so that the executor does not accumulate them:
+  private static final Executor sExecutor =
+                                          ClearControlExecutors.getOrCreateThreadPoolExecutor(SqeazyFileStackSink.class,
+                                                                                              Thread.NORM_PRIORITY,
+                                                                                              cNumberOfThreads,
+                                                                                              cNumberOfThreads,
+                                                                                              Integer.MAX_VALUE);
 
   private final AtomicLong mFirstTimePointAbsoluteNanoSeconds =
                                                               new AtomicLong();
@@ -47,6 +67,8 @@ public class SqeazyFileStackSink extends FileStackBase implements
                                           new AtomicInteger(Runtime.getRuntime()
                                                                    .availableProcessors());
 
+  private final int mPlanesPerChunk;
+
   private OffHeapMemory mCompressedData;
 
   /**
@@ -56,7 +78,7 @@ public class SqeazyFileStackSink extends FileStackBase implements
   public SqeazyFileStackSink()
   {
     super(false);
-
+    mPlanesPerChunk = 0;
   }
 
   /**
@@ -64,11 +86,54 @@ public class SqeazyFileStackSink extends FileStackBase implements
    * 
    */
   public SqeazyFileStackSink(String PipelineName, int NumThreads)
+  {
+    this(PipelineName, NumThreads, 0);
+  }
+
+  /**
+   * Instantiates a sqeazy file stack sink. If the given number of planes per
+   * chunk is strictly positive, stacks are split into slabs of that many planes
+   * that are compressed independently and in parallel, on an executor shared by
+   * all sinks, with at most the given number of chunks of a stack being
+   * compressed at a time. The resulting chunked files end with a chunk offset
+   * table (see SqeazyChunkTable) that permits random plane access.
+   * 
+   * @param pPipelineName
+   *          sqeazy pipeline name
+   * @param pNumberOfThreads
+   *          number of compression threads, or of chunks compressed at a time
+   * @param pPlanesPerChunk
+   *          number of planes per chunk, zero or less for monolithic files
+   */
+  public SqeazyFileStackSink(String pPipelineName,
+                             int pNumberOfThreads,
+                             int pPlanesPerChunk)
   {
     super(false);
 
-    mPipelineName.set(PipelineName);
-    mNumThreads.set(NumThreads);
+    mPipelineName.set(pPipelineName);
+    mNumThreads.set(pNumberOfThreads);
+    mPlanesPerChunk = pPlanesPerChunk;
+  }
+
+  /**
+   * Returns true if stacks are written as chunked files
+   * 
+   * @return true if chunked
+   */
+  public boolean isChunked()
+  {
+    return mPlanesPerChunk > 0;
+  }
+
+  /**
+   * Returns the number of planes per chunk
+   * 
+   * @return number of planes per chunk, zero or less if not chunked
+   */
+  public int getPlanesPerChunk()
+  {
+    return mPlanesPerChunk;
   }
 
   @Override
@@ -86,7 +151,12 @@ public class SqeazyFileStackSink extends FileStackBase implements
     {
       AtomicLong lNextFreeStackIndex = getIndexForChannel(pChannel);
 
-      writeStackData(lNextFreeStackIndex.get(), pChannel, pStack);
+      if (isChunked())
+        writeChunkedStackData(lNextFreeStackIndex.get(),
+                              pChannel,
+                              pStack);
+      else
+        writeStackData(lNextFreeStackIndex.get(), pChannel, pStack);
       writeIndexFileEntry(lNextFreeStackIndex.get(),
                           pChannel,
                           pStack);
@@ -184,6 +254,164 @@ public class SqeazyFileStackSink extends FileStackBase implements
     lBinnaryFileChannel.close();
   }
 
+  protected void writeChunkedStackData(long pIndex,
+                                       String pChannel,
+                                       final StackInterface pStack) throws IOException,
+                                                                    InterruptedException,
+                                                                    ExecutionException
+  {
+    String lFileName =
+                     String.format(StackSinkSourceInterface.cBasename
+                                   + StackSinkSourceInterface.cSqeazyFileExtension,
+                                   pIndex);
+    File lFile = new File(getChannelFolder(pChannel), lFileName);
+
+    final SqeazyChunkTable lChunkTable =
+                                       new SqeazyChunkTable(pStack.getDepth(),
+                                                            mPlanesPerChunk);
+    final long lPlaneSizeInBytes = pStack.getSizeInBytes()
+                                   / pStack.getDepth();
+
+    // chunks are compressed in parallel, at most that many at a time:
+    final int lNumberOfChunks = lChunkTable.getNumberOfChunks();
+    final int lMaxChunksInFlight = Math.max(1, mNumThreads.get());
+    final ArrayList<FutureTask<EncodedChunk>> lFutureList =
+                                                          new ArrayList<>();
+    for (int i = 0; i < Math.min(lMaxChunksInFlight, lNumberOfChunks); i++)
+      lFutureList.add(encodeChunkAsynchronously(pStack,
+                                                lChunkTable,
+                                                i,
+                                                lPlaneSizeInBytes));
+
+    // chunks are written in order, each as soon as it is compressed:
+    int lNumberOfWrittenChunks = 0;
+    try (FileChannel lBinnaryFileChannel = getFileChannel(lFile, false))
+    {
+      long lOffset = lBinnaryFileChannel.size();
+      for (int i = 0; i < lNumberOfChunks; i++)
+      {
+        EncodedChunk lEncodedChunk = lFutureList.get(i).get();
+        if (lFutureList.size() < lNumberOfChunks)
+          lFutureList.add(encodeChunkAsynchronously(pStack,
+                                                    lChunkTable,
+                                                    lFutureList.size(),
+                                                    lPlaneSizeInBytes));
+        lNumberOfWrittenChunks++;
+        try
+        {
+          lEncodedChunk.mCompressedData.writeBytesToFileChannel(0,
+                                                                lBinnaryFileChannel,
+                                                                lOffset,
+                                                                lEncodedChunk.mLengthInBytes);
+        }
+        finally
+        {
+          lEncodedChunk.mCompressedData.free();
+        }
+        lChunkTable.setChunk(i, lOffset, lEncodedChunk.mLengthInBytes);
+        lOffset += lEncodedChunk.mLengthInBytes;
+      }
+
+      lChunkTable.writeTo(lBinnaryFileChannel);
+      lBinnaryFileChannel.force(false);
+    }
+    finally
+    {
+      // on failure, chunks still being compressed are freed once done:
+      for (int i = lNumberOfWrittenChunks; i < lFutureList.size(); i++)
+      {
+        try
+        {
+          lFutureList.get(i).get().mCompressedData.free();
+        }
+        catch (Throwable e)
+        {
+        }
+      }
+    }
+  }
+
+  private FutureTask<EncodedChunk> encodeChunkAsynchronously(StackInterface pStack,
+                                                            SqeazyChunkTable pChunkTable,
+                                                            int pChunkIndex,
+                                                            long pPlaneSizeInBytes)
+  {
+    final ContiguousMemoryInterface lChunkMemory =
+                                                 pStack.getContiguousMemory()
+                                                       .subRegion(pChunkTable.getFirstPlane(pChunkIndex)
+                                                                  * pPlaneSizeInBytes,
+                                                                  pChunkTable.getNumberOfPlanes(pChunkIndex)
+                                                                                       * pPlaneSizeInBytes);
+    final long lNumberOfPlanes =
+                               pChunkTable.getNumberOfPlanes(pChunkIndex);
+    final FutureTask<EncodedChunk> lFuture =
+                                           new FutureTask<>(() -> encodeChunk(lChunkMemory,
+                                                                              pStack.getWidth(),
+                                                                              pStack.getHeight(),
+                                                                              lNumberOfPlanes));
+    sExecutor.execute(lFuture);
+    return lFuture;
+  }
+
+  @SuppressWarnings("unchecked")
+  private EncodedChunk encodeChunk(ContiguousMemoryInterface pChunkMemory,
+                                    long pWidth,
+                                    long pHeight,
+                                    long pNumberOfPlanes)
+  {
+    final Pointer<Byte> bPipelineName =
+                                      Pointer.pointerToCString(mPipelineName.get());
+
+    final Pointer<CLong> lSourceShape =
+                                      Pointer.pointerToCLongs(pNumberOfPlanes,
+                                                              pHeight,
+                                                              pWidth);
+    final Pointer<CLong> lMaxEncodedBytes = Pointer.allocateCLong();
+    lMaxEncodedBytes.setCLong(pChunkMemory.getSizeInBytes());
+    SqeazyLibrary.SQY_Pipeline_Max_Compressed_Length_UI16(bPipelineName,
+                                                          mPipelineName.get()
+                                                                       .length(),
+                                                          lMaxEncodedBytes);
+
+    final OffHeapMemory lCompressedData =
+                                        OffHeapMemory.allocateBytes(lMaxEncodedBytes.getCLong());
+
+    final Pointer<CLong> lEncodedBytes = Pointer.allocateCLong();
+
+    // each chunk is encoded on a single thread, parallelism is across chunks:
+    int lReturnValue =
+                     SqeazyLibrary.SQY_PipelineEncode_UI16(bPipelineName,
+                                                           pChunkMemory.getBridJPointer(Short.class)
+                                                                       .as(Byte.class),
+                                                           lSourceShape,
+                                                           3,
+                                                           (Pointer<Byte>) lCompressedData.getBridJPointer(Byte.class),
+                                                           lEncodedBytes,
+                                                           1);
+
+    if (lReturnValue != 0)
+    {
+      lCompressedData.free();
+      throw new RuntimeException("Error while peforming sqy compression, error code:  "
+                                 + lReturnValue);
+    }
+
+    return new EncodedChunk(lCompressedData, lEncodedBytes.getCLong());
+  }
+
+  private static class EncodedChunk
+  {
+    private final OffHeapMemory mCompressedData;
+    private final long mLengthInBytes;
+
+    private EncodedChunk(OffHeapMemory pCompressedData,
+                         long pLengthInBytes)
+    {
+      mCompressedData = pCompressedData;
+      mLengthInBytes = pLengthInBytes;
+    }
+  }
+
   protected void writeIndexFileEntry(long pIndex,
                                      String pChannel,
                                      final StackInterface pStack) throws IOException
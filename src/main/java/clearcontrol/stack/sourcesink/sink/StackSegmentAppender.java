@@ -0,0 +1,145 @@
+package clearcontrol.stack.sourcesink.sink;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.sourcesink.BinaryStackIndex;
+
+/**
+ * Appends stacks contiguously into large segment files, instead of one file per
+ * stack. Each stack starts at an offset aligned to a given number of bytes.
+ * Segment files are extended to the segment size when created, and a new
+ * segment is started once the next stack would not fit. Closed segments are
+ * truncated to their used length. Extending a file only reserves its space on
+ * file systems that allocate on resize, such as NTFS; most Linux file systems
+ * create a sparse file instead, and blocks are allocated as stacks are written.
+ *
+ * @author royer
+ */
+public class StackSegmentAppender implements AutoCloseable
+{
+  private final File mFolder;
+  private final long mSegmentSizeInBytes;
+  private final long mAlignmentInBytes;
+
+  private int mSegmentIndex;
+  private RandomAccessFile mSegmentFile;
+  private FileChannel mSegmentFileChannel;
+  private long mSegmentLength;
+
+  /**
+   * Instantiates a stack segment appender.
+   *
+   * @param pFolder
+   *          folder holding the segment files
+   * @param pFirstSegmentIndex
+   *          1-based index of the first segment to write
+   * @param pSegmentSizeInBytes
+   *          segment size in bytes
+   * @param pAlignmentInBytes
+   *          stack offset alignment in bytes
+   */
+  public StackSegmentAppender(File pFolder,
+                              int pFirstSegmentIndex,
+                              long pSegmentSizeInBytes,
+                              long pAlignmentInBytes)
+  {
+    super();
+    mFolder = pFolder;
+    mSegmentIndex = Math.max(1, pFirstSegmentIndex) - 1;
+    mSegmentSizeInBytes = pSegmentSizeInBytes;
+    mAlignmentInBytes = Math.max(1, pAlignmentInBytes);
+  }
+
+  /**
+   * Appends a stack to the current segment, or to a new segment if the stack
+   * does not fit. The stack data is forced to disk before returning.
+   *
+   * @param pStack
+   *          stack
+   * @return offset in bytes of the stack within the current segment
+   * @throws IOException
+   *           thrown if the stack cannot be written
+   */
+  public synchronized long append(StackInterface pStack) throws IOException
+  {
+    final long lSizeInBytes = pStack.getSizeInBytes();
+    long lOffset = align(mSegmentLength);
+
+    if (mSegmentFileChannel == null
+        || (lOffset > 0 && lOffset + lSizeInBytes > mSegmentSizeInBytes))
+    {
+      openNextSegment(lSizeInBytes);
+      lOffset = 0;
+    }
+
+    pStack.getFragmentedMemory()
+          .writeBytesToFileChannel(mSegmentFileChannel, lOffset);
+    mSegmentFileChannel.force(false);
+
+    mSegmentLength = lOffset + lSizeInBytes;
+    return lOffset;
+  }
+
+  /**
+   * Returns the 1-based index of the current segment
+   *
+   * @return current segment index
+   */
+  public synchronized int getSegmentIndex()
+  {
+    return mSegmentIndex;
+  }
+
+  private long align(long pOffset)
+  {
+    return ((pOffset + mAlignmentInBytes - 1) / mAlignmentInBytes)
+           * mAlignmentInBytes;
+  }
+
+  private void openNextSegment(long pMinimalSizeInBytes) throws IOException
+  {
+    closeSegment();
+
+    mSegmentIndex++;
+    mFolder.mkdirs();
+    File lFile = BinaryStackIndex.getSegmentFile(mFolder,
+                                                 mSegmentIndex);
+
+    mSegmentFile = new RandomAccessFile(lFile, "rw");
+    // Java offers no fallocate: this reserves the segment on NTFS, but only
+    // gives a sparse file on most Linux file systems. Writing zeros to really
+    // allocate the blocks would write every segment twice:
+    mSegmentFile.setLength(Math.max(mSegmentSizeInBytes,
+                                    pMinimalSizeInBytes));
+    mSegmentFileChannel = mSegmentFile.getChannel();
+    mSegmentLength = 0;
+  }
+
+  private void closeSegment() throws IOException
+  {
+    if (mSegmentFile == null)
+      return;
+    try
+    {
+      mSegmentFileChannel.truncate(mSegmentLength);
+      mSegmentFileChannel.force(true);
+    }
+    finally
+    {
+      mSegmentFile.close();
+      mSegmentFile = null;
+      mSegmentFileChannel = null;
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException
+  {
+    closeSegment();
+  }
+
+}
@@ -0,0 +1,300 @@
+package clearcontrol.stack.sourcesink.source;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import clearcontrol.core.units.OrderOfMagnitude;
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackRequest;
+import clearcontrol.stack.metadata.StackMetaData;
+import clearcontrol.stack.sourcesink.BinaryStackIndex;
+import clearcontrol.stack.sourcesink.BinaryStackIndex.Entry;
+import clearcontrol.stack.sourcesink.FileStackBase;
+import clearcontrol.stack.sourcesink.StackSinkSourceInterface;
+import coremem.recycling.RecyclerInterface;
+
+/**
+ * Raw file stack source that reads a fixed-record binary index (see
+ * {@link BinaryStackIndex}). Opening a dataset does not read or parse any
+ * entry: time stamps, dimensions and metadata are read on demand with a single
+ * positional read per stack. Stacks stored in segment files are read at their
+ * recorded offset.
+ *
+ * Datasets written with the index and metadata text files can be converted
+ * with {@link clearcontrol.stack.sourcesink.BinaryStackIndexConverter}.
+ *
+ * @author royer
+ */
+public class BinaryIndexedStackSource extends FileStackBase implements
+                                      FileStackSourceInterface,
+                                      AutoCloseable
+{
+
+  private RecyclerInterface<StackInterface, StackRequest> mStackRecycler;
+
+  private final ConcurrentHashMap<String, BinaryStackIndex> mBinaryStackIndexMap =
+                                                                                  new ConcurrentHashMap<>();
+
+  /**
+   * Instantiates a binary indexed stack source
+   *
+   * @param pStackRecycler
+   *          stack recycler
+   *
+   */
+  public BinaryIndexedStackSource(final RecyclerInterface<StackInterface, StackRequest> pStackRecycler)
+  {
+    super(true);
+    mStackRecycler = pStackRecycler;
+  }
+
+  @Override
+  public void setLocation(File pRootFolder, String pName)
+  {
+    super.setLocation(pRootFolder, pName);
+    update();
+  }
+
+  @Override
+  public void setStackRecycler(final RecyclerInterface<StackInterface, StackRequest> pStackRecycler)
+  {
+    mStackRecycler = pStackRecycler;
+  }
+
+  @Override
+  public ArrayList<String> getChannelList()
+  {
+    ArrayList<String> lChannelList = new ArrayList<String>();
+
+    File[] lListOfFiles = mFolder.listFiles();
+    if (lListOfFiles == null)
+      return lChannelList;
+
+    for (File lFile : lListOfFiles)
+    {
+      String lFileName = lFile.getName();
+      if (lFileName.endsWith(BinaryStackIndex.cIndexFileExtension))
+      {
+        String lChannel =
+                        lFileName.substring(0,
+                                            lFileName.length()
+                                               - BinaryStackIndex.cIndexFileExtension.length());
+        lChannelList.add(lChannel);
+      }
+    }
+
+    return lChannelList;
+  }
+
+  @Override
+  public boolean update()
+  {
+    try
+    {
+      closeIndices();
+
+      for (String lChannel : getChannelList())
+      {
+        BinaryStackIndex lBinaryStackIndex =
+                                           new BinaryStackIndex(new File(mFolder,
+                                                                         lChannel
+                                                                                  + BinaryStackIndex.cIndexFileExtension),
+                                                                new File(mFolder,
+                                                                         lChannel
+                                                                                  + BinaryStackIndex.cMetaDataFileExtension),
+                                                                true);
+        mBinaryStackIndexMap.put(lChannel, lBinaryStackIndex);
+      }
+
+      return true;
+    }
+    catch (final IOException e)
+    {
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  @Override
+  public long getNumberOfStacks()
+  {
+    return getNumberOfStacks(cDefaultChannel);
+  }
+
+  @Override
+  public long getNumberOfStacks(String pChannel)
+  {
+    BinaryStackIndex lBinaryStackIndex =
+                                       mBinaryStackIndexMap.get(pChannel);
+    if (lBinaryStackIndex == null)
+      return 0;
+    return lBinaryStackIndex.getNumberOfEntries();
+  }
+
+  @Override
+  public Double getStackTimeStampInSeconds(String pChannel,
+                                           long pStackIndex)
+  {
+    Entry lEntry = getEntry(pChannel, pStackIndex);
+    if (lEntry == null)
+      return null;
+    return lEntry.getTimeStampInSeconds();
+  }
+
+  @Override
+  public StackRequest getStackRequest(String pChannel, long pStackIndex)
+  {
+    Entry lEntry = getEntry(pChannel, pStackIndex);
+    if (lEntry == null)
+      return null;
+    return StackRequest.build(lEntry.getWidth(),
+                              lEntry.getHeight(),
+                              lEntry.getDepth());
+  }
+
+  @Override
+  public StackMetaData getStackMetaData(String pChannel,
+                                        long pStackIndex)
+  {
+    // metadata is parsed once per stack:
+    StackMetaData lStackMetaData = super.getStackMetaData(pChannel,
+                                                          pStackIndex);
+    if (lStackMetaData != null)
+      return lStackMetaData;
+
+    try
+    {
+      Entry lEntry = getEntry(pChannel, pStackIndex);
+      if (lEntry == null)
+        return null;
+
+      lStackMetaData = new StackMetaData();
+      lStackMetaData.fromString(mBinaryStackIndexMap.get(pChannel)
+                                                    .getMetaData(lEntry));
+      setStackMetaData(pChannel, pStackIndex, lStackMetaData);
+      return lStackMetaData;
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  private Entry getEntry(String pChannel, long pStackIndex)
+  {
+    BinaryStackIndex lBinaryStackIndex =
+                                       mBinaryStackIndexMap.get(pChannel);
+    if (lBinaryStackIndex == null)
+      return null;
+    try
+    {
+      return lBinaryStackIndex.getEntry(pStackIndex);
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  @Override
+  public StackInterface getStack(long pStackIndex)
+  {
+    return getStack(cDefaultChannel, pStackIndex);
+  }
+
+  @Override
+  public StackInterface getStack(final String pChannel,
+                                 final long pStackIndex)
+  {
+    return getStack(pChannel, pStackIndex, 1, TimeUnit.NANOSECONDS);
+  }
+
+  @Override
+  public StackInterface getStack(final String pChannel,
+                                 final long pStackIndex,
+                                 final long pTime,
+                                 final TimeUnit pTimeUnit)
+  {
+    if (mStackRecycler == null)
+    {
+      return null;
+    }
+    try
+    {
+      final Entry lEntry = getEntry(pChannel, pStackIndex);
+      if (lEntry == null)
+        return null;
+
+      final File lFile;
+      if (lEntry.getDataSegment() > 0)
+        lFile = BinaryStackIndex.getSegmentFile(getChannelFolder(pChannel),
+                                                lEntry.getDataSegment());
+      else
+        lFile = new File(getChannelFolder(pChannel),
+                         String.format(StackSinkSourceInterface.cFormat,
+                                       pStackIndex));
+
+      if (!lFile.exists())
+        return null;
+
+      final StackInterface lStack =
+                                  mStackRecycler.getOrWait(pTime,
+                                                           pTimeUnit,
+                                                           StackRequest.build(lEntry.getWidth(),
+                                                                              lEntry.getHeight(),
+                                                                              lEntry.getDepth()));
+      if (lStack == null)
+        return null;
+
+      try (FileChannel lBinnaryFileChannel = getFileChannel(lFile, true))
+      {
+        if (lStack.getContiguousMemory() != null)
+          lStack.getContiguousMemory()
+                .readBytesFromFileChannel(lBinnaryFileChannel,
+                                          lEntry.getDataOffset(),
+                                          lStack.getSizeInBytes());
+        else
+          lStack.getFragmentedMemory()
+                .readBytesFromFileChannel(lBinnaryFileChannel,
+                                          lEntry.getDataOffset(),
+                                          lStack.getSizeInBytes());
+      }
+
+      lStack.getMetaData()
+            .setTimeStampInNanoseconds((long) OrderOfMagnitude.unit2nano(lEntry.getTimeStampInSeconds()));
+      lStack.getMetaData().setIndex(pStackIndex);
+
+      StackMetaData lStackMetaData = getStackMetaData(pChannel,
+                                                      pStackIndex);
+      if (lStackMetaData != null)
+        lStack.getMetaData().addAll(lStackMetaData);
+
+      return lStack;
+    }
+    catch (final Throwable e)
+    {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  private void closeIndices() throws IOException
+  {
+    for (BinaryStackIndex lBinaryStackIndex : mBinaryStackIndexMap.values())
+      lBinaryStackIndex.close();
+    mBinaryStackIndexMap.clear();
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    closeIndices();
+  }
+
+}
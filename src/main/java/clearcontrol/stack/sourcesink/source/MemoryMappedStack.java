@@ -0,0 +1,94 @@
+package clearcontrol.stack.sourcesink.source;
+
+import java.nio.MappedByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import clearcontrol.stack.OffHeapPlanarStack;
+import coremem.enums.NativeTypeEnum;
+import coremem.offheap.OffHeapMemory;
+import coremem.util.Size;
+
+/**
+ * Read-only stack whose voxel data is a memory mapping of a raw stack file.
+ * Planes point directly into the mapping, no copy is made. The stack must not
+ * be written to. Releasing or freeing the stack releases its reference to the
+ * mapping, the stack must not be used afterwards.
+ *
+ * @author royer
+ */
+public class MemoryMappedStack extends OffHeapPlanarStack
+{
+  private final MemoryMappedStackCache mMemoryMappedStackCache;
+  private final MappedByteBuffer mMappedByteBuffer;
+  private final AtomicBoolean mIsReleased = new AtomicBoolean(false);
+
+  /**
+   * Instantiates a memory mapped stack for a given mapping acquired from a
+   * memory mapped stack cache.
+   *
+   * @param pMemoryMappedStackCache
+   *          cache from which the mapping was acquired
+   * @param pMappedByteBuffer
+   *          mapped byte buffer
+   * @param pDataType
+   *          data type
+   * @param pNumberOfChannels
+   *          number of channels
+   * @param pDimensions
+   *          dimensions
+   */
+  public MemoryMappedStack(MemoryMappedStackCache pMemoryMappedStackCache,
+                           MappedByteBuffer pMappedByteBuffer,
+                           NativeTypeEnum pDataType,
+                           long pNumberOfChannels,
+                           long... pDimensions)
+  {
+    super(OffHeapMemory.wrapBuffer(pMappedByteBuffer)
+                       .subRegion(0,
+                                  getSizeInBytes(pDataType,
+                                                 pNumberOfChannels,
+                                                 pDimensions)),
+          false,
+          pDataType,
+          pNumberOfChannels,
+          pDimensions);
+    mMemoryMappedStackCache = pMemoryMappedStackCache;
+    mMappedByteBuffer = pMappedByteBuffer;
+  }
+
+  private static long getSizeInBytes(NativeTypeEnum pDataType,
+                                     long pNumberOfChannels,
+                                     long... pDimensions)
+  {
+    long lSizeInBytes = Size.of(pDataType) * pNumberOfChannels;
+    for (long lDimension : pDimensions)
+      lSizeInBytes *= lDimension;
+    return lSizeInBytes;
+  }
+
+  @Override
+  public void release()
+  {
+    free();
+  }
+
+  @Override
+  public void free()
+  {
+    if (mIsReleased.compareAndSet(false, true))
+      mMemoryMappedStackCache.release(mMappedByteBuffer);
+  }
+
+  @Override
+  public boolean isFree()
+  {
+    return mIsReleased.get();
+  }
+
+  @Override
+  public boolean isReleased()
+  {
+    return mIsReleased.get();
+  }
+
+}
@@ -0,0 +1,237 @@
+package clearcontrol.stack.sourcesink.source;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of read-only memory mappings of stack files. Mappings are reference
+ * counted: a mapping is only unmapped once it has been evicted (least recently
+ * used first) and all stacks using it have been released.
+ *
+ * A file is mapped as a single buffer, which limits mappable files to
+ * {@link #cMaxMappingSizeInBytes} bytes (see {@link #canMap(File)}).
+ *
+ * @author royer
+ */
+public class MemoryMappedStackCache implements AutoCloseable
+{
+  /**
+   * Max size of a mappable file, the max size of a mapped byte buffer
+   */
+  public static final long cMaxMappingSizeInBytes = Integer.MAX_VALUE;
+
+  private final int mMaxNumberOfMappings;
+
+  private final LinkedHashMap<File, Mapping> mMappingMap =
+                                                         new LinkedHashMap<>(16,
+                                                                             0.75f,
+                                                                             true);
+
+  private final ArrayList<Mapping> mEvictedMappingList =
+                                                       new ArrayList<>();
+
+  private final IdentityHashMap<MappedByteBuffer, Mapping> mLiveMappingMap =
+                                                                         new IdentityHashMap<>();
+
+  private static class Mapping
+  {
+    private final MappedByteBuffer mMappedByteBuffer;
+    private int mReferenceCount = 0;
+
+    private Mapping(MappedByteBuffer pMappedByteBuffer)
+    {
+      mMappedByteBuffer = pMappedByteBuffer;
+    }
+  }
+
+  /**
+   * Instantiates a memory mapped stack cache that keeps at most the given
+   * number of unreferenced mappings alive.
+   *
+   * @param pMaxNumberOfMappings
+   *          max number of cached mappings
+   */
+  public MemoryMappedStackCache(int pMaxNumberOfMappings)
+  {
+    super();
+    mMaxNumberOfMappings = Math.max(1, pMaxNumberOfMappings);
+  }
+
+  /**
+   * Returns true if the given file is small enough to be mapped
+   *
+   * @param pFile
+   *          file
+   * @return true if the file can be mapped
+   */
+  public static boolean canMap(File pFile)
+  {
+    return pFile.length() <= cMaxMappingSizeInBytes;
+  }
+
+  /**
+   * Returns a read-only mapping of the given file, and increments its reference
+   * count. Each call must be matched by a call to release with the returned
+   * buffer.
+   *
+   * @param pFile
+   *          file to map
+   * @return read-only mapped byte buffer
+   * @throws IOException
+   *           thrown if file cannot be opened or mapped, or is too large to be
+   *           mapped
+   */
+  public synchronized MappedByteBuffer acquire(File pFile) throws IOException
+  {
+    Mapping lMapping = mMappingMap.get(pFile);
+    if (lMapping == null)
+    {
+      try (FileChannel lFileChannel =
+                                    FileChannel.open(pFile.toPath(),
+                                                     StandardOpenOption.READ))
+      {
+        if (lFileChannel.size() > cMaxMappingSizeInBytes)
+          throw new IOException(String.format("Cannot map file %s of %d bytes, files of at most %d bytes can be mapped",
+                                              pFile,
+                                              lFileChannel.size(),
+                                              cMaxMappingSizeInBytes));
+
+        // the mapping remains valid after the channel is closed:
+        lMapping = new Mapping(lFileChannel.map(MapMode.READ_ONLY,
+                                                0,
+                                                lFileChannel.size()));
+      }
+      mMappingMap.put(pFile, lMapping);
+      mLiveMappingMap.put(lMapping.mMappedByteBuffer, lMapping);
+      evict();
+    }
+    lMapping.mReferenceCount++;
+    return lMapping.mMappedByteBuffer;
+  }
+
+  /**
+   * Decrements the reference count of a mapping previously returned by acquire.
+   * Evicted mappings are unmapped once no longer referenced.
+   *
+   * @param pMappedByteBuffer
+   *          mapped byte buffer returned by acquire
+   */
+  public synchronized void release(MappedByteBuffer pMappedByteBuffer)
+  {
+    Mapping lMapping = mLiveMappingMap.get(pMappedByteBuffer);
+    if (lMapping == null)
+      return;
+    lMapping.mReferenceCount--;
+    unmapUnreferencedEvictedMappings();
+  }
+
+  /**
+   * Returns the number of mappings currently cached
+   *
+   * @return number of cached mappings
+   */
+  public synchronized int getNumberOfMappings()
+  {
+    return mMappingMap.size();
+  }
+
+  private void evict()
+  {
+    Iterator<Map.Entry<File, Mapping>> lIterator =
+                                                 mMappingMap.entrySet()
+                                                            .iterator();
+    while (mMappingMap.size() > mMaxNumberOfMappings
+           && lIterator.hasNext())
+    {
+      Mapping lMapping = lIterator.next().getValue();
+      lIterator.remove();
+      mEvictedMappingList.add(lMapping);
+    }
+    unmapUnreferencedEvictedMappings();
+  }
+
+  private void unmapUnreferencedEvictedMappings()
+  {
+    Iterator<Mapping> lIterator = mEvictedMappingList.iterator();
+    while (lIterator.hasNext())
+    {
+      Mapping lMapping = lIterator.next();
+      if (lMapping.mReferenceCount <= 0)
+      {
+        mLiveMappingMap.remove(lMapping.mMappedByteBuffer);
+        unmap(lMapping.mMappedByteBuffer);
+        lIterator.remove();
+      }
+    }
+  }
+
+  @Override
+  public synchronized void close()
+  {
+    mEvictedMappingList.addAll(mMappingMap.values());
+    mMappingMap.clear();
+    unmapUnreferencedEvictedMappings();
+  }
+
+  /**
+   * Unmaps a mapped byte buffer immediately instead of waiting for it to be
+   * garbage collected. The buffer must not be accessed afterwards.
+   *
+   * @param pMappedByteBuffer
+   *          mapped byte buffer
+   */
+  public static void unmap(MappedByteBuffer pMappedByteBuffer)
+  {
+    try
+    {
+      // Java 9 and later:
+      Class<?> lUnsafeClass = Class.forName("sun.misc.Unsafe");
+      Method lInvokeCleanerMethod =
+                                  lUnsafeClass.getMethod("invokeCleaner",
+                                                         java.nio.ByteBuffer.class);
+      Field lTheUnsafeField = lUnsafeClass.getDeclaredField("theUnsafe");
+      lTheUnsafeField.setAccessible(true);
+      lInvokeCleanerMethod.invoke(lTheUnsafeField.get(null),
+                                  pMappedByteBuffer);
+      return;
+    }
+    catch (NoSuchMethodException e)
+    {
+      // Java 8, see below.
+    }
+    catch (Throwable e)
+    {
+      return;
+    }
+
+    try
+    {
+      Method lCleanerMethod = pMappedByteBuffer.getClass()
+                                               .getMethod("cleaner");
+      lCleanerMethod.setAccessible(true);
+      Object lCleaner = lCleanerMethod.invoke(pMappedByteBuffer);
+      if (lCleaner != null)
+      {
+        Method lCleanMethod = lCleaner.getClass().getMethod("clean");
+        lCleanMethod.setAccessible(true);
+        lCleanMethod.invoke(lCleaner);
+      }
+    }
+    catch (Throwable e)
+    {
+      // the mapping will be released when garbage collected.
+    }
+  }
+
+}
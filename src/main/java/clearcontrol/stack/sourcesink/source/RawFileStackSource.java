@@ -3,17 +3,21 @@ package clearcontrol.stack.sourcesink.source;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Scanner;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import clearcontrol.core.log.LoggingFeature;
 import clearcontrol.core.units.OrderOfMagnitude;
 import clearcontrol.stack.StackInterface;
 import clearcontrol.stack.StackRequest;
 import clearcontrol.stack.metadata.StackMetaData;
 import clearcontrol.stack.sourcesink.FileStackBase;
 import clearcontrol.stack.sourcesink.StackSinkSourceInterface;
+import coremem.enums.NativeTypeEnum;
 import coremem.recycling.RecyclerInterface;
 
 /**
@@ -23,11 +27,16 @@ import coremem.recycling.RecyclerInterface;
  */
 public class RawFileStackSource extends FileStackBase implements
                                 FileStackSourceInterface,
+                                LoggingFeature,
                                 AutoCloseable
 {
 
   private RecyclerInterface<StackInterface, StackRequest> mStackRecycler;
 
+  private final MemoryMappedStackCache mMemoryMappedStackCache;
+  private final AtomicBoolean mLargeStackWarningLogged =
+                                                        new AtomicBoolean();
+
   /**
    * Instantiates a raw file stack source
    * 
@@ -36,9 +45,44 @@ public class RawFileStackSource extends FileStackBase implements
    * 
    */
   public RawFileStackSource(final RecyclerInterface<StackInterface, StackRequest> pStackRecycler)
+  {
+    this(pStackRecycler, 0);
+  }
+
+  /**
+   * Instantiates a raw file stack source. If the given max number of mappings
+   * is strictly positive, stacks are not copied into recycled stacks but are
+   * instead returned as read-only memory mapped stacks (zero-copy). At most the
+   * given number of unreferenced mappings are kept alive. Memory mapped stacks
+   * must be released once no longer needed. Stack files too large to be mapped
+   * (see {@link MemoryMappedStackCache#canMap(File)}) are read into recycled
+   * stacks instead, and cannot be read without a recycler.
+   * 
+   * @param pStackRecycler
+   *          stack recycler
+   * @param pMaxNumberOfMappings
+   *          max number of cached mappings, zero or less for no memory mapping
+   */
+  public RawFileStackSource(final RecyclerInterface<StackInterface, StackRequest> pStackRecycler,
+                            int pMaxNumberOfMappings)
   {
     super(true);
     mStackRecycler = pStackRecycler;
+    if (pMaxNumberOfMappings > 0)
+      mMemoryMappedStackCache =
+                              new MemoryMappedStackCache(pMaxNumberOfMappings);
+    else
+      mMemoryMappedStackCache = null;
+  }
+
+  /**
+   * Returns true if stacks are returned as read-only memory mapped stacks
+   * 
+   * @return true if memory mapped
+   */
+  public boolean isMemoryMapped()
+  {
+    return mMemoryMappedStackCache != null;
   }
 
   @Override
@@ -73,7 +117,7 @@ public class RawFileStackSource extends FileStackBase implements
                                  final long pTime,
                                  final TimeUnit pTimeUnit)
   {
-    if (mStackRecycler == null)
+    if (mStackRecycler == null && !isMemoryMapped())
     {
       return null;
     }
@@ -83,11 +127,6 @@ public class RawFileStackSource extends FileStackBase implements
       final StackRequest lStackRequest = getStackRequest(pChannel,
                                                          pStackIndex);
 
-      final StackInterface lStack =
-                                  mStackRecycler.getOrWait(pTime,
-                                                           pTimeUnit,
-                                                           lStackRequest);
-
       String lFileName =
                        String.format(StackSinkSourceInterface.cFormat,
                                      pStackIndex);
@@ -96,18 +135,45 @@ public class RawFileStackSource extends FileStackBase implements
       if (!lFile.exists())
         return null;
 
-      FileChannel lBinnaryFileChannel = getFileChannel(lFile, true);
-
-      if (lStack.getContiguousMemory() != null)
-        lStack.getContiguousMemory()
-              .readBytesFromFileChannel(lBinnaryFileChannel,
-                                        0,
-                                        lStack.getSizeInBytes());
+      final StackInterface lStack;
+      if (isMemoryMapped() && MemoryMappedStackCache.canMap(lFile))
+      {
+        lStack = getMemoryMappedStack(lFile, lStackRequest);
+      }
       else
-        lStack.getFragmentedMemory()
-              .readBytesFromFileChannel(lBinnaryFileChannel,
-                                        0,
-                                        lStack.getSizeInBytes());
+      {
+        if (isMemoryMapped())
+        {
+          // stacks too large to be mapped are read into recycled stacks:
+          if (mLargeStackWarningLogged.compareAndSet(false, true))
+            warning("Stack files over %d bytes cannot be memory mapped, such as %s, they are read into recycled stacks instead",
+                    MemoryMappedStackCache.cMaxMappingSizeInBytes,
+                    lFile);
+          if (mStackRecycler == null)
+          {
+            warning("Cannot read stack file %s, it is too large to be memory mapped and no stack recycler is set",
+                    lFile);
+            return null;
+          }
+        }
+
+        lStack = mStackRecycler.getOrWait(pTime,
+                                          pTimeUnit,
+                                          lStackRequest);
+
+        FileChannel lBinnaryFileChannel = getFileChannel(lFile, true);
+
+        if (lStack.getContiguousMemory() != null)
+          lStack.getContiguousMemory()
+                .readBytesFromFileChannel(lBinnaryFileChannel,
+                                          0,
+                                          lStack.getSizeInBytes());
+        else
+          lStack.getFragmentedMemory()
+                .readBytesFromFileChannel(lBinnaryFileChannel,
+                                          0,
+                                          lStack.getSizeInBytes());
+      }
 
       final double lTimeStampInSeconds =
                                        getStackTimeStampInSeconds(pChannel,
@@ -129,6 +195,28 @@ public class RawFileStackSource extends FileStackBase implements
 
   }
 
+  private StackInterface getMemoryMappedStack(File pFile,
+                                              StackRequest pStackRequest) throws IOException
+  {
+    final MappedByteBuffer lMappedByteBuffer =
+                                             mMemoryMappedStackCache.acquire(pFile);
+    try
+    {
+      return new MemoryMappedStack(mMemoryMappedStackCache,
+                                   lMappedByteBuffer,
+                                   NativeTypeEnum.UnsignedShort,
+                                   1,
+                                   pStackRequest.getWidth(),
+                                   pStackRequest.getHeight(),
+                                   pStackRequest.getDepth());
+    }
+    catch (Throwable e)
+    {
+      mMemoryMappedStackCache.release(lMappedByteBuffer);
+      throw e;
+    }
+  }
+
   @Override
   public boolean update()
   {
@@ -140,8 +228,10 @@ public class RawFileStackSource extends FileStackBase implements
 
       for (String lChannel : lChannelList)
       {
-        readIndexFile(lChannel);
-        readMetaDataFile(lChannel);
+        // metadata is read first: an index entry without metadata is the
+        // partially committed tail of an interrupted acquisition:
+        int lNumberOfMetaDataEntries = readMetaDataFile(lChannel);
+        readIndexFile(lChannel, lNumberOfMetaDataEntries);
       }
 
       return true;
@@ -153,7 +243,17 @@ public class RawFileStackSource extends FileStackBase implements
     }
   }
 
-  protected void readMetaDataFile(String lChannel) throws FileNotFoundException
+  /**
+   * Reads the metadata file for a given channel. A last line that cannot be
+   * parsed is ignored, as it was only partially written.
+   * 
+   * @param lChannel
+   *          channel
+   * @return number of metadata entries read
+   * @throws FileNotFoundException
+   *           thrown if the metadata file is not found
+   */
+  protected int readMetaDataFile(String lChannel) throws FileNotFoundException
   {
     final Scanner lMetaDataFileScanner =
                                        new Scanner(getMetadataFile(lChannel));
@@ -165,7 +265,14 @@ public class RawFileStackSource extends FileStackBase implements
 
       StackMetaData lStackMetaData = new StackMetaData();
 
-      lStackMetaData.fromString(lLine);
+      if (!lStackMetaData.fromString(lLine)
+          && !lMetaDataFileScanner.hasNextLine())
+      {
+        warning("Ignoring partially written metadata entry %d of channel %s",
+                lStackIndex,
+                lChannel);
+        break;
+      }
 
       setStackMetaData(lChannel, lStackIndex, lStackMetaData);
 
@@ -173,27 +280,57 @@ public class RawFileStackSource extends FileStackBase implements
     }
 
     lMetaDataFileScanner.close();
+
+    return lStackIndex;
   }
 
-  protected void readIndexFile(String lChannel) throws FileNotFoundException
+  /**
+   * Reads the index file for a given channel, up to a given number of entries.
+   * Reading stops at the first entry that cannot be parsed, as it was only
+   * partially written.
+   * 
+   * @param lChannel
+   *          channel
+   * @param pMaxNumberOfEntries
+   *          max number of entries to read
+   * @throws FileNotFoundException
+   *           thrown if the index file is not found
+   */
+  protected void readIndexFile(String lChannel,
+                               long pMaxNumberOfEntries) throws FileNotFoundException
   {
     final Scanner lIndexFileScanner =
                                     new Scanner(getIndexFile(lChannel));
 
-    while (lIndexFileScanner.hasNextLine())
+    long lNumberOfEntries = 0;
+    while (lIndexFileScanner.hasNextLine()
+           && lNumberOfEntries < pMaxNumberOfEntries)
     {
       final String lLine = lIndexFileScanner.nextLine();
-      final String[] lSplittedLine = lLine.split("\t", -1);
-      final long lStackIndex =
-                             Long.parseLong(lSplittedLine[0].trim());
-      final double lTimeStampInSeconds =
-                                       Double.parseDouble(lSplittedLine[1].trim());
-      final String[] lDimensionsStringArray =
-                                            lSplittedLine[2].split(", ");
 
-      final long lWidth = Long.parseLong(lDimensionsStringArray[0]);
-      final long lHeight = Long.parseLong(lDimensionsStringArray[1]);
-      final long lDepth = Long.parseLong(lDimensionsStringArray[2]);
+      final long lStackIndex;
+      final double lTimeStampInSeconds;
+      final long lWidth, lHeight, lDepth;
+      try
+      {
+        final String[] lSplittedLine = lLine.split("\t", -1);
+        lStackIndex = Long.parseLong(lSplittedLine[0].trim());
+        lTimeStampInSeconds =
+                            Double.parseDouble(lSplittedLine[1].trim());
+        final String[] lDimensionsStringArray =
+                                              lSplittedLine[2].split(", ");
+
+        lWidth = Long.parseLong(lDimensionsStringArray[0]);
+        lHeight = Long.parseLong(lDimensionsStringArray[1]);
+        lDepth = Long.parseLong(lDimensionsStringArray[2].trim());
+      }
+      catch (Throwable e)
+      {
+        warning("Ignoring partially written index entry %d of channel %s",
+                lNumberOfEntries,
+                lChannel);
+        break;
+      }
 
       final StackRequest lStackRequest = StackRequest.build(lWidth,
                                                             lHeight,
@@ -203,6 +340,7 @@ public class RawFileStackSource extends FileStackBase implements
                                  lStackIndex,
                                  lTimeStampInSeconds);
       setStackRequest(lChannel, lStackIndex, lStackRequest);
+      lNumberOfEntries++;
     }
 
     lIndexFileScanner.close();
@@ -211,7 +349,8 @@ public class RawFileStackSource extends FileStackBase implements
   @Override
   public void close() throws IOException
   {
-
+    if (mMemoryMappedStackCache != null)
+      mMemoryMappedStackCache.close();
   }
 
 }
@@ -6,17 +6,25 @@ import java.io.IOException;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 
+import clearcontrol.core.concurrent.executors.ClearControlExecutors;
 import clearcontrol.core.units.OrderOfMagnitude;
 import clearcontrol.stack.StackInterface;
 import clearcontrol.stack.StackRequest;
 import clearcontrol.stack.metadata.StackMetaData;
 import clearcontrol.stack.sourcesink.FileStackBase;
+import clearcontrol.stack.sourcesink.SqeazyChunkTable;
 import clearcontrol.stack.sourcesink.StackSinkSourceInterface;
+import coremem.ContiguousMemoryInterface;
+import coremem.enums.NativeTypeEnum;
 import coremem.offheap.OffHeapMemory;
 import coremem.recycling.BasicRecycler;
 import coremem.recycling.RecyclerInterface;
+import coremem.util.Size;
 
 import org.bridj.CLong;
 import org.bridj.Pointer;
@@ -31,6 +39,19 @@ public class SqeazyFileStackSource extends FileStackBase implements
                                    FileStackSourceInterface,
                                    AutoCloseable
 {
+  private static final int cNumberOfThreads =
+                                            Math.max(1,
+                                                     Runtime.getRuntime()
+                                                            .availableProcessors());
+
+  // chunks of all sources are decompressed on one shared executor, futures are
+  // kept locally so that the executor does not accumulate them:
+  private static final Executor sExecutor =
+                                          ClearControlExecutors.getOrCreateThreadPoolExecutor(SqeazyFileStackSource.class,
+                                                                                              Thread.NORM_PRIORITY,
+                                                                                              cNumberOfThreads,
+                                                                                              cNumberOfThreads,
+                                                                                              Integer.MAX_VALUE);
 
   private RecyclerInterface<StackInterface, StackRequest> mStackRecycler;
 
@@ -108,6 +129,26 @@ public class SqeazyFileStackSource extends FileStackBase implements
         return null;
 
       FileChannel lBinaryFileChannel = getFileChannel(lFile, true);
+
+      final SqeazyChunkTable lChunkTable =
+                                         SqeazyChunkTable.readFrom(lBinaryFileChannel);
+      if (lChunkTable != null)
+      {
+        try
+        {
+          decodeAllChunks(lBinaryFileChannel,
+                          lChunkTable,
+                          lStack.getContiguousMemory(),
+                          getPlaneSizeInBytes(lStackRequest));
+        }
+        finally
+        {
+          lBinaryFileChannel.close();
+        }
+        setMetaData(pChannel, pStackIndex, lStack);
+        return lStack;
+      }
+
       final long lCompressedDataLength = lBinaryFileChannel.size();
 
       // we could be smarter here and only reallocate if we need a bigger
@@ -145,15 +186,9 @@ public class SqeazyFileStackSource extends FileStackBase implements
       // NOte: we don't need to write 'fragmented memory' as this is a just used
       // as a view into a contiguous buffer...
 
-      final double lTimeStampInSeconds =
-                                       getStackTimeStampInSeconds(pChannel,
-                                                                  pStackIndex);
-      lStack.getMetaData()
-            .setTimeStampInNanoseconds((long) OrderOfMagnitude.unit2nano(lTimeStampInSeconds));
-      lStack.getMetaData().setIndex(pStackIndex);
+      lBinaryFileChannel.close();
 
-      lStack.getMetaData()
-            .addAll(getStackMetaData(pChannel, pStackIndex));
+      setMetaData(pChannel, pStackIndex, lStack);
 
       return lStack;
     }
@@ -165,6 +200,169 @@ public class SqeazyFileStackSource extends FileStackBase implements
 
   }
 
+  /**
+   * Reads a single plane of a stack into the given memory, which must be
+   * exactly one plane in size. For chunked files, only the chunk containing the
+   * plane is read and decompressed. Monolithic files are decompressed entirely.
+   * 
+   * @param pChannel
+   *          channel
+   * @param pStackIndex
+   *          stack index
+   * @param pPlaneIndex
+   *          plane index
+   * @param pPlaneMemory
+   *          destination memory of the size of one plane
+   * @return true if the plane was read, false otherwise
+   */
+  public boolean readPlane(final String pChannel,
+                           final long pStackIndex,
+                           final long pPlaneIndex,
+                           final ContiguousMemoryInterface pPlaneMemory)
+  {
+    try
+    {
+      final StackRequest lStackRequest = getStackRequest(pChannel,
+                                                         pStackIndex);
+      final long lPlaneSizeInBytes = getPlaneSizeInBytes(lStackRequest);
+
+      String lFileName =
+                       String.format(StackSinkSourceInterface.cBasename
+                                     + StackSinkSourceInterface.cSqeazyFileExtension,
+                                     pStackIndex);
+      File lFile = new File(getChannelFolder(pChannel), lFileName);
+
+      if (!lFile.exists() || pPlaneIndex < 0
+          || pPlaneIndex >= lStackRequest.getDepth())
+        return false;
+
+      try (FileChannel lBinaryFileChannel = getFileChannel(lFile, true))
+      {
+        SqeazyChunkTable lChunkTable =
+                                     SqeazyChunkTable.readFrom(lBinaryFileChannel);
+
+        if (lChunkTable == null)
+        {
+          // monolithic files are decoded as a single chunk:
+          lChunkTable = new SqeazyChunkTable(lStackRequest.getDepth(),
+                                             (int) lStackRequest.getDepth());
+          lChunkTable.setChunk(0, 0, lBinaryFileChannel.size());
+        }
+
+        final int lChunkIndex = lChunkTable.getChunkIndex(pPlaneIndex);
+        final OffHeapMemory lChunkMemory =
+                                         OffHeapMemory.allocateBytes(lChunkTable.getNumberOfPlanes(lChunkIndex)
+                                                                     * lPlaneSizeInBytes);
+        try
+        {
+          decodeChunk(lBinaryFileChannel,
+                      lChunkTable,
+                      lChunkIndex,
+                      lChunkMemory);
+          final long lOffsetInChunk =
+                                    (pPlaneIndex
+                                     - lChunkTable.getFirstPlane(lChunkIndex))
+                                    * lPlaneSizeInBytes;
+          pPlaneMemory.copyFrom(lChunkMemory.subRegion(lOffsetInChunk,
+                                                       lPlaneSizeInBytes));
+        }
+        finally
+        {
+          lChunkMemory.free();
+        }
+      }
+      return true;
+    }
+    catch (final Throwable e)
+    {
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  private void decodeAllChunks(FileChannel pFileChannel,
+                               SqeazyChunkTable pChunkTable,
+                               ContiguousMemoryInterface pStackMemory,
+                               long pPlaneSizeInBytes) throws InterruptedException,
+                                                       ExecutionException
+  {
+    // chunks are decompressed in parallel directly into the stack memory:
+    final ArrayList<FutureTask<Object>> lFutureList = new ArrayList<>();
+    for (int i = 0; i < pChunkTable.getNumberOfChunks(); i++)
+    {
+      final int lChunkIndex = i;
+      final ContiguousMemoryInterface lChunkMemory =
+                                                   pStackMemory.subRegion(pChunkTable.getFirstPlane(i)
+                                                                          * pPlaneSizeInBytes,
+                                                                          pChunkTable.getNumberOfPlanes(i)
+                                                                                               * pPlaneSizeInBytes);
+      final FutureTask<Object> lFuture = new FutureTask<>(() -> {
+        decodeChunk(pFileChannel,
+                    pChunkTable,
+                    lChunkIndex,
+                    lChunkMemory);
+        return null;
+      });
+      lFutureList.add(lFuture);
+      sExecutor.execute(lFuture);
+    }
+
+    for (FutureTask<Object> lFuture : lFutureList)
+      lFuture.get();
+  }
+
+  private void decodeChunk(FileChannel pFileChannel,
+                           SqeazyChunkTable pChunkTable,
+                           int pChunkIndex,
+                           ContiguousMemoryInterface pDestination) throws IOException
+  {
+    final long lLength = pChunkTable.getLength(pChunkIndex);
+    final OffHeapMemory lCompressedBytes =
+                                         OffHeapMemory.allocateBytes(lLength);
+    try
+    {
+      // positional reads, the channel can be shared between threads:
+      lCompressedBytes.readBytesFromFileChannel(pFileChannel,
+                                                pChunkTable.getOffset(pChunkIndex),
+                                                lLength);
+
+      final int lReturnValue =
+                             SqeazyLibrary.SQY_Decode_UI16(lCompressedBytes.getBridJPointer(Byte.class),
+                                                           lLength,
+                                                           pDestination.getBridJPointer(Byte.class),
+                                                           1);
+
+      if (lReturnValue != 0)
+        throw new RuntimeException("Error while peforming sqy decompression, error code:  "
+                                   + lReturnValue);
+    }
+    finally
+    {
+      lCompressedBytes.free();
+    }
+  }
+
+  private static long getPlaneSizeInBytes(StackRequest pStackRequest)
+  {
+    return pStackRequest.getWidth() * pStackRequest.getHeight()
+           * Size.of(NativeTypeEnum.UnsignedShort);
+  }
+
+  private void setMetaData(final String pChannel,
+                           final long pStackIndex,
+                           final StackInterface pStack)
+  {
+    final double lTimeStampInSeconds =
+                                     getStackTimeStampInSeconds(pChannel,
+                                                                pStackIndex);
+    pStack.getMetaData()
+          .setTimeStampInNanoseconds((long) OrderOfMagnitude.unit2nano(lTimeStampInSeconds));
+    pStack.getMetaData().setIndex(pStackIndex);
+
+    pStack.getMetaData()
+          .addAll(getStackMetaData(pChannel, pStackIndex));
+  }
+
   @Override
   public boolean update()
   {
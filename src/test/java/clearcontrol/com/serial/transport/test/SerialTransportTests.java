@@ -0,0 +1,331 @@
+package clearcontrol.com.serial.transport.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import clearcontrol.com.serial.SerialDevice;
+import clearcontrol.com.serial.SerialException;
+import clearcontrol.com.serial.adapters.SerialDeviceAdapterAdapter;
+import clearcontrol.com.serial.adapters.SerialTextDeviceAdapter;
+import clearcontrol.com.serial.transport.LoopbackSerialChannel;
+import clearcontrol.com.serial.transport.SerialCommand;
+import clearcontrol.com.serial.transport.SerialTransport;
+import clearcontrol.core.variable.Variable;
+
+import org.junit.Test;
+
+/**
+ * Serial transport tests
+ *
+ * @author royer
+ */
+public class SerialTransportTests
+{
+
+  private static byte[] answer(byte[] pCommand)
+  {
+    final String lCommand = new String(pCommand).trim();
+    if (lCommand.equals("LOST"))
+      return null;
+    if (lCommand.startsWith("GET"))
+      return (lCommand.substring(3) + "\n").getBytes();
+    return (lCommand + "-ok\n").getBytes();
+  }
+
+  /**
+   * Tests pipelined commands
+   * 
+   * @throws SerialException
+   *           NA
+   */
+  @Test
+  public void testPipelinedCommands() throws SerialException
+  {
+    final LoopbackSerialChannel lChannel =
+                                         new LoopbackSerialChannel((byte) '\n',
+                                                                   SerialTransportTests::answer,
+                                                                   100);
+    final SerialTransport lTransport = new SerialTransport("test",
+                                                           lChannel,
+                                                           4);
+
+    final ArrayList<SerialCommand> lCommandList = new ArrayList<>();
+    for (int i = 0; i < 20; i++)
+    {
+      final SerialCommand lSerialCommand =
+                                         SerialCommand.text("cmd",
+                                                            ("C" + i
+                                                             + "\n").getBytes(),
+                                                            '\n');
+      lTransport.send(lSerialCommand);
+      lCommandList.add(lSerialCommand);
+    }
+
+    for (int i = 0; i < 20; i++)
+      assertArrayEquals(("C" + i + "-ok").getBytes(),
+                        lTransport.waitForAnswer(lCommandList.get(i),
+                                                 1,
+                                                 TimeUnit.SECONDS));
+
+    assertEquals(20, lTransport.getStatistics("cmd").getNumberOfCommands());
+    assertTrue(lTransport.getStatistics("cmd")
+                         .getAverageLatencyInMicroseconds() > 0);
+    assertEquals(0, lTransport.getNumberOfOutstandingCommands());
+    lTransport.close();
+  }
+
+  /**
+   * Tests resynchronization after a lost answer
+   * 
+   * @throws SerialException
+   *           NA
+   */
+  @Test
+  public void testLostAnswer() throws SerialException
+  {
+    final LoopbackSerialChannel lChannel =
+                                         new LoopbackSerialChannel((byte) '\n',
+                                                                   SerialTransportTests::answer,
+                                                                   0);
+    final SerialTransport lTransport = new SerialTransport("test",
+                                                           lChannel,
+                                                           4);
+
+    try
+    {
+      lTransport.request(SerialCommand.text("lost",
+                                            "LOST\n".getBytes(),
+                                            '\n'),
+                         50,
+                         TimeUnit.MILLISECONDS);
+      fail();
+    }
+    catch (SerialException e)
+    {
+    }
+    assertEquals(1, lTransport.getStatistics("lost").getNumberOfFailures());
+
+    assertArrayEquals("A-ok".getBytes(),
+                      lTransport.request(SerialCommand.text("cmd",
+                                                            "A\n".getBytes(),
+                                                            '\n'),
+                                         1,
+                                         TimeUnit.SECONDS));
+    lTransport.close();
+  }
+
+  private static class IntegerTextAdapter extends
+                                          SerialDeviceAdapterAdapter<Integer>
+                                          implements
+                                          SerialTextDeviceAdapter<Integer>
+  {
+    private final String mKey;
+
+    IntegerTextAdapter(String pKey)
+    {
+      mKey = pKey;
+    }
+
+    @Override
+    public byte[] getGetValueCommandMessage()
+    {
+      return ("GET" + mKey + "\n").getBytes();
+    }
+
+    @Override
+    public boolean hasResponseForGet()
+    {
+      return true;
+    }
+
+    @Override
+    public Integer parseValue(byte[] pMessage)
+    {
+      return Integer.parseInt(new String(pMessage));
+    }
+
+    @Override
+    public byte[] getSetValueCommandMessage(Integer pOldValue,
+                                            Integer pNewValue)
+    {
+      return ("SET" + mKey + " " + pNewValue + "\n").getBytes();
+    }
+
+    @Override
+    public boolean hasResponseForSet()
+    {
+      return true;
+    }
+
+    @Override
+    public Character getGetValueReturnMessageTerminationCharacter()
+    {
+      return '\n';
+    }
+
+    @Override
+    public Character getSetValueReturnMessageTerminationCharacter()
+    {
+      return '\n';
+    }
+  }
+
+  /**
+   * Tests that variable polls are batched in a single write
+   */
+  @Test
+  public void testBatchedPolls()
+  {
+    final LoopbackSerialChannel lChannel =
+                                         new LoopbackSerialChannel((byte) '\n',
+                                                                   SerialTransportTests::answer,
+                                                                   100);
+    final SerialDevice lSerialDevice = new SerialDevice("device",
+                                                        lChannel);
+    final Variable<Integer> lVariable1 =
+                                       lSerialDevice.addSerialVariable("v1",
+                                                                       new IntegerTextAdapter("1"));
+    final Variable<Integer> lVariable2 =
+                                       lSerialDevice.addSerialVariable("v2",
+                                                                       new IntegerTextAdapter("2"));
+    final Variable<Integer> lVariable3 =
+                                       lSerialDevice.addSerialVariable("v3",
+                                                                       new IntegerTextAdapter("3"));
+    assertTrue(lSerialDevice.open());
+
+    assertEquals(2, lVariable2.get(), 0);
+    assertEquals(1, lChannel.getNumberOfWrites());
+
+    final List<Object> lValues =
+                               lSerialDevice.pollVariables(lVariable1,
+                                                           lVariable2,
+                                                           lVariable3);
+    assertEquals(2, lChannel.getNumberOfWrites());
+    assertEquals(1, lValues.get(0));
+    assertEquals(2, lValues.get(1));
+    assertEquals(3, lValues.get(2));
+
+    assertTrue(lSerialDevice.close());
+  }
+
+  /**
+   * Tests that reads within the max staleness are served from the cache, and
+   * that sets write through
+   */
+  @Test
+  public void testCachedReads()
+  {
+    final LoopbackSerialChannel lChannel =
+                                         new LoopbackSerialChannel((byte) '\n',
+                                                                   SerialTransportTests::answer,
+                                                                   100);
+    final SerialDevice lSerialDevice = new SerialDevice("device",
+                                                        lChannel);
+    final Variable<Integer> lVariable1 =
+                                       lSerialDevice.addSerialVariable("v1",
+                                                                       new IntegerTextAdapter("1"));
+    final Variable<Integer> lVariable2 =
+                                       lSerialDevice.addSerialVariable("v2",
+                                                                       new IntegerTextAdapter("2"));
+    lSerialDevice.setMaxStaleness(lVariable1, 1, TimeUnit.HOURS);
+    lSerialDevice.setMaxStaleness(lVariable2, 1, TimeUnit.HOURS);
+    assertTrue(lSerialDevice.open());
+
+    for (int i = 0; i < 10; i++)
+      assertEquals(1, lVariable1.get(), 0);
+    assertEquals(1, lChannel.getNumberOfWrites());
+
+    lVariable1.set(7);
+    assertEquals(2, lChannel.getNumberOfWrites());
+    assertEquals(7, lVariable1.get(), 0);
+    assertEquals(2, lChannel.getNumberOfWrites());
+
+    lSerialDevice.invalidateCache();
+    assertEquals(1, lVariable1.get(), 0);
+    assertEquals(3, lChannel.getNumberOfWrites());
+
+    // stale values are refreshed in a single batch:
+    lSerialDevice.setMaxStaleness(lVariable1, 1, TimeUnit.MILLISECONDS);
+    lSerialDevice.setMaxStaleness(lVariable2, 1, TimeUnit.MILLISECONDS);
+    lSerialDevice.refreshCache();
+    assertEquals(4, lChannel.getNumberOfWrites());
+    assertEquals(0,
+                 lSerialDevice.getSerialTransport()
+                              .getNumberOfOutstandingCommands());
+
+    // background refresh only starts after one period:
+    lSerialDevice.startCacheRefresh(1, TimeUnit.HOURS);
+    lSerialDevice.stopCacheRefresh();
+    assertEquals(4, lChannel.getNumberOfWrites());
+
+    assertTrue(lSerialDevice.close());
+  }
+
+  /**
+   * Tests that a poll sent before a set does not overwrite the cached value of
+   * the set, even if the poll completes after the set
+   * 
+   * @throws InterruptedException
+   *           NA
+   */
+  @Test
+  public void testPollDoesNotOverwriteSet() throws InterruptedException
+  {
+    final CountDownLatch lParsing = new CountDownLatch(1);
+    final CountDownLatch lParse = new CountDownLatch(1);
+    final IntegerTextAdapter lGatedAdapter = new IntegerTextAdapter("1")
+    {
+      @Override
+      public Integer parseValue(byte[] pMessage)
+      {
+        lParsing.countDown();
+        try
+        {
+          lParse.await();
+        }
+        catch (InterruptedException e)
+        {
+        }
+        return super.parseValue(pMessage);
+      }
+    };
+
+    final LoopbackSerialChannel lChannel =
+                                         new LoopbackSerialChannel((byte) '\n',
+                                                                   SerialTransportTests::answer,
+                                                                   100);
+    final SerialDevice lSerialDevice = new SerialDevice("device",
+                                                        lChannel);
+    final Variable<Integer> lVariable =
+                                      lSerialDevice.addSerialVariable("v1",
+                                                                      lGatedAdapter);
+    lSerialDevice.setMaxStaleness(lVariable, 1, TimeUnit.HOURS);
+    assertTrue(lSerialDevice.open());
+
+    // the poll has its answer, but is held before caching it:
+    final Thread lPollingThread = new Thread(() -> {
+      lSerialDevice.pollVariables(lVariable);
+    });
+    lPollingThread.start();
+    lParsing.await();
+
+    lVariable.set(7);
+    assertEquals(2, lChannel.getNumberOfWrites());
+
+    lParse.countDown();
+    lPollingThread.join();
+
+    assertEquals(7, lVariable.get(), 0);
+    assertEquals(2, lChannel.getNumberOfWrites());
+
+    assertTrue(lSerialDevice.close());
+  }
+
+}
@@ -1,6 +1,7 @@
 package clearcontrol.core.concurrent.asyncprocs.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -12,6 +13,8 @@ import clearcontrol.core.concurrent.asyncprocs.AsynchronousProcessorBase;
 import clearcontrol.core.concurrent.asyncprocs.AsynchronousProcessorInterface;
 import clearcontrol.core.concurrent.asyncprocs.AsynchronousProcessorPool;
 import clearcontrol.core.concurrent.asyncprocs.ProcessorInterface;
+import clearcontrol.core.concurrent.asyncprocs.RingBufferAsynchronousProcessor;
+import clearcontrol.core.concurrent.asyncprocs.WaitStrategy;
 import clearcontrol.core.concurrent.thread.ThreadSleep;
 
 import org.junit.Test;
@@ -276,4 +279,81 @@ public class AsynchronousProcessorTests
     }
 
   }
+
+  /**
+   * test ring buffer processor pipeline for all wait strategies
+   */
+  @Test
+  public void testRingBufferProcessorPipeline()
+  {
+    for (WaitStrategy lWaitStrategy : WaitStrategy.values())
+    {
+      final ConcurrentLinkedQueue<Integer> lIntList =
+                                                    new ConcurrentLinkedQueue<>();
+
+      final RingBufferAsynchronousProcessor<Integer, Integer> lProcessorA =
+                                                                          new RingBufferAsynchronousProcessor<Integer, Integer>("A",
+                                                                                                                                4,
+                                                                                                                                lWaitStrategy)
+                                                                          {
+                                                                            @Override
+                                                                            public Integer process(final Integer pInput)
+                                                                            {
+                                                                              return pInput
+                                                                                     + 1;
+                                                                            }
+                                                                          };
+
+      final RingBufferAsynchronousProcessor<Integer, Integer> lProcessorB =
+                                                                          new RingBufferAsynchronousProcessor<Integer, Integer>("B",
+                                                                                                                                4,
+                                                                                                                                lWaitStrategy)
+                                                                          {
+                                                                            @Override
+                                                                            public Integer process(final Integer pInput)
+                                                                            {
+                                                                              lIntList.add(pInput);
+                                                                              return null;
+                                                                            }
+                                                                          };
+
+      lProcessorA.connectToReceiver(lProcessorB);
+
+      // not started yet:
+      assertFalse(lProcessorA.passOrFail(0));
+
+      // the processors can be restarted:
+      for (int r = 0; r < 2; r++)
+      {
+        assertTrue(lProcessorA.start());
+        assertTrue(lProcessorB.start());
+
+        for (int i = 0; i < 1000; i++)
+          assertTrue(lProcessorA.passOrWait(i));
+
+        assertTrue(lProcessorA.waitToFinish(10, TimeUnit.SECONDS));
+        assertTrue(lProcessorB.waitToFinish(10, TimeUnit.SECONDS));
+
+        assertEquals(0, lProcessorA.getInputQueueLength());
+        assertEquals(4, lProcessorA.getRemainingCapacity());
+
+        assertTrue(lProcessorA.stop(1, TimeUnit.SECONDS));
+        assertTrue(lProcessorB.stop(1, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 1000; i++)
+        {
+          final Integer lPoll = lIntList.poll();
+          assertNotNull(lPoll);
+          assertEquals(i + 1, lPoll, 0);
+        }
+      }
+
+      assertEquals(2000, lProcessorA.getNumberOfProcessedItems());
+      assertTrue(lProcessorA.getMaxInputQueueLength() <= 4);
+      assertTrue(lProcessorA.getAverageQueueLatencyInNanoseconds() >= 0);
+
+      lProcessorA.resetCounters();
+      assertEquals(0, lProcessorA.getNumberOfProcessedItems());
+    }
+  }
 }
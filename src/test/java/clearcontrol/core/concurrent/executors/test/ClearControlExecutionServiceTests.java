@@ -0,0 +1,177 @@
+package clearcontrol.core.concurrent.executors.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import clearcontrol.core.concurrent.executors.AsynchronousExecutorFeature;
+import clearcontrol.core.concurrent.executors.AsynchronousSchedulerFeature;
+import clearcontrol.core.concurrent.executors.ClearControlExecutionService;
+import clearcontrol.core.concurrent.executors.ClearControlExecutors;
+import clearcontrol.core.concurrent.executors.HashedWheelTimer;
+import clearcontrol.core.concurrent.executors.OwnerTaskStatistics;
+import clearcontrol.core.concurrent.executors.WaitingScheduledFuture;
+
+import org.junit.Test;
+
+/**
+ * Execution service tests
+ *
+ * @author royer
+ */
+public class ClearControlExecutionServiceTests
+{
+
+  private class Owner implements
+                      AsynchronousExecutorFeature,
+                      AsynchronousSchedulerFeature
+  {
+  }
+
+  /**
+   * Tests that a serial executor keeps submission order on a shared pool, owns
+   * no thread, and that tasks are accounted for.
+   *
+   * @throws ExecutionException
+   *           N/A
+   * @throws InterruptedException
+   *           N/A
+   */
+  @Test
+  public void testSerialExecution() throws ExecutionException,
+                                    InterruptedException
+  {
+    final ClearControlExecutionService lExecutionService =
+                                                         ClearControlExecutionService.get();
+    lExecutionService.setEnabled(true);
+    try
+    {
+      final Owner lOwner = new Owner();
+      final ThreadPoolExecutor lThreadPoolExecutor =
+                                                   lOwner.initializeSerialExecutor();
+      assertEquals(0, lThreadPoolExecutor.getPoolSize());
+
+      final OwnerTaskStatistics lOwnerTaskStatistics =
+                                                     lExecutionService.getOwnerTaskStatistics(lOwner);
+
+      final List<Integer> lList =
+                                Collections.synchronizedList(new ArrayList<>());
+      for (int i = 0; i < 1000; i++)
+      {
+        final int j = i;
+        lOwner.executeAsynchronously(() -> lList.add(j));
+      }
+      lThreadPoolExecutor.execute(() -> {
+        throw new RuntimeException("expected failure");
+      });
+
+      assertTrue(lOwner.waitForCompletion(10, TimeUnit.SECONDS));
+      for (int i = 0; i < 1000; i++)
+        assertEquals(i, (int) lList.get(i));
+
+      ClearControlExecutors.release(lOwner);
+      assertTrue(lThreadPoolExecutor.isShutdown());
+      assertTrue(lThreadPoolExecutor.awaitTermination(1,
+                                                      TimeUnit.SECONDS));
+      assertFalse(lExecutionService.getOwnerTaskStatisticsMap()
+                                   .containsKey(lOwner));
+
+      assertEquals(1001, lOwnerTaskStatistics.getNumberOfSubmittedTasks());
+      assertEquals(1001, lOwnerTaskStatistics.getNumberOfCompletedTasks());
+      assertEquals(1, lOwnerTaskStatistics.getNumberOfFailedTasks());
+      assertEquals(0, lOwnerTaskStatistics.getNumberOfActiveTasks());
+    }
+    finally
+    {
+      lExecutionService.setEnabled(false);
+    }
+  }
+
+  /**
+   * Tests that releasing an owner cancels its periodic tasks.
+   *
+   * @throws InterruptedException
+   *           N/A
+   */
+  @Test
+  public void testPeriodicTasksAndRelease() throws InterruptedException
+  {
+    final ClearControlExecutionService lExecutionService =
+                                                         ClearControlExecutionService.get();
+    lExecutionService.setEnabled(true);
+    try
+    {
+      final Owner lOwner = new Owner();
+      final AtomicInteger lCounter = new AtomicInteger();
+      final WaitingScheduledFuture<?> lFuture =
+                                              lOwner.scheduleAtFixedRate(() -> lCounter.incrementAndGet(),
+                                                                         10,
+                                                                         TimeUnit.MILLISECONDS);
+      Thread.sleep(200);
+      assertTrue(lCounter.get() >= 10);
+      assertNotNull(ClearControlExecutors.getScheduledThreadPoolExecutor(lOwner));
+
+      ClearControlExecutors.release(lOwner);
+      assertTrue(lFuture.isCancelled());
+      final int lCount = lCounter.get();
+      Thread.sleep(50);
+      assertEquals(lCount, lCounter.get());
+    }
+    finally
+    {
+      lExecutionService.setEnabled(false);
+    }
+  }
+
+  /**
+   * Tests the accuracy of the hashed wheel timer
+   *
+   * @throws Exception
+   *           N/A
+   */
+  @Test
+  public void testHashedWheelTimer() throws Exception
+  {
+    final Executor lExecutor = (r) -> r.run();
+    try (HashedWheelTimer lHashedWheelTimer =
+                                            new HashedWheelTimer(1,
+                                                                 TimeUnit.MILLISECONDS,
+                                                                 16))
+    {
+      final long lStartTime = System.nanoTime();
+      final ScheduledFuture<Integer> lFuture =
+                                             lHashedWheelTimer.schedule(() -> 42,
+                                                                        50,
+                                                                        TimeUnit.MILLISECONDS,
+                                                                        lExecutor);
+      assertEquals(42, (int) lFuture.get());
+      final long lElapsedTime =
+                              TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+                                                            - lStartTime);
+      assertTrue(lElapsedTime >= 49 && lElapsedTime < 150);
+
+      final AtomicInteger lCounter = new AtomicInteger();
+      final ScheduledFuture<?> lPeriodicFuture =
+                                               lHashedWheelTimer.scheduleAtFixedRate(() -> lCounter.incrementAndGet(),
+                                                                                     0,
+                                                                                     5,
+                                                                                     TimeUnit.MILLISECONDS,
+                                                                                     lExecutor);
+      Thread.sleep(100);
+      lPeriodicFuture.cancel(false);
+      assertTrue(lCounter.get() >= 15 && lCounter.get() <= 22);
+    }
+  }
+
+}
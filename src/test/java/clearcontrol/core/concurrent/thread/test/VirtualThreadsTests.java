@@ -0,0 +1,79 @@
+package clearcontrol.core.concurrent.thread.test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import clearcontrol.core.concurrent.thread.VirtualThreads;
+
+import org.junit.Test;
+
+/**
+ * Virtual threads tests
+ *
+ * @author royer
+ */
+public class VirtualThreadsTests
+{
+
+  /**
+   * Tests that platform daemon threads are used on JVMs without virtual
+   * threads
+   * 
+   * @throws InterruptedException
+   *           NA
+   */
+  @Test
+  public void testFallbackToPlatformThreads() throws InterruptedException
+  {
+    assumeFalse(VirtualThreads.isSupported());
+
+    final Thread lThread =
+                         VirtualThreads.getThreadFactory("VirtualThreadsTests",
+                                                         Thread.MAX_PRIORITY)
+                                       .newThread(() -> {
+                                       });
+    assertFalse(VirtualThreads.isVirtual(lThread));
+    assertTrue(lThread.isDaemon());
+    assertTrue(lThread.getName().startsWith("VirtualThreadsTests"));
+
+    final AtomicReference<Thread> lTaskThread = new AtomicReference<>();
+    final CountDownLatch lCountDownLatch = new CountDownLatch(1);
+    VirtualThreads.getThreadPerTaskExecutor("VirtualThreadsTests",
+                                            Thread.NORM_PRIORITY)
+                  .execute(() -> {
+                    lTaskThread.set(Thread.currentThread());
+                    lCountDownLatch.countDown();
+                  });
+
+    assertTrue(lCountDownLatch.await(10, TimeUnit.SECONDS));
+    assertFalse(VirtualThreads.isVirtual(lTaskThread.get()));
+    assertTrue(lTaskThread.get().isDaemon());
+    assertTrue(lTaskThread.get()
+                          .getName()
+                          .startsWith("VirtualThreadsTests"));
+  }
+
+  /**
+   * Tests that virtual threads are used on JVMs that support them
+   */
+  @Test
+  public void testVirtualThreads()
+  {
+    if (!VirtualThreads.isSupported())
+      return;
+
+    final Thread lThread =
+                         VirtualThreads.getThreadFactory("VirtualThreadsTests",
+                                                         Thread.NORM_PRIORITY)
+                                       .newThread(() -> {
+                                       });
+    assertTrue(VirtualThreads.isVirtual(lThread));
+    assertTrue(lThread.getName().startsWith("VirtualThreadsTests"));
+  }
+
+}
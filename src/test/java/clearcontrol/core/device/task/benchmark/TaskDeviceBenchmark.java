@@ -0,0 +1,143 @@
+package clearcontrol.core.device.task.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import clearcontrol.core.concurrent.executors.ClearControlExecutionService;
+import clearcontrol.core.concurrent.executors.ClearControlExecutors;
+import clearcontrol.core.concurrent.thread.VirtualThreads;
+import clearcontrol.core.device.task.PeriodicLoopTaskDevice;
+
+/**
+ * Benchmarks the number of live threads and the wake-up latency of many
+ * simulated periodic loop task devices, with dedicated thread pools, with the
+ * shared execution service, and with virtual threads (if supported by the JVM).
+ *
+ * @author royer
+ */
+public class TaskDeviceBenchmark
+{
+  private static final int cNumberOfDevices = 200;
+  private static final double cLoopPeriodInMilliseconds = 10;
+  private static final long cRunDurationInMilliseconds = 3000;
+
+  private static class SimulatedDevice extends PeriodicLoopTaskDevice
+  {
+    private long mLastLoopTime = Long.MIN_VALUE;
+    private volatile long mNumberOfLoops;
+    private volatile long mTotalLatency;
+    private volatile long mMaxLatency;
+
+    public SimulatedDevice(int pIndex)
+    {
+      super("SimulatedDevice" + pIndex,
+            cLoopPeriodInMilliseconds,
+            TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean loop()
+    {
+      final long lNow = System.nanoTime();
+      if (mLastLoopTime != Long.MIN_VALUE)
+      {
+        // lateness of this wake-up with respect to the loop period:
+        final long lLatency =
+                            Math.max(0,
+                                     lNow - mLastLoopTime
+                                        - (long) (cLoopPeriodInMilliseconds
+                                                  * 1e6));
+        mTotalLatency += lLatency;
+        mMaxLatency = Math.max(mMaxLatency, lLatency);
+        mNumberOfLoops++;
+      }
+      mLastLoopTime = lNow;
+      return true;
+    }
+  }
+
+  /**
+   * Runs the benchmark for all available backends
+   *
+   * @param args
+   *          N/A
+   * @throws InterruptedException
+   *           N/A
+   */
+  public static void main(String[] args) throws InterruptedException
+  {
+    final ClearControlExecutionService lExecutionService =
+                                                         ClearControlExecutionService.get();
+
+    lExecutionService.setVirtualThreadsEnabled(false);
+    lExecutionService.setEnabled(false);
+    run("dedicated pools");
+
+    lExecutionService.setEnabled(true);
+    run("shared service");
+
+    if (VirtualThreads.isSupported())
+    {
+      lExecutionService.setVirtualThreadsEnabled(true);
+      run("virtual threads");
+    }
+    else
+      System.out.println("virtual threads: not supported by this JVM");
+
+    lExecutionService.setVirtualThreadsEnabled(false);
+    lExecutionService.setEnabled(false);
+  }
+
+  private static void run(String pBackendName) throws InterruptedException
+  {
+    final int lInitialThreadCount = ManagementFactory.getThreadMXBean()
+                                                     .getThreadCount();
+
+    final ArrayList<SimulatedDevice> lDeviceList = new ArrayList<>();
+    for (int i = 0; i < cNumberOfDevices; i++)
+    {
+      final SimulatedDevice lDevice = new SimulatedDevice(i);
+      lDevice.startTask();
+      lDeviceList.add(lDevice);
+    }
+
+    Thread.sleep(cRunDurationInMilliseconds);
+    final int lThreadCount = ManagementFactory.getThreadMXBean()
+                                              .getThreadCount()
+                             - lInitialThreadCount;
+
+    final long lStopStartTime = System.nanoTime();
+    for (SimulatedDevice lDevice : lDeviceList)
+      lDevice.stopTask();
+    for (SimulatedDevice lDevice : lDeviceList)
+      lDevice.waitForStopped(10, TimeUnit.SECONDS);
+    final double lStopTimeInMilliseconds = (System.nanoTime()
+                                            - lStopStartTime)
+                                           * 1e-6;
+
+    long lNumberOfLoops = 0, lTotalLatency = 0, lMaxLatency = 0;
+    int lNumberOfStarvedDevices = 0;
+    for (SimulatedDevice lDevice : lDeviceList)
+    {
+      lNumberOfLoops += lDevice.mNumberOfLoops;
+      lTotalLatency += lDevice.mTotalLatency;
+      lMaxLatency = Math.max(lMaxLatency, lDevice.mMaxLatency);
+      if (lDevice.mNumberOfLoops == 0)
+        lNumberOfStarvedDevices++;
+      ClearControlExecutors.release(lDevice);
+    }
+
+    System.out.format("%s: %d devices, %d additional threads, %d starved devices, average wake-up latency %.3f ms, max wake-up latency %.3f ms, all stopped in %.3f ms\n",
+                      pBackendName,
+                      cNumberOfDevices,
+                      lThreadCount,
+                      lNumberOfStarvedDevices,
+                      lNumberOfLoops == 0 ? 0
+                                          : lTotalLatency * 1e-6
+                                            / lNumberOfLoops,
+                      lMaxLatency * 1e-6,
+                      lStopTimeInMilliseconds);
+  }
+
+}
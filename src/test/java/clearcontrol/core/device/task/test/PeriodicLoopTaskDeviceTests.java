@@ -1,5 +1,6 @@
 package clearcontrol.core.device.task.test;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.util.concurrent.ExecutionException;
@@ -66,4 +67,50 @@ public class PeriodicLoopTaskDeviceTests
     assertTrue(lCounter >= mCounter);
   }
 
+  /**
+   * Tests that stopping a task parked until the end of a long period wakes it
+   * up right away
+   * 
+   * @throws ExecutionException
+   *           NA
+   */
+  @Test
+  public void testStopWakesParkedTask() throws ExecutionException
+  {
+    final PeriodicLoopTaskDevice lPeriodicLoopTaskDevice =
+                                                         new PeriodicLoopTaskDevice("TestDevice",
+                                                                                    60,
+                                                                                    TimeUnit.SECONDS)
+                                                         {
+                                                           @Override
+                                                           public boolean loop()
+                                                           {
+                                                             mCounter++;
+                                                             return true;
+                                                           }
+                                                         };
+
+    mCounter = 0;
+    lPeriodicLoopTaskDevice.getStartSignalVariable().set(true);
+    assertTrue(lPeriodicLoopTaskDevice.waitForStarted(1,
+                                                      TimeUnit.SECONDS));
+    while (mCounter == 0)
+      ThreadSleep.sleep(1, TimeUnit.MILLISECONDS);
+    // the task is now parked for the rest of its 60 second period:
+    ThreadSleep.sleep(100, TimeUnit.MILLISECONDS);
+
+    final long lStopTime = System.nanoTime();
+    lPeriodicLoopTaskDevice.stopTask();
+    assertTrue(lPeriodicLoopTaskDevice.waitForStopped(10,
+                                                      TimeUnit.SECONDS));
+    final long lStopDurationInMilliseconds =
+                                           TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+                                                                         - lStopTime);
+    System.out.println("stop duration: " + lStopDurationInMilliseconds
+                       + " ms");
+
+    assertTrue(lStopDurationInMilliseconds < 1000);
+    assertEquals(1, mCounter);
+  }
+
 }
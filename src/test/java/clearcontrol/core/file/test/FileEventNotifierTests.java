@@ -1,12 +1,19 @@
 package clearcontrol.core.file.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.io.File;
+import java.nio.file.Files;
 import java.util.Formatter;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import clearcontrol.core.concurrent.thread.ThreadSleep;
+import clearcontrol.core.configuration.MachineConfiguration;
 import clearcontrol.core.file.FileEventNotifier;
 import clearcontrol.core.file.FileEventNotifier.FileEventKind;
 import clearcontrol.core.file.FileEventNotifierListener;
@@ -90,4 +97,141 @@ public class FileEventNotifierTests
 
     lFileEventNotifier.close();
   }
+
+  /**
+   * Tests that bursts of modifications are merged, and that notifiers of files
+   * in the same folder only receive the events of their own file.
+   * 
+   * @throws Exception
+   *           N/A
+   */
+  @Test
+  public void testBurstsAndSharedFolders() throws Exception
+  {
+    final File lFolder = Files.createTempDirectory("FileEventNotifierTests")
+                              .toFile();
+    final File lBurstFile = new File(lFolder, "burst");
+    final File lQuietFile = new File(lFolder, "quiet");
+    lBurstFile.createNewFile();
+    lQuietFile.createNewFile();
+
+    final AtomicInteger lBurstEventCounter = new AtomicInteger();
+    final AtomicInteger lQuietEventCounter = new AtomicInteger();
+    final FileEventNotifier lBurstFileEventNotifier =
+                                                    new FileEventNotifier(lBurstFile);
+    final FileEventNotifier lQuietFileEventNotifier =
+                                                    new FileEventNotifier(lQuietFile);
+    lBurstFileEventNotifier.addFileEventListener((n, f, k) -> lBurstEventCounter.incrementAndGet());
+    lQuietFileEventNotifier.addFileEventListener((n, f, k) -> lQuietEventCounter.incrementAndGet());
+    lBurstFileEventNotifier.startMonitoring();
+    lQuietFileEventNotifier.startMonitoring();
+
+    try (Formatter lFormatter = new Formatter(lBurstFile))
+    {
+      for (int i = 0; i < 100; i++)
+      {
+        lFormatter.format("line %d\n", i);
+        lFormatter.flush();
+      }
+    }
+    ThreadSleep.sleep(2, TimeUnit.SECONDS);
+
+    assertTrue(lBurstEventCounter.get() >= 1);
+    assertTrue(lBurstEventCounter.get() <= 3);
+    assertEquals(0, lQuietEventCounter.get());
+
+    lBurstFileEventNotifier.close();
+    lQuietFileEventNotifier.close();
+    lBurstFile.delete();
+    lQuietFile.delete();
+    lFolder.delete();
+  }
+
+  /**
+   * Tests that folders configured to be polled are polled, and still deliver
+   * events.
+   * 
+   * @throws Exception
+   *           N/A
+   */
+  @Test
+  public void testPolledFolders() throws Exception
+  {
+    final File lFolder = Files.createTempDirectory("FileEventNotifierTests")
+                              .toFile();
+    final File lFile = new File(lFolder, "polled");
+
+    final Properties lProperties = MachineConfiguration.get()
+                                                       .getProperties();
+    lProperties.setProperty("file.watch.polling.folders",
+                            "/nonexistent," + lFolder.getAbsolutePath());
+    try
+    {
+      final AtomicInteger lEventCounter = new AtomicInteger();
+      final FileEventNotifier lFileEventNotifier =
+                                                 new FileEventNotifier(lFile);
+      lFileEventNotifier.addFileEventListener((n, f, k) -> lEventCounter.incrementAndGet());
+      assertTrue(lFileEventNotifier.startMonitoring());
+      assertFalse(lFileEventNotifier.isWatched());
+
+      lFile.createNewFile();
+      ThreadSleep.sleep(2, TimeUnit.SECONDS);
+      assertTrue(lEventCounter.get() >= 1);
+
+      lFileEventNotifier.close();
+    }
+    finally
+    {
+      lProperties.remove("file.watch.polling.folders");
+      lFile.delete();
+      lFolder.delete();
+    }
+  }
+
+  /**
+   * Tests that deleting a watched folder notifies the deletion of the file and
+   * that events are still delivered once the folder is created again.
+   * 
+   * @throws Exception
+   *           N/A
+   */
+  @Test
+  public void testDeletedWatchedFolder() throws Exception
+  {
+    final File lFolder = Files.createTempDirectory("FileEventNotifierTests")
+                              .toFile();
+    final File lFile = new File(lFolder, "watched");
+    lFile.createNewFile();
+
+    final CopyOnWriteArrayList<FileEventKind> lEventList =
+                                                         new CopyOnWriteArrayList<>();
+    final FileEventNotifier lFileEventNotifier =
+                                               new FileEventNotifier(lFile);
+    lFileEventNotifier.addFileEventListener((n, f, k) -> lEventList.add(k));
+    assertTrue(lFileEventNotifier.startMonitoring());
+    if (!lFileEventNotifier.isWatched())
+    {
+      // no native watch service on this machine:
+      lFileEventNotifier.close();
+      lFile.delete();
+      lFolder.delete();
+      return;
+    }
+
+    lFile.delete();
+    lFolder.delete();
+    ThreadSleep.sleep(2, TimeUnit.SECONDS);
+    assertTrue(lEventList.contains(FileEventKind.Deleted));
+    assertFalse(lFileEventNotifier.isWatched());
+
+    lEventList.clear();
+    lFolder.mkdirs();
+    lFile.createNewFile();
+    ThreadSleep.sleep(2, TimeUnit.SECONDS);
+    assertTrue(lEventList.contains(FileEventKind.Created));
+
+    lFileEventNotifier.close();
+    lFile.delete();
+    lFolder.delete();
+  }
 }
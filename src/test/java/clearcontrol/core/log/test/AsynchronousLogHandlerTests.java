@@ -0,0 +1,98 @@
+package clearcontrol.core.log.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import clearcontrol.core.log.AsynchronousLogHandler;
+
+import org.junit.Test;
+
+/**
+ * Asynchronous log handler tests
+ *
+ * @author royer
+ */
+public class AsynchronousLogHandlerTests
+{
+
+  private static class CountingHandler extends Handler
+  {
+    final AtomicInteger mCounter = new AtomicInteger();
+    final CountDownLatch mLatch;
+
+    CountingHandler(CountDownLatch pLatch)
+    {
+      mLatch = pLatch;
+    }
+
+    @Override
+    public void publish(LogRecord pRecord)
+    {
+      try
+      {
+        mLatch.await();
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+      mCounter.incrementAndGet();
+    }
+
+    @Override
+    public void flush()
+    {
+    }
+
+    @Override
+    public void close() throws SecurityException
+    {
+    }
+  }
+
+  /**
+   * Tests that publishing does not block when the delegate handler is stuck,
+   * and that records that do not fit are dropped and counted
+   * 
+   * @throws InterruptedException
+   *           NA
+   */
+  @Test
+  public void testDropsWhenFull() throws InterruptedException
+  {
+    final CountDownLatch lLatch = new CountDownLatch(1);
+    final CountingHandler lCountingHandler = new CountingHandler(lLatch);
+    final AsynchronousLogHandler lAsynchronousLogHandler =
+                                                         new AsynchronousLogHandler(lCountingHandler,
+                                                                                    10);
+
+    // first record is taken by the publishing thread that then blocks:
+    lAsynchronousLogHandler.publish(new LogRecord(Level.INFO, "first"));
+    while (lAsynchronousLogHandler.getNumberOfPendingRecords() > 0)
+      Thread.yield();
+
+    for (int i = 0; i < 100; i++)
+      lAsynchronousLogHandler.publish(new LogRecord(Level.INFO,
+                                                    "message " + i));
+    assertEquals(10, lAsynchronousLogHandler.getNumberOfPendingRecords());
+    assertEquals(90, lAsynchronousLogHandler.getNumberOfDroppedRecords());
+
+    lLatch.countDown();
+    lAsynchronousLogHandler.flush();
+    lAsynchronousLogHandler.close();
+
+    assertEquals(11,
+                 lAsynchronousLogHandler.getNumberOfPublishedRecords());
+    // published records plus the dropped records warning:
+    assertEquals(12, lCountingHandler.mCounter.get());
+    assertTrue(lAsynchronousLogHandler.getNumberOfPendingRecords() == 0);
+  }
+
+}
@@ -0,0 +1,86 @@
+package clearcontrol.core.math.argmax.fitprob.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import clearcontrol.core.math.argmax.fitprob.GaussianFitQualityEstimator;
+import clearcontrol.core.math.argmax.fitprob.NullHypothesisCache;
+
+import org.apache.commons.math3.distribution.NormalDistribution;
+import org.junit.Test;
+
+/**
+ * Null hypothesis cache tests
+ *
+ * @author royer
+ */
+public class NullHypothesisCacheTests
+{
+
+  /**
+   * Tests that entries written by one cache are read by another
+   * 
+   * @throws IOException
+   *           NA
+   */
+  @Test
+  public void testSharedFile() throws IOException
+  {
+    final File lFile = File.createTempFile("nullhypotheses", ".bin");
+    lFile.delete();
+    lFile.deleteOnExit();
+
+    final NullHypothesisCache lWritingCache =
+                                            new NullHypothesisCache(lFile);
+    final NullHypothesisCache lReadingCache =
+                                            new NullHypothesisCache(lFile);
+    assertNull(lReadingCache.get(16, 1000));
+
+    lWritingCache.put(16, 1000, new NormalDistribution(0.25, 0.0625));
+    lWritingCache.put(32, 1000, new NormalDistribution(0.5, 0.125));
+
+    assertEquals(0.25, lReadingCache.get(16, 1000).getMean(), 0);
+    assertEquals(0.125,
+                 lReadingCache.get(32, 1000).getStandardDeviation(),
+                 0);
+    assertNull(lReadingCache.get(32, 100));
+    assertEquals(8 + 2 * 24, lFile.length());
+
+    // the file is not held open or mapped after reading:
+    try (RandomAccessFile lRandomAccessFile =
+                                            new RandomAccessFile(lFile,
+                                                                 "rw"))
+    {
+      lRandomAccessFile.setLength(8);
+    }
+    assertTrue(lFile.delete());
+  }
+
+  /**
+   * Tests that distributions are not stored if not all randomized data fits
+   * could be run
+   */
+  @Test
+  public void testIncompleteDistributionIsNotStored()
+  {
+    final int lLength = 997;
+    final ExecutorService lExecutorService =
+                                           Executors.newSingleThreadExecutor();
+    lExecutorService.shutdown();
+
+    final GaussianFitQualityEstimator lFitQualityEstimator =
+                                                           new GaussianFitQualityEstimator(lExecutorService);
+    assertFalse(lFitQualityEstimator.precompute(lLength));
+    assertNull(new NullHypothesisCache(NullHypothesisCache.getDefaultFile()).get(lLength,
+                                                                                 100000));
+  }
+
+}
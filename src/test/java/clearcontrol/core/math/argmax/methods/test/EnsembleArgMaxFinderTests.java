@@ -0,0 +1,173 @@
+package clearcontrol.core.math.argmax.methods.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import clearcontrol.core.concurrent.thread.ThreadSleep;
+import clearcontrol.core.math.argmax.methods.EnsembleArgMaxFinder;
+import clearcontrol.core.math.argmax.methods.EnsembleArgMaxFinder.MethodStatistics;
+
+import org.junit.Test;
+
+/**
+ * Ensemble argmax finder tests
+ *
+ * @author royer
+ */
+public class EnsembleArgMaxFinderTests
+{
+  private static final double[] cX = new double[]
+  { 0, 1, 2, 3, 4 };
+  private static final double[] cY = new double[]
+  { 0, 1, 3, 1, 0 };
+
+  /**
+   * Tests that argmax finders missing the deadline are cancelled
+   */
+  @Test
+  public void testDeadline()
+  {
+    final EnsembleArgMaxFinder lEnsembleArgMaxFinder =
+                                                     new EnsembleArgMaxFinder();
+    lEnsembleArgMaxFinder.add("fast", (x, y) -> 2.0);
+    lEnsembleArgMaxFinder.add("failing", (x, y) -> null);
+    lEnsembleArgMaxFinder.add("slow", (x, y) -> {
+      ThreadSleep.sleep(10, TimeUnit.SECONDS);
+      return 100.0;
+    });
+    lEnsembleArgMaxFinder.setTimeOut(200, TimeUnit.MILLISECONDS);
+
+    final long lStartTime = System.nanoTime();
+    assertEquals(2.0, lEnsembleArgMaxFinder.argmax(cX, cY), 0);
+    assertTrue(System.nanoTime() - lStartTime < TimeUnit.SECONDS.toNanos(5));
+
+    final Map<String, MethodStatistics> lStatistics =
+                                                    lEnsembleArgMaxFinder.getMethodStatistics();
+    assertEquals(1, lStatistics.get("slow").getNumberOfCancellations());
+    assertEquals(1, lStatistics.get("failing").getNumberOfFailures());
+    assertEquals(1, lStatistics.get("fast").getNumberOfCalls());
+    assertEquals(0, lStatistics.get("fast").getNumberOfFailures());
+  }
+
+  /**
+   * Tests early exit once a quorum of argmax finders agree
+   */
+  @Test
+  public void testQuorum()
+  {
+    final EnsembleArgMaxFinder lEnsembleArgMaxFinder =
+                                                     new EnsembleArgMaxFinder();
+    lEnsembleArgMaxFinder.add("a", (x, y) -> 2.0);
+    lEnsembleArgMaxFinder.add("b", (x, y) -> 2.1);
+    lEnsembleArgMaxFinder.add("c", (x, y) -> 0.5);
+    lEnsembleArgMaxFinder.add("slow", (x, y) -> {
+      ThreadSleep.sleep(10, TimeUnit.SECONDS);
+      return 100.0;
+    });
+    lEnsembleArgMaxFinder.setTimeOut(10, TimeUnit.SECONDS);
+    lEnsembleArgMaxFinder.setQuorum(2, 0.2);
+
+    final long lStartTime = System.nanoTime();
+    assertEquals(2.05, lEnsembleArgMaxFinder.argmax(cX, cY), 1e-9);
+    assertTrue(System.nanoTime() - lStartTime < TimeUnit.SECONDS.toNanos(5));
+    assertEquals(1,
+                 lEnsembleArgMaxFinder.getMethodStatistics()
+                                      .get("slow")
+                                      .getNumberOfCancellations());
+  }
+
+  /**
+   * Tests that the deadline of an argmax finder starts when it starts, not
+   * when it is queued
+   */
+  @Test
+  public void testDeadlineStartsWithArgMaxFinder()
+  {
+    final ExecutorService lExecutorService =
+                                           Executors.newSingleThreadExecutor();
+    final EnsembleArgMaxFinder lEnsembleArgMaxFinder =
+                                                     new EnsembleArgMaxFinder();
+    lEnsembleArgMaxFinder.setExecutor(lExecutorService);
+    lEnsembleArgMaxFinder.add("a", (x, y) -> {
+      ThreadSleep.sleep(300, TimeUnit.MILLISECONDS);
+      return 1.0;
+    });
+    lEnsembleArgMaxFinder.add("b", (x, y) -> {
+      ThreadSleep.sleep(300, TimeUnit.MILLISECONDS);
+      return 3.0;
+    });
+    lEnsembleArgMaxFinder.setTimeOut(450, TimeUnit.MILLISECONDS);
+
+    // b runs after a and finishes after 600 ms, within its own deadline:
+    assertEquals(2.0, lEnsembleArgMaxFinder.argmax(cX, cY), 0);
+    final Map<String, MethodStatistics> lStatistics =
+                                                    lEnsembleArgMaxFinder.getMethodStatistics();
+    assertEquals(0, lStatistics.get("a").getNumberOfCancellations());
+    assertEquals(0, lStatistics.get("b").getNumberOfCancellations());
+
+    lExecutorService.shutdown();
+  }
+
+  /**
+   * Tests that an argmax finder still running after its deadline is not
+   * reused by the next computation
+   */
+  @Test
+  public void testRunningArgMaxFinderNotReused()
+  {
+    final AtomicInteger lNumberOfRunning = new AtomicInteger();
+    final AtomicInteger lMaxNumberOfRunning = new AtomicInteger();
+
+    final EnsembleArgMaxFinder lEnsembleArgMaxFinder =
+                                                     new EnsembleArgMaxFinder();
+    lEnsembleArgMaxFinder.add("fast", (x, y) -> 2.0);
+    lEnsembleArgMaxFinder.add("slow", (x, y) -> {
+      lMaxNumberOfRunning.accumulateAndGet(lNumberOfRunning.incrementAndGet(),
+                                           Math::max);
+      // does not respond to interruption, like most fits:
+      ThreadSleep.sleep(1, TimeUnit.SECONDS);
+      lNumberOfRunning.decrementAndGet();
+      return 100.0;
+    });
+    lEnsembleArgMaxFinder.setTimeOut(100, TimeUnit.MILLISECONDS);
+
+    assertEquals(2.0, lEnsembleArgMaxFinder.argmax(cX, cY), 0);
+    assertEquals(2.0, lEnsembleArgMaxFinder.argmax(cX, cY), 0);
+
+    final MethodStatistics lStatistics =
+                                       lEnsembleArgMaxFinder.getMethodStatistics()
+                                                            .get("slow");
+    assertEquals(1, lStatistics.getNumberOfCalls());
+    assertEquals(1, lStatistics.getNumberOfSkips());
+    assertEquals(1, lMaxNumberOfRunning.get());
+
+    // once finished, the argmax finder is used again:
+    ThreadSleep.sleep(1500, TimeUnit.MILLISECONDS);
+    assertEquals(2.0, lEnsembleArgMaxFinder.argmax(cX, cY), 0);
+    assertEquals(2, lStatistics.getNumberOfCalls());
+  }
+
+  /**
+   * Tests that no argmax is returned when no argmax finder succeeds
+   */
+  @Test
+  public void testNoArgMax()
+  {
+    final EnsembleArgMaxFinder lEnsembleArgMaxFinder =
+                                                     new EnsembleArgMaxFinder();
+    lEnsembleArgMaxFinder.add("failing", (x, y) -> null);
+    lEnsembleArgMaxFinder.add("throwing", (x, y) -> {
+      throw new IllegalStateException();
+    });
+
+    assertNull(lEnsembleArgMaxFinder.argmax(cX, cY));
+  }
+
+}
@@ -0,0 +1,117 @@
+package clearcontrol.core.variable.events.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import clearcontrol.core.variable.Variable;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Benchmarks the cost of variable set and sync against the fan-out and depth of
+ * the graph of synced variables.
+ *
+ * @author royer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventPropagatorBenchmark
+{
+  /**
+   * number of variables each variable sends updates to
+   */
+  @Param(
+  { "1", "8", "64" })
+  public int mFanOut;
+
+  /**
+   * length of the chains of variables
+   */
+  @Param(
+  { "1", "8", "64" })
+  public int mChainDepth;
+
+  private Variable<Double> mRootVariable;
+  private double mValue;
+
+  /**
+   * Builds a root variable sending updates to mFanOut chains of mChainDepth
+   * variables, each chain loops back to the root variable.
+   */
+  @Setup
+  public void setup()
+  {
+    mRootVariable = new Variable<Double>("root", 0.0);
+    for (int f = 0; f < mFanOut; f++)
+    {
+      Variable<Double> lPreviousVariable = mRootVariable;
+      for (int d = 0; d < mChainDepth; d++)
+      {
+        Variable<Double> lVariable = new Variable<Double>("v" + f
+                                                          + "_"
+                                                          + d,
+                                                          0.0);
+        lPreviousVariable.sendUpdatesTo(lVariable);
+        lPreviousVariable = lVariable;
+      }
+      lPreviousVariable.sendUpdatesTo(mRootVariable);
+    }
+  }
+
+  /**
+   * Sets the root variable, the update goes through the whole graph
+   *
+   * @return root variable value
+   */
+  @Benchmark
+  public Double set()
+  {
+    mRootVariable.set(mValue++);
+    return mRootVariable.get();
+  }
+
+  /**
+   * Syncs the root variable's targets
+   *
+   * @return root variable value
+   */
+  @Benchmark
+  public Double sync()
+  {
+    mRootVariable.sync(mValue++, true);
+    return mRootVariable.get();
+  }
+
+  /**
+   * Runs the benchmark
+   *
+   * @param args
+   *          NA
+   * @throws RunnerException
+   *           NA
+   */
+  public static void main(String[] args) throws RunnerException
+  {
+    Options lOptions =
+                     new OptionsBuilder().include(EventPropagatorBenchmark.class.getSimpleName())
+                                         .build();
+    new Runner(lOptions).run();
+  }
+}
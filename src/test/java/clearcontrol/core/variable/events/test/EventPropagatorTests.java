@@ -0,0 +1,169 @@
+package clearcontrol.core.variable.events.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Random;
+
+import clearcontrol.core.variable.events.EventPropagator;
+
+import org.junit.Test;
+
+/**
+ * Event propagator tests
+ *
+ * @author royer
+ */
+public class EventPropagatorTests
+{
+
+  /**
+   * Tests the event propagator against the previous list-based propagator,
+   * with frames used the way Variable.sync used to copy and restore the list,
+   * and enough objects to force the hash table to grow.
+   */
+  @Test
+  public void testDifferentialAgainstListBasedPropagator()
+  {
+    for (long lSeed = 0; lSeed < 20; lSeed++)
+    {
+      final Random lRandom = new Random(lSeed);
+      final Object[] lObjects = new Object[50 + lRandom.nextInt(200)];
+      for (int i = 0; i < lObjects.length; i++)
+        lObjects[i] = new Object();
+
+      // previous propagator, frames are copies of the list:
+      final ArrayList<Object> lList = new ArrayList<>();
+      final ArrayDeque<ArrayList<Object>> lListFrames = new ArrayDeque<>();
+      final ArrayDeque<Long> lFrames = new ArrayDeque<>();
+
+      EventPropagator.clear();
+      for (int lStep = 0; lStep < 20000; lStep++)
+      {
+        final int lOperation = lRandom.nextInt(100);
+        if (lOperation < 55)
+        {
+          final Object lObject =
+                               lObjects[lRandom.nextInt(lObjects.length)];
+          EventPropagator.add(lObject);
+          lList.add(lObject);
+        }
+        else if (lOperation < 60)
+        {
+          EventPropagator.clear();
+          lList.clear();
+        }
+        else if (lOperation < 70 && lListFrames.size() < 8)
+        {
+          lFrames.push(EventPropagator.beginFrame());
+          lListFrames.push(new ArrayList<>(lList));
+        }
+        else if (lOperation < 80 && !lFrames.isEmpty())
+        {
+          EventPropagator.restoreFrame(lFrames.peek());
+          lList.clear();
+          lList.addAll(lListFrames.peek());
+        }
+        else if (lOperation < 90 && !lFrames.isEmpty())
+        {
+          EventPropagator.endFrame(lFrames.pop());
+          lList.clear();
+          lList.addAll(lListFrames.pop());
+        }
+        else
+        {
+          final Object lObject =
+                               lObjects[lRandom.nextInt(lObjects.length)];
+          assertEquals(lList.contains(lObject),
+                       EventPropagator.hasBeenTraversed(lObject));
+        }
+
+        if (lStep % 100 == 0)
+          for (Object lObject : lObjects)
+            assertEquals(lList.contains(lObject),
+                         EventPropagator.hasBeenTraversed(lObject));
+      }
+
+      while (!lFrames.isEmpty())
+        EventPropagator.endFrame(lFrames.pop());
+    }
+    EventPropagator.clear();
+  }
+
+  /**
+   * Tests that frames restore the traversal state even if called code clears
+   * it, and that nested frames restore their own state
+   */
+  @Test
+  public void testFrames()
+  {
+    final Object a = new Object(), b = new Object(), c = new Object();
+
+    EventPropagator.clear();
+    EventPropagator.add(a);
+    final long lOuterFrame = EventPropagator.beginFrame();
+    EventPropagator.add(b);
+    final long lInnerFrame = EventPropagator.beginFrame();
+    EventPropagator.clear();
+    assertFalse(EventPropagator.hasBeenTraversed(a));
+    EventPropagator.add(c);
+    EventPropagator.add(a);
+    assertTrue(EventPropagator.hasBeenTraversed(a));
+
+    EventPropagator.restoreFrame(lInnerFrame);
+    assertTrue(EventPropagator.hasBeenTraversed(a));
+    assertTrue(EventPropagator.hasBeenTraversed(b));
+    assertFalse(EventPropagator.hasBeenTraversed(c));
+    EventPropagator.endFrame(lInnerFrame);
+
+    EventPropagator.endFrame(lOuterFrame);
+    assertTrue(EventPropagator.hasBeenTraversed(a));
+    assertFalse(EventPropagator.hasBeenTraversed(b));
+    assertEquals(1, EventPropagator.getListOfTraversedObjects().size());
+    EventPropagator.clear();
+  }
+
+  /**
+   * Tests that traversed objects are not retained once the propagator is
+   * cleared outside of any frame
+   *
+   * @throws InterruptedException
+   *           N/A
+   */
+  @Test
+  public void testNoRetentionAfterClear() throws InterruptedException
+  {
+    EventPropagator.clear();
+    final ArrayList<WeakReference<Object>> lReferenceList =
+                                                          new ArrayList<>();
+    for (int i = 0; i < 1000; i++)
+    {
+      final Object lObject = new Object();
+      lReferenceList.add(new WeakReference<>(lObject));
+      EventPropagator.add(lObject);
+    }
+    final long lFrame = EventPropagator.beginFrame();
+    EventPropagator.clear();
+    EventPropagator.endFrame(lFrame);
+    EventPropagator.clear();
+
+    for (int i = 0; i < 100; i++)
+    {
+      System.gc();
+      boolean lAllCollected = true;
+      for (WeakReference<Object> lReference : lReferenceList)
+        lAllCollected &= lReference.get() == null;
+      if (lAllCollected)
+        break;
+      Thread.sleep(10);
+    }
+    for (WeakReference<Object> lReference : lReferenceList)
+      assertNull(lReference.get());
+  }
+
+}
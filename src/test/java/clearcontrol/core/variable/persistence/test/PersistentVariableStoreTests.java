@@ -0,0 +1,333 @@
+package clearcontrol.core.variable.persistence.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import clearcontrol.core.concurrent.thread.ThreadSleep;
+import clearcontrol.core.variable.Variable;
+import clearcontrol.core.variable.persistence.PersistentVariableStore;
+import clearcontrol.core.variable.persistence.VariableAsFile;
+import clearcontrol.core.variable.persistence.VariableBundleAsFile;
+
+import org.junit.Test;
+
+/**
+ * Persistent variable store tests
+ *
+ * @author royer
+ */
+public class PersistentVariableStoreTests
+{
+
+  private static File createTempJournalFile() throws IOException
+  {
+    final File lTempFile =
+                         File.createTempFile("PersistentVariableStoreTests",
+                                             ".journal");
+    lTempFile.delete();
+    lTempFile.deleteOnExit();
+    return lTempFile;
+  }
+
+  /**
+   * Tests that values of all types survive a reopening of the store, and that
+   * rapid updates are coalesced.
+   *
+   * @throws IOException
+   *           N/A
+   * @throws InterruptedException
+   *           N/A
+   */
+  @Test
+  public void testCoalescingAndReopening() throws IOException,
+                                           InterruptedException
+  {
+    final File lJournalFile = createTempJournalFile();
+
+    final PersistentVariableStore lStore1 =
+                                          PersistentVariableStore.get(lJournalFile);
+    for (int i = 0; i <= 1000; i++)
+      lStore1.put("slider", (double) i);
+    lStore1.put("enabled", true);
+    lStore1.put("count", 42);
+    lStore1.put("name", "stage");
+    lStore1.put("nothing", null);
+    lStore1.put("array", new int[]
+    { 1, 2, 3 });
+    assertEquals(1000.0, lStore1.get("slider", 0.0), 0);
+
+    Thread.sleep(500);
+    // a thousand slider updates must not be written a thousand times:
+    assertTrue(lJournalFile.length() < 1000);
+    lStore1.close();
+
+    final PersistentVariableStore lStore2 =
+                                          PersistentVariableStore.get(lJournalFile);
+    assertEquals(1000.0, lStore2.get("slider", 0.0), 0);
+    assertTrue(lStore2.get("enabled", false));
+    assertEquals(42, (int) lStore2.get("count", 0));
+    assertEquals("stage", lStore2.get("name", ""));
+    assertTrue(lStore2.contains("nothing"));
+    assertNull(lStore2.get("nothing", "default"));
+    assertEquals(3, lStore2.<int[]> get("array", null)[2]);
+    assertFalse(lStore2.contains("missing"));
+    lStore2.close();
+  }
+
+  /**
+   * Tests that a torn record at the end of the journal is dropped, and that the
+   * journal is compacted.
+   *
+   * @throws IOException
+   *           N/A
+   */
+  @Test
+  public void testTornRecordAndCompaction() throws IOException
+  {
+    final File lJournalFile = createTempJournalFile();
+
+    final PersistentVariableStore lStore1 =
+                                          PersistentVariableStore.get(lJournalFile);
+    lStore1.put("x", 1.0);
+    lStore1.close();
+    final long lLength = lJournalFile.length();
+
+    try (FileOutputStream lFileOutputStream =
+                                            new FileOutputStream(lJournalFile,
+                                                                 true))
+    {
+      lFileOutputStream.write(new byte[]
+      { 0, 0, 0, 100, 1, 2, 3 });
+    }
+
+    final PersistentVariableStore lStore2 =
+                                          PersistentVariableStore.get(lJournalFile);
+    assertEquals(1.0, lStore2.get("x", 0.0), 0);
+    assertEquals(lLength, lJournalFile.length());
+
+    for (int i = 0; i < 10000; i++)
+    {
+      lStore2.put("y", (double) i);
+      lStore2.flush();
+    }
+    assertTrue(lJournalFile.length() < 1024 * lLength);
+    lStore2.close();
+
+    final PersistentVariableStore lStore3 =
+                                          PersistentVariableStore.get(lJournalFile);
+    assertEquals(1.0, lStore3.get("x", 0.0), 0);
+    assertEquals(9999.0, lStore3.get("y", 0.0), 0);
+    lStore3.close();
+  }
+
+  /**
+   * Tests variables and bundles delegating to a store
+   *
+   * @throws Exception
+   *           N/A
+   */
+  @Test
+  public void testDelegation() throws Exception
+  {
+    final File lJournalFile = createTempJournalFile();
+    final PersistentVariableStore lStore =
+                                         PersistentVariableStore.get(lJournalFile);
+
+    final VariableAsFile<String> lObjectVariable1 =
+                                                  new VariableAsFile<String>("x",
+                                                                             lStore,
+                                                                             "1");
+    lObjectVariable1.set("2");
+    final VariableAsFile<String> lObjectVariable2 =
+                                                  new VariableAsFile<String>("x",
+                                                                             lStore,
+                                                                             "1");
+    assertEquals("2", lObjectVariable2.get());
+
+    final Variable<Double> x1 = new Variable<Double>("x", 1.0);
+    final Variable<String> y1 = new Variable<String>("y", "1");
+    final VariableBundleAsFile lVariableBundleAsFile1 =
+                                                      new VariableBundleAsFile("bundle",
+                                                                               lStore);
+    lVariableBundleAsFile1.addVariable("path1.bla", x1);
+    lVariableBundleAsFile1.addVariable("path2.blu", y1);
+    x1.set(2.0);
+    y1.set("3");
+    lVariableBundleAsFile1.close();
+    lStore.close();
+
+    final Variable<Double> x2 = new Variable<Double>("x", 1.0);
+    final Variable<String> y2 = new Variable<String>("y", "1");
+    final VariableBundleAsFile lVariableBundleAsFile2 =
+                                                      new VariableBundleAsFile("bundle",
+                                                                               PersistentVariableStore.get(lJournalFile));
+    lVariableBundleAsFile2.addVariable("path1.bla", x2);
+    lVariableBundleAsFile2.addVariable("path2.blu", y2);
+    lVariableBundleAsFile2.read();
+
+    assertEquals(2.0, x2.get(), 0);
+    assertEquals("3", y2.get());
+    lVariableBundleAsFile2.close();
+    PersistentVariableStore.get(lJournalFile).close();
+  }
+
+  /**
+   * Tests that values read by a bundle from its store are not written back to
+   * the journal
+   *
+   * @throws IOException
+   *           N/A
+   */
+  @Test
+  public void testReadIsNotWrittenBack() throws IOException
+  {
+    final File lJournalFile = createTempJournalFile();
+    final PersistentVariableStore lStore =
+                                         PersistentVariableStore.get(lJournalFile);
+    lStore.put("bundle.z", new ArrayList<>(Arrays.asList(1, 2, 3)));
+    assertTrue(lStore.flush());
+    final long lLength = lJournalFile.length();
+
+    final Variable<Object> z = new Variable<Object>("z", null);
+    final VariableBundleAsFile lVariableBundleAsFile =
+                                                     new VariableBundleAsFile("bundle",
+                                                                              lStore);
+    lVariableBundleAsFile.addVariable(z);
+    assertTrue(lVariableBundleAsFile.read());
+    assertEquals(Arrays.asList(1, 2, 3), z.get());
+
+    assertTrue(lStore.flush());
+    assertEquals(lLength, lJournalFile.length());
+
+    // updates are still written:
+    z.set(new ArrayList<>(Arrays.asList(4)));
+    assertTrue(lStore.flush());
+    assertTrue(lJournalFile.length() > lLength);
+
+    lVariableBundleAsFile.close();
+    lStore.close();
+  }
+
+  /**
+   * Tests that records appended by another process are picked up
+   *
+   * @throws IOException
+   *           N/A
+   */
+  @Test
+  public void testExternalReload() throws IOException
+  {
+    final File lJournalFile = createTempJournalFile();
+    final File lOtherJournalFile = createTempJournalFile();
+
+    final PersistentVariableStore lStore =
+                                         PersistentVariableStore.get(lJournalFile);
+    lStore.put("x", 1.0);
+    lStore.flush();
+
+    // another process writes the same journal:
+    final PersistentVariableStore lOtherStore =
+                                              PersistentVariableStore.get(lOtherJournalFile);
+    lOtherStore.put("x", 2.0);
+    lOtherStore.put("y", "other");
+    lOtherStore.close();
+    final byte[] lRecords = Files.readAllBytes(lOtherJournalFile.toPath());
+    try (FileOutputStream lFileOutputStream =
+                                            new FileOutputStream(lJournalFile,
+                                                                 true))
+    {
+      lFileOutputStream.write(lRecords, 4, lRecords.length - 4);
+    }
+
+    for (int i = 0; i < 100 && lStore.get("x", 0.0) != 2.0; i++)
+      ThreadSleep.sleep(50, TimeUnit.MILLISECONDS);
+    assertEquals(2.0, lStore.get("x", 0.0), 0);
+    assertEquals("other", lStore.get("y", ""));
+
+    // updates are appended after the external records:
+    lStore.put("z", true);
+    lStore.close();
+    final PersistentVariableStore lReopenedStore =
+                                                 PersistentVariableStore.get(lJournalFile);
+    assertEquals(2.0, lReopenedStore.get("x", 0.0), 0);
+    assertTrue(lReopenedStore.get("z", false));
+    lReopenedStore.close();
+  }
+
+  /**
+   * Serializable value whose class is renamed in the journal
+   */
+  public static class SerializableMarker implements Serializable
+  {
+    private static final long serialVersionUID = 1L;
+  }
+
+  /**
+   * Tests that a value that cannot be deserialized is skipped without losing
+   * the following records, and survives compaction.
+   *
+   * @throws IOException
+   *           N/A
+   */
+  @Test
+  public void testUndecodableValue() throws IOException
+  {
+    final File lJournalFile = createTempJournalFile();
+
+    final PersistentVariableStore lStore1 =
+                                          PersistentVariableStore.get(lJournalFile);
+    lStore1.put("marker", new SerializableMarker());
+    lStore1.flush();
+    lStore1.put("x", 1.0);
+    lStore1.close();
+
+    // the marker's class is renamed, and the record's checksum updated:
+    final byte[] lJournal = Files.readAllBytes(lJournalFile.toPath());
+    final byte[] lClassName =
+                            "SerializableMarker".getBytes(StandardCharsets.US_ASCII);
+    final int lIndex = indexOf(lJournal, lClassName);
+    lJournal[lIndex + lClassName.length - 1] = 'X';
+    final ByteBuffer lByteBuffer = ByteBuffer.wrap(lJournal);
+    final int lRecordLength = lByteBuffer.getInt(4);
+    final CRC32 lCRC32 = new CRC32();
+    lCRC32.update(lJournal, 12, lRecordLength);
+    lByteBuffer.putInt(8, (int) lCRC32.getValue());
+    Files.write(lJournalFile.toPath(), lJournal);
+
+    final PersistentVariableStore lStore2 =
+                                          PersistentVariableStore.get(lJournalFile);
+    assertFalse(lStore2.contains("marker"));
+    assertEquals(1.0, lStore2.get("x", 0.0), 0);
+    assertEquals(lJournal.length, lJournalFile.length());
+
+    assertTrue(lStore2.compact());
+    assertTrue(indexOf(Files.readAllBytes(lJournalFile.toPath()),
+                       Arrays.copyOf(lClassName,
+                                     lClassName.length - 1)) >= 0);
+    lStore2.close();
+  }
+
+  private static int indexOf(byte[] pArray, byte[] pPattern)
+  {
+    for (int i = 0; i + pPattern.length <= pArray.length; i++)
+      if (Arrays.equals(Arrays.copyOfRange(pArray, i, i + pPattern.length),
+                        pPattern))
+        return i;
+    return -1;
+  }
+
+}
@@ -7,9 +7,13 @@ import java.util.concurrent.TimeUnit;
 import clearcontrol.devices.signalgen.devices.nirio.compiler.NIRIOCompiledScore;
 import clearcontrol.devices.signalgen.devices.nirio.compiler.NIRIOScoreCompiler;
 import clearcontrol.devices.signalgen.measure.Measure;
+import clearcontrol.devices.signalgen.measure.MeasureInterface;
 import clearcontrol.devices.signalgen.score.Score;
+import clearcontrol.devices.signalgen.staves.ConstantStave;
 import clearcontrol.devices.signalgen.staves.RampSteppingStave;
+import clearcontrol.devices.signalgen.staves.SinusStave;
 import clearcontrol.devices.signalgen.staves.TriggerStave;
+import coremem.buffers.ContiguousBuffer;
 
 import org.junit.Test;
 
@@ -139,4 +143,118 @@ public class NIRIOScoreCompilerTests
 
   }
 
+  @Test
+  public void testCompiledValues()
+  {
+    final Score lScore = new Score("Test Score");
+
+    final int lNumberOfMeasures = 20;
+    for (int m = 0; m < lNumberOfMeasures; m++)
+    {
+      final Measure lMeasure = new Measure("Test Measure " + m);
+      lMeasure.setStave(0, new SinusStave("sinus", 0.3f, 0.1f * m, 0.9f));
+      lMeasure.setStave(2, new ConstantStave("constant", 0.01f * m));
+      lMeasure.setDuration(100 + 50 * m, TimeUnit.MICROSECONDS);
+      lScore.addMeasure(lMeasure);
+    }
+
+    final NIRIOCompiledScore lNIRIOCompiledScore =
+                                                 new NIRIOCompiledScore();
+    NIRIOScoreCompiler.compile(lNIRIOCompiledScore, lScore);
+
+    assertEquals(lNumberOfMeasures,
+                 lNIRIOCompiledScore.getNumberOfMeasures());
+
+    // measures are laid out one after the other, staves are interleaved:
+    long lIndex = 0;
+    for (MeasureInterface lMeasure : lScore.getMeasures())
+    {
+      final long lNumberOfTimePoints =
+                                     NIRIOScoreCompiler.getNumberOfTimePoints(lMeasure);
+      final int lNumberOfStaves = lMeasure.getNumberOfStaves();
+      final float lInvNumberOfTimepoints = 1f / lNumberOfTimePoints;
+      for (int t = 0; t < lNumberOfTimePoints; t++)
+        for (int s = 0; s < lNumberOfStaves; s++)
+        {
+          final float lValue =
+                             lMeasure.getStave(s)
+                                     .getValue(t * lInvNumberOfTimepoints);
+          final short lExpected =
+                                (short) Math.round(Math.min(Math.max(lValue,
+                                                                     -1),
+                                                            1)
+                                                   * Short.MAX_VALUE);
+          assertEquals(lExpected,
+                       lNIRIOCompiledScore.getScoreBuffer()
+                                          .getContiguousMemory()
+                                          .getShortAligned(lIndex++));
+        }
+    }
+  }
+
+  @Test
+  public void testParallelMatchesSerialCompilation()
+  {
+    final Score lScore = new Score("Test Score");
+
+    final int lNumberOfMeasures = 37;
+    for (int m = 0; m < lNumberOfMeasures; m++)
+    {
+      final Measure lMeasure = new Measure("Test Measure " + m);
+      lMeasure.setStave(0, new SinusStave("sinus", 0.3f, 0.1f * m, 0.9f));
+      final TriggerStave lTriggerStave = new TriggerStave("trigger");
+      lTriggerStave.setStart(0.01f * m);
+      lTriggerStave.setStop(0.5f + 0.01f * m);
+      lMeasure.setStave(1, lTriggerStave);
+      final RampSteppingStave lRampSteppingStave =
+                                                 new RampSteppingStave("ramp");
+      lRampSteppingStave.setStartValue(-0.5f);
+      lRampSteppingStave.setStopValue(0.02f * m);
+      lMeasure.setStave(2, lRampSteppingStave);
+      lMeasure.setStave(3, new ConstantStave("constant", 0.01f * m));
+      lMeasure.setDuration(100 + 173 * m, TimeUnit.MICROSECONDS);
+      lScore.addMeasure(lMeasure);
+    }
+
+    final NIRIOCompiledScore lSerialCompiledScore =
+                                                  new NIRIOCompiledScore();
+    NIRIOScoreCompiler.compile(lSerialCompiledScore, lScore, false);
+
+    final NIRIOCompiledScore lParallelCompiledScore =
+                                                    new NIRIOCompiledScore();
+    NIRIOScoreCompiler.compile(lParallelCompiledScore, lScore, true);
+
+    // only the written regions are compared since buffers are not cleared:
+    long lScoreLengthInBytes = 0;
+    for (MeasureInterface lMeasure : lScore.getMeasures())
+      lScoreLengthInBytes += 2
+                             * NIRIOScoreCompiler.getNumberOfTimePoints(lMeasure)
+                             * lMeasure.getNumberOfStaves();
+
+    assertEquals(lSerialCompiledScore.getNumberOfMeasures(),
+                 lParallelCompiledScore.getNumberOfMeasures());
+    assertBuffersEqual(lSerialCompiledScore.getDeltaTimeBuffer(),
+                       lParallelCompiledScore.getDeltaTimeBuffer(),
+                       4 * lNumberOfMeasures);
+    assertBuffersEqual(lSerialCompiledScore.getSyncBuffer(),
+                       lParallelCompiledScore.getSyncBuffer(),
+                       4 * lNumberOfMeasures);
+    assertBuffersEqual(lSerialCompiledScore.getNumberOfTimePointsBuffer(),
+                       lParallelCompiledScore.getNumberOfTimePointsBuffer(),
+                       4 * lNumberOfMeasures);
+    assertBuffersEqual(lSerialCompiledScore.getScoreBuffer(),
+                       lParallelCompiledScore.getScoreBuffer(),
+                       lScoreLengthInBytes);
+  }
+
+  private static void assertBuffersEqual(ContiguousBuffer pExpected,
+                                         ContiguousBuffer pActual,
+                                         long pLengthInBytes)
+  {
+    for (long i = 0; i < pLengthInBytes; i++)
+      assertEquals("at byte " + i,
+                   pExpected.getContiguousMemory().getByte(i),
+                   pActual.getContiguousMemory().getByte(i));
+  }
+
 }
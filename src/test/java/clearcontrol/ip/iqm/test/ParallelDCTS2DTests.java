@@ -0,0 +1,102 @@
+package clearcontrol.ip.iqm.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import clearcontrol.ip.iqm.DCTS2D;
+import clearcontrol.ip.iqm.ParallelDCTS2D;
+import clearcontrol.stack.OffHeapPlanarStack;
+
+import org.junit.Test;
+
+/**
+ * Parallel DCTS 2D tests
+ *
+ * @author royer
+ */
+public class ParallelDCTS2DTests
+{
+
+  /**
+   * Tests that the parallel computation matches DCTS2D on every plane of a
+   * multi-plane stack, in double and float precision, and with central crop.
+   */
+  @Test
+  public void testAgainstDCTS2D()
+  {
+    final int lWidth = 64, lHeight = 48, lDepth = 5;
+    final OffHeapPlanarStack lStack =
+                                    OffHeapPlanarStack.createStack(lWidth,
+                                                                   lHeight,
+                                                                   lDepth);
+    final short[][] lPlanes = new short[lDepth][];
+    final Random lRandom = new Random(1);
+    for (int z = 0; z < lDepth; z++)
+    {
+      lPlanes[z] = new short[lWidth * lHeight];
+      for (int y = 0; y < lHeight; y++)
+        for (int x = 0; x < lWidth; x++)
+          lPlanes[z][y * lWidth + x] =
+                                     (short) (30000 + 20000
+                                                      * Math.sin(x * 0.3
+                                                                 + y * 0.2
+                                                                 + z)
+                                              + lRandom.nextInt(100 + 500
+                                                                      * z));
+      lStack.getContiguousMemory(z).copyFrom(lPlanes[z]);
+    }
+
+    final double[] lExpected = new DCTS2D().computeImageQualityMetric(lStack);
+
+    final ParallelDCTS2D lParallelDCTS2D = new ParallelDCTS2D();
+    assertAllEquals(lExpected,
+                    lParallelDCTS2D.computeImageQualityMetric(lStack),
+                    1e-9);
+
+    lParallelDCTS2D.setFloatPrecision(true);
+    assertAllEquals(lExpected,
+                    lParallelDCTS2D.computeImageQualityMetric(lStack),
+                    1e-3);
+
+    final int lCropWidth = 32, lCropHeight = 16;
+    final OffHeapPlanarStack lCropStack =
+                                        OffHeapPlanarStack.createStack(lCropWidth,
+                                                                       lCropHeight,
+                                                                       lDepth);
+    for (int z = 0; z < lDepth; z++)
+    {
+      final short[] lCrop = new short[lCropWidth * lCropHeight];
+      for (int y = 0; y < lCropHeight; y++)
+        System.arraycopy(lPlanes[z],
+                         (16 + y) * lWidth + 16,
+                         lCrop,
+                         y * lCropWidth,
+                         lCropWidth);
+      lCropStack.getContiguousMemory(z).copyFrom(lCrop);
+    }
+    final double[] lExpectedCrop =
+                                 new DCTS2D().computeImageQualityMetric(lCropStack);
+
+    lParallelDCTS2D.setFloatPrecision(false);
+    lParallelDCTS2D.setCentralCrop(lCropWidth, lCropHeight);
+    assertAllEquals(lExpectedCrop,
+                    lParallelDCTS2D.computeImageQualityMetric(lStack),
+                    1e-9);
+
+    lStack.free();
+    lCropStack.free();
+  }
+
+  private static void assertAllEquals(double[] pExpected,
+                                      double[] pActual,
+                                      double pRelativeTolerance)
+  {
+    assertEquals(pExpected.length, pActual.length);
+    for (int z = 0; z < pExpected.length; z++)
+      assertEquals(pExpected[z],
+                   pActual[z],
+                   pRelativeTolerance * Math.abs(pExpected[z]));
+  }
+
+}
@@ -0,0 +1,76 @@
+package clearcontrol.microscope.timelapse.timer.adaptive.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import clearcontrol.microscope.timelapse.timer.adaptive.AdaptiveAcquisitionTimer;
+import clearcontrol.microscope.timelapse.timer.adaptive.AdaptiveAcquisitionTimer.PacingDecision;
+
+import org.junit.Test;
+
+/**
+ * Adaptive acquisition timer tests
+ *
+ * @author royer
+ */
+public class AdaptiveAcquisitionTimerTests
+{
+
+  private volatile double mBacklog;
+
+  /**
+   * Tests that the interval shrinks towards the time point duration while
+   * backlogs are low, and stretches within bounds when they are high.
+   */
+  @Test
+  public void testPacing()
+  {
+    final AdaptiveAcquisitionTimer lTimer =
+                                          new AdaptiveAcquisitionTimer(1,
+                                                                       TimeUnit.SECONDS);
+    lTimer.getMaxAcquisitionIntervalVariable().set(2L);
+    lTimer.addSinkBacklogSource(() -> mBacklog);
+    assertEquals(1000, lTimer.getAcquisitionInterval(TimeUnit.MILLISECONDS));
+
+    // time points take 100 ms and nothing backs up:
+    mBacklog = 0;
+    for (int i = 0; i < 50; i++)
+      assertEquals(PacingDecision.Shrink,
+                   lTimer.updatePacing(TimeUnit.MILLISECONDS.toNanos(100)));
+    assertEquals(110,
+                 lTimer.getAcquisitionInterval(TimeUnit.MILLISECONDS),
+                 2);
+    assertEquals(0.11,
+                 lTimer.getPacedAcquisitionIntervalInSecondsVariable()
+                       .get(),
+                 0.002);
+
+    // saving cannot keep up:
+    mBacklog = 0.9;
+    for (int i = 0; i < 50; i++)
+      assertEquals(PacingDecision.Stretch,
+                   lTimer.updatePacing(TimeUnit.MILLISECONDS.toNanos(100)));
+    assertEquals(2000, lTimer.getAcquisitionInterval(TimeUnit.MILLISECONDS));
+    assertEquals(0.9, lTimer.getSinkBacklogVariable().get(), 0);
+
+    // the backlog builds up, but stays below the high watermark:
+    mBacklog = 0.5;
+    assertEquals(PacingDecision.Shrink,
+                 lTimer.updatePacing(TimeUnit.MILLISECONDS.toNanos(100)));
+    assertEquals(PacingDecision.Hold,
+                 lTimer.updatePacing(TimeUnit.MILLISECONDS.toNanos(100)));
+
+    // without pacing, the acquisition interval is used:
+    lTimer.getAdaptivePacingVariable().set(false);
+    assertEquals(1000, lTimer.getAcquisitionInterval(TimeUnit.MILLISECONDS));
+
+    // changing the acquisition interval restarts pacing from it:
+    lTimer.getAdaptivePacingVariable().set(true);
+    lTimer.getMinAcquisitionIntervalVariable().set(1L);
+    lTimer.setAcquisitionInterval(500, TimeUnit.MILLISECONDS);
+    assertTrue(lTimer.getAcquisitionInterval(TimeUnit.MILLISECONDS) >= 1000);
+  }
+
+}
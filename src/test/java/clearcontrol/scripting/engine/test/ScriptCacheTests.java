@@ -0,0 +1,96 @@
+package clearcontrol.scripting.engine.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+
+import clearcontrol.scripting.engine.ScriptingPreprocessor;
+import clearcontrol.scripting.lang.groovy.GroovyUtils;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+/**
+ * Script cache tests
+ *
+ * @author royer
+ */
+public class ScriptCacheTests
+{
+
+  /**
+   * Tests that preprocessed scripts are reused until an included file changes
+   * 
+   * @throws IOException
+   *           NA
+   */
+  @Test
+  public void testPreprocessorCache() throws IOException
+  {
+    final File lIncludedFile = File.createTempFile("included", ".groovy");
+    lIncludedFile.deleteOnExit();
+    FileUtils.writeStringToFile(lIncludedFile, "a = 1\n");
+
+    final String lScript = "//include " + lIncludedFile.getAbsolutePath()
+                           + "\nb = 2\n";
+
+    final String lProcessed1 =
+                             ScriptingPreprocessor.process(ScriptCacheTests.class,
+                                                           "",
+                                                           lScript);
+    final String lProcessed2 =
+                             ScriptingPreprocessor.process(ScriptCacheTests.class,
+                                                           "",
+                                                           lScript);
+    assertTrue(lProcessed1.contains("a = 1"));
+    assertSame(lProcessed1, lProcessed2);
+
+    FileUtils.writeStringToFile(lIncludedFile, "a = 3\n");
+    lIncludedFile.setLastModified(lIncludedFile.lastModified()
+                                  + 10000);
+    final String lProcessed3 =
+                             ScriptingPreprocessor.process(ScriptCacheTests.class,
+                                                           "",
+                                                           lScript);
+    assertTrue(lProcessed3.contains("a = 3"));
+  }
+
+  /**
+   * Tests that compiled scripts are reused
+   * 
+   * @throws IOException
+   *           NA
+   */
+  @Test
+  public void testCompiledScriptCache() throws IOException
+  {
+    GroovyUtils.clearCompiledScriptCache();
+
+    for (int i = 0; i < 10; i++)
+    {
+      final HashMap<String, Object> lMap = new HashMap<>();
+      lMap.put("x", i);
+      assertEquals(2 * i,
+                   GroovyUtils.runScript("CacheTest",
+                                         "return 2*x",
+                                         lMap,
+                                         null,
+                                         false));
+    }
+    assertEquals(1, GroovyUtils.getNumberOfCompiledScripts());
+
+    final HashMap<String, Object> lMap = new HashMap<>();
+    lMap.put("x", 1);
+    GroovyUtils.runScript("CacheTest",
+                          "return 3*x",
+                          lMap,
+                          null,
+                          false);
+    assertEquals(2, GroovyUtils.getNumberOfCompiledScripts());
+  }
+
+}
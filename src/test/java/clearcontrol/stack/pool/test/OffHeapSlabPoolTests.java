@@ -0,0 +1,94 @@
+package clearcontrol.stack.pool.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.TimeUnit;
+
+import clearcontrol.stack.pool.OffHeapSlabPool;
+import coremem.ContiguousMemoryInterface;
+
+import org.junit.Test;
+
+/**
+ * Off-heap slab pool tests
+ *
+ * @author royer
+ */
+public class OffHeapSlabPoolTests
+{
+
+  /**
+   * Tests size classes
+   */
+  @Test
+  public void testSizeClasses()
+  {
+    assertEquals(64 * 1024, OffHeapSlabPool.getSizeClass(1));
+    assertEquals(1024 * 1024,
+                 OffHeapSlabPool.getSizeClass(1024 * 1024));
+    assertEquals(1536 * 1024,
+                 OffHeapSlabPool.getSizeClass(1024 * 1024 + 1));
+    assertEquals(2048 * 1024,
+                 OffHeapSlabPool.getSizeClass(1536 * 1024 + 1));
+  }
+
+  /**
+   * Tests reuse of idle slabs and budget enforcement
+   */
+  @Test
+  public void testReuseAndBudget()
+  {
+    final long lSlabSize = 1024 * 1024;
+    final OffHeapSlabPool lPool = new OffHeapSlabPool(2 * lSlabSize);
+    final Object lOwner = new Object();
+
+    ContiguousMemoryInterface lSlab1 =
+                                     lPool.acquire(lOwner,
+                                                   lSlabSize,
+                                                   0,
+                                                   0,
+                                                   TimeUnit.MILLISECONDS);
+    ContiguousMemoryInterface lSlab2 =
+                                     lPool.acquire(lOwner,
+                                                   lSlabSize,
+                                                   0,
+                                                   0,
+                                                   TimeUnit.MILLISECONDS);
+    assertNotNull(lSlab1);
+    assertNotNull(lSlab2);
+
+    // budget exhausted:
+    assertNull(lPool.acquire(lOwner,
+                             lSlabSize,
+                             0,
+                             10,
+                             TimeUnit.MILLISECONDS));
+
+    // released slabs are reused:
+    lPool.release(lOwner, lSlab1);
+    assertEquals(1, lPool.getNumberOfIdleSlabs(lOwner));
+    assertSame(lSlab1,
+               lPool.acquire(lOwner,
+                             lSlabSize / 2 + 1,
+                             0,
+                             0,
+                             TimeUnit.MILLISECONDS));
+
+    // idle slabs are evicted to make room for other size classes:
+    lPool.release(lOwner, lSlab1);
+    assertNotNull(lPool.acquire(lOwner,
+                                lSlabSize / 4,
+                                0,
+                                0,
+                                TimeUnit.MILLISECONDS));
+    assertEquals(0, lPool.getNumberOfIdleSlabs(null));
+
+    lPool.release(lOwner, lSlab2);
+    lPool.evictAllIdleSlabs();
+    assertEquals(0, lPool.getIdleBytes());
+  }
+
+}
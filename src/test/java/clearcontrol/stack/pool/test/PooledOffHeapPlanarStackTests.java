@@ -0,0 +1,108 @@
+package clearcontrol.stack.pool.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackRequest;
+import clearcontrol.stack.pool.OffHeapSlabPool;
+import clearcontrol.stack.pool.PooledOffHeapPlanarStack;
+import clearcontrol.stack.pool.PooledOffHeapPlanarStackFactory;
+import coremem.recycling.BasicRecycler;
+
+import org.junit.Test;
+
+/**
+ * Pooled off-heap planar stack tests
+ *
+ * @author royer
+ */
+public class PooledOffHeapPlanarStackTests
+{
+
+  /**
+   * Tests that stacks of two owners sharing a pool never view the same memory
+   * while they are recycled, and that stacks waiting in their recycler give
+   * their slab back to the pool.
+   */
+  @Test
+  public void testRecyclingAcrossOwners()
+  {
+    final OffHeapSlabPool lPool = new OffHeapSlabPool(Long.MAX_VALUE);
+    final PooledOffHeapPlanarStackFactory lFactory1 =
+                                                    new PooledOffHeapPlanarStackFactory(lPool,
+                                                                                        0,
+                                                                                        TimeUnit.MILLISECONDS);
+    final PooledOffHeapPlanarStackFactory lFactory2 =
+                                                    new PooledOffHeapPlanarStackFactory(lPool,
+                                                                                        0,
+                                                                                        TimeUnit.MILLISECONDS);
+    final BasicRecycler<StackInterface, StackRequest> lRecycler1 =
+                                                                 new BasicRecycler<>(lFactory1,
+                                                                                     4);
+    final BasicRecycler<StackInterface, StackRequest> lRecycler2 =
+                                                                 new BasicRecycler<>(lFactory2,
+                                                                                     4);
+    final StackRequest lStackRequest = StackRequest.build(64, 64, 8);
+
+    // the first owner's stack goes back to its recycler, and its slab to the
+    // pool:
+    final PooledOffHeapPlanarStack lStack1 =
+                                           lFactory1.create(lStackRequest);
+    assertNotNull(lStack1);
+    lStack1.setRecycler(lRecycler1);
+    final long lAddress1 = lStack1.getContiguousMemory().getAddress();
+    lStack1.release();
+    assertEquals(0, lFactory1.getNumberOfHeldSlabs());
+    assertEquals(1, lFactory1.getNumberOfIdleSlabs());
+
+    // the second owner can reuse that slab:
+    final PooledOffHeapPlanarStack lStack2 =
+                                           lFactory2.create(lStackRequest);
+    assertNotNull(lStack2);
+    lStack2.setRecycler(lRecycler2);
+    assertEquals(lAddress1, lStack2.getContiguousMemory().getAddress());
+
+    // the first owner's recycler hands its stack out again, same size, on
+    // another slab:
+    assertTrue(lStack1.isCompatible(lStackRequest));
+    assertEquals(1, lFactory1.getNumberOfHeldSlabs());
+    lStack1.recycle(lStackRequest);
+    assertNotEquals(lStack1.getContiguousMemory().getAddress(),
+                    lStack2.getContiguousMemory().getAddress());
+
+    // and with another size:
+    final StackRequest lSmallerStackRequest = StackRequest.build(64,
+                                                                 64,
+                                                                 7);
+    assertTrue(lStack1.isCompatible(lSmallerStackRequest));
+    lStack1.recycle(lSmallerStackRequest);
+    assertEquals(7, lStack1.getDepth());
+    assertNotEquals(lStack1.getContiguousMemory().getAddress(),
+                    lStack2.getContiguousMemory().getAddress());
+
+    // a stack takes its own slab back if it is still idle:
+    lStack2.release();
+    assertEquals(0, lFactory2.getNumberOfHeldSlabs());
+    assertTrue(lStack2.isCompatible(lStackRequest));
+    lStack2.recycle(lStackRequest);
+    assertEquals(1, lFactory2.getNumberOfHeldSlabs());
+    assertEquals(lAddress1, lStack2.getContiguousMemory().getAddress());
+
+    // eviction from the recycler gives the slab back:
+    lStack1.free();
+    assertTrue(lStack1.isFree());
+    assertFalse(lStack1.isCompatible(lStackRequest));
+    assertEquals(0, lFactory1.getNumberOfHeldSlabs());
+    assertEquals(1, lFactory1.getNumberOfIdleSlabs());
+
+    lStack2.free();
+    lPool.evictAllIdleSlabs();
+    assertEquals(0, lPool.getAllocatedBytes());
+  }
+}
@@ -0,0 +1,110 @@
+package clearcontrol.stack.processor.projection.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import clearcontrol.stack.processor.projection.ProjectionStackProcessor;
+import clearcontrol.stack.processor.projection.StackProjections;
+
+import org.junit.Test;
+
+/**
+ * Stack projections tests
+ *
+ * @author royer
+ */
+public class StackProjectionsTests
+{
+
+  /**
+   * Tests projections and histogram accumulated in stripes
+   */
+  @Test
+  public void testStripedAccumulation()
+  {
+    final int lWidth = 4, lHeight = 3, lDepth = 5;
+    final StackProjections lProjections =
+                                        new StackProjections(lWidth,
+                                                             lHeight);
+    final int[] lHistogram0 = StackProjections.newHistogram();
+    final int[] lHistogram1 = StackProjections.newHistogram();
+
+    for (int z = 0; z < lDepth; z++)
+    {
+      final short[] lPlane = new short[lWidth * lHeight];
+      for (int i = 0; i < lPlane.length; i++)
+        lPlane[i] = (short) (z == 2 && i == 7 ? 60000 : i + z);
+
+      final short[] lStripe0 = new short[lWidth];
+      final short[] lStripe1 = new short[2 * lWidth];
+      System.arraycopy(lPlane, 0, lStripe0, 0, lStripe0.length);
+      System.arraycopy(lPlane, lWidth, lStripe1, 0, lStripe1.length);
+      lProjections.accumulate(lStripe0, 0, lStripe0.length, lHistogram0);
+      lProjections.accumulate(lStripe1,
+                              lWidth,
+                              lStripe1.length,
+                              lHistogram1);
+      lProjections.endPlane(lHistogram0, lHistogram1);
+    }
+
+    assertEquals(lDepth, lProjections.getNumberOfPlanes());
+    assertEquals(4, lProjections.getMaxProjection()[0]);
+    assertEquals(60000, lProjections.getMaxProjection()[7]);
+    assertEquals(0 + 1 + 2 + 3 + 4, lProjections.getSumProjection()[0]);
+
+    final float[] lMean = new float[lWidth * lHeight];
+    lProjections.getMeanProjection(lMean);
+    assertEquals(2, lMean[0], 0);
+    assertEquals(11 + 2, lMean[11], 0);
+
+    assertEquals(0, lProjections.getPercentile(0));
+    assertEquals(60000, lProjections.getPercentile(1));
+    assertEquals(1, lProjections.getHistogram()[60000]);
+    assertEquals(0, lHistogram0[0]);
+
+    // cleared projections are reused for a stack of another index:
+    lProjections.setStackIndex(3);
+    assertEquals(3, lProjections.getStackIndex());
+    lProjections.clear();
+    assertEquals(-1, lProjections.getStackIndex());
+    assertEquals(0, lProjections.getNumberOfPlanes());
+  }
+
+  /**
+   * Tests that published projections are reused only once no consumer holds
+   * them anymore
+   */
+  @Test
+  public void testProjectionsReusedOnlyOnceReleased()
+  {
+    final ProjectionStackProcessor lProcessor =
+                                              new ProjectionStackProcessor("test");
+
+    lProcessor.beginStack(4, 3, 0);
+    final StackProjections lProjections0 = lProcessor.endStack();
+    assertTrue(lProjections0.acquire());
+
+    lProcessor.beginStack(4, 3, 1);
+    final StackProjections lProjections1 = lProcessor.endStack();
+    assertNotSame(lProjections0, lProjections1);
+
+    // no longer published, but still held by the consumer:
+    lProcessor.beginStack(4, 3, 2);
+    final StackProjections lProjections2 = lProcessor.endStack();
+    assertNotSame(lProjections0, lProjections2);
+    assertEquals(0, lProjections0.getStackIndex());
+
+    lProjections0.release();
+    assertFalse(lProjections0.acquire());
+    lProcessor.beginStack(4, 3, 3);
+    final StackProjections lProjections3 = lProcessor.endStack();
+    assertSame(lProjections0, lProjections3);
+    assertEquals(3, lProjections3.getStackIndex());
+    assertSame(lProjections3,
+               lProcessor.getProjectionsVariable().get());
+  }
+
+}
@@ -0,0 +1,415 @@
+package clearcontrol.stack.processor.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import clearcontrol.core.concurrent.thread.ThreadSleep;
+import clearcontrol.microscope.stacks.StackRecyclerManager;
+import clearcontrol.stack.ContiguousOffHeapPlanarStackFactory;
+import clearcontrol.stack.EmptyStack;
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackRequest;
+import clearcontrol.stack.processor.StackProcessingStage;
+import clearcontrol.stack.processor.StackProcessorInterface;
+import clearcontrol.stack.processor.StagedStackProcessorPipeline;
+import coremem.recycling.BasicRecycler;
+import coremem.recycling.RecyclerInterface;
+
+import org.junit.Test;
+
+/**
+ * Staged pipeline tests
+ *
+ * @author royer
+ */
+public class StagedStackProcessorPipelineTests
+{
+
+  private static class IncrementingStackProcessor implements
+                                                  StackProcessorInterface
+  {
+    private final int mSleepTimeInMilliseconds;
+
+    public IncrementingStackProcessor(int pSleepTimeInMilliseconds)
+    {
+      mSleepTimeInMilliseconds = pSleepTimeInMilliseconds;
+    }
+
+    @Override
+    public void setActive(boolean pIsActive)
+    {
+    }
+
+    @Override
+    public boolean isActive()
+    {
+      return true;
+    }
+
+    @Override
+    public boolean isThreadSafe()
+    {
+      return true;
+    }
+
+    @Override
+    public StackInterface process(StackInterface pStack,
+                                  RecyclerInterface<StackInterface, StackRequest> pStackRecycler)
+    {
+      // random sleeps so that workers of a stage finish out of order:
+      ThreadSleep.sleep((long) (Math.random()
+                                * mSleepTimeInMilliseconds),
+                        TimeUnit.MILLISECONDS);
+      pStack.getContiguousMemory()
+            .setByteAligned(1,
+                            (byte) (pStack.getContiguousMemory()
+                                          .getByteAligned(1)
+                                    + 1));
+      return pStack;
+    }
+  }
+
+  private static class PassThroughStackProcessor implements
+                                                StackProcessorInterface
+  {
+    @Override
+    public void setActive(boolean pIsActive)
+    {
+    }
+
+    @Override
+    public boolean isActive()
+    {
+      return true;
+    }
+
+    @Override
+    public boolean isThreadSafe()
+    {
+      return true;
+    }
+
+    @Override
+    public StackInterface process(StackInterface pStack,
+                                  RecyclerInterface<StackInterface, StackRequest> pStackRecycler)
+    {
+      return pStack;
+    }
+  }
+
+  private static class BlockingStackProcessor implements
+                                              StackProcessorInterface
+  {
+    private final CountDownLatch mLatch;
+
+    public BlockingStackProcessor(CountDownLatch pLatch)
+    {
+      mLatch = pLatch;
+    }
+
+    @Override
+    public void setActive(boolean pIsActive)
+    {
+    }
+
+    @Override
+    public boolean isActive()
+    {
+      return true;
+    }
+
+    @Override
+    public StackInterface process(StackInterface pStack,
+                                  RecyclerInterface<StackInterface, StackRequest> pStackRecycler)
+    {
+      try
+      {
+        mLatch.await();
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+      return pStack;
+    }
+  }
+
+  private static class CountingStack extends EmptyStack
+  {
+    private final AtomicInteger mReleaseCounter;
+
+    public CountingStack(AtomicInteger pReleaseCounter)
+    {
+      mReleaseCounter = pReleaseCounter;
+    }
+
+    @Override
+    public void release()
+    {
+      mReleaseCounter.incrementAndGet();
+    }
+  }
+
+  /**
+   * Tests that listeners of the output variable do not run while the
+   * re-sequencing lock is held
+   * 
+   * @throws InterruptedException
+   *           NA
+   */
+  @Test
+  public void testOutputSetOutsideOfLock() throws InterruptedException
+  {
+    final StagedStackProcessorPipeline lPipeline =
+                                                 new StagedStackProcessorPipeline("Test",
+                                                                                  new StackRecyclerManager(),
+                                                                                  4,
+                                                                                  2,
+                                                                                  true);
+    lPipeline.addStackProcessor(new PassThroughStackProcessor(),
+                                "recycler",
+                                1,
+                                1);
+    assertTrue(lPipeline.open());
+
+    final int lNumberOfStacks = 20;
+    final CountDownLatch lOutputLatch = new CountDownLatch(lNumberOfStacks);
+    lPipeline.getOutputVariable().addSetListener((o, n) -> {
+      // another thread must get the lock while this listener runs:
+      final Thread lThread =
+                           new Thread(lPipeline::getResequencingBacklog);
+      lThread.start();
+      try
+      {
+        lThread.join(1000);
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+      if (!lThread.isAlive())
+        lOutputLatch.countDown();
+    });
+
+    final AtomicInteger lReleaseCounter = new AtomicInteger();
+    for (int i = 0; i < lNumberOfStacks; i++)
+      lPipeline.getInputVariable()
+               .set(new CountingStack(lReleaseCounter));
+
+    assertTrue(lOutputLatch.await(10, TimeUnit.SECONDS));
+    assertTrue(lPipeline.close());
+  }
+
+  /**
+   * Tests that every stack set as input while the pipeline closes is either
+   * output or released
+   * 
+   * @throws InterruptedException
+   *           NA
+   */
+  @Test
+  public void testCloseWhileEnqueuing() throws InterruptedException
+  {
+    final StagedStackProcessorPipeline lPipeline =
+                                                 new StagedStackProcessorPipeline("Test",
+                                                                                  new StackRecyclerManager(),
+                                                                                  2,
+                                                                                  2,
+                                                                                  true);
+    lPipeline.addStackProcessor(new PassThroughStackProcessor(),
+                                "recycler",
+                                1,
+                                1);
+    lPipeline.addStackProcessor(new PassThroughStackProcessor(),
+                                "recycler",
+                                1,
+                                1);
+    assertTrue(lPipeline.open());
+
+    final AtomicInteger lOutputCounter = new AtomicInteger();
+    final AtomicInteger lReleaseCounter = new AtomicInteger();
+    lPipeline.getOutputVariable()
+             .addSetListener((o, n) -> lOutputCounter.incrementAndGet());
+
+    final int lNumberOfStacks = 10000;
+    final Thread lProducerThread = new Thread(() -> {
+      for (int i = 0; i < lNumberOfStacks; i++)
+        lPipeline.getInputVariable()
+                 .set(new CountingStack(lReleaseCounter));
+    });
+    lProducerThread.start();
+
+    ThreadSleep.sleep(5, TimeUnit.MILLISECONDS);
+    assertTrue(lPipeline.close());
+    lProducerThread.join();
+
+    assertEquals(lNumberOfStacks,
+                 lOutputCounter.get() + lReleaseCounter.get());
+  }
+
+  /**
+   * Tests that stacks go through all stages, in order
+   */
+  @Test
+  public void testOrderPreserved()
+  {
+    StackRecyclerManager lStackRecyclerManager =
+                                               new StackRecyclerManager();
+
+    final StagedStackProcessorPipeline lPipeline =
+                                                 new StagedStackProcessorPipeline("Test",
+                                                                                  lStackRecyclerManager,
+                                                                                  4,
+                                                                                  1,
+                                                                                  true);
+
+    final RecyclerInterface<StackInterface, StackRequest> lRecycler0 =
+                                                                     new BasicRecycler<StackInterface, StackRequest>(new ContiguousOffHeapPlanarStackFactory(),
+                                                                                                                     16);
+
+    final StackProcessorInterface lFastStackProcessor =
+                                                      new IncrementingStackProcessor(0);
+    final StackProcessorInterface lSlowStackProcessor =
+                                                      new IncrementingStackProcessor(8);
+
+    lPipeline.addStackProcessor(lFastStackProcessor, "recycler", 16, 16);
+    lPipeline.addStackProcessor(lSlowStackProcessor, "recycler", 16, 16);
+    lPipeline.setStageConfiguration(lSlowStackProcessor, 8, 4);
+
+    assertTrue(lPipeline.open());
+    assertEquals(2, lPipeline.getStageList().size());
+    assertEquals(4,
+                 lPipeline.getStageList().get(1).getNumberOfWorkers());
+
+    final ConcurrentLinkedQueue<Integer> lOutputList =
+                                                     new ConcurrentLinkedQueue<>();
+    lPipeline.getOutputVariable().addSetListener((o, n) -> {
+      assertEquals(2, n.getContiguousMemory().getByteAligned(1));
+      lOutputList.add((int) n.getContiguousMemory().getByteAligned(0));
+      n.release();
+    });
+
+    final int lNumberOfStacks = 100;
+    for (int i = 0; i < lNumberOfStacks; i++)
+    {
+      final StackInterface lStack =
+                                  lRecycler0.getOrWait(100,
+                                                       TimeUnit.SECONDS,
+                                                       StackRequest.build(12,
+                                                                          13,
+                                                                          14));
+      lStack.getContiguousMemory().setByteAligned(0, (byte) i);
+      lStack.getContiguousMemory().setByteAligned(1, (byte) 0);
+      lPipeline.getInputVariable().set(lStack);
+    }
+
+    while (lOutputList.size() < lNumberOfStacks)
+      ThreadSleep.sleep(1, TimeUnit.MILLISECONDS);
+
+    for (int i = 0; i < lNumberOfStacks; i++)
+      assertEquals(i, lOutputList.poll(), 0);
+
+    for (StackProcessingStage lStage : lPipeline.getStageList())
+    {
+      assertEquals(lNumberOfStacks, lStage.getNumberOfProcessedStacks());
+      assertEquals(0, lStage.getInputQueueLength());
+      assertTrue(lStage.getThroughputInStacksPerSecond() > 0);
+    }
+    assertEquals(0, lPipeline.getResequencingBacklog());
+
+    assertTrue(lPipeline.close());
+  }
+
+  /**
+   * Tests that stages of stack processors that are not thread-safe get a
+   * single worker
+   */
+  @Test
+  public void testSingleWorkerForNonThreadSafeProcessors()
+  {
+    final StagedStackProcessorPipeline lPipeline =
+                                                 new StagedStackProcessorPipeline("Test",
+                                                                                  new StackRecyclerManager(),
+                                                                                  4,
+                                                                                  4,
+                                                                                  false);
+    final StackProcessorInterface lStackProcessor =
+                                                  new BlockingStackProcessor(new CountDownLatch(0));
+    lPipeline.addStackProcessor(lStackProcessor, "recycler", 1, 1);
+
+    try
+    {
+      lPipeline.setStageConfiguration(lStackProcessor, 4, 2);
+      fail();
+    }
+    catch (IllegalArgumentException e)
+    {
+    }
+
+    assertTrue(lPipeline.open());
+    assertEquals(1,
+                 lPipeline.getStageList().get(0).getNumberOfWorkers());
+    assertTrue(lPipeline.close());
+  }
+
+  /**
+   * Tests that closing is not blocked by an input stack waiting for a full
+   * stage, and that such a stack is released
+   * 
+   * @throws InterruptedException
+   *           NA
+   */
+  @Test
+  public void testCloseWhileFirstStageFull() throws InterruptedException
+  {
+    final StagedStackProcessorPipeline lPipeline =
+                                                 new StagedStackProcessorPipeline("Test",
+                                                                                  new StackRecyclerManager(),
+                                                                                  1,
+                                                                                  1,
+                                                                                  false);
+    final CountDownLatch lLatch = new CountDownLatch(1);
+    lPipeline.addStackProcessor(new BlockingStackProcessor(lLatch),
+                                "recycler",
+                                1,
+                                1);
+    assertTrue(lPipeline.open());
+
+    final AtomicInteger lOutputCounter = new AtomicInteger();
+    final AtomicInteger lReleaseCounter = new AtomicInteger();
+    lPipeline.getOutputVariable()
+             .addSetListener((o, n) -> lOutputCounter.incrementAndGet());
+
+    // one stack being processed, one queued, and one waiting for the queue:
+    final int lNumberOfStacks = 3;
+    final Thread lProducerThread = new Thread(() -> {
+      for (int i = 0; i < lNumberOfStacks; i++)
+        lPipeline.getInputVariable()
+                 .set(new CountingStack(lReleaseCounter));
+    });
+    lProducerThread.start();
+    lProducerThread.join(500);
+    assertTrue(lProducerThread.isAlive());
+
+    final Thread lCloseThread = new Thread(lPipeline::close);
+    lCloseThread.start();
+
+    // the waiting stack is released while the processor is still blocked:
+    lProducerThread.join(5000);
+    assertFalse(lProducerThread.isAlive());
+    assertTrue(lReleaseCounter.get() >= 1);
+
+    lLatch.countDown();
+    lCloseThread.join(15000);
+    assertFalse(lCloseThread.isAlive());
+    assertEquals(lNumberOfStacks,
+                 lOutputCounter.get() + lReleaseCounter.get());
+  }
+}
@@ -0,0 +1,368 @@
+package clearcontrol.stack.sourcesink.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import clearcontrol.core.concurrent.thread.ThreadSleep;
+import clearcontrol.core.variable.Variable;
+import clearcontrol.stack.EmptyStack;
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.sourcesink.sink.AsynchronousStackSinkAdapter;
+import clearcontrol.stack.sourcesink.sink.QueueFullPolicy;
+import clearcontrol.stack.sourcesink.sink.StackSinkInterface;
+
+import org.junit.Test;
+
+/**
+ * Asynchronous stack sink adapter tests
+ *
+ * @author royer
+ */
+public class AsynchronousStackSinkAdapterTests
+{
+
+  /**
+   * Sink whose writes wait for permits, and that records whether it was closed
+   * while writing
+   */
+  private static class GatedStackSink implements StackSinkInterface
+  {
+    private final Semaphore mGate = new Semaphore(0);
+    private final CopyOnWriteArrayList<StackInterface> mWrittenStackList =
+                                                                        new CopyOnWriteArrayList<>();
+    private final AtomicInteger mNumberOfStartedWrites =
+                                                       new AtomicInteger();
+    private final AtomicBoolean mIsWriting = new AtomicBoolean();
+    private final AtomicBoolean mClosedWhileWriting = new AtomicBoolean();
+    private volatile boolean mIsClosed;
+
+    @Override
+    public boolean appendStack(StackInterface pStack)
+    {
+      return appendStack(cDefaultChannel, pStack);
+    }
+
+    @Override
+    public boolean appendStack(String pChannel, StackInterface pStack)
+    {
+      mIsWriting.set(true);
+      mNumberOfStartedWrites.incrementAndGet();
+      mGate.acquireUninterruptibly();
+      // writes slowly so that a close during the write would be seen:
+      ThreadSleep.sleep(10, TimeUnit.MILLISECONDS);
+      mWrittenStackList.add(pStack);
+      mIsWriting.set(false);
+      return !mIsClosed;
+    }
+
+    public void close()
+    {
+      if (mIsWriting.get())
+        mClosedWhileWriting.set(true);
+      mIsClosed = true;
+    }
+
+    public void waitForStartedWrites(int pNumberOfStartedWrites)
+    {
+      while (mNumberOfStartedWrites.get() < pNumberOfStartedWrites)
+        ThreadSleep.sleep(1, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private static List<StackInterface> createStacks(int pNumberOfStacks)
+  {
+    final ArrayList<StackInterface> lStackList = new ArrayList<>();
+    for (int i = 0; i < pNumberOfStacks; i++)
+      lStackList.add(new EmptyStack());
+    return lStackList;
+  }
+
+  /**
+   * Tests that a full queue drops stacks with the drop policy
+   */
+  @Test
+  public void testDropPolicy()
+  {
+    final GatedStackSink lSink = new GatedStackSink();
+    final AsynchronousStackSinkAdapter lAdapter =
+                                                new AsynchronousStackSinkAdapter(lSink,
+                                                                                 2,
+                                                                                 1,
+                                                                                 QueueFullPolicy.Drop);
+    assertTrue(lAdapter.start());
+    final List<StackInterface> lStackList = createStacks(4);
+
+    // one stack being written, two queued, the last one is dropped:
+    assertTrue(lAdapter.appendStack(lStackList.get(0)));
+    lSink.waitForStartedWrites(1);
+    assertTrue(lAdapter.appendStack(lStackList.get(1)));
+    assertTrue(lAdapter.appendStack(lStackList.get(2)));
+    assertFalse(lAdapter.appendStack(lStackList.get(3)));
+    assertEquals(1, (long) lAdapter.getNumberOfDroppedStacksVariable()
+                                   .get());
+    assertEquals(3, lAdapter.getNumberOfPendingStacks());
+    assertEquals(1, lAdapter.getMaxWriterFillFraction(), 0);
+
+    lSink.mGate.release(3);
+    assertTrue(lAdapter.waitToFinish(10, TimeUnit.SECONDS));
+    assertEquals(lStackList.subList(0, 3), lSink.mWrittenStackList);
+    assertTrue(lAdapter.stop());
+  }
+
+  /**
+   * Tests that a full queue overflows without blocking the appending thread,
+   * that overflowing stacks are written in order by the writer thread, and
+   * that stacks are dropped once the overflow queue is full
+   */
+  @Test
+  public void testSpillPolicy()
+  {
+    final GatedStackSink lSink = new GatedStackSink();
+    final AsynchronousStackSinkAdapter lAdapter =
+                                                new AsynchronousStackSinkAdapter(lSink,
+                                                                                 2,
+                                                                                 1,
+                                                                                 QueueFullPolicy.Spill);
+    lAdapter.setMaxOverflowQueueSize(7);
+    assertTrue(lAdapter.start());
+    final List<StackInterface> lStackList = createStacks(10);
+
+    assertTrue(lAdapter.appendStack(lStackList.get(0)));
+    lSink.waitForStartedWrites(1);
+    for (int i = 1; i < lStackList.size(); i++)
+      assertTrue(lAdapter.appendStack(lStackList.get(i)));
+    assertFalse(lAdapter.appendStack(new EmptyStack()));
+
+    // nothing was written by the appending thread:
+    assertEquals(0, lSink.mWrittenStackList.size());
+    assertEquals(7, (long) lAdapter.getNumberOfSpilledStacksVariable()
+                                   .get());
+    assertEquals(1, (long) lAdapter.getNumberOfDroppedStacksVariable()
+                                   .get());
+    assertEquals(10, lAdapter.getQueueLength() + 1);
+    assertEquals(9 / 2d, lAdapter.getMaxWriterFillFraction(), 0);
+
+    lSink.mGate.release(lStackList.size());
+    assertTrue(lAdapter.waitToFinish(10, TimeUnit.SECONDS));
+    assertEquals(lStackList, lSink.mWrittenStackList);
+    assertEquals(0, lAdapter.getQueueLength());
+    assertEquals(0, lAdapter.getMaxWriterFillFraction(), 0);
+    assertEquals(9, (int) lAdapter.getMaxQueueLengthVariable().get());
+    assertTrue(lAdapter.stop());
+  }
+
+  /**
+   * Tests that a full queue blocks the appending thread until there is room
+   *
+   * @throws InterruptedException
+   *           N/A
+   */
+  @Test
+  public void testBlockPolicy() throws InterruptedException
+  {
+    final GatedStackSink lSink = new GatedStackSink();
+    final AsynchronousStackSinkAdapter lAdapter =
+                                                new AsynchronousStackSinkAdapter(lSink,
+                                                                                 1,
+                                                                                 1,
+                                                                                 QueueFullPolicy.Block);
+    assertTrue(lAdapter.start());
+    final List<StackInterface> lStackList = createStacks(3);
+
+    assertTrue(lAdapter.appendStack(lStackList.get(0)));
+    lSink.waitForStartedWrites(1);
+    assertTrue(lAdapter.appendStack(lStackList.get(1)));
+
+    final Thread lAppendingThread = new Thread(() -> {
+      lAdapter.appendStack(lStackList.get(2));
+    });
+    lAppendingThread.start();
+    lAppendingThread.join(100);
+    assertTrue(lAppendingThread.isAlive());
+
+    lSink.mGate.release(lStackList.size());
+    lAppendingThread.join(10000);
+    assertFalse(lAppendingThread.isAlive());
+    assertTrue(lAdapter.waitToFinish(10, TimeUnit.SECONDS));
+    assertEquals(lStackList, lSink.mWrittenStackList);
+    assertTrue(lAdapter.getBlockedTimeInSecondsVariable().get() > 0);
+    assertTrue(lAdapter.stop());
+  }
+
+  /**
+   * Tests that stopping the adapter, or interrupting the appending thread,
+   * releases a thread blocked on a full queue
+   *
+   * @throws InterruptedException
+   *           N/A
+   */
+  @Test
+  public void testStopReleasesBlockedAppend() throws InterruptedException
+  {
+    final GatedStackSink lSink = new GatedStackSink();
+    final AsynchronousStackSinkAdapter lAdapter =
+                                                new AsynchronousStackSinkAdapter(lSink,
+                                                                                 1,
+                                                                                 1,
+                                                                                 QueueFullPolicy.Block);
+    assertTrue(lAdapter.start());
+    final List<StackInterface> lStackList = createStacks(4);
+
+    assertTrue(lAdapter.appendStack(lStackList.get(0)));
+    lSink.waitForStartedWrites(1);
+    assertTrue(lAdapter.appendStack(lStackList.get(1)));
+
+    final AtomicBoolean lAppended = new AtomicBoolean(true);
+    final Thread lInterruptedThread = new Thread(() -> {
+      lAppended.set(lAdapter.appendStack(lStackList.get(2)));
+    });
+    lInterruptedThread.start();
+    lInterruptedThread.join(100);
+    assertTrue(lInterruptedThread.isAlive());
+    lInterruptedThread.interrupt();
+    lInterruptedThread.join(10000);
+    assertFalse(lInterruptedThread.isAlive());
+    assertFalse(lAppended.get());
+
+    final Thread lAppendingThread = new Thread(() -> {
+      lAppended.set(lAdapter.appendStack(lStackList.get(3)));
+    });
+    lAppendingThread.start();
+    lAppendingThread.join(100);
+    assertTrue(lAppendingThread.isAlive());
+
+    final Thread lStoppingThread = new Thread(() -> {
+      lAdapter.stop();
+    });
+    lStoppingThread.start();
+    lAppendingThread.join(10000);
+    assertFalse(lAppendingThread.isAlive());
+    assertFalse(lAppended.get());
+
+    // the stop waits for the stack being written:
+    lSink.mGate.release(lStackList.size());
+    lStoppingThread.join(10000);
+    assertFalse(lStoppingThread.isAlive());
+    assertEquals(lStackList.subList(0, 1), lSink.mWrittenStackList);
+    assertEquals(3, (long) lAdapter.getNumberOfDroppedStacksVariable()
+                                   .get());
+    assertEquals(0, lAdapter.getNumberOfPendingStacks());
+  }
+
+  /**
+   * Tests that stacks released once written are not published, only their
+   * metadata is
+   */
+  @Test
+  public void testFinishedStacksNotPublishedWhenReleased()
+  {
+    final GatedStackSink lSink = new GatedStackSink();
+    final AsynchronousStackSinkAdapter lAdapter =
+                                                new AsynchronousStackSinkAdapter(lSink,
+                                                                                 4);
+    final Variable<StackInterface> lFinishedStackVariable =
+                                                          new Variable<>("FinishedStack",
+                                                                         null);
+    lAdapter.setFinishedProcessingStackVariable(lFinishedStackVariable);
+    assertTrue(lAdapter.start());
+
+    final StackInterface lStack = new EmptyStack();
+    lStack.getMetaData().setIndex(1);
+    assertTrue(lAdapter.appendStack(lStack));
+    lSink.mGate.release();
+    assertTrue(lAdapter.waitToFinish(10, TimeUnit.SECONDS));
+    assertEquals(lStack, lFinishedStackVariable.get());
+    assertEquals(1L,
+                 (long) lAdapter.getFinishedStackMetaDataVariable()
+                                .get()
+                                .getIndex());
+
+    lFinishedStackVariable.set((StackInterface) null);
+    lAdapter.setReleaseStacksAfterWriting(true);
+    final StackInterface lReleasedStack = new EmptyStack();
+    lReleasedStack.getMetaData().setIndex(2);
+    assertTrue(lAdapter.appendStack(lReleasedStack));
+    lSink.mGate.release();
+    assertTrue(lAdapter.waitToFinish(10, TimeUnit.SECONDS));
+    assertNull(lFinishedStackVariable.get());
+    assertEquals(2L,
+                 (long) lAdapter.getFinishedStackMetaDataVariable()
+                                .get()
+                                .getIndex());
+    assertTrue(lAdapter.stop());
+  }
+
+  /**
+   * Tests that waiting to finish covers the stack being written, so that the
+   * sink is never closed during a write, and that stopping drops stacks that
+   * are still queued.
+   *
+   * @throws InterruptedException
+   *           N/A
+   */
+  @Test
+  public void testStopAndCloseOrdering() throws InterruptedException
+  {
+    final GatedStackSink lSink = new GatedStackSink();
+    final AsynchronousStackSinkAdapter lAdapter =
+                                                new AsynchronousStackSinkAdapter(lSink,
+                                                                                 4,
+                                                                                 2,
+                                                                                 QueueFullPolicy.Block);
+    assertTrue(lAdapter.start());
+    final List<StackInterface> lStackList = createStacks(6);
+    for (int i = 0; i < lStackList.size(); i++)
+      assertTrue(lAdapter.appendStack("channel" + (i % 2),
+                                      lStackList.get(i)));
+    lSink.waitForStartedWrites(2);
+
+    // the queues are empty long before the last writes return:
+    final Thread lClosingThread = new Thread(() -> {
+      lAdapter.waitToFinish(10, TimeUnit.SECONDS);
+      lAdapter.stop();
+      lSink.close();
+    });
+    lClosingThread.start();
+    for (int i = 0; i < lStackList.size(); i++)
+    {
+      ThreadSleep.sleep(20, TimeUnit.MILLISECONDS);
+      lSink.mGate.release();
+    }
+    lClosingThread.join(10000);
+
+    assertFalse(lSink.mClosedWhileWriting.get());
+    assertEquals(lStackList.size(), lSink.mWrittenStackList.size());
+    assertEquals(lStackList.size(),
+                 (long) lAdapter.getNumberOfWrittenStacksVariable()
+                                .get());
+
+    // stopping without waiting drops the queued stacks:
+    final GatedStackSink lSink2 = new GatedStackSink();
+    final AsynchronousStackSinkAdapter lAdapter2 =
+                                                 new AsynchronousStackSinkAdapter(lSink2,
+                                                                                  4,
+                                                                                  1,
+                                                                                  QueueFullPolicy.Block);
+    assertTrue(lAdapter2.start());
+    for (StackInterface lStack : createStacks(3))
+      assertTrue(lAdapter2.appendStack(lStack));
+    lSink2.waitForStartedWrites(1);
+    lSink2.mGate.release();
+    assertTrue(lAdapter2.stop());
+    assertEquals(1, lSink2.mWrittenStackList.size());
+    assertEquals(2, (long) lAdapter2.getNumberOfDroppedStacksVariable()
+                                    .get());
+    assertEquals(0, lAdapter2.getNumberOfPendingStacks());
+  }
+
+}
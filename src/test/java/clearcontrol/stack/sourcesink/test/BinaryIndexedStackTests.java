@@ -0,0 +1,314 @@
+package clearcontrol.stack.sourcesink.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+import clearcontrol.stack.ContiguousOffHeapPlanarStackFactory;
+import clearcontrol.stack.OffHeapPlanarStack;
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackRequest;
+import clearcontrol.stack.sourcesink.BinaryStackIndex;
+import clearcontrol.stack.sourcesink.BinaryStackIndexConverter;
+import clearcontrol.stack.sourcesink.StackSinkSourceInterface;
+import clearcontrol.stack.sourcesink.sink.BinaryIndexedStackSink;
+import clearcontrol.stack.sourcesink.sink.RawFileStackSink;
+import clearcontrol.stack.sourcesink.source.BinaryIndexedStackSource;
+import coremem.recycling.BasicRecycler;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+/**
+ * Binary indexed stack sink and source tests
+ *
+ * @author royer
+ */
+public class BinaryIndexedStackTests
+{
+
+  private static final int cNumberOfStacks = 5;
+
+  /**
+   * Tests writing and reading with a binary index
+   *
+   * @throws IOException
+   *           NA
+   */
+  @Test
+  public void testSinkAndSource() throws IOException
+  {
+    final File lRootFolder = createRootFolder();
+
+    {
+      final BinaryIndexedStackSink lBinaryIndexedStackSink =
+                                                           new BinaryIndexedStackSink();
+      lBinaryIndexedStackSink.setLocation(lRootFolder, "testSink");
+      appendStacks(lBinaryIndexedStackSink::appendStack);
+      lBinaryIndexedStackSink.close();
+    }
+
+    checkSource(lRootFolder);
+
+    deleteRootFolder(lRootFolder);
+  }
+
+  /**
+   * Tests appending stacks into segment files with rollover
+   *
+   * @throws IOException
+   *           NA
+   */
+  @Test
+  public void testSegmentedSinkAndSource() throws IOException
+  {
+    final File lRootFolder = createRootFolder();
+
+    {
+      // 1024 byte stacks aligned to 512 bytes: two stacks per segment.
+      final BinaryIndexedStackSink lBinaryIndexedStackSink =
+                                                           new BinaryIndexedStackSink(2500,
+                                                                                      512);
+      lBinaryIndexedStackSink.setLocation(lRootFolder, "testSink");
+      appendStacks(lBinaryIndexedStackSink::appendStack);
+      lBinaryIndexedStackSink.close();
+    }
+
+    File lChannelFolder = new File(lRootFolder,
+                                   "testSink/stacks/"
+                                                + StackSinkSourceInterface.cDefaultChannel);
+    assertEquals(3, lChannelFolder.listFiles().length);
+    assertEquals(1024,
+                 BinaryStackIndex.getSegmentFile(lChannelFolder, 3)
+                                 .length());
+
+    checkSource(lRootFolder);
+
+    deleteRootFolder(lRootFolder);
+  }
+
+  /**
+   * Tests conversion from the index and metadata text files
+   *
+   * @throws IOException
+   *           NA
+   */
+  @Test
+  public void testConverter() throws IOException
+  {
+    final File lRootFolder = createRootFolder();
+
+    {
+      final RawFileStackSink lRawFileStackSink = new RawFileStackSink();
+      lRawFileStackSink.setLocation(lRootFolder, "testSink");
+      appendStacks(lRawFileStackSink::appendStack);
+      lRawFileStackSink.close();
+    }
+
+    assertEquals(cNumberOfStacks,
+                 BinaryStackIndexConverter.convert(lRootFolder,
+                                                   "testSink"));
+
+    checkSource(lRootFolder);
+
+    deleteRootFolder(lRootFolder);
+  }
+
+  /**
+   * Tests that converted datasets with gaps in their stack indices are looked
+   * up by stack index
+   *
+   * @throws IOException
+   *           NA
+   */
+  @Test
+  public void testConverterWithGaps() throws IOException
+  {
+    final File lRootFolder = createRootFolder();
+    final String lChannel = StackSinkSourceInterface.cDefaultChannel;
+
+    try (
+        PrintWriter lIndexWriter =
+                                 new PrintWriter(new File(lRootFolder,
+                                                          lChannel + ".index.txt"));
+        PrintWriter lMetaDataWriter =
+                                    new PrintWriter(new File(lRootFolder,
+                                                             lChannel
+                                                                          + ".metadata.txt")))
+    {
+      for (long lStackIndex : new long[]
+      { 0, 2, 5, 1, 7 })
+      {
+        lIndexWriter.format("%d\t%d.0\t16, 8, 4\n",
+                            lStackIndex,
+                            lStackIndex);
+        lMetaDataWriter.format("{}\n");
+      }
+    }
+
+    // the out of order entry is skipped:
+    assertEquals(4,
+                 BinaryStackIndexConverter.convertChannel(lRootFolder,
+                                                          lChannel));
+
+    try (BinaryStackIndex lBinaryStackIndex =
+                                            new BinaryStackIndex(new File(lRootFolder,
+                                                                          lChannel
+                                                                                       + BinaryStackIndex.cIndexFileExtension),
+                                                                 new File(lRootFolder,
+                                                                          lChannel
+                                                                                       + BinaryStackIndex.cMetaDataFileExtension),
+                                                                 true))
+    {
+      assertEquals(4, lBinaryStackIndex.getNumberOfEntries());
+      for (long lStackIndex : new long[]
+      { 0, 2, 5, 7 })
+        assertEquals(lStackIndex,
+                     lBinaryStackIndex.getEntry(lStackIndex)
+                                      .getTimeStampInSeconds(),
+                     0);
+      for (long lStackIndex : new long[]
+      { -1, 1, 3, 4, 6, 8 })
+        assertNull(lBinaryStackIndex.getEntry(lStackIndex));
+      assertEquals(7,
+                   lBinaryStackIndex.getEntryAt(3).getStackIndex());
+    }
+
+    deleteRootFolder(lRootFolder);
+  }
+
+  /**
+   * Tests that stacks appended concurrently to the same channel get distinct
+   * consecutive stack indices
+   *
+   * @throws Exception
+   *           NA
+   */
+  @Test
+  public void testConcurrentAppends() throws Exception
+  {
+    final File lRootFolder = createRootFolder();
+    final int lNumberOfThreads = 4;
+
+    final BinaryIndexedStackSink lBinaryIndexedStackSink =
+                                                         new BinaryIndexedStackSink();
+    lBinaryIndexedStackSink.setLocation(lRootFolder, "testSink");
+
+    final ArrayList<Thread> lThreadList = new ArrayList<>();
+    for (int t = 0; t < lNumberOfThreads; t++)
+    {
+      Thread lThread =
+                     new Thread(() -> appendStacks(lBinaryIndexedStackSink::appendStack));
+      lThreadList.add(lThread);
+      lThread.start();
+    }
+    for (Thread lThread : lThreadList)
+      lThread.join();
+    lBinaryIndexedStackSink.close();
+
+    final File lFolder = new File(lRootFolder, "testSink");
+    try (BinaryStackIndex lBinaryStackIndex =
+                                            new BinaryStackIndex(new File(lFolder,
+                                                                          StackSinkSourceInterface.cDefaultChannel
+                                                                                   + BinaryStackIndex.cIndexFileExtension),
+                                                                 new File(lFolder,
+                                                                          StackSinkSourceInterface.cDefaultChannel
+                                                                                   + BinaryStackIndex.cMetaDataFileExtension),
+                                                                 true))
+    {
+      assertEquals(lNumberOfThreads * cNumberOfStacks,
+                   lBinaryStackIndex.getNumberOfEntries());
+      for (int i = 0; i < lNumberOfThreads * cNumberOfStacks; i++)
+        assertEquals(i, lBinaryStackIndex.getEntryAt(i).getStackIndex());
+    }
+
+    deleteRootFolder(lRootFolder);
+  }
+
+  private interface Appender
+  {
+    boolean appendStack(StackInterface pStack);
+  }
+
+  private void appendStacks(Appender pAppender)
+  {
+    final OffHeapPlanarStack lStack =
+                                    OffHeapPlanarStack.createStack(16,
+                                                                   8,
+                                                                   4);
+    for (int i = 0; i < cNumberOfStacks; i++)
+    {
+      lStack.getContiguousMemory().setByteAligned(0, (byte) i);
+      lStack.getMetaData().setIndex(i);
+      lStack.getMetaData()
+            .setTimeStampInNanoseconds(1000000000L * (i + 1));
+      assertTrue(pAppender.appendStack(lStack));
+    }
+    lStack.free();
+  }
+
+  private void checkSource(File pRootFolder) throws IOException
+  {
+    final BasicRecycler<StackInterface, StackRequest> lStackRecycler =
+                                                                     new BasicRecycler<StackInterface, StackRequest>(new ContiguousOffHeapPlanarStackFactory(),
+                                                                                                                     cNumberOfStacks);
+
+    final BinaryIndexedStackSource lBinaryIndexedStackSource =
+                                                             new BinaryIndexedStackSource(lStackRecycler);
+    lBinaryIndexedStackSource.setLocation(pRootFolder, "testSink");
+
+    assertEquals(cNumberOfStacks,
+                 lBinaryIndexedStackSource.getNumberOfStacks());
+
+    for (int i = 0; i < cNumberOfStacks; i++)
+    {
+      assertEquals(i,
+                   lBinaryIndexedStackSource.getStackTimeStampInSeconds(i),
+                   1e-3);
+      assertEquals(i,
+                   lBinaryIndexedStackSource.getStackMetaData(StackSinkSourceInterface.cDefaultChannel,
+                                                              i)
+                                            .getIndex()
+                                            .longValue());
+
+      StackInterface lStack = lBinaryIndexedStackSource.getStack(i);
+      assertEquals(16, lStack.getWidth());
+      assertEquals(8, lStack.getHeight());
+      assertEquals(4, lStack.getDepth());
+      assertEquals(i,
+                   lStack.getContiguousMemory().getByteAligned(0));
+      lStack.release();
+    }
+
+    lBinaryIndexedStackSource.close();
+  }
+
+  private static File createRootFolder() throws IOException
+  {
+    final File lRootFolder =
+                           new File(File.createTempFile("test",
+                                                        "test")
+                                        .getParentFile(),
+                                    "BinaryIndexedStackTests"
+                                                      + Math.random());
+    lRootFolder.mkdirs();
+    return lRootFolder;
+  }
+
+  private static void deleteRootFolder(File pRootFolder)
+  {
+    try
+    {
+      FileUtils.deleteDirectory(pRootFolder);
+    }
+    catch (Exception e)
+    {
+    }
+  }
+
+}
@@ -1,16 +1,22 @@
 package clearcontrol.stack.sourcesink.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
 
 import clearcontrol.stack.ContiguousOffHeapPlanarStackFactory;
 import clearcontrol.stack.OffHeapPlanarStack;
 import clearcontrol.stack.StackInterface;
 import clearcontrol.stack.StackRequest;
+import clearcontrol.stack.sourcesink.sink.GroupCommitJournal;
 import clearcontrol.stack.sourcesink.sink.RawFileStackSink;
+import clearcontrol.stack.sourcesink.source.MemoryMappedStackCache;
 import clearcontrol.stack.sourcesink.source.RawFileStackSource;
 import coremem.ContiguousMemoryInterface;
 import coremem.buffers.ContiguousBuffer;
@@ -237,4 +243,225 @@ public class RawFileStackTests
     }
 
   }
+
+  /**
+   * Tests journal mode and recovery of a partially written tail
+   * 
+   * @throws IOException
+   *           NA
+   */
+  @Test
+  public void testJournalModeAndRecovery() throws IOException
+  {
+    final File lRootFolder =
+                           new File(File.createTempFile("test",
+                                                        "test")
+                                        .getParentFile(),
+                                    "LocalFileStackTests" + Math.random());/**/
+
+    lRootFolder.mkdirs();
+
+    final int lNumberOfStacks = 5;
+
+    {
+      final RawFileStackSink lLocalFileStackSink =
+                                                 new RawFileStackSink(2,
+                                                                      1,
+                                                                      TimeUnit.SECONDS);
+      lLocalFileStackSink.setLocation(lRootFolder, "testSink");
+
+      final OffHeapPlanarStack lStack =
+                                      OffHeapPlanarStack.createStack(16,
+                                                                     16,
+                                                                     4);
+
+      for (int i = 0; i < lNumberOfStacks; i++)
+      {
+        lStack.getMetaData().setIndex(i);
+        lStack.getMetaData()
+              .setTimeStampInNanoseconds(System.nanoTime());
+        assertTrue(lLocalFileStackSink.appendStack(lStack));
+      }
+
+      lLocalFileStackSink.close();
+      lStack.free();
+    }
+
+    // simulates a crash: an index entry without metadata, and a partial line:
+    File lIndexFile = new File(new File(lRootFolder, "testSink"),
+                               "default.index.txt");
+    FileUtils.writeStringToFile(lIndexFile,
+                                "5\t1.0000\t16, 16, 4\n6\t1.2",
+                                true);
+
+    {
+      final ContiguousOffHeapPlanarStackFactory lOffHeapPlanarStackFactory =
+                                                                           new ContiguousOffHeapPlanarStackFactory();
+
+      final BasicRecycler<StackInterface, StackRequest> lStackRecycler =
+                                                                       new BasicRecycler<StackInterface, StackRequest>(lOffHeapPlanarStackFactory,
+                                                                                                                       cMaximalNumberOfAvailableStacks);
+
+      final RawFileStackSource lLocalFileStackSource =
+                                                     new RawFileStackSource(lStackRecycler);
+
+      lLocalFileStackSource.setLocation(lRootFolder, "testSink");
+
+      assertEquals(lNumberOfStacks,
+                   lLocalFileStackSource.getNumberOfStacks());
+
+      assertEquals(16,
+                   lLocalFileStackSource.getStack(lNumberOfStacks - 1)
+                                        .getWidth());
+
+      lLocalFileStackSource.close();
+    }
+
+    // reopening a journal truncates the partial line before appending:
+    final GroupCommitJournal lIndexJournal =
+                                           new GroupCommitJournal(lIndexFile,
+                                                                  1,
+                                                                  0,
+                                                                  TimeUnit.SECONDS);
+    lIndexJournal.append("6\t1.2000\t16, 16, 4");
+    lIndexJournal.close();
+
+    final String lIndexFileContent =
+                                   FileUtils.readFileToString(lIndexFile);
+    assertTrue(lIndexFileContent.endsWith("5\t1.0000\t16, 16, 4\n"
+                                          + "6\t1.2000\t16, 16, 4\n"));
+
+    try
+    {
+      FileUtils.deleteDirectory(lRootFolder);
+    }
+    catch (Exception e)
+    {
+    }
+
+  }
+
+  /**
+   * Tests memory mapped (zero-copy) reading
+   * 
+   * @throws IOException
+   *           NA
+   */
+  @Test
+  public void testMemoryMappedSource() throws IOException
+  {
+    final File lRootFolder =
+                           new File(File.createTempFile("test",
+                                                        "test")
+                                        .getParentFile(),
+                                    "LocalFileStackTests" + Math.random());/**/
+
+    lRootFolder.mkdirs();
+
+    final int lNumberOfStacks = 3;
+
+    {
+      final RawFileStackSink lLocalFileStackSink =
+                                                 new RawFileStackSink();
+      lLocalFileStackSink.setLocation(lRootFolder, "testSink");
+
+      final OffHeapPlanarStack lStack =
+                                      OffHeapPlanarStack.createStack(16,
+                                                                     16,
+                                                                     4);
+
+      for (int i = 0; i < lNumberOfStacks; i++)
+      {
+        ContiguousBuffer lContiguousBuffer =
+                                           ContiguousBuffer.wrap(lStack.getContiguousMemory());
+        while (lContiguousBuffer.hasRemainingShort())
+          lContiguousBuffer.writeShort((short) i);
+
+        lStack.getMetaData().setIndex(i);
+        lStack.getMetaData()
+              .setTimeStampInNanoseconds(System.nanoTime());
+        assertTrue(lLocalFileStackSink.appendStack(lStack));
+      }
+
+      lLocalFileStackSink.close();
+      lStack.free();
+    }
+
+    {
+      // a single cached mapping forces evictions while stacks are in use:
+      final RawFileStackSource lLocalFileStackSource =
+                                                     new RawFileStackSource(null,
+                                                                            1);
+      lLocalFileStackSource.setLocation(lRootFolder, "testSink");
+
+      assertTrue(lLocalFileStackSource.isMemoryMapped());
+      assertEquals(lNumberOfStacks,
+                   lLocalFileStackSource.getNumberOfStacks());
+
+      StackInterface[] lStacks = new StackInterface[lNumberOfStacks];
+      for (int i = 0; i < lNumberOfStacks; i++)
+        lStacks[i] = lLocalFileStackSource.getStack(i);
+
+      for (int i = 0; i < lNumberOfStacks; i++)
+      {
+        assertEquals(16, lStacks[i].getWidth());
+        assertEquals(4, lStacks[i].getDepth());
+        assertEquals(i, lStacks[i].getMetaData().getIndex().longValue());
+        ContiguousBuffer lContiguousBuffer =
+                                           ContiguousBuffer.wrap(lStacks[i].getContiguousMemory());
+        while (lContiguousBuffer.hasRemainingShort())
+          assertEquals(i, lContiguousBuffer.readShort());
+        lStacks[i].release();
+        assertTrue(lStacks[i].isReleased());
+      }
+
+      lLocalFileStackSource.close();
+    }
+
+    try
+    {
+      FileUtils.deleteDirectory(lRootFolder);
+    }
+    catch (Exception e)
+    {
+    }
+
+  }
+  /**
+   * Tests that files too large for a single mapping are not mapped
+   * 
+   * @throws IOException
+   *           NA
+   */
+  @Test
+  public void testLargeFilesAreNotMapped() throws IOException
+  {
+    final File lFile = File.createTempFile("RawFileStackTests", ".raw");
+    lFile.deleteOnExit();
+
+    // sparse file, just over the mappable size:
+    try (RandomAccessFile lRandomAccessFile = new RandomAccessFile(lFile,
+                                                                   "rw"))
+    {
+      lRandomAccessFile.setLength(MemoryMappedStackCache.cMaxMappingSizeInBytes
+                                  + 1);
+    }
+    assertFalse(MemoryMappedStackCache.canMap(lFile));
+
+    try (MemoryMappedStackCache lMemoryMappedStackCache =
+                                                        new MemoryMappedStackCache(1))
+    {
+      lMemoryMappedStackCache.acquire(lFile);
+      fail();
+    }
+    catch (IOException e)
+    {
+      // expected, the file is too large
+    }
+    finally
+    {
+      lFile.delete();
+    }
+  }
+
 }
@@ -0,0 +1,140 @@
+package clearcontrol.stack.sourcesink.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import clearcontrol.stack.sourcesink.SqeazyChunkTable;
+
+import org.junit.Test;
+
+/**
+ * Sqeazy chunk table tests
+ *
+ * @author royer
+ */
+public class SqeazyChunkTableTests
+{
+
+  /**
+   * Tests that a chunk table written after the chunk data reads back
+   * identically
+   *
+   * @throws IOException
+   *           NA
+   */
+  @Test
+  public void testWriteReadRoundTrip() throws IOException
+  {
+    final File lFile = File.createTempFile("SqeazyChunkTableTests",
+                                           ".sqy");
+    lFile.deleteOnExit();
+
+    final SqeazyChunkTable lChunkTable = new SqeazyChunkTable(10, 4);
+    assertEquals(3, lChunkTable.getNumberOfChunks());
+    assertEquals(2, lChunkTable.getNumberOfPlanes(2));
+
+    try (FileChannel lFileChannel =
+                                  FileChannel.open(lFile.toPath(),
+                                                   StandardOpenOption.WRITE))
+    {
+      // chunk payloads of different lengths, then the footer:
+      long lOffset = 0;
+      for (int i = 0; i < lChunkTable.getNumberOfChunks(); i++)
+      {
+        final int lLength = 100 + 17 * i;
+        final ByteBuffer lPayload = ByteBuffer.allocate(lLength);
+        while (lPayload.hasRemaining())
+          lFileChannel.write(lPayload);
+        lChunkTable.setChunk(i, lOffset, lLength);
+        lOffset += lLength;
+      }
+      lChunkTable.writeTo(lFileChannel);
+    }
+
+    try (FileChannel lFileChannel =
+                                  FileChannel.open(lFile.toPath(),
+                                                   StandardOpenOption.READ))
+    {
+      final SqeazyChunkTable lReadChunkTable =
+                                             SqeazyChunkTable.readFrom(lFileChannel);
+      assertNotNull(lReadChunkTable);
+
+      assertEquals(lChunkTable.getNumberOfChunks(),
+                   lReadChunkTable.getNumberOfChunks());
+      assertEquals(lChunkTable.getPlanesPerChunk(),
+                   lReadChunkTable.getPlanesPerChunk());
+      for (int i = 0; i < lChunkTable.getNumberOfChunks(); i++)
+      {
+        assertEquals(lChunkTable.getOffset(i),
+                     lReadChunkTable.getOffset(i));
+        assertEquals(lChunkTable.getLength(i),
+                     lReadChunkTable.getLength(i));
+        assertEquals(lChunkTable.getFirstPlane(i),
+                     lReadChunkTable.getFirstPlane(i));
+        assertEquals(lChunkTable.getNumberOfPlanes(i),
+                     lReadChunkTable.getNumberOfPlanes(i));
+      }
+    }
+  }
+
+  /**
+   * Tests the lookup of the chunk and offset holding a given plane
+   */
+  @Test
+  public void testOffsetLookup()
+  {
+    final SqeazyChunkTable lChunkTable = new SqeazyChunkTable(10, 4);
+    lChunkTable.setChunk(0, 0, 100);
+    lChunkTable.setChunk(1, 100, 117);
+    lChunkTable.setChunk(2, 217, 134);
+
+    assertEquals(0, lChunkTable.getChunkIndex(0));
+    assertEquals(0, lChunkTable.getChunkIndex(3));
+    assertEquals(1, lChunkTable.getChunkIndex(4));
+    assertEquals(1, lChunkTable.getChunkIndex(7));
+    assertEquals(2, lChunkTable.getChunkIndex(8));
+    assertEquals(2, lChunkTable.getChunkIndex(9));
+
+    assertEquals(100,
+                 lChunkTable.getOffset(lChunkTable.getChunkIndex(5)));
+    assertEquals(217,
+                 lChunkTable.getOffset(lChunkTable.getChunkIndex(9)));
+    assertEquals(8,
+                 lChunkTable.getFirstPlane(lChunkTable.getChunkIndex(9)));
+  }
+
+  /**
+   * Tests that monolithic files are not mistaken for chunked files
+   *
+   * @throws IOException
+   *           NA
+   */
+  @Test
+  public void testMonolithicFileHasNoChunkTable() throws IOException
+  {
+    final File lFile = File.createTempFile("SqeazyChunkTableTests",
+                                           ".sqy");
+    lFile.deleteOnExit();
+
+    try (FileChannel lFileChannel =
+                                  FileChannel.open(lFile.toPath(),
+                                                   StandardOpenOption.READ,
+                                                   StandardOpenOption.WRITE))
+    {
+      assertNull(SqeazyChunkTable.readFrom(lFileChannel));
+
+      final ByteBuffer lPayload = ByteBuffer.allocate(1000);
+      while (lPayload.hasRemaining())
+        lFileChannel.write(lPayload);
+      assertNull(SqeazyChunkTable.readFrom(lFileChannel));
+    }
+  }
+
+}